@@ -21,18 +21,30 @@ import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ObjectNode;
-import io.confluent.kafka.schemaregistry.protobuf.ProtobufSchema;
-import io.confluent.kafka.schemaregistry.avro.AvroSchema;
-import io.confluent.kafka.schemaregistry.json.JsonSchema;
-import io.confluent.kafka.serializers.KafkaAvroDeserializer;
-import io.confluent.kafka.serializers.KafkaAvroSerializer;
-import io.confluent.kafka.serializers.KafkaJsonDeserializer;
-import io.confluent.kafka.serializers.KafkaJsonSerializer;
-import io.confluent.kafka.serializers.protobuf.KafkaProtobufDeserializer;
-import io.confluent.kafka.serializers.protobuf.KafkaProtobufSerializer;
-import io.firkin.kif.utils.RecordInputStream;
-import io.firkin.kif.utils.RecordOutputStream;
-import io.firkin.kif.utils.RecordStreams;
+import io.confluent.kafka.schemaregistry.client.MockSchemaRegistryClient;
+import io.confluent.kafka.schemaregistry.client.SchemaRegistryClient;
+import io.firkin.kif.utils.AvroJsonTranscoder;
+import io.firkin.kif.utils.CachingSchemaRegistryClient;
+import io.firkin.kif.utils.JsonValues;
+import io.firkin.kif.utils.KifSerdes;
+import io.firkin.kif.utils.NdjsonFileSource;
+import io.firkin.kif.utils.RecordContainer;
+import io.firkin.kif.utils.RecordPipeline;
+import io.firkin.kif.utils.RecordUtils;
+import io.firkin.kif.utils.RecordUtils.IntPartitionResolver;
+import io.firkin.kif.utils.RecordUtils.KeyResolver;
+import io.firkin.kif.utils.SchemaIdRemapper;
+import io.firkin.kif.utils.SerdePool;
+import io.firkin.kif.utils.StreamConsumer;
+import io.firkin.kif.utils.StreamProducer;
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaParseException;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.KafkaException;
+import org.apache.kafka.common.errors.SerializationException;
+import org.apache.kafka.common.serialization.ByteArrayDeserializer;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
 import org.jline.builtins.Options;
 
 import java.io.*;
@@ -42,12 +54,18 @@ import java.net.URL;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.InvalidPathException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
-import java.util.concurrent.Executors;
+import java.util.Map;
+import java.util.function.Function;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -62,13 +80,16 @@ public class KifGenCli {
   private static final String[] DESCRIPTION;
   private static final String[] USAGE;
 
+  private static final String DEFAULT_TOPIC = "kif";
+  private static final ObjectMapper JSON = new ObjectMapper();
+
   private static Options options;
   private static boolean verbose;
 
-  private enum RecordFormat {
+  enum RecordFormat {
     AVRO,      // bytes     --> https://avro.apache.org/
-    RAW,       // bytes     --> How to delineate records safely?
-    JSON,      // text      --> One object per line?
+    RAW,       // bytes     --> Checksummed blocks of frames, see RecordContainer
+    JSON,      // text      --> Framed, or one value per line in a file; see NdjsonFileSource
     PROTOBUF;   // bytes     --> https://developers.google.com/protocol-buffers
 
     private final String scheme;
@@ -83,7 +104,14 @@ public class KifGenCli {
     VERBOSE("v", "verbose"),
     QUIET("q", "quiet"),
     OUTPUT("o", "output"),
-    INPUT("i", "input");
+    INPUT("i", "input"),
+    KEY(null, "key"),
+    PARTITION_BY(null, "partition-by"),
+    PARTITIONS(null, "partitions"),
+    THREADS(null, "threads"),
+    REGISTRY("r", "registry"),
+    TARGET_REGISTRY(null, "target-registry"),
+    SCHEMA("s", "schema");
 
     String longName;
     String shortName;
@@ -113,8 +141,14 @@ public class KifGenCli {
         "  -q --quiet                   produce less verbose output",
         "  -h --help                    Show help",
         "  -o --output=FORMAT           Output data in the specified output format: avro, binary, base64, json, or protobuf",
-        "  -i --input=FORMAT            Input data read in one of avro, binary, base64, json, or protobuf."
-//      "  -s --schema=SCHEMAID         Schema for decoding or encoding records.",
+        "  -i --input=FORMAT            Input data read in one of avro, binary, base64, json, or protobuf.",
+        "     --key=PATH                Key each record by the field at PATH, e.g. $.customer.id",
+        "     --partition-by=PATH       Partition each record by the field at PATH, e.g. $.region",
+        "     --partitions=N            Spread --partition-by values over N partitions (default: numeric values only)",
+        "     --threads=N               Decode, transform and encode records on N threads each (default: one per core)",
+        "  -r --registry=URL            Schema Registry for avro and protobuf records; its schemas are cached in ~/.kif",
+        "     --target-registry=URL     Schema Registry for the output, if not --registry; schema ids are remapped",
+        "  -s --schema=FILE             Avro schema to encode json input with, for avro output"
 //      "     --schemafile=FILE       Load schema from a file for reading/writing records.",
 //      "     --stats                   Print stats",
 //      "  -l --log=LEVEL:FILE      Log to a file at the desired level, one of:\n" +
@@ -285,96 +319,90 @@ public class KifGenCli {
     // TODO Initialize a Record Input Stream based on the configuration discovered so far.
     // Determine the type of the
 
-    KafkaAvroSerializer     inAvroSerializer;
-    AvroSchema inAvroSchema = null;
-    KafkaJsonSerializer     inJsonSerializer;
-    JsonSchema inJsonSchema = null;
-    KafkaProtobufSerializer inProtobufSerializer;
-    ProtobufSchema          inProtobufSchema = null;
-//    KafkaRawSerializer      inRawSerializer;
-//    RawSchema               inRawSchema = null;
-
-    RecordStreams inBuilder = RecordStreams.stream();
-    if (inLocalPath != null) { // Read from a file
-      inBuilder.from(inLocalPath);
-    } else if (inStream != null) { // Read from System.in
-      inBuilder.from(inStream);
-//    } else if (inUrl != null) {
-//      inBuilder.from(inUrl);
-//    } else if (inKafkaTopic != null) {
-//    } else if (inDataGenerator != null) {
-//    } else {
+    String unsupported = unsupportedConversion(inFormat, outFormat, options.isSet(Opts.SCHEMA.longName),
+        options.isSet(Opts.REGISTRY.longName), options.isSet(Opts.TARGET_REGISTRY.longName),
+        options.isSet(Opts.KEY.longName) || options.isSet(Opts.PARTITION_BY.longName));
+    if (unsupported != null) {
+      err.println(unsupported + " (see --help)");
+      exit(1);
     }
 
-    RecordInputStream recordInputStream = inBuilder.in();
-
-    String inSchema = "";
-    switch (inFormat) {
-      case AVRO:
-        if (inAvroSchema != null) inSchema = inAvroSchema.toString();
-        inBuilder.avro(inSchema);
-        break;
-      case JSON:
-        if (inJsonSchema != null) inSchema = inJsonSchema.toString();
-        inBuilder.json(inSchema);
-        break;
-      case PROTOBUF:
-        if (inProtobufSchema != null) inSchema = inProtobufSchema.toString();
-        inBuilder.protobuf(inSchema);
-        break;
-      case RAW:
-      default:
-        //inSchema = null;
-        //inBuilder.raw(); // actually do nothing
-        break;
+    // Field paths are compiled once, here; each record then reads them like a hand-written accessor.
+    KeyResolver<Object, Object> keyResolver = null;
+    IntPartitionResolver<Object> partitionResolver = null;
+    try {
+      if (options.isSet(Opts.KEY.longName)) {
+        keyResolver = RecordUtils.pathKey(options.get(Opts.KEY.longName));
+      }
+      if (options.isSet(Opts.PARTITION_BY.longName)) {
+        int partitions = options.isSet(Opts.PARTITIONS.longName) ? options.getNumber(Opts.PARTITIONS.longName) : 0;
+        partitionResolver = partitions > 0
+            ? RecordUtils.pathPartition(options.get(Opts.PARTITION_BY.longName), partitions)
+            : RecordUtils.pathPartition(options.get(Opts.PARTITION_BY.longName));
+      }
+    } catch (IllegalArgumentException e) {
+      err.println(e.getMessage());
+      exit(1);
     }
 
-    KafkaAvroDeserializer      outAvroDeserializer;
-    AvroSchema                 outAvroSchema = null;
-    KafkaJsonDeserializer      outJsonDeserializer;
-    JsonSchema                 outJsonSchema = null;
-    KafkaProtobufDeserializer  outProtobufSerializer;
-    ProtobufSchema             outProtobufSchema = null;
-//    KafkaRawDeserializer       outRawSerializer;
-//    RawSchema                  outRawSchema = null;
-    
-    RecordStreams outBuilder = RecordStreams.stream();
-    if (outLocalPath != null) { // Write to a file
-      outBuilder.to(outLocalPath);
-    } else if (outStream != null) { // Write to System.out or System.err
-      outBuilder.to(outStream);
-//    } else if (outUrl != null) {
-//      streamBuilder.to(outUrl);
-//    } else if (outKafkaTopic != null) {
-//    } else if (outDataGenerator != null) {
-//    } else {
+    int threads = options.isSet(Opts.THREADS.longName)
+        ? options.getNumber(Opts.THREADS.longName)
+        : Runtime.getRuntime().availableProcessors();
+    if (threads <= 0) {
+      err.println("--threads must be positive: " + threads);
+      exit(1);
+    }
+    String topic = options.args().isEmpty() ? DEFAULT_TOPIC : options.args().get(0);
+    Schema targetSchema = null;
+    if (options.isSet(Opts.SCHEMA.longName)) {
+      try {
+        targetSchema = new Schema.Parser().parse(new File(options.get(Opts.SCHEMA.longName)));
+      } catch (IOException | SchemaParseException e) {
+        err.println("Could not read the schema in " + options.get(Opts.SCHEMA.longName) + ": " + e.getMessage());
+        exit(1);
+      }
     }
 
-    String outSchema = "";
-    switch (outFormat) {
-      case AVRO:
-        if (outAvroSchema != null) outSchema = outAvroSchema.toString();
-        outBuilder.avro(outSchema);
-        break;
-      case JSON:
-        if (outJsonSchema != null) outSchema = outJsonSchema.toString();
-        outBuilder.json(outSchema);
-        break;
-      case PROTOBUF:
-        if (outProtobufSchema != null) outSchema = outProtobufSchema.toString();
-        outBuilder.protobuf(outSchema);
-        break;
-      case RAW:
-      default:
-        //outSchema = null;
-        //outBuilder.raw(); // actually do nothing
-        break;
+    boolean ndjson = false;
+    try {
+      ndjson = inFormat == RecordFormat.JSON && inLocalPath != null && NdjsonFileSource.isNdjson(inLocalPath);
+    } catch (IOException e) {
+      err.println("Could not read " + inLocalPath + ": " + e.getMessage());
+      exit(1);
     }
 
-    RecordOutputStream recordOutputStream = outBuilder.out();
+    try (InputStream source = ndjson ? InputStream.nullInputStream()
+             : inLocalPath != null ? Files.newInputStream(inLocalPath) : inStream;
+         OutputStream sink = outLocalPath != null ? Files.newOutputStream(outLocalPath) : outStream) {
+      SchemaRegistryClient registry = options.isSet(Opts.REGISTRY.longName)
+          ? registryClient(options.get(Opts.REGISTRY.longName))
+          : new MockSchemaRegistryClient();
+      SchemaRegistryClient targetRegistry = options.isSet(Opts.TARGET_REGISTRY.longName)
+          ? registryClient(options.get(Opts.TARGET_REGISTRY.longName))
+          : registry;
+      long count;
+      if (ndjson) {
+        // Values which are only forwarded are checked as they are read; any others are parsed later anyway.
+        boolean validate = outFormat == RecordFormat.JSON || outFormat == RecordFormat.RAW;
+        try (NdjsonFileSource records = NdjsonFileSource.open(inLocalPath, topic, threads, validate)) {
+          count = convert(topic, records, inFormat, sink, outFormat, targetSchema, threads, registry, targetRegistry,
+              keyResolver, partitionResolver);
+        }
+      } else {
+        count = convert(topic, source, inFormat, sink, outFormat, targetSchema, threads, registry, targetRegistry,
+            keyResolver, partitionResolver);
+      }
+      if (verbose)
+        err.printf("Converted %d records\n", count);
+    } catch (KafkaException e) {
+      err.println(e.getMessage());
+      if (verbose)
+        e.printStackTrace(err);
+      exit(1);
+    }
 
     /*
-     * TODO Implement the primary read/transform/write loop, based on the configuration:
+     * TODO Extend the read/transform/write loop above beyond framed streams and files:
      *   1. Create a RecordInputStream which handles reading in records (one at a time) from the configured source:
      *      a. (stream)   e.g. System.in
      *      b. (file)     e.g. Local files like ./data.json, /var/data/file-1.avro, etc.
@@ -388,26 +416,17 @@ public class KifGenCli {
      *      c. (topic)    e.g. kafka-cluster:topic-a, lkc10c1.confluent.cloud, etc. via a kafka client.
      *      d. (connect)  e.g. Sink Connectors?
      *      e. (url)      e.g.
-     *   3. Create Queues for inter-job coordination; might only need one in some cases?
-     *      a. An Input Queue which is written to by the ReadJob and read from by the TransformJob.
-     *      b. An Output Queue which is written to by the TransformJob and read from by the WriteJob.
-     *   4. Create a ThreadExecutor pool for running a ReadJob, TransformJob, and WriteJob in parallel.
-     *   5. Create a ReadJob ...
-     *   6. Create a TranformJob which performs a transformation on input Records before outputting them.
+     *   3. More transformations, besides converting between formats (see convert() for the pipeline):
      *      a. (kstream)  e.g. A KStream app which can take input from any of the above?
      *      b. (lambda)   e.g. An implementation of the interface Functional
      *      c. (script)   e.g. Longer term, implement a scriptable transformation (like SMTs? Gherkin?)
-     *      d. (builtins) e.g. Serialization format: json->avro, avro->protobuf, Batching: 1->N, N->1, N->M
-     *   7. Create a WriteJob ...
-     *   8. Launch the Jobs ...
-     *   9. Track Input and Terminal Signals to close/quit cleanly...
+     *      d. (builtins) e.g. Batching: 1->N, N->1, N->M
+     *   4. Track Input and Terminal Signals to close/quit cleanly...
      *
      * NOTE Avoid implementing "too much", follow the principle of single-purpose unix commands. In short,
      *      this application should only provide a single read -> transform -> write workflow.
      */
 
-    //Executors.newSingleThreadExecutor().submit(() -> )
-
     /*
      * TODO Write a system for storing / tracking configurations (~/.kif, ~/.ccloud, ~/.confluent) which can
      *      be easily referenced by aliases, tracks the default, etc. to make command lines as simple as
@@ -431,6 +450,310 @@ public class KifGenCli {
     System.exit(0);
   }
 
+  /**
+   * Convert the framed records of {@code in} from one format to another, writing them to {@code out}, as a
+   * staged {@link RecordPipeline}: one thread reads, a pool of {@code threads} decodes, another transforms,
+   * another encodes, and one thread writes. Records are written in the order they were read, so each
+   * partition's records stay in order. Values are read with {@code registry}'s schemas and written with
+   * {@code targetRegistry}'s, which may be the same client.
+   * <p/>
+   * Values are never decoded only to be encoded the same way again: when either format is {@code raw}, or both
+   * are the same, values are forwarded as they are, with only their schema ids rewritten by a
+   * {@link SchemaIdRemapper} if the registries differ. Avro is converted to JSON, and JSON to Avro with
+   * {@code outSchema}, by an {@link AvroJsonTranscoder}, without building records. Either way, with no key or
+   * partition to resolve, that is the only stage between reading and writing.
+   * <p/>
+   * Raw output is written as a {@link RecordContainer}; input in either framing is read.
+   *
+   * @return the number of records written.
+   */
+  static long convert(String topic, InputStream in, RecordFormat inFormat, OutputStream out, RecordFormat outFormat,
+                      Schema outSchema, int threads, SchemaRegistryClient registry,
+                      SchemaRegistryClient targetRegistry, KeyResolver<Object, Object> keyResolver,
+                      IntPartitionResolver<Object> partitionResolver) {
+    StreamConsumer<byte[], byte[]> consumer = new StreamConsumer<>(in, topic, Collections.emptyMap(),
+        new ByteArrayDeserializer(), new ByteArrayDeserializer());
+    try {
+      consumer.subscribe(List.of(topic));
+      return convert(topic, new ConsumerSource(consumer), inFormat, out, outFormat, outSchema, threads, registry,
+          targetRegistry, keyResolver, partitionResolver);
+    } finally {
+      consumer.close();
+    }
+  }
+
+  /**
+   * Convert the records of {@code in}, such as those of an {@link NdjsonFileSource}, as
+   * {@link #convert(String, InputStream, RecordFormat, OutputStream, RecordFormat, Schema, int,
+   * SchemaRegistryClient, SchemaRegistryClient, KeyResolver, IntPartitionResolver)} converts framed records.
+   *
+   * @return the number of records written.
+   */
+  static long convert(String topic, RecordPipeline.Source<ConsumerRecord<byte[], byte[]>> in, RecordFormat inFormat,
+                      OutputStream out, RecordFormat outFormat, Schema outSchema, int threads,
+                      SchemaRegistryClient registry, SchemaRegistryClient targetRegistry,
+                      KeyResolver<Object, Object> keyResolver, IntPartitionResolver<Object> partitionResolver) {
+    boolean copy = inFormat == RecordFormat.RAW || outFormat == RecordFormat.RAW;
+    boolean forward = copy || inFormat == outFormat;
+    boolean transcode = inFormat == RecordFormat.AVRO && outFormat == RecordFormat.JSON
+        || inFormat == RecordFormat.JSON && outFormat == RecordFormat.AVRO && outSchema != null;
+    boolean resolve = keyResolver != null || partitionResolver != null;
+    SchemaIdRemapper ids = new SchemaIdRemapper(registry,
+        !copy && (inFormat == RecordFormat.AVRO || inFormat == RecordFormat.PROTOBUF) ? targetRegistry : registry);
+    SerdePool inSerdes = KifSerdes.pool(registry, Collections.emptyMap());
+    SerdePool outSerdes = targetRegistry == registry ? inSerdes : KifSerdes.pool(targetRegistry, Collections.emptyMap());
+    // Raw records are written in a container, which later stages can split to read in parallel.
+    Map<String, ?> producerConfigs = outFormat == RecordFormat.RAW
+        ? Map.of(RecordContainer.CONTAINER_CONFIG, true)
+        : Collections.emptyMap();
+    StreamProducer<byte[], byte[]> producer = new StreamProducer<>(out, producerConfigs,
+        new ByteArraySerializer(), new ByteArraySerializer());
+    try {
+      RecordPipeline<Conversion, Conversion> pipeline = RecordPipeline.from(conversions(in));
+      if (forward || transcode) {
+        // The key and partition are resolved from the decoded value, but the value itself is passed on as it is.
+        if (resolve)
+          pipeline = pipeline
+              .stage("decode", threads, () -> decoder(topic, copy ? RecordFormat.RAW : inFormat, inSerdes))
+              .stage("transform", threads, () -> transformer(null, keyResolver, partitionResolver));
+        pipeline = forward
+            ? pipeline.stage("forward", threads, () -> forwarder(topic, ids))
+            : pipeline.stage("transcode", threads, () -> transcoder(topic, inFormat, outSchema, registry, targetRegistry));
+      } else {
+        pipeline = pipeline
+            .stage("decode", threads, () -> decoder(topic, inFormat, inSerdes))
+            .stage("transform", threads, () -> transformer(outFormat, keyResolver, partitionResolver))
+            .stage("encode", threads, () -> encoder(topic, outFormat, outSerdes));
+      }
+      long count = pipeline
+          .to(batch -> {
+            for (Conversion c : batch)
+              producer.send(new ProducerRecord<>(topic, c.partition, c.timestamp, c.key, c.encoded, c.in.headers()));
+          })
+          .run();
+      producer.flush();
+      return count;
+    } finally {
+      producer.close();
+      inSerdes.close();
+      outSerdes.close();
+    }
+  }
+
+  /**
+   * Why records can't be converted from {@code inFormat} to {@code outFormat}, or null if they can; so that an
+   * unsupported conversion is refused before anything is read, rather than failing on the first record. A
+   * registry is only required where {@link #convert} would use one: to decode values, to remap their schema
+   * ids, or to register the schema of values it encodes.
+   *
+   * @param schema whether an Avro schema to write was given with {@code --schema}.
+   * @param registry whether a schema registry was given with {@code --registry}.
+   * @param targetRegistry whether a schema registry was given with {@code --target-registry}.
+   * @param resolve whether a key or partition is read from each value, with {@code --key} or {@code --partition-by}.
+   */
+  static String unsupportedConversion(RecordFormat inFormat, RecordFormat outFormat, boolean schema,
+                                      boolean registry, boolean targetRegistry, boolean resolve) {
+    // Protobuf values can only be forwarded, with their schema ids remapped; never encoded.
+    if (outFormat == RecordFormat.PROTOBUF && inFormat != RecordFormat.PROTOBUF)
+      return "Writing protobuf is only supported from protobuf input";
+    if (inFormat == RecordFormat.PROTOBUF && outFormat == RecordFormat.AVRO)
+      return "Converting protobuf to avro is not supported";
+    if (inFormat == RecordFormat.JSON && outFormat == RecordFormat.AVRO && !schema)
+      return "Converting json to avro needs --schema, the Avro schema to write";
+
+    // Taken as convert() takes them: raw values are copied as they are, whatever their format, and values of
+    // the same format forwarded; only their schema ids are remapped, and only to another registry.
+    boolean copy = inFormat == RecordFormat.RAW || outFormat == RecordFormat.RAW;
+    boolean forward = copy || inFormat == outFormat;
+    boolean schemaIds = inFormat == RecordFormat.AVRO || inFormat == RecordFormat.PROTOBUF;
+    if (schemaIds && !copy && (!forward || resolve || targetRegistry) && !registry)
+      return "Reading " + inFormat.scheme + " needs --registry, the schema registry of its schema ids";
+    if (outFormat == RecordFormat.AVRO && !forward && !registry && !targetRegistry)
+      return "Writing avro needs --registry or --target-registry, the schema registry to register its schema in";
+    return null;
+  }
+
+  /**
+   * One record on its way through {@link #convert}; each stage fills in the next of its fields.
+   */
+  private static final class Conversion {
+    final ConsumerRecord<byte[], byte[]> in;
+    final long timestamp;
+    Integer partition;
+    byte[] key;
+    Object value;
+    byte[] encoded;
+
+    Conversion(ConsumerRecord<byte[], byte[]> in) {
+      this.in = in;
+      this.timestamp = in.timestamp();
+      this.partition = in.partition();
+      this.key = in.key();
+    }
+  }
+
+  /**
+   * Polls framed records from the consumer, until the end of its stream.
+   */
+  private static final class ConsumerSource implements RecordPipeline.Source<ConsumerRecord<byte[], byte[]>> {
+    private static final Duration POLL_TIMEOUT = Duration.ofMillis(100);
+
+    private final StreamConsumer<byte[], byte[]> consumer;
+    private Iterator<ConsumerRecord<byte[], byte[]>> polled = Collections.emptyIterator();
+
+    ConsumerSource(StreamConsumer<byte[], byte[]> consumer) {
+      this.consumer = consumer;
+    }
+
+    @Override
+    public int read(List<? super ConsumerRecord<byte[], byte[]>> into, int max) {
+      if (!polled.hasNext()) {
+        if (consumer.isEndOfStream())
+          return -1;
+        polled = consumer.poll(POLL_TIMEOUT).iterator();
+      }
+      int n = 0;
+      while (n < max && polled.hasNext()) {
+        into.add(polled.next());
+        n++;
+      }
+      return n;
+    }
+  }
+
+  /**
+   * Starts a {@link Conversion} of each record read from {@code in}.
+   */
+  private static RecordPipeline.Source<Conversion> conversions(RecordPipeline.Source<ConsumerRecord<byte[], byte[]>> in) {
+    List<ConsumerRecord<byte[], byte[]>> read = new ArrayList<>();
+    return (into, max) -> {
+      read.clear();
+      int n = in.read(read, max);
+      for (ConsumerRecord<byte[], byte[]> record : read)
+        into.add(new Conversion(record));
+      return n;
+    };
+  }
+
+  private static Function<Conversion, Conversion> decoder(String topic, RecordFormat format,
+                                                          SerdePool serdes) {
+    SerdePool.Format serdeFormat;
+    switch (format) {
+      case AVRO:
+        serdeFormat = SerdePool.Format.AVRO;
+        break;
+      case PROTOBUF:
+        serdeFormat = SerdePool.Format.PROTOBUF;
+        break;
+      case JSON:
+        return c -> {
+          try {
+            c.value = c.in.value() == null ? null : JSON.readTree(c.in.value());
+          } catch (IOException e) {
+            throw new SerializationException("Invalid JSON at offset " + c.in.offset(), e);
+          }
+          return c;
+        };
+      case RAW:
+      default:
+        return c -> {
+          c.value = c.in.value();
+          return c;
+        };
+    }
+    return c -> {
+      c.value = serdes.deserializer(serdeFormat, false).deserialize(topic, c.in.headers(), c.in.value());
+      return c;
+    };
+  }
+
+  /**
+   * Transcode each record's value from Avro to JSON or, with {@code outSchema}, from JSON to Avro; each worker
+   * has its own transcoder.
+   */
+  private static Function<Conversion, Conversion> transcoder(String topic, RecordFormat inFormat, Schema outSchema,
+                                                             SchemaRegistryClient registry,
+                                                             SchemaRegistryClient targetRegistry) {
+    if (inFormat == RecordFormat.AVRO) {
+      AvroJsonTranscoder transcoder = new AvroJsonTranscoder(registry, JSON);
+      return c -> {
+        c.encoded = transcoder.avroToJson(topic, c.in.value());
+        return c;
+      };
+    }
+    AvroJsonTranscoder transcoder = new AvroJsonTranscoder(targetRegistry, JSON);
+    return c -> {
+      c.encoded = transcoder.jsonToAvro(topic, outSchema, c.in.value());
+      return c;
+    };
+  }
+
+  /**
+   * Forward each record's value as it is, but for its schema id if {@code ids} rewrites them.
+   */
+  private static Function<Conversion, Conversion> forwarder(String topic, SchemaIdRemapper ids) {
+    return c -> {
+      c.encoded = ids.remap(topic, false, c.in.value());
+      return c;
+    };
+  }
+
+  private static SchemaRegistryClient registryClient(String url) {
+    return new CachingSchemaRegistryClient(Map.of(CachingSchemaRegistryClient.SCHEMA_REGISTRY_URL_CONFIG, url));
+  }
+
+  private static Function<Conversion, Conversion> transformer(RecordFormat format,
+                                                              KeyResolver<Object, Object> keyResolver,
+                                                              IntPartitionResolver<Object> partitionResolver) {
+    boolean toJson = format == RecordFormat.JSON;
+    return c -> {
+      if (toJson)
+        c.value = JsonValues.toJson(c.value);
+      if (keyResolver != null) {
+        Object key = keyResolver.key(c.value);
+        c.key = key == null ? null : key.toString().getBytes(StandardCharsets.UTF_8);
+      }
+      if (partitionResolver != null) {
+        int partition = partitionResolver.intPartition(c.value);
+        if (partition >= 0)
+          c.partition = partition;
+      }
+      return c;
+    };
+  }
+
+  private static Function<Conversion, Conversion> encoder(String topic, RecordFormat format,
+                                                          SerdePool serdes) {
+    SerdePool.Format serdeFormat;
+    switch (format) {
+      case AVRO:
+        serdeFormat = SerdePool.Format.AVRO;
+        break;
+      case PROTOBUF:
+        serdeFormat = SerdePool.Format.PROTOBUF;
+        break;
+      case JSON:
+        return c -> {
+          try {
+            c.encoded = c.value == null ? null : JSON.writeValueAsBytes(c.value);
+          } catch (IOException e) {
+            throw new SerializationException("Could not write JSON for offset " + c.in.offset(), e);
+          }
+          return c;
+        };
+      case RAW:
+      default:
+        return c -> {
+          c.encoded = c.in.value();
+          return c;
+        };
+    }
+    return c -> {
+      c.encoded = serdes.serializer(serdeFormat, false).serialize(topic, c.in.headers(), c.value);
+      return c;
+    };
+  }
+
   public static void printUsage() {
     List.of(USAGE).forEach(out::println);
   }
@@ -0,0 +1,535 @@
+/*
+ * Copyright © 2021 Kif Contributors (https://kif.firkin.io/)
+ * Copyright © 2021 Firkin•IO (https://firkin.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.firkin.kif.utils;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.confluent.kafka.schemaregistry.ParsedSchema;
+import io.confluent.kafka.schemaregistry.avro.AvroSchema;
+import io.confluent.kafka.schemaregistry.client.SchemaRegistryClient;
+import io.confluent.kafka.schemaregistry.client.rest.exceptions.RestClientException;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.io.BinaryDecoder;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.Decoder;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.avro.io.Encoder;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.avro.util.Utf8;
+import org.apache.kafka.common.errors.SerializationException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Transcodes between Avro, in the Schema Registry's wire format, and JSON, without building records: Avro is
+ * walked by its schema through a {@link Decoder}, writing each value straight to a {@link JsonGenerator}, and
+ * JSON is read by a streaming {@link JsonParser}, writing each value straight to an {@link Encoder} against a
+ * target schema.
+ * <p/>
+ * The JSON is the same as {@link JsonValues} makes of a deserialized record: unions are written as their
+ * value alone, enums as their symbol, and bytes and fixed values as base64. Reading JSON, a union's branch is
+ * chosen by the type of the value; an object's fields may come in any order, but those in schema order are
+ * encoded as they are read, and only the others are buffered. A missing field takes its default.
+ * <i> This class is <em>not</em> threadsafe;</i> each thread needs its own, as it reuses its decoder, encoders
+ * and buffers.
+ */
+public class AvroJsonTranscoder {
+
+  private static final int HEADER_SIZE = 1 + KifAvroSerializer.ID_SIZE;
+
+  private final SchemaRegistryClient registry;
+  private final JsonFactory json;
+  private final ObjectMapper mapper;
+  private final Map<Integer, Schema> schemas;
+  private final Map<Schema, Integer> ids;
+  private final Map<Schema, SerializedString[]> fieldNames;
+  private final KifAvroSerializer.Buffer out;
+  private final List<KifAvroSerializer.Buffer> scratch;
+  private final List<BinaryEncoder> scratchEncoders;
+  private BinaryDecoder decoder;
+  private BinaryEncoder encoder;
+  private Utf8 utf8;
+  private ByteBuffer reusedBytes;
+
+  public AvroJsonTranscoder(SchemaRegistryClient registry, ObjectMapper mapper) {
+    this.registry = registry;
+    this.mapper = mapper;
+    this.json = mapper.getFactory();
+    this.schemas = new HashMap<>();
+    this.ids = new HashMap<>();
+    this.fieldNames = new IdentityHashMap<>();
+    this.out = new KifAvroSerializer.Buffer();
+    this.scratch = new ArrayList<>();
+    this.scratchEncoders = new ArrayList<>();
+    this.utf8 = new Utf8();
+  }
+
+  /**
+   * The JSON of an Avro value in the wire format, or null for a null value.
+   */
+  public byte[] avroToJson(String topic, byte[] data) {
+    if (data == null)
+      return null;
+    if (data.length < HEADER_SIZE || data[0] != KifAvroSerializer.MAGIC_BYTE)
+      throw new SerializationException("Unknown magic byte!");
+    int id = (data[1] & 0xff) << 24 | (data[2] & 0xff) << 16 | (data[3] & 0xff) << 8 | (data[4] & 0xff);
+    Schema schema = schemaOf(topic, id);
+    out.reset();
+    try (JsonGenerator generator = json.createGenerator(out)) {
+      if (schema.getType() == Schema.Type.BYTES) {
+        // The wire format holds a bytes value as it is, not Avro encoded.
+        generator.writeBinary(data, HEADER_SIZE, data.length - HEADER_SIZE);
+      } else {
+        decoder = DecoderFactory.get().binaryDecoder(data, HEADER_SIZE, data.length - HEADER_SIZE, decoder);
+        avroToJson(schema, decoder, generator);
+      }
+    } catch (IOException | RuntimeException e) {
+      throw new SerializationException("Error transcoding Avro message with schema id " + id + " to JSON", e);
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * The Avro wire format of a JSON value, encoded with {@code schema}, which is registered under the topic's
+   * value subject; or null for a null value.
+   */
+  public byte[] jsonToAvro(String topic, Schema schema, byte[] data) {
+    if (data == null)
+      return null;
+    int id = idOf(topic, schema);
+    out.reset();
+    out.write(KifAvroSerializer.MAGIC_BYTE);
+    out.writeInt(id);
+    try (JsonParser parser = json.createParser(data)) {
+      if (parser.nextToken() == null)
+        throw new SerializationException("No JSON value");
+      if (schema.getType() == Schema.Type.BYTES) {
+        out.write(parser.getBinaryValue());
+      } else {
+        encoder = EncoderFactory.get().binaryEncoder(out, encoder);
+        jsonToAvro(parser, schema, encoder, 0);
+        encoder.flush();
+      }
+    } catch (IOException | RuntimeException e) {
+      // The encoders may still hold part of the failed value, which reusing them would flush into the next.
+      encoder = null;
+      scratchEncoders.clear();
+      throw new SerializationException("Error transcoding JSON to Avro with schema " + schema.getFullName(), e);
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * Write the Avro value of {@code schema} read from {@code in} to {@code out}.
+   */
+  public void avroToJson(Schema schema, Decoder in, JsonGenerator out) throws IOException {
+    switch (schema.getType()) {
+      case RECORD:
+        out.writeStartObject();
+        SerializedString[] names = fieldNamesOf(schema);
+        List<Schema.Field> fields = schema.getFields();
+        for (int i = 0; i < names.length; i++) {
+          out.writeFieldName(names[i]);
+          avroToJson(fields.get(i).schema(), in, out);
+        }
+        out.writeEndObject();
+        break;
+      case ENUM:
+        out.writeString(schema.getEnumSymbols().get(in.readEnum()));
+        break;
+      case ARRAY:
+        out.writeStartArray();
+        for (long n = in.readArrayStart(); n != 0; n = in.arrayNext())
+          for (long i = 0; i < n; i++)
+            avroToJson(schema.getElementType(), in, out);
+        out.writeEndArray();
+        break;
+      case MAP:
+        out.writeStartObject();
+        for (long n = in.readMapStart(); n != 0; n = in.mapNext()) {
+          for (long i = 0; i < n; i++) {
+            out.writeFieldName(in.readString());
+            avroToJson(schema.getValueType(), in, out);
+          }
+        }
+        out.writeEndObject();
+        break;
+      case UNION:
+        avroToJson(schema.getTypes().get(in.readIndex()), in, out);
+        break;
+      case FIXED:
+        byte[] fixed = new byte[schema.getFixedSize()];
+        in.readFixed(fixed);
+        out.writeBinary(fixed);
+        break;
+      case STRING:
+        utf8 = in.readString(utf8);
+        out.writeUTF8String(utf8.getBytes(), 0, utf8.getByteLength());
+        break;
+      case BYTES:
+        reusedBytes = in.readBytes(reusedBytes);
+        out.writeBinary(reusedBytes.array(), reusedBytes.arrayOffset() + reusedBytes.position(), reusedBytes.remaining());
+        break;
+      case INT:
+        out.writeNumber(in.readInt());
+        break;
+      case LONG:
+        out.writeNumber(in.readLong());
+        break;
+      case FLOAT:
+        out.writeNumber(in.readFloat());
+        break;
+      case DOUBLE:
+        out.writeNumber(in.readDouble());
+        break;
+      case BOOLEAN:
+        out.writeBoolean(in.readBoolean());
+        break;
+      case NULL:
+        in.readNull();
+        out.writeNull();
+        break;
+      default:
+        throw new SerializationException("Unsupported Avro type " + schema.getType());
+    }
+  }
+
+  /**
+   * Encode the JSON value at {@code in}'s current token to {@code out} with {@code schema}, leaving {@code in}
+   * at the value's last token.
+   */
+  public void jsonToAvro(JsonParser in, Schema schema, Encoder out) throws IOException {
+    jsonToAvro(in, schema, out, 0);
+  }
+
+  // --- Internal Implementation Methods --------------------------------------------------------------------
+
+  private void jsonToAvro(JsonParser in, Schema schema, Encoder out, int depth) throws IOException {
+    JsonToken token = in.currentToken();
+    switch (schema.getType()) {
+      case RECORD:
+        expect(in, JsonToken.START_OBJECT, schema);
+        writeRecord(in, schema, out, depth);
+        break;
+      case ENUM:
+        expect(in, JsonToken.VALUE_STRING, schema);
+        int ordinal = schema.hasEnumSymbol(in.getText()) ? schema.getEnumOrdinal(in.getText()) : -1;
+        if (ordinal < 0)
+          throw new SerializationException("Unknown symbol " + in.getText() + " of " + schema.getFullName());
+        out.writeEnum(ordinal);
+        break;
+      case ARRAY: {
+        expect(in, JsonToken.START_ARRAY, schema);
+        KifAvroSerializer.Buffer items = scratch(depth);
+        BinaryEncoder itemEncoder = scratchEncoder(depth, items);
+        long count = 0;
+        while (in.nextToken() != JsonToken.END_ARRAY) {
+          jsonToAvro(in, schema.getElementType(), itemEncoder, depth + 1);
+          count++;
+        }
+        writeBlock(out, itemEncoder, items, count, true);
+        break;
+      }
+      case MAP: {
+        expect(in, JsonToken.START_OBJECT, schema);
+        KifAvroSerializer.Buffer entries = scratch(depth);
+        BinaryEncoder entryEncoder = scratchEncoder(depth, entries);
+        long count = 0;
+        while (in.nextToken() == JsonToken.FIELD_NAME) {
+          entryEncoder.writeString(in.getCurrentName());
+          in.nextToken();
+          jsonToAvro(in, schema.getValueType(), entryEncoder, depth + 1);
+          count++;
+        }
+        writeBlock(out, entryEncoder, entries, count, false);
+        break;
+      }
+      case UNION: {
+        if (token == JsonToken.START_OBJECT && objectBranches(schema) > 1) {
+          JsonNode object = mapper.readTree(in);
+          int branch = objectBranchOf(schema, object);
+          out.writeIndex(branch);
+          writeTree(object, schema.getTypes().get(branch), out, depth);
+          break;
+        }
+        int branch = branchOf(schema, in, token);
+        out.writeIndex(branch);
+        jsonToAvro(in, schema.getTypes().get(branch), out, depth);
+        break;
+      }
+      case FIXED: {
+        byte[] fixed = in.getBinaryValue();
+        if (fixed.length != schema.getFixedSize())
+          throw new SerializationException("Expected " + schema.getFixedSize() + " bytes for " + schema.getFullName()
+              + ", found " + fixed.length);
+        out.writeFixed(fixed);
+        break;
+      }
+      case STRING:
+        expect(in, JsonToken.VALUE_STRING, schema);
+        out.writeString(in.getText());
+        break;
+      case BYTES:
+        out.writeBytes(in.getBinaryValue());
+        break;
+      case INT:
+        expect(in, JsonToken.VALUE_NUMBER_INT, schema);
+        out.writeInt(in.getIntValue());
+        break;
+      case LONG:
+        expect(in, JsonToken.VALUE_NUMBER_INT, schema);
+        out.writeLong(in.getLongValue());
+        break;
+      case FLOAT:
+        out.writeFloat(token == JsonToken.VALUE_STRING ? Float.parseFloat(in.getText()) : in.getFloatValue());
+        break;
+      case DOUBLE:
+        out.writeDouble(token == JsonToken.VALUE_STRING ? Double.parseDouble(in.getText()) : in.getDoubleValue());
+        break;
+      case BOOLEAN:
+        if (token != JsonToken.VALUE_TRUE && token != JsonToken.VALUE_FALSE)
+          throw new SerializationException("Expected a boolean for " + schema + ", found " + token);
+        out.writeBoolean(token == JsonToken.VALUE_TRUE);
+        break;
+      case NULL:
+        expect(in, JsonToken.VALUE_NULL, schema);
+        out.writeNull();
+        break;
+      default:
+        throw new SerializationException("Unsupported Avro type " + schema.getType());
+    }
+  }
+
+  /**
+   * Encode the fields of the object at {@code in} in schema order: a field that comes when it is expected is
+   * encoded as it is read, and any other is read into a tree until its turn comes.
+   */
+  private void writeRecord(JsonParser in, Schema schema, Encoder out, int depth) throws IOException {
+    List<Schema.Field> fields = schema.getFields();
+    int next = 0;
+    Map<String, JsonNode> pending = null;
+    while (in.nextToken() == JsonToken.FIELD_NAME) {
+      String name = in.getCurrentName();
+      in.nextToken();
+      while (pending != null && next < fields.size() && pending.containsKey(fields.get(next).name()))
+        writeTree(pending.remove(fields.get(next++).name()), fields.get(next - 1).schema(), out, depth);
+      if (next < fields.size() && fields.get(next).name().equals(name)) {
+        jsonToAvro(in, fields.get(next++).schema(), out, depth);
+      } else {
+        if (pending == null)
+          pending = new HashMap<>();
+        pending.put(name, mapper.readTree(in));
+      }
+    }
+    for (; next < fields.size(); next++) {
+      Schema.Field field = fields.get(next);
+      JsonNode value = pending == null ? null : pending.remove(field.name());
+      if (value != null) {
+        writeTree(value, field.schema(), out, depth);
+      } else if (field.hasDefaultValue()) {
+        new GenericDatumWriter<>(field.schema()).write(GenericData.get().getDefaultValue(field), out);
+      } else {
+        throw new SerializationException("Missing field " + field.name() + " of " + schema.getFullName());
+      }
+    }
+  }
+
+  private void writeTree(JsonNode tree, Schema schema, Encoder out, int depth) throws IOException {
+    try (JsonParser parser = tree.traverse(mapper)) {
+      parser.nextToken();
+      jsonToAvro(parser, schema, out, depth);
+    }
+  }
+
+  /**
+   * Write a block of {@code count} items, encoded by {@code items} into {@code buffer}, as one array or map.
+   * The items are already encoded, so go as raw bytes; a binary encoder only counts items, never checks them.
+   */
+  private static void writeBlock(Encoder out, BinaryEncoder items, KifAvroSerializer.Buffer buffer, long count,
+                                 boolean array) throws IOException {
+    items.flush();
+    if (array) out.writeArrayStart(); else out.writeMapStart();
+    out.setItemCount(count);
+    if (count > 0)
+      out.writeFixed(buffer.bytes(), 0, buffer.size());
+    if (array) out.writeArrayEnd(); else out.writeMapEnd();
+    buffer.reset();
+  }
+
+  /**
+   * The branch of a union that a JSON value of type {@code token} is written as: the first of a type that can
+   * hold it. An object is written as the union's only record or map; see {@link #objectBranchOf} for more.
+   */
+  private static int branchOf(Schema union, JsonParser in, JsonToken token) throws IOException {
+    List<Schema> types = union.getTypes();
+    int fallback = -1;
+    for (int i = 0; i < types.size(); i++) {
+      Schema.Type type = types.get(i).getType();
+      switch (token) {
+        case VALUE_NULL:
+          if (type == Schema.Type.NULL) return i;
+          break;
+        case VALUE_TRUE:
+        case VALUE_FALSE:
+          if (type == Schema.Type.BOOLEAN) return i;
+          break;
+        case VALUE_NUMBER_INT:
+          if (type == Schema.Type.INT && in.getNumberType() == JsonParser.NumberType.INT) return i;
+          if (type == Schema.Type.LONG) return i;
+          if (fallback < 0 && (type == Schema.Type.INT || type == Schema.Type.FLOAT || type == Schema.Type.DOUBLE))
+            fallback = i;
+          break;
+        case VALUE_NUMBER_FLOAT:
+          if (type == Schema.Type.DOUBLE) return i;
+          if (fallback < 0 && type == Schema.Type.FLOAT) fallback = i;
+          break;
+        case VALUE_STRING:
+          if (type == Schema.Type.STRING) return i;
+          if (type == Schema.Type.ENUM && types.get(i).hasEnumSymbol(in.getText())) return i;
+          if (fallback < 0 && (type == Schema.Type.BYTES || type == Schema.Type.FIXED
+              || type == Schema.Type.FLOAT || type == Schema.Type.DOUBLE))
+            fallback = i;
+          break;
+        case START_ARRAY:
+          if (type == Schema.Type.ARRAY) return i;
+          break;
+        case START_OBJECT:
+          if (type == Schema.Type.RECORD && fallback < 0) fallback = i;
+          if (type == Schema.Type.MAP && fallback < 0) fallback = i;
+          break;
+        default:
+          break;
+      }
+    }
+    if (fallback < 0)
+      throw new SerializationException("No branch of " + union + " holds a JSON " + token);
+    return fallback;
+  }
+
+  private static int objectBranches(Schema union) {
+    int count = 0;
+    for (Schema type : union.getTypes())
+      if (type.getType() == Schema.Type.RECORD || type.getType() == Schema.Type.MAP)
+        count++;
+    return count;
+  }
+
+  /**
+   * The branch of a union with several records or maps that {@code object} is written as: the first record whose
+   * fields include all of the object's own and which has a value or default for each of its fields, or else the
+   * first map, or else the first record.
+   */
+  private static int objectBranchOf(Schema union, JsonNode object) {
+    List<Schema> types = union.getTypes();
+    int map = -1;
+    int record = -1;
+    for (int i = 0; i < types.size(); i++) {
+      Schema type = types.get(i);
+      if (type.getType() == Schema.Type.MAP && map < 0) map = i;
+      if (type.getType() != Schema.Type.RECORD) continue;
+      if (record < 0) record = i;
+      if (holds(type, object)) return i;
+    }
+    return map >= 0 ? map : record;
+  }
+
+  private static boolean holds(Schema record, JsonNode object) {
+    for (Iterator<String> names = object.fieldNames(); names.hasNext(); )
+      if (record.getField(names.next()) == null)
+        return false;
+    for (Schema.Field field : record.getFields())
+      if (!object.has(field.name()) && !field.hasDefaultValue())
+        return false;
+    return true;
+  }
+
+  private static void expect(JsonParser in, JsonToken expected, Schema schema) {
+    if (in.currentToken() != expected)
+      throw new SerializationException("Expected " + expected + " for " + schema + ", found " + in.currentToken());
+  }
+
+  private KifAvroSerializer.Buffer scratch(int depth) {
+    while (scratch.size() <= depth)
+      scratch.add(new KifAvroSerializer.Buffer());
+    KifAvroSerializer.Buffer buffer = scratch.get(depth);
+    buffer.reset();
+    return buffer;
+  }
+
+  private BinaryEncoder scratchEncoder(int depth, KifAvroSerializer.Buffer buffer) {
+    while (scratchEncoders.size() <= depth)
+      scratchEncoders.add(null);
+    BinaryEncoder encoder = EncoderFactory.get().binaryEncoder(buffer, scratchEncoders.get(depth));
+    scratchEncoders.set(depth, encoder);
+    return encoder;
+  }
+
+  private SerializedString[] fieldNamesOf(Schema schema) {
+    SerializedString[] names = fieldNames.get(schema);
+    if (names == null) {
+      List<Schema.Field> fields = schema.getFields();
+      names = new SerializedString[fields.size()];
+      for (int i = 0; i < names.length; i++)
+        names[i] = new SerializedString(fields.get(i).name());
+      fieldNames.put(schema, names);
+    }
+    return names;
+  }
+
+  private Schema schemaOf(String topic, int id) {
+    Schema schema = schemas.get(id);
+    if (schema != null)
+      return schema;
+    try {
+      ParsedSchema parsed = registry.getSchemaBySubjectAndId(topic == null ? null : topic + "-value", id);
+      if (!(parsed.rawSchema() instanceof Schema))
+        throw new SerializationException("Schema " + id + " is a " + parsed.schemaType() + " schema, not Avro");
+      schema = (Schema) parsed.rawSchema();
+    } catch (IOException | RestClientException e) {
+      throw new SerializationException("Error retrieving Avro schema for id " + id, e);
+    }
+    schemas.put(id, schema);
+    return schema;
+  }
+
+  private int idOf(String topic, Schema schema) {
+    Integer id = ids.get(schema);
+    if (id != null)
+      return id;
+    try {
+      id = registry.register(topic + "-value", new AvroSchema(schema));
+    } catch (IOException | RestClientException e) {
+      throw new SerializationException("Error registering Avro schema " + schema.getFullName(), e);
+    }
+    ids.put(schema, id);
+    return id;
+  }
+}
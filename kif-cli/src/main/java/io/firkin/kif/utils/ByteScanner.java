@@ -0,0 +1,87 @@
+/*
+ * Copyright © 2021 Kif Contributors (https://kif.firkin.io/)
+ * Copyright © 2021 Firkin•IO (https://firkin.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.firkin.kif.utils;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Finds bytes, such as the newlines between records, eight at a time: each {@code long} read from the input is
+ * compared with every byte of the target at once, SWAR style, so a scan costs a few instructions per eight
+ * bytes rather than a compare and branch per byte.
+ * <p/>
+ * The comparison is exact, with no carries between bytes, so the first match in a word is the first match in
+ * the input. Fewer than eight bytes left at the end of a range are compared one at a time.
+ */
+public final class ByteScanner {
+
+  private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+  private static final long ONES = 0x0101010101010101L;
+  private static final long LOW_SEVEN_BITS = 0x7f7f7f7f7f7f7f7fL;
+
+  private ByteScanner() {
+  }
+
+  /**
+   * The index of the first {@code b} within {@code [from, to)} of {@code bytes}, or -1.
+   */
+  public static int indexOf(byte[] bytes, int from, int to, byte b) {
+    long pattern = ONES * (b & 0xff);
+    int i = from;
+    for (; i <= to - Long.BYTES; i += Long.BYTES) {
+      long matches = zeroBytes((long) LONGS.get(bytes, i) ^ pattern);
+      if (matches != 0)
+        return i + (Long.numberOfLeadingZeros(matches) >>> 3);
+    }
+    for (; i < to; i++)
+      if (bytes[i] == b)
+        return i;
+    return -1;
+  }
+
+  /**
+   * The index of the first {@code b} within {@code [from, to)} of {@code buffer}, by absolute index, or -1.
+   * The buffer's position and limit are left as they are.
+   */
+  public static int indexOf(ByteBuffer buffer, int from, int to, byte b) {
+    long pattern = ONES * (b & 0xff);
+    boolean bigEndian = buffer.order() == ByteOrder.BIG_ENDIAN;
+    int i = from;
+    for (; i <= to - Long.BYTES; i += Long.BYTES) {
+      long matches = zeroBytes(buffer.getLong(i) ^ pattern);
+      if (matches != 0)
+        return i + (bigEndian ? Long.numberOfLeadingZeros(matches) : Long.numberOfTrailingZeros(matches)) / 8;
+    }
+    for (; i < to; i++)
+      if (buffer.get(i) == b)
+        return i;
+    return -1;
+  }
+
+  // --- Internal Implementation Methods --------------------------------------------------------------------
+
+  /**
+   * The high bit of each byte of {@code word} which is zero, and nothing else.
+   */
+  private static long zeroBytes(long word) {
+    return ~(((word & LOW_SEVEN_BITS) + LOW_SEVEN_BITS) | word | LOW_SEVEN_BITS);
+  }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright © 2021 Kif Contributors (https://kif.firkin.io/)
+ * Copyright © 2021 Firkin•IO (https://firkin.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.firkin.kif.utils;
+
+import io.confluent.kafka.schemaregistry.ParsedSchema;
+import io.confluent.kafka.schemaregistry.SchemaProvider;
+import io.confluent.kafka.schemaregistry.avro.AvroSchemaProvider;
+import io.confluent.kafka.schemaregistry.client.CachedSchemaRegistryClient;
+import io.confluent.kafka.schemaregistry.client.rest.RestService;
+import io.confluent.kafka.schemaregistry.client.rest.exceptions.RestClientException;
+import io.confluent.kafka.schemaregistry.json.JsonSchemaProvider;
+import io.confluent.kafka.schemaregistry.protobuf.ProtobufSchemaProvider;
+import org.apache.kafka.common.config.ConfigException;
+import org.apache.kafka.common.utils.Time;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A Schema Registry client that keeps the schemas it fetches by id, and the ids it is given for schemas under
+ * subjects, in a {@link SchemaCache} file under the kif config dir, shared by every invocation that talks to
+ * the same registry. A short-lived command that reads or writes schemas it has seen before then makes no
+ * registry requests at all, and parses each schema only once.
+ * <p/>
+ * Everything else goes to the registry as it would through a {@link CachedSchemaRegistryClient}. Configs:
+ * <ul>
+ *   <li>{@code schema.registry.url} the registry's URLs, comma-separated; required.</li>
+ *   <li>{@code kif.schema.cache.dir} the directory holding a cache file per registry; by default
+ *       {@code schemas} under {@code $KIF_HOME}, or {@code ~/.kif}.</li>
+ *   <li>{@code kif.schema.cache.ttl.ms} how long a cached entry is trusted before it is fetched again; by
+ *       default forever, since a registry never changes the schema with a given id.</li>
+ * </ul>
+ * Any other configs are passed on to the underlying client, for authentication and TLS.
+ */
+public class CachingSchemaRegistryClient extends CachedSchemaRegistryClient {
+
+  public static final String SCHEMA_REGISTRY_URL_CONFIG = "schema.registry.url";
+  public static final String CACHE_DIR_CONFIG = "kif.schema.cache.dir";
+  public static final String CACHE_TTL_MS_CONFIG = "kif.schema.cache.ttl.ms";
+
+  public static final long DEFAULT_CACHE_TTL_MS = Long.MAX_VALUE;
+  public static final int DEFAULT_IDENTITY_MAP_CAPACITY = 1000;
+
+  private final SchemaCache cache;
+  private final Map<Integer, ParsedSchema> parsed;
+
+  public CachingSchemaRegistryClient(Map<String, ?> configs) {
+    this(urls(configs), configs);
+  }
+
+  private CachingSchemaRegistryClient(List<String> urls, Map<String, ?> configs) {
+    super(urls, DEFAULT_IDENTITY_MAP_CAPACITY, providers(), configs);
+    this.cache = new SchemaCache(cacheFile(configs, urls), ttlMs(configs), Time.SYSTEM);
+    this.parsed = new ConcurrentHashMap<>();
+  }
+
+  /**
+   * A client of the registry behind {@code restService}, caching in {@code cacheFile}; e.g. for a stand-in
+   * registry in tests.
+   */
+  public CachingSchemaRegistryClient(RestService restService, Path cacheFile, long ttlMs, Map<String, ?> configs,
+                                     Time time) {
+    super(restService, DEFAULT_IDENTITY_MAP_CAPACITY, providers(), configs, Collections.emptyMap());
+    this.cache = new SchemaCache(cacheFile, ttlMs, time);
+    this.parsed = new ConcurrentHashMap<>();
+  }
+
+  /**
+   * The file the schemas are cached in.
+   */
+  public Path cacheFile() {
+    return cache.file();
+  }
+
+  @Override
+  public ParsedSchema getSchemaBySubjectAndId(String subject, int id) throws IOException, RestClientException {
+    ParsedSchema schema = parsed.get(id);
+    if (schema != null)
+      return schema;
+    SchemaCache.CachedSchema cached = cache.schema(id);
+    if (cached != null) {
+      Optional<ParsedSchema> found = parseSchema(cached.type, cached.schema, cached.references);
+      if (found.isPresent()) {
+        parsed.put(id, found.get());
+        return found.get();
+      }
+    }
+    schema = super.getSchemaBySubjectAndId(subject, id);
+    cache.putSchema(id, schema);
+    parsed.put(id, schema);
+    return schema;
+  }
+
+  @Override
+  public int getId(String subject, ParsedSchema schema) throws IOException, RestClientException {
+    Integer id = cache.id(subject, schema);
+    if (id != null)
+      return id;
+    id = super.getId(subject, schema);
+    cache.putId(subject, id, schema);
+    return id;
+  }
+
+  /**
+   * Registering a schema that is already registered under the subject only returns its id, so a schema this
+   * client has seen registered under the subject isn't registered again.
+   */
+  @Override
+  public int register(String subject, ParsedSchema schema) throws IOException, RestClientException {
+    Integer id = cache.id(subject, schema);
+    if (id != null)
+      return id;
+    id = super.register(subject, schema);
+    cache.putId(subject, id, schema);
+    return id;
+  }
+
+  @Override
+  public synchronized void reset() {
+    super.reset();
+    parsed.clear();
+    cache.reset();
+  }
+
+  // --- Internal Implementation Methods --------------------------------------------------------------------
+
+  private static List<SchemaProvider> providers() {
+    return Arrays.asList(new AvroSchemaProvider(), new ProtobufSchemaProvider(), new JsonSchemaProvider());
+  }
+
+  private static List<String> urls(Map<String, ?> configs) {
+    String urls = ClientConfigs.getString(configs, SCHEMA_REGISTRY_URL_CONFIG, null);
+    if (urls == null || urls.isBlank())
+      throw new ConfigException(SCHEMA_REGISTRY_URL_CONFIG, urls, "A Schema Registry URL is required");
+    return Arrays.asList(urls.trim().split("\\s*,\\s*"));
+  }
+
+  private static long ttlMs(Map<String, ?> configs) {
+    long ttlMs = ClientConfigs.getLong(configs, CACHE_TTL_MS_CONFIG, DEFAULT_CACHE_TTL_MS);
+    if (ttlMs <= 0)
+      throw new ConfigException(CACHE_TTL_MS_CONFIG, ttlMs, "Must be positive");
+    return ttlMs;
+  }
+
+  /**
+   * The cache file of the registry at {@code urls}: ids are only meaningful to the registry that gave them, so
+   * each registry has its own, named for a digest of its URLs.
+   */
+  private static Path cacheFile(Map<String, ?> configs, List<String> urls) {
+    String dir = ClientConfigs.getString(configs, CACHE_DIR_CONFIG, null);
+    Path cacheDir = dir != null ? Path.of(dir)
+        : Path.of(System.getProperty("KIF_HOME", System.getProperty("user.home") + "/.kif"), "schemas");
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      byte[] hash = digest.digest(String.join(",", urls).getBytes(StandardCharsets.UTF_8));
+      StringBuilder name = new StringBuilder(24);
+      for (int i = 0; i < 8; i++)
+        name.append(String.format("%02x", hash[i]));
+      return cacheDir.resolve(name.append(".cache").toString());
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 is not available", e);
+    }
+  }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright © 2021 Kif Contributors (https://kif.firkin.io/)
+ * Copyright © 2021 Firkin•IO (https://firkin.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.firkin.kif.utils;
+
+import org.apache.kafka.clients.CommonClientConfigs;
+import org.apache.kafka.common.config.ConfigException;
+import org.apache.kafka.common.metrics.MetricConfig;
+import org.apache.kafka.common.metrics.Sensor;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Helpers for reading settings out of the {@code Map<String, ?>} configs handed to kif's local
+ * {@code Producer} and {@code Consumer} implementations.
+ * <p/>
+ * Where a setting has a Kafka equivalent (e.g. {@code batch.size}, {@code linger.ms}) the Kafka key
+ * is used as-is, so the same properties can be handed to a {@code KafkaProducer} or to a kif client.
+ * Values may be given either as their native type or as a {@code String}, as with Kafka configs.
+ */
+public final class ClientConfigs {
+
+  private static final AtomicInteger CLIENT_ID_SEQUENCE = new AtomicInteger(1);
+
+  private ClientConfigs() {
+  }
+
+  public static int getInt(Map<String, ?> configs, String key, int defaultValue) {
+    Object value = configs == null ? null : configs.get(key);
+    if (value == null) return defaultValue;
+    if (value instanceof Number) return ((Number) value).intValue();
+    try {
+      return Integer.parseInt(value.toString().trim());
+    } catch (NumberFormatException e) {
+      throw new ConfigException(key, value, "Expected an int");
+    }
+  }
+
+  public static long getLong(Map<String, ?> configs, String key, long defaultValue) {
+    Object value = configs == null ? null : configs.get(key);
+    if (value == null) return defaultValue;
+    if (value instanceof Number) return ((Number) value).longValue();
+    try {
+      return Long.parseLong(value.toString().trim());
+    } catch (NumberFormatException e) {
+      throw new ConfigException(key, value, "Expected a long");
+    }
+  }
+
+  public static String getString(Map<String, ?> configs, String key, String defaultValue) {
+    Object value = configs == null ? null : configs.get(key);
+    return value == null ? defaultValue : value.toString().trim();
+  }
+
+  public static boolean getBoolean(Map<String, ?> configs, String key, boolean defaultValue) {
+    Object value = configs == null ? null : configs.get(key);
+    if (value == null) return defaultValue;
+    if (value instanceof Boolean) return (Boolean) value;
+    return Boolean.parseBoolean(value.toString().trim());
+  }
+
+  /**
+   * The configured {@code client.id}, or one generated from {@code prefix}, as a {@code KafkaProducer} or
+   * {@code KafkaConsumer} does.
+   */
+  public static String clientId(Map<String, ?> configs, String prefix) {
+    String clientId = getString(configs, CommonClientConfigs.CLIENT_ID_CONFIG, null);
+    return clientId == null || clientId.isEmpty() ? prefix + "-" + CLIENT_ID_SEQUENCE.getAndIncrement() : clientId;
+  }
+
+  /**
+   * The {@code MetricConfig} given by {@code metrics.num.samples}, {@code metrics.sample.window.ms} and
+   * {@code metrics.recording.level}, with Kafka's defaults.
+   */
+  public static MetricConfig metricConfig(Map<String, ?> configs) {
+    String recordingLevel = getString(configs, CommonClientConfigs.METRICS_RECORDING_LEVEL_CONFIG,
+        Sensor.RecordingLevel.INFO.toString());
+    MetricConfig config = new MetricConfig()
+        .samples(getInt(configs, CommonClientConfigs.METRICS_NUM_SAMPLES_CONFIG, 2))
+        .timeWindow(getLong(configs, CommonClientConfigs.METRICS_SAMPLE_WINDOW_MS_CONFIG, 30000L), TimeUnit.MILLISECONDS);
+    try {
+      return config.recordLevel(Sensor.RecordingLevel.forName(recordingLevel));
+    } catch (IllegalArgumentException e) {
+      throw new ConfigException(CommonClientConfigs.METRICS_RECORDING_LEVEL_CONFIG, recordingLevel, e.getMessage());
+    }
+  }
+}
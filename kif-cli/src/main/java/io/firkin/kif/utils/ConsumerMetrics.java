@@ -0,0 +1,203 @@
+/*
+ * Copyright © 2021 Kif Contributors (https://kif.firkin.io/)
+ * Copyright © 2021 Firkin•IO (https://firkin.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.firkin.kif.utils;
+
+import org.apache.kafka.common.Metric;
+import org.apache.kafka.common.MetricName;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.metrics.Metrics;
+import org.apache.kafka.common.metrics.Sensor;
+import org.apache.kafka.common.metrics.stats.Avg;
+import org.apache.kafka.common.metrics.stats.Max;
+import org.apache.kafka.common.metrics.stats.Meter;
+import org.apache.kafka.common.metrics.stats.Value;
+import org.apache.kafka.common.metrics.stats.WindowedCount;
+import org.apache.kafka.common.utils.Time;
+
+import java.io.Closeable;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The metrics of a {@link StreamConsumer} or {@link FileConsumer}: those of a {@code KafkaConsumer}'s fetcher,
+ * with the same names, groups, tags and meanings, so that code written against {@code KafkaConsumer.metrics()}
+ * works unchanged.
+ * <p/>
+ * A "fetch" is a single {@code poll()}, and its latency is how long the poll took, including any time spent
+ * waiting for records; as a {@code KafkaConsumer}'s fetch latency includes the broker's {@code fetch.max.wait.ms}.
+ * <ul>
+ *   <li>{@code consumer-fetch-manager-metrics}: {@code fetch-size-avg/max}, {@code bytes-consumed-rate/total},
+ *       {@code records-per-request-avg}, {@code records-consumed-rate/total}, {@code fetch-latency-avg/max},
+ *       {@code fetch-rate/total} and {@code records-lag-max}.</li>
+ *   <li>The same group, tagged with the topic: {@code fetch-size-avg/max}, {@code bytes-consumed-rate/total},
+ *       {@code records-per-request-avg} and {@code records-consumed-rate/total}.</li>
+ *   <li>The same group, tagged with the topic and partition: {@code records-lag}, {@code records-lag-avg} and
+ *       {@code records-lag-max}.</li>
+ * </ul>
+ * Every metric is tagged with the consumer's {@code client.id}.
+ * <i> This class is <em>not</em> threadsafe.</i>
+ */
+final class ConsumerMetrics implements Closeable {
+
+  static final String GROUP = "consumer-fetch-manager-metrics";
+
+  private final Metrics metrics;
+  private final Map<String, String> tags;
+  private final Sensor bytesFetched;
+  private final Sensor recordsFetched;
+  private final Sensor fetchLatency;
+  private final Sensor recordsLag;
+  private final Map<String, int[]> topicFetches;
+  private final Set<TopicPartition> lagPartitions;
+
+  /**
+   * @param clientIdPrefix the prefix of the {@code client.id} generated when none is configured.
+   */
+  ConsumerMetrics(Map<String, ?> configs, String clientIdPrefix) {
+    this.metrics = new Metrics(ClientConfigs.metricConfig(configs), Time.SYSTEM);
+    this.tags = Collections.singletonMap("client-id", ClientConfigs.clientId(configs, clientIdPrefix));
+    this.topicFetches = new HashMap<>();
+    this.lagPartitions = new HashSet<>();
+
+    this.bytesFetched = metrics.sensor("bytes-fetched");
+    addBytesFetched(bytesFetched, tags, "");
+    this.recordsFetched = metrics.sensor("records-fetched");
+    addRecordsFetched(recordsFetched, tags, "");
+    this.fetchLatency = metrics.sensor("fetch-latency");
+    fetchLatency.add(metricName("fetch-latency-avg", "The average time taken for a fetch request.", tags), new Avg());
+    fetchLatency.add(metricName("fetch-latency-max", "The max time taken for any fetch request.", tags), new Max());
+    fetchLatency.add(new Meter(new WindowedCount(),
+        metricName("fetch-rate", "The number of fetch requests per second.", tags),
+        metricName("fetch-total", "The total number of fetch requests.", tags)));
+    this.recordsLag = metrics.sensor("records-lag");
+    recordsLag.add(metricName("records-lag-max", "The maximum lag in terms of number of records for any partition in this window", tags),
+        new Max());
+  }
+
+  /**
+   * Records of a partition, in {@code sizeInBytes} bytes, returned by the current fetch.
+   */
+  void recordPartition(TopicPartition tp, int records, int sizeInBytes) {
+    int[] fetch = topicFetches.computeIfAbsent(tp.topic(), topic -> new int[2]);
+    fetch[0] += records;
+    fetch[1] += sizeInBytes;
+  }
+
+  /**
+   * The number of records of a partition, after the consumer's position, which have yet to be fetched.
+   */
+  void recordLag(TopicPartition tp, long lag) {
+    String name = tp + ".records-lag";
+    Sensor sensor = metrics.getSensor(name);
+    if (sensor == null) {
+      Map<String, String> partitionTags = new HashMap<>(tags);
+      partitionTags.put("topic", tp.topic().replace('.', '_'));
+      partitionTags.put("partition", String.valueOf(tp.partition()));
+      sensor = metrics.sensor(name);
+      sensor.add(metricName("records-lag", "The latest lag of the partition", partitionTags), new Value());
+      sensor.add(metricName("records-lag-max", "The max lag of the partition", partitionTags), new Max());
+      sensor.add(metricName("records-lag-avg", "The average lag of the partition", partitionTags), new Avg());
+      lagPartitions.add(tp);
+    }
+    sensor.record(lag);
+    recordsLag.record(lag);
+  }
+
+  /**
+   * Complete the current fetch, recording it and every partition recorded since the last one.
+   */
+  void recordFetch(long latencyNanos) {
+    fetchLatency.record(latencyNanos / (double) TimeUnit.MILLISECONDS.toNanos(1));
+    int records = 0;
+    int bytes = 0;
+    for (Map.Entry<String, int[]> entry : topicFetches.entrySet()) {
+      String topic = entry.getKey();
+      int[] fetch = entry.getValue();
+      topicSensor(topic, "bytes-fetched").record(fetch[1]);
+      topicSensor(topic, "records-fetched").record(fetch[0]);
+      records += fetch[0];
+      bytes += fetch[1];
+    }
+    topicFetches.clear();
+    bytesFetched.record(bytes);
+    recordsFetched.record(records);
+  }
+
+  /**
+   * Drop the lag metrics of partitions no longer assigned, as a {@code KafkaConsumer} does.
+   */
+  void retainLag(Collection<TopicPartition> assigned) {
+    Iterator<TopicPartition> iterator = lagPartitions.iterator();
+    while (iterator.hasNext()) {
+      TopicPartition tp = iterator.next();
+      if (!assigned.contains(tp)) {
+        metrics.removeSensor(tp + ".records-lag");
+        iterator.remove();
+      }
+    }
+  }
+
+  Map<MetricName, ? extends Metric> metrics() {
+    return Collections.unmodifiableMap(metrics.metrics());
+  }
+
+  @Override
+  public void close() {
+    metrics.close();
+  }
+
+  // --- Internal Implementation Methods --------------------------------------------------------------------
+
+  private Sensor topicSensor(String topic, String sensorName) {
+    String name = "topic." + topic + "." + sensorName;
+    Sensor sensor = metrics.getSensor(name);
+    if (sensor == null) {
+      Map<String, String> topicTags = new HashMap<>(tags);
+      topicTags.put("topic", topic.replace('.', '_'));
+      sensor = metrics.sensor(name);
+      if (sensorName.equals("bytes-fetched"))
+        addBytesFetched(sensor, topicTags, " for a topic");
+      else
+        addRecordsFetched(sensor, topicTags, " for a topic");
+    }
+    return sensor;
+  }
+
+  private void addBytesFetched(Sensor sensor, Map<String, String> tags, String scope) {
+    sensor.add(metricName("fetch-size-avg", "The average number of bytes fetched per request" + scope, tags), new Avg());
+    sensor.add(metricName("fetch-size-max", "The maximum number of bytes fetched per request" + scope, tags), new Max());
+    sensor.add(new Meter(metricName("bytes-consumed-rate", "The average number of bytes consumed per second" + scope, tags),
+        metricName("bytes-consumed-total", "The total number of bytes consumed" + scope, tags)));
+  }
+
+  private void addRecordsFetched(Sensor sensor, Map<String, String> tags, String scope) {
+    sensor.add(metricName("records-per-request-avg", "The average number of records in each request" + scope, tags), new Avg());
+    sensor.add(new Meter(metricName("records-consumed-rate", "The average number of records consumed per second" + scope, tags),
+        metricName("records-consumed-total", "The total number of records consumed" + scope, tags)));
+  }
+
+  private MetricName metricName(String name, String description, Map<String, String> tags) {
+    return metrics.metricName(name, GROUP, description, tags);
+  }
+}
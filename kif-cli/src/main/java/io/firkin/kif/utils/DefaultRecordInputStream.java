@@ -20,66 +20,258 @@ package io.firkin.kif.utils;
 import org.apache.kafka.clients.consumer.Consumer;
 import org.apache.kafka.clients.consumer.ConsumerRecord;
 import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.common.KafkaException;
+import org.apache.kafka.common.config.ConfigException;
+import org.apache.kafka.common.errors.WakeupException;
 import org.apache.kafka.common.serialization.Deserializer;
 
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
-import java.util.LinkedList;
-import java.util.Queue;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.List;
+import java.util.Map;
 
+/**
+ * Reads the values of the records from a {@link Consumer}, which must already be subscribed or assigned.
+ * <p/>
+ * A prefetch thread owns the consumer: it polls continuously and hands each poll's values, as a whole batch,
+ * to the reader through a lock-free single-producer/single-consumer ring (see {@link SpscRing}), keeping up to
+ * {@code kif.prefetch.batches} batches ahead of it. When the ring is full the prefetch thread waits, so no
+ * records are ever dropped, and memory stays bounded by the batches in the ring and {@code max.poll.records}.
+ * <ul>
+ *   <li>{@code kif.prefetch.batches} how many polled batches may wait for the reader; default 4.</li>
+ *   <li>{@code kif.poll.timeout.ms} the timeout of each of the prefetch thread's polls; default 1000.</li>
+ * </ul>
+ * If the consumer fails, the batches already prefetched are still read, then its exception is thrown by
+ * {@link #read()}. <i> Only one thread may read from this stream.</i>
+ * <p/>
+ * To handle records concurrently, with each key's records still in order, use a
+ * {@link ParallelRecordProcessor} instead.
+ */
 public class DefaultRecordInputStream<T, K, V> extends RecordStream implements RecordInputStream<T> {
 
+  public static final String PREFETCH_BATCHES_CONFIG = "kif.prefetch.batches";
+  public static final String POLL_TIMEOUT_MS_CONFIG = "kif.poll.timeout.ms";
+
+  public static final int DEFAULT_PREFETCH_BATCHES = 4;
+  public static final long DEFAULT_POLL_TIMEOUT_MS = 1000L;
+
+  private static final long CLOSE_TIMEOUT_MS = 30000L;
+
   // Consumers provide a stream of Records which can be deserialized into a Java object of some kind.
   Consumer<K, T> consumer; // V=T, correct?
   Deserializer<T> deserializer; // TODO Do I actually need the deserializer?
 
-  Queue<ConsumerRecords<K,T>> recordsQueue = new LinkedList<>();
-  String topic;
-
-  private static final int DEFAULT_BUFFER_SIZE=2048;
+  private final Duration pollTimeout;
+  private final SpscRing<List<T>> prefetched;
+  private final Thread prefetcher;
+  private volatile boolean closed;
+  private volatile RuntimeException failure;
 
-  private Queue<T> pojoQueue = new ArrayBlockingQueue<T>(DEFAULT_BUFFER_SIZE);
-  private ExecutorService execPool  = Executors.newSingleThreadExecutor();;
+  // Only touched by the reader.
+  private List<T> batch = Collections.emptyList();
+  private int position;
 
   public DefaultRecordInputStream(Consumer<K,V> consumer, Deserializer<T> deserializer) {
-    pojoQueue = new ArrayBlockingQueue<T>(DEFAULT_BUFFER_SIZE);
-    execPool  = Executors.newSingleThreadExecutor();;
-    this.consumer = (Consumer<K,T>) consumer;
-    this.consumer.subscribe(Collections.singleton(this.topic));
-    this.deserializer = deserializer;
+    this(consumer, deserializer, Collections.emptyMap());
   }
 
-  private DefaultRecordInputStream() {
-    this.execPool = Executors.newSingleThreadExecutor();
-    pojoQueue = new ArrayBlockingQueue<T>(DEFAULT_BUFFER_SIZE);
+  /**
+   * @param configs see {@link #PREFETCH_BATCHES_CONFIG} and {@link #POLL_TIMEOUT_MS_CONFIG}.
+   */
+  public DefaultRecordInputStream(Consumer<K,V> consumer, Deserializer<T> deserializer, Map<String, ?> configs) {
+    int prefetchBatches = ClientConfigs.getInt(configs, PREFETCH_BATCHES_CONFIG, DEFAULT_PREFETCH_BATCHES);
+    if (prefetchBatches <= 0)
+      throw new ConfigException(PREFETCH_BATCHES_CONFIG, prefetchBatches, "Must be positive");
+    long pollTimeoutMs = ClientConfigs.getLong(configs, POLL_TIMEOUT_MS_CONFIG, DEFAULT_POLL_TIMEOUT_MS);
+    if (pollTimeoutMs < 0)
+      throw new ConfigException(POLL_TIMEOUT_MS_CONFIG, pollTimeoutMs, "Must not be negative");
+    this.consumer = (Consumer<K,T>) consumer;
+    this.deserializer = deserializer;
+    this.pollTimeout = Duration.ofMillis(pollTimeoutMs);
+    this.prefetched = new SpscRing<>(prefetchBatches);
+    this.prefetcher = new Thread(this::prefetch, "kif-record-input-prefetch");
+    this.prefetcher.setDaemon(true);
+    this.prefetcher.start();
   }
 
+  /**
+   * Whether a value can be read without waiting.
+   */
   @Override
   public boolean hasNext() {
-    return pojoQueue.peek() != null;
+    return position < batch.size() || !prefetched.isEmpty();
   }
 
+  /**
+   * The next value, if one has been prefetched; this never waits.
+   *
+   * @return the value, or null if none is ready yet.
+   */
   @Override
   public T read() {
-    T result = pojoQueue.poll();
-    // Launch an process which asynchronously polls() the underlying consumer
-    if (pojoQueue.isEmpty())
-      execPool.submit(() -> {
-        // TODO base this poll() timeout on kafka configuration.
-        ConsumerRecords<K,T> consumerRecords = consumer.poll(Duration.ofMillis(12000L));
-        consumerRecords.records(topic).forEach(r -> pojoQueue.add(r.value())); // TODO Rework the
-      });
-    return result;
+    return next(0L);
+  }
+
+  /**
+   * The next value, waiting up to {@code timeout} for one to be prefetched.
+   *
+   * @return the value, or null if none arrived in time or the stream is closed.
+   */
+  @Override
+  public T read(Duration timeout) {
+    return next(timeout.toNanos());
+  }
+
+  /**
+   * Copy up to {@code max} prefetched values into {@code into}, a batch at a time; this never waits.
+   */
+  @Override
+  public int readBatch(int max, T[] into) {
+    return nextBatch(Math.min(max, into.length), into, 0L);
+  }
+
+  /**
+   * Copy up to {@code max} values into {@code into}, waiting up to {@code timeout} for the first of them.
+   *
+   * @return the number of values read, which is 0 if none arrived in time or the stream is closed.
+   */
+  @Override
+  public int readBatch(int max, T[] into, Duration timeout) {
+    return nextBatch(Math.min(max, into.length), into, timeout.toNanos());
+  }
+
+  /**
+   * Add every prefetched value to {@code into}, whole batches at a time; this never waits.
+   */
+  @Override
+  public int drainTo(Collection<? super T> into) {
+    int n = 0;
+    while (fill(0L)) {
+      List<T> remaining = batch.subList(position, batch.size());
+      into.addAll(remaining);
+      n += remaining.size();
+      batch = Collections.emptyList();
+      position = 0;
+    }
+    if (n == 0)
+      throwIfFailed();
+    return n;
+  }
+
+  /**
+   * Whether every value has been read, and the prefetch thread has stopped: because the stream was closed, or
+   * because the consumer is a {@link StreamConsumer} whose stream has ended. If the consumer failed, this is
+   * false, and the next read throws the failure.
+   */
+  @Override
+  public boolean isEndOfStream() {
+    return position >= batch.size() && prefetched.isClosed() && prefetched.isEmpty() && failure == null;
   }
 
   @Override
   public void close() {
-    if (!execPool.isShutdown()) {
-      execPool.shutdown();
+    if (closed)
+      return;
+    closed = true;
+    prefetched.close();
+    consumer.wakeup();
+    try {
+      prefetcher.join(CLOSE_TIMEOUT_MS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  // --- Internal Implementation Methods --------------------------------------------------------------------
+
+  private T next(long timeoutNanos) {
+    if (!fill(timeoutNanos)) {
+      throwIfFailed();
+      return null;
+    }
+    T value = batch.get(position);
+    batch.set(position++, null); // don't hold on to values already read
+    return value;
+  }
+
+  private int nextBatch(int max, T[] into, long timeoutNanos) {
+    int n = 0;
+    while (n < max && fill(n == 0 ? timeoutNanos : 0L)) {
+      int count = Math.min(max - n, batch.size() - position);
+      for (int i = 0; i < count; i++) {
+        into[n++] = batch.get(position);
+        batch.set(position++, null);
+      }
+    }
+    if (n == 0)
+      throwIfFailed();
+    return n;
+  }
+
+  /**
+   * Make sure the current batch has a value left to read, taking the next prefetched batch if it hasn't.
+   *
+   * @return false if no value arrived within the timeout, or the stream is closed or failed.
+   */
+  private boolean fill(long timeoutNanos) {
+    if (position < batch.size())
+      return true;
+    List<T> next = prefetched.poll(timeoutNanos);
+    if (next == null)
+      return false;
+    batch = next;
+    position = 0;
+    return true;
+  }
+
+  /**
+   * Once everything prefetched has been read, throw the consumer's failure, if it failed. Values already
+   * handed out by a call are returned before the failure is thrown by the next.
+   */
+  private void throwIfFailed() {
+    RuntimeException e = failure;
+    if (e != null && prefetched.isEmpty())
+      throw e;
+  }
+
+  /**
+   * Run by the prefetch thread, which has the consumer to itself until it closes it.
+   */
+  private void prefetch() {
+    try {
+      while (!closed) {
+        ConsumerRecords<K,T> records;
+        try {
+          records = consumer.poll(pollTimeout);
+        } catch (WakeupException e) {
+          continue; // from close(), or from someone else: either way the loop decides
+        }
+        if (records.isEmpty()) {
+          if (consumer instanceof StreamConsumer && ((StreamConsumer<?, ?>) consumer).isEndOfStream())
+            return; // nothing more will ever be polled
+          continue;
+        }
+        List<T> values = new ArrayList<>(records.count());
+        for (ConsumerRecord<K,T> record : records)
+          values.add(record.value());
+        while (!prefetched.offer(values, pollTimeout.toNanos()))
+          if (prefetched.isClosed())
+            return;
+      }
+    } catch (KafkaException e) {
+      failure = e;
+    } catch (RuntimeException e) {
+      failure = new KafkaException("Prefetching from the consumer failed", e);
+    } finally {
+      prefetched.close();
+      try {
+        consumer.close(Duration.ofMillis(CLOSE_TIMEOUT_MS));
+      } catch (RuntimeException e) {
+        if (failure == null && !closed)
+          failure = e;
+      }
     }
-    consumer.close(Duration.ofMillis(30000L));
   }
 }
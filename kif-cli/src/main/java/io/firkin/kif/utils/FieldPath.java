@@ -0,0 +1,347 @@
+/*
+ * Copyright © 2021 Kif Contributors (https://kif.firkin.io/)
+ * Copyright © 2021 Firkin•IO (https://firkin.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.firkin.kif.utils;
+
+import com.fasterxml.jackson.core.JsonPointer;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.Message;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.IndexedRecord;
+import org.apache.avro.util.Utf8;
+import org.apache.kafka.common.KafkaException;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+
+/**
+ * A path to a field of a record, such as {@code $.customer.id} or {@code $.lines[0].sku}, compiled once and then
+ * read from every record as cheaply as a hand-written accessor would.
+ * <p/>
+ * The path is parsed once. Each step is linked to the kind of object it first meets, and stays linked for as
+ * long as the records keep that shape; only a record of another shape links it again:
+ * <ul>
+ *   <li>Avro records ({@link IndexedRecord}) by the field's position, resolved once per {@link Schema}.</li>
+ *   <li>Protobuf {@link Message}s by the field's descriptor, resolved once per message type.</li>
+ *   <li>Jackson trees ({@link JsonNode}) by a {@link JsonPointer} for the whole path, compiled up front.</li>
+ *   <li>{@link Map}s, {@link List}s and arrays by key and index.</li>
+ *   <li>POJOs by a getter ({@code getX()}, {@code isX()} or {@code x()}) or public field, bound once per class
+ *       into a {@code Function} with {@link LambdaMetafactory}, so the JIT can inline it.</li>
+ * </ul>
+ * A field that doesn't exist, or a {@code null} along the way, reads as {@code null}. Values come back as Java
+ * values: Avro's {@code Utf8} and Jackson's text nodes as {@code String}, Jackson's numbers as {@code Number};
+ * a Jackson object or array is returned as its node.
+ */
+public final class FieldPath {
+
+  private static final ClassValue<ConcurrentMap<String, Function<Object, Object>>> GETTERS =
+      new ClassValue<ConcurrentMap<String, Function<Object, Object>>>() {
+        @Override
+        protected ConcurrentMap<String, Function<Object, Object>> computeValue(Class<?> type) {
+          return new ConcurrentHashMap<>();
+        }
+      };
+
+  private final String path;
+  private final Step[] steps;
+  private final JsonPointer pointer;
+
+  private FieldPath(String path, Step[] steps, JsonPointer pointer) {
+    this.path = path;
+    this.steps = steps;
+    this.pointer = pointer;
+  }
+
+  /**
+   * Parse a path: an optional {@code $}, then fields separated by {@code .}, each optionally followed by
+   * {@code [n]} indexes. {@code $} on its own is the record itself.
+   *
+   * @throws IllegalArgumentException if the path can't be parsed.
+   */
+  public static FieldPath compile(String path) {
+    String p = path.trim();
+    int start = p.startsWith("$") ? 1 : 0;
+    int i = start;
+    List<Step> steps = new ArrayList<>();
+    StringBuilder pointer = new StringBuilder();
+    while (i < p.length()) {
+      if (p.charAt(i) == '[') {
+        int end = p.indexOf(']', i);
+        if (end < 0)
+          throw new IllegalArgumentException("Unclosed '[' in field path: " + path);
+        int index;
+        try {
+          index = Integer.parseInt(p.substring(i + 1, end).trim());
+        } catch (NumberFormatException e) {
+          throw new IllegalArgumentException("Not an index in field path: " + path, e);
+        }
+        if (index < 0)
+          throw new IllegalArgumentException("Negative index in field path: " + path);
+        steps.add(new Step(null, index));
+        pointer.append('/').append(index);
+        i = end + 1;
+        continue;
+      }
+      if (p.charAt(i) == '.')
+        i++;
+      else if (i != 0)
+        throw new IllegalArgumentException("Expected '.' or '[' at " + i + " of field path: " + path);
+      int end = i;
+      while (end < p.length() && p.charAt(end) != '.' && p.charAt(end) != '[')
+        end++;
+      String name = p.substring(i, end);
+      if (name.isEmpty())
+        throw new IllegalArgumentException("Empty field name in field path: " + path);
+      steps.add(new Step(name, -1));
+      pointer.append('/').append(name.replace("~", "~0").replace("/", "~1"));
+      i = end;
+    }
+    return new FieldPath(path, steps.toArray(new Step[0]), JsonPointer.compile(pointer.toString()));
+  }
+
+  /**
+   * Read this path from a record.
+   *
+   * @return the value at the end of the path, or null if there is none.
+   */
+  public Object get(Object record) {
+    if (record instanceof JsonNode)
+      return value(((JsonNode) record).at(pointer));
+    Object value = record;
+    for (Step step : steps) {
+      if (value == null)
+        return null;
+      value = step.get(value);
+    }
+    return value;
+  }
+
+  @Override
+  public String toString() {
+    return path;
+  }
+
+  // --- Internal Implementation Methods --------------------------------------------------------------------
+
+  private static Object value(Object value) {
+    if (value instanceof JsonNode) {
+      JsonNode node = (JsonNode) value;
+      if (node.isMissingNode() || node.isNull())
+        return null;
+      if (node.isTextual())
+        return node.textValue();
+      if (node.isNumber())
+        return node.numberValue();
+      if (node.isBoolean())
+        return node.booleanValue();
+      return node;
+    }
+    if (value instanceof Utf8)
+      return value.toString();
+    return value;
+  }
+
+  /**
+   * The schema or message type of an Avro record or Protobuf message, which a step is linked to as well as its
+   * class; null for anything else.
+   */
+  private static Object shapeOf(Object target) {
+    if (target instanceof IndexedRecord)
+      return ((IndexedRecord) target).getSchema();
+    if (target instanceof Message)
+      return ((Message) target).getDescriptorForType();
+    return null;
+  }
+
+  /**
+   * One field or index of a path, with the accessor it was last linked to. Links are immutable, so a step
+   * shared by several threads at worst links more than once.
+   * <p/>
+   * A link is checked against the exact class of the target first, which is all a POJO, map or tree needs;
+   * only Avro records and Protobuf messages, whose fields depend on their schema, are checked further. Type
+   * checks against interfaces that fail are slow, so none are made once a step is linked.
+   */
+  private static final class Step {
+    private final String name;
+    private final int index;
+    private Link link;
+
+    Step(String name, int index) {
+      this.name = name;
+      this.index = index;
+    }
+
+    Object get(Object target) {
+      Link l = link;
+      if (l == null || l.type != target.getClass() || (l.shape != null && l.shape != shapeOf(target))) {
+        Object shape = shapeOf(target);
+        link = l = new Link(target.getClass(), shape, name == null ? indexer(target) : getter(target, shape));
+      }
+      return l.accessor.apply(target);
+    }
+
+    private Function<Object, Object> getter(Object target, Object shape) {
+      if (target instanceof IndexedRecord) {
+        Schema.Field field = ((Schema) shape).getField(name);
+        if (field == null)
+          return t -> null;
+        int pos = field.pos();
+        if (mayBeString(field.schema()))
+          return t -> value(((IndexedRecord) t).get(pos));
+        return t -> ((IndexedRecord) t).get(pos);
+      }
+      if (target instanceof Message) {
+        Descriptors.FieldDescriptor field = ((Descriptors.Descriptor) shape).findFieldByName(name);
+        if (field == null)
+          return t -> null;
+        if (field.getJavaType() == Descriptors.FieldDescriptor.JavaType.MESSAGE && !field.isRepeated())
+          return t -> ((Message) t).hasField(field) ? ((Message) t).getField(field) : null;
+        return t -> ((Message) t).getField(field);
+      }
+      if (target instanceof JsonNode)
+        return t -> value(((JsonNode) t).get(name));
+      if (target instanceof Map) {
+        // Avro decodes the keys of a map, as well as its strings, as Utf8.
+        Utf8 utf8 = new Utf8(name);
+        return t -> {
+          Map<?, ?> map = (Map<?, ?>) t;
+          Object value = map.get(name);
+          if (value == null && !map.isEmpty() && map.keySet().iterator().next() instanceof Utf8)
+            value = map.get(utf8);
+          return value(value);
+        };
+      }
+      return GETTERS.get(target.getClass()).computeIfAbsent(name, n -> pojoGetter(target.getClass(), n));
+    }
+
+    private Function<Object, Object> indexer(Object target) {
+      int i = index;
+      if (target instanceof List)
+        return t -> i < ((List<?>) t).size() ? value(((List<?>) t).get(i)) : null;
+      if (target instanceof JsonNode)
+        return t -> value(((JsonNode) t).get(i));
+      if (target instanceof IndexedRecord)
+        return t -> i < ((IndexedRecord) t).getSchema().getFields().size() ? value(((IndexedRecord) t).get(i)) : null;
+      if (target.getClass().isArray())
+        return t -> i < Array.getLength(t) ? Array.get(t, i) : null;
+      return t -> null;
+    }
+  }
+
+  private static final class Link {
+    private final Class<?> type;
+    private final Object shape;
+    private final Function<Object, Object> accessor;
+
+    Link(Class<?> type, Object shape, Function<Object, Object> accessor) {
+      this.type = type;
+      this.shape = shape;
+      this.accessor = accessor;
+    }
+  }
+
+  private static boolean mayBeString(Schema schema) {
+    if (schema.getType() == Schema.Type.STRING)
+      return true;
+    if (schema.getType() == Schema.Type.UNION)
+      for (Schema branch : schema.getTypes())
+        if (branch.getType() == Schema.Type.STRING)
+          return true;
+    return false;
+  }
+
+  /**
+   * Bind a POJO's getter or public field into a {@code Function}; with {@link LambdaMetafactory} where the
+   * getter is public, otherwise through a {@link MethodHandle}.
+   */
+  @SuppressWarnings("unchecked")
+  private static Function<Object, Object> pojoGetter(Class<?> type, String name) {
+    String capitalized = Character.toUpperCase(name.charAt(0)) + name.substring(1);
+    Method method = findGetter(type, "get" + capitalized);
+    if (method == null)
+      method = findGetter(type, "is" + capitalized);
+    if (method == null)
+      method = findGetter(type, name);
+    MethodHandles.Lookup lookup = MethodHandles.lookup();
+    try {
+      if (method != null) {
+        if (Modifier.isPublic(method.getDeclaringClass().getModifiers())) {
+          MethodHandle getter = lookup.unreflect(method);
+          CallSite site = LambdaMetafactory.metafactory(lookup, "apply", MethodType.methodType(Function.class),
+              MethodType.methodType(Object.class, Object.class), getter,
+              MethodType.methodType(MethodType.methodType(method.getReturnType()).wrap().returnType(),
+                  method.getDeclaringClass()));
+          return (Function<Object, Object>) site.getTarget().invokeExact();
+        }
+        method.setAccessible(true);
+        return invoker(lookup.unreflect(method), name);
+      }
+      for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+        try {
+          Field field = c.getDeclaredField(name);
+          if (Modifier.isStatic(field.getModifiers()))
+            continue;
+          field.setAccessible(true);
+          return invoker(lookup.unreflectGetter(field), name);
+        } catch (NoSuchFieldException e) {
+          // try the superclass
+        }
+      }
+    } catch (Throwable e) {
+      throw new KafkaException("Could not bind field '" + name + "' of " + type.getName(), e);
+    }
+    return t -> null;
+  }
+
+  private static Method findGetter(Class<?> type, String methodName) {
+    try {
+      Method method = type.getMethod(methodName);
+      if (method.getReturnType() == void.class || Modifier.isStatic(method.getModifiers()))
+        return null;
+      return method;
+    } catch (NoSuchMethodException e) {
+      return null;
+    }
+  }
+
+  private static Function<Object, Object> invoker(MethodHandle handle, String name) {
+    MethodHandle getter = handle.asType(MethodType.methodType(Object.class, Object.class));
+    return t -> {
+      try {
+        return getter.invokeExact(t);
+      } catch (RuntimeException | Error e) {
+        throw e;
+      } catch (Throwable e) {
+        throw new KafkaException("Could not read field '" + name + "'", e);
+      }
+    };
+  }
+}
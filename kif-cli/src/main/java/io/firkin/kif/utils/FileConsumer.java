@@ -19,6 +19,7 @@ package io.firkin.kif.utils;
 
 import org.apache.kafka.clients.Metadata;
 import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerConfig;
 import org.apache.kafka.clients.consumer.ConsumerGroupMetadata;
 import org.apache.kafka.clients.consumer.ConsumerRebalanceListener;
 import org.apache.kafka.clients.consumer.ConsumerRecord;
@@ -34,19 +35,43 @@ import org.apache.kafka.clients.consumer.internals.SubscriptionState;
 import org.apache.kafka.common.KafkaException;
 import org.apache.kafka.common.Metric;
 import org.apache.kafka.common.MetricName;
+import org.apache.kafka.common.Node;
 import org.apache.kafka.common.PartitionInfo;
 import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.config.ConfigException;
+import org.apache.kafka.common.errors.InterruptException;
+import org.apache.kafka.common.errors.KafkaStorageException;
+import org.apache.kafka.common.errors.SerializationException;
 import org.apache.kafka.common.errors.WakeupException;
+import org.apache.kafka.common.header.Headers;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.apache.kafka.common.record.FileRecords;
+import org.apache.kafka.common.record.Record;
+import org.apache.kafka.common.record.RecordBatch;
+import org.apache.kafka.common.record.Records;
+import org.apache.kafka.common.serialization.Deserializer;
+import org.apache.kafka.common.utils.BufferSupplier;
+import org.apache.kafka.common.utils.CloseableIterator;
 import org.apache.kafka.common.utils.LogContext;
+import org.apache.kafka.common.utils.Time;
+import org.apache.kafka.common.utils.Utils;
 
+import io.firkin.kif.utils.log.FileLogReader;
+import io.firkin.kif.utils.log.LogConfig;
+import io.firkin.kif.utils.log.PartitionLogReader;
+
+import java.io.IOException;
+import java.nio.file.Path;
 import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Queue;
@@ -58,12 +83,26 @@ import java.util.stream.Collectors;
 
 /**
  * An implementation of Kafka Client's Consumer interface for reading records from a file.
+ * <p/>
+ * When configured with {@code kif.log.dir}, the consumer reads the {@link io.firkin.kif.utils.log.FileLog}
+ * written there by a {@link FileProducer}: {@link #beginningOffsets(Collection)}, {@link #endOffsets(Collection)}
+ * and {@link #offsetsForTimes(Map)} are answered from the log's segments and their indexes, without scanning
+ * them. {@link #poll(Duration)} streams records from the segments, holding no more than one batch per
+ * partition in memory: each poll returns at most {@code max.poll.records} records, read from at most
+ * {@code fetch.max.bytes} of batches, and {@code max.partition.fetch.bytes} from any one partition at a time.
+ * Subscribing to topics assigns all of their partitions in the log. If the log is still being written, a
+ * poll waits up to its timeout for more records. Otherwise records are added with
+ * {@link #addRecord(ConsumerRecord)}, as with {@code MockConsumer}.
  *
  * This borrows heavily from MockConsumer
  */
 public class FileConsumer<K, V> implements Consumer<K, V> {
 
   private static final long DEFAULT_CLOSE_TIMEOUT_MS = 10;
+  /** Default for {@code max.poll.records}, as for a {@code KafkaConsumer}. */
+  public static final int DEFAULT_MAX_POLL_RECORDS = 500;
+  /** How often a poll waiting for more records checks the log for them. */
+  private static final long LOG_POLL_INTERVAL_MS = 100;
   private final Map<String, List<PartitionInfo>> partitions;
   private final SubscriptionState subscriptions;
   private final Map<TopicPartition, Long> beginningOffsets;
@@ -71,6 +110,17 @@ public class FileConsumer<K, V> implements Consumer<K, V> {
   private final Map<TopicPartition, OffsetAndMetadata> committed;
   private final Queue<Runnable> pollTasks;
   private final Set<TopicPartition> paused;
+  private final FileLogReader log;
+  private final Deserializer<K> keyDeserializer;
+  private final Deserializer<V> valueDeserializer;
+  private final OffsetResetStrategy offsetResetStrategy;
+  private final int maxPollRecords;
+  private final int fetchMaxBytes;
+  private final int maxPartitionFetchBytes;
+  private final Map<TopicPartition, LogFetch> logFetches;
+  private final BufferSupplier decompressionBuffers;
+  private final ConsumerMetrics metrics;
+  private int pollRound;
 
   private Map<TopicPartition, List<ConsumerRecord<K, V>>> records;
   private KafkaException pollException;
@@ -81,6 +131,48 @@ public class FileConsumer<K, V> implements Consumer<K, V> {
   private boolean shouldRebalance;
 
   public FileConsumer(OffsetResetStrategy offsetResetStrategy) {
+    this(Collections.emptyMap(), offsetResetStrategy, null, null, null);
+  }
+
+  /**
+   * Create a file consumer reading the log in {@code kif.log.dir}. Positions are reset according to
+   * {@code auto.offset.reset}, which for a file defaults to {@code earliest}.
+   *
+   * @param configs Consumer configs; {@link LogConfig#LOG_DIR_CONFIG}, {@code auto.offset.reset},
+   *        {@code max.poll.records}, {@code fetch.max.bytes} and {@code max.partition.fetch.bytes} are used.
+   * @param keyDeserializer The deserializer for keys that implements {@link Deserializer}.
+   * @param valueDeserializer The deserializer for values that implements {@link Deserializer}.
+   */
+  public FileConsumer(final Map<String, ?> configs,
+                      final Deserializer<K> keyDeserializer,
+                      final Deserializer<V> valueDeserializer) {
+    this(configs, offsetResetStrategy(configs), logReader(configs), keyDeserializer, valueDeserializer);
+  }
+
+  private FileConsumer(final Map<String, ?> configs,
+                       final OffsetResetStrategy offsetResetStrategy,
+                       final FileLogReader log,
+                       final Deserializer<K> keyDeserializer,
+                       final Deserializer<V> valueDeserializer) {
+    this.log = log;
+    this.keyDeserializer = keyDeserializer;
+    this.valueDeserializer = valueDeserializer;
+    this.offsetResetStrategy = offsetResetStrategy;
+    this.maxPollRecords = ClientConfigs.getInt(configs, ConsumerConfig.MAX_POLL_RECORDS_CONFIG,
+        DEFAULT_MAX_POLL_RECORDS);
+    this.fetchMaxBytes = ClientConfigs.getInt(configs, ConsumerConfig.FETCH_MAX_BYTES_CONFIG,
+        ConsumerConfig.DEFAULT_FETCH_MAX_BYTES);
+    this.maxPartitionFetchBytes = ClientConfigs.getInt(configs, ConsumerConfig.MAX_PARTITION_FETCH_BYTES_CONFIG,
+        ConsumerConfig.DEFAULT_MAX_PARTITION_FETCH_BYTES);
+    if (this.maxPollRecords <= 0)
+      throw new ConfigException(ConsumerConfig.MAX_POLL_RECORDS_CONFIG, this.maxPollRecords, "Must be positive");
+    if (this.fetchMaxBytes <= 0)
+      throw new ConfigException(ConsumerConfig.FETCH_MAX_BYTES_CONFIG, this.fetchMaxBytes, "Must be positive");
+    if (this.maxPartitionFetchBytes <= 0)
+      throw new ConfigException(ConsumerConfig.MAX_PARTITION_FETCH_BYTES_CONFIG, this.maxPartitionFetchBytes, "Must be positive");
+    this.logFetches = new HashMap<>();
+    this.decompressionBuffers = BufferSupplier.create();
+    this.metrics = new ConsumerMetrics(configs, "kif-file-consumer");
     this.subscriptions = new SubscriptionState(new LogContext(), offsetResetStrategy);
     this.partitions = new HashMap<>();
     this.records = new HashMap<>();
@@ -122,6 +214,14 @@ public class FileConsumer<K, V> implements Consumer<K, V> {
     ensureNotClosed();
     committed.clear();
     this.subscriptions.subscribe(pattern, listener);
+    if (this.log != null) {
+      try {
+        for (String topic : this.log.topics())
+          partitionsFor(topic);
+      } catch (IOException e) {
+        throw new KafkaStorageException("Could not list the topics in " + this.log.dir(), e);
+      }
+    }
     Set<String> topicsToSubscribe = new HashSet<>();
     for (String topic: partitions.keySet()) {
       if (pattern.matcher(topic).matches() &&
@@ -150,6 +250,8 @@ public class FileConsumer<K, V> implements Consumer<K, V> {
     ensureNotClosed();
     committed.clear();
     this.subscriptions.subscribe(new HashSet<>(topics), listener);
+    if (this.log != null)
+      assignFromLog();
   }
 
   @Override
@@ -197,34 +299,44 @@ public class FileConsumer<K, V> implements Consumer<K, V> {
       throw exception;
     }
 
+    if (this.log != null && subscriptions.hasAutoAssignedPartitions() && subscriptions.assignedPartitions().isEmpty())
+      assignFromLog();
+
     // Handle seeks that need to wait for a poll() call to be processed
     for (TopicPartition tp : subscriptions.assignedPartitions())
       if (!subscriptions.hasValidPosition(tp))
         updateFetchPosition(tp);
 
-    // update the consumed offset
+    if (this.log != null)
+      return pollLog(timeout);
+
+    // update the consumed offset, once per partition
     final Map<TopicPartition, List<ConsumerRecord<K, V>>> results = new HashMap<>();
     final List<TopicPartition> toClear = new ArrayList<>();
 
     for (Map.Entry<TopicPartition, List<ConsumerRecord<K, V>>> entry : this.records.entrySet()) {
-      if (!subscriptions.isPaused(entry.getKey())) {
-        final List<ConsumerRecord<K, V>> recs = entry.getValue();
-        for (final ConsumerRecord<K, V> rec : recs) {
-          long position = subscriptions.position(entry.getKey()).offset;
-
-          if (beginningOffsets.get(entry.getKey()) != null && beginningOffsets.get(entry.getKey()) > position) {
-            throw new OffsetOutOfRangeException(Collections.singletonMap(entry.getKey(), position));
+      TopicPartition tp = entry.getKey();
+      if (!subscriptions.isPaused(tp)) {
+        if (subscriptions.isAssigned(tp)) {
+          long position = subscriptions.position(tp).offset;
+          if (beginningOffsets.get(tp) != null && beginningOffsets.get(tp) > position) {
+            throw new OffsetOutOfRangeException(Collections.singletonMap(tp, position));
           }
 
-          if (assignment().contains(entry.getKey()) && rec.offset() >= position) {
-            results.computeIfAbsent(entry.getKey(), partition -> new ArrayList<>()).add(rec);
-            Metadata.LeaderAndEpoch leaderAndEpoch = new Metadata.LeaderAndEpoch(Optional.empty(), rec.leaderEpoch());
-            SubscriptionState.FetchPosition newPosition = new SubscriptionState.FetchPosition(
-                rec.offset() + 1, rec.leaderEpoch(), leaderAndEpoch);
-            subscriptions.position(entry.getKey(), newPosition);
+          ConsumerRecord<K, V> last = null;
+          for (final ConsumerRecord<K, V> rec : entry.getValue()) {
+            if (rec.offset() >= position) {
+              results.computeIfAbsent(tp, partition -> new ArrayList<>()).add(rec);
+              last = rec;
+            }
+          }
+          if (last != null) {
+            Metadata.LeaderAndEpoch leaderAndEpoch = new Metadata.LeaderAndEpoch(Optional.empty(), last.leaderEpoch());
+            subscriptions.position(tp, new SubscriptionState.FetchPosition(
+                last.offset() + 1, last.leaderEpoch(), leaderAndEpoch));
           }
         }
-        toClear.add(entry.getKey());
+        toClear.add(tp);
       }
     }
 
@@ -234,6 +346,8 @@ public class FileConsumer<K, V> implements Consumer<K, V> {
 
   public synchronized void addRecord(ConsumerRecord<K, V> record) {
     ensureNotClosed();
+    if (this.log != null)
+      throw new IllegalStateException("Records are read from the log in " + this.log.dir() + ", they cannot be added");
     TopicPartition tp = new TopicPartition(record.topic(), record.partition());
     Set<TopicPartition> currentAssigned = this.subscriptions.assignedPartitions();
     if (!currentAssigned.contains(tp))
@@ -379,12 +493,23 @@ public class FileConsumer<K, V> implements Consumer<K, V> {
   @Override
   public synchronized Map<MetricName, ? extends Metric> metrics() {
     ensureNotClosed();
-    return Collections.emptyMap();
+    return metrics.metrics();
   }
 
   @Override
   public synchronized List<PartitionInfo> partitionsFor(String topic) {
     ensureNotClosed();
+    if (this.log != null && !this.partitions.containsKey(topic)) {
+      List<PartitionInfo> found = new ArrayList<>();
+      try {
+        for (TopicPartition tp : this.log.partitionsFor(topic))
+          found.add(new PartitionInfo(topic, tp.partition(), Node.noNode(), new Node[0], new Node[0]));
+      } catch (IOException e) {
+        throw new KafkaStorageException("Could not list the partitions of " + topic + " in " + this.log.dir(), e);
+      }
+      if (!found.isEmpty())
+        this.partitions.put(topic, found);
+    }
     return this.partitions.get(topic);
   }
 
@@ -415,9 +540,37 @@ public class FileConsumer<K, V> implements Consumer<K, V> {
     }
   }
 
+  /**
+   * Find the first record at or after each timestamp, using each segment's time index. Only supported when
+   * reading a file log.
+   */
   @Override
   public synchronized Map<TopicPartition, OffsetAndTimestamp> offsetsForTimes(Map<TopicPartition, Long> timestampsToSearch) {
-    throw new UnsupportedOperationException("Not implemented yet.");
+    ensureNotClosed();
+    if (this.log == null)
+      throw new UnsupportedOperationException("Not implemented yet.");
+    if (offsetsException != null) {
+      RuntimeException exception = this.offsetsException;
+      this.offsetsException = null;
+      throw exception;
+    }
+    Map<TopicPartition, OffsetAndTimestamp> result = new HashMap<>();
+    for (Map.Entry<TopicPartition, Long> entry : timestampsToSearch.entrySet()) {
+      if (entry.getValue() < 0)
+        throw new IllegalArgumentException("The target time for partition " + entry.getKey() + " is "
+            + entry.getValue() + ". The target time cannot be negative.");
+      PartitionLogReader reader = logFor(entry.getKey());
+      FileRecords.TimestampAndOffset found;
+      try {
+        reader.refresh();
+        found = reader.offsetForTime(entry.getValue());
+      } catch (IOException e) {
+        throw new KafkaStorageException("Could not search the log of " + entry.getKey(), e);
+      }
+      result.put(entry.getKey(), found == null ? null
+          : new OffsetAndTimestamp(found.offset, found.timestamp, found.leaderEpoch));
+    }
+    return result;
   }
 
   @Override
@@ -429,7 +582,7 @@ public class FileConsumer<K, V> implements Consumer<K, V> {
     }
     Map<TopicPartition, Long> result = new HashMap<>();
     for (TopicPartition tp : partitions) {
-      Long beginningOffset = beginningOffsets.get(tp);
+      Long beginningOffset = this.log != null ? logBeginningOffset(tp) : beginningOffsets.get(tp);
       if (beginningOffset == null)
         throw new IllegalStateException("The partition " + tp + " does not have a beginning offset.");
       result.put(tp, beginningOffset);
@@ -446,7 +599,7 @@ public class FileConsumer<K, V> implements Consumer<K, V> {
     }
     Map<TopicPartition, Long> result = new HashMap<>();
     for (TopicPartition tp : partitions) {
-      Long endOffset = endOffsets.get(tp);
+      Long endOffset = this.log != null ? logEndOffset(tp) : endOffsets.get(tp);
       if (endOffset == null)
         throw new IllegalStateException("The partition " + tp + " does not have an end offset.");
       result.put(tp, endOffset);
@@ -462,6 +615,21 @@ public class FileConsumer<K, V> implements Consumer<K, V> {
   @Deprecated
   @Override
   public synchronized void close(long timeout, TimeUnit unit) {
+    if (!this.closed)
+      this.metrics.close();
+    if (!this.closed && this.log != null) {
+      for (LogFetch fetch : this.logFetches.values())
+        fetch.reset(-1L);
+      this.logFetches.clear();
+      this.decompressionBuffers.close();
+      try {
+        this.log.close();
+      } catch (IOException e) {
+        throw new KafkaStorageException("Could not close the log directory " + this.log.dir(), e);
+      } finally {
+        this.closed = true;
+      }
+    }
     this.closed = true;
   }
 
@@ -472,6 +640,7 @@ public class FileConsumer<K, V> implements Consumer<K, V> {
   @Override
   public synchronized void wakeup() {
     wakeup.set(true);
+    notifyAll();
   }
 
   /**
@@ -512,7 +681,11 @@ public class FileConsumer<K, V> implements Consumer<K, V> {
   private void resetOffsetPosition(TopicPartition tp) {
     OffsetResetStrategy strategy = subscriptions.resetStrategy(tp);
     Long offset;
-    if (strategy == OffsetResetStrategy.EARLIEST) {
+    if (this.log != null && strategy == OffsetResetStrategy.EARLIEST) {
+      offset = logBeginningOffset(tp);
+    } else if (this.log != null && strategy == OffsetResetStrategy.LATEST) {
+      offset = logEndOffset(tp);
+    } else if (strategy == OffsetResetStrategy.EARLIEST) {
       offset = beginningOffsets.get(tp);
       if (offset == null)
         throw new IllegalStateException("MockConsumer didn't have beginning offset specified, but tried to seek to beginning");
@@ -526,6 +699,259 @@ public class FileConsumer<K, V> implements Consumer<K, V> {
     seek(tp, offset);
   }
 
+  // --- Internal Implementation Methods --------------------------------------------------------------------
+
+  /**
+   * Assign every partition the log has of the subscribed topics.
+   */
+  private void assignFromLog() {
+    Set<TopicPartition> found = new HashSet<>();
+    for (String topic : subscriptions.subscription()) {
+      List<PartitionInfo> infos = partitionsFor(topic);
+      if (infos != null)
+        for (PartitionInfo info : infos)
+          found.add(new TopicPartition(topic, info.partition()));
+    }
+    if (!found.isEmpty())
+      subscriptions.assignFromSubscribed(found);
+  }
+
+  /**
+   * Poll the file log, waiting up to {@code timeout} for records if there are none yet.
+   */
+  private ConsumerRecords<K, V> pollLog(Duration timeout) {
+    long startNs = Time.SYSTEM.nanoseconds();
+    long now = Time.SYSTEM.milliseconds();
+    long deadline = timeout.toMillis() >= Long.MAX_VALUE - now ? Long.MAX_VALUE : now + timeout.toMillis();
+    while (true) {
+      Map<TopicPartition, List<ConsumerRecord<K, V>>> results = fetchFromLog();
+      long remaining = deadline - Time.SYSTEM.milliseconds();
+      if (!results.isEmpty() || remaining <= 0) {
+        metrics.recordFetch(Time.SYSTEM.nanoseconds() - startNs);
+        return results.isEmpty() ? ConsumerRecords.empty() : new ConsumerRecords<>(results);
+      }
+      try {
+        wait(Math.min(remaining, LOG_POLL_INTERVAL_MS));
+      } catch (InterruptedException e) {
+        throw new InterruptException(e);
+      }
+      if (wakeup.get()) {
+        wakeup.set(false);
+        throw new WakeupException();
+      }
+    }
+  }
+
+  /**
+   * Read up to {@code max.poll.records} records, and {@code fetch.max.bytes} of batches, from the fetchable
+   * partitions, starting with a different partition each time so that none is starved. Each partition's
+   * position is updated once, after its records are read.
+   */
+  private Map<TopicPartition, List<ConsumerRecord<K, V>>> fetchFromLog() {
+    Iterator<Map.Entry<TopicPartition, LogFetch>> fetches = this.logFetches.entrySet().iterator();
+    while (fetches.hasNext()) {
+      Map.Entry<TopicPartition, LogFetch> entry = fetches.next();
+      if (!subscriptions.isAssigned(entry.getKey())) {
+        entry.getValue().reset(-1L);
+        fetches.remove();
+      }
+    }
+    metrics.retainLag(subscriptions.assignedPartitions());
+
+    Map<TopicPartition, List<ConsumerRecord<K, V>>> results = new HashMap<>();
+    List<TopicPartition> fetchable = subscriptions.fetchablePartitions(tp -> true);
+    if (fetchable.isEmpty())
+      return results;
+
+    int recordsLeft = maxPollRecords;
+    int bytesLeft = fetchMaxBytes;
+    int start = Math.floorMod(pollRound++, fetchable.size());
+    for (int i = 0; i < fetchable.size() && recordsLeft > 0 && bytesLeft > 0; i++) {
+      TopicPartition tp = fetchable.get((start + i) % fetchable.size());
+      LogFetch fetch = logFetches.computeIfAbsent(tp, p -> new LogFetch(p, logFor(p)));
+      long position = subscriptions.position(tp).offset;
+      if (fetch.nextOffset != position)
+        fetch.reset(position);
+
+      List<ConsumerRecord<K, V>> records = new ArrayList<>(Math.min(recordsLeft, 64));
+      int bytes;
+      long lag;
+      try {
+        bytes = fetch.fetch(records, recordsLeft, Math.min(bytesLeft, maxPartitionFetchBytes));
+        lag = Math.max(0L, fetch.reader.endOffset() - fetch.nextOffset);
+      } catch (org.apache.kafka.common.errors.OffsetOutOfRangeException e) {
+        fetch.reset(-1L);
+        if (offsetResetStrategy == OffsetResetStrategy.NONE)
+          throw new OffsetOutOfRangeException(Collections.singletonMap(tp, position));
+        subscriptions.requestOffsetReset(tp);
+        resetOffsetPosition(tp);
+        continue;
+      } catch (IOException e) {
+        fetch.reset(-1L);
+        throw new KafkaStorageException("Could not read the log of " + tp, e);
+      }
+      bytesLeft -= bytes;
+      if (!records.isEmpty()) {
+        results.put(tp, records);
+        recordsLeft -= records.size();
+        subscriptions.position(tp, new SubscriptionState.FetchPosition(
+            fetch.nextOffset, Optional.empty(), Metadata.LeaderAndEpoch.noLeaderOrEpoch()));
+        metrics.recordPartition(tp, records.size(), bytes);
+        metrics.recordLag(tp, lag);
+      }
+    }
+    return results;
+  }
+
+  private ConsumerRecord<K, V> toConsumerRecord(TopicPartition tp, RecordBatch batch, Record record) {
+    Headers headers = new RecordHeaders(record.headers());
+    byte[] keyBytes = record.hasKey() ? Utils.toArray(record.key()) : null;
+    byte[] valueBytes = record.hasValue() ? Utils.toArray(record.value()) : null;
+    try {
+      K key = keyBytes == null ? null : keyDeserializer.deserialize(tp.topic(), headers, keyBytes);
+      V value = valueBytes == null ? null : valueDeserializer.deserialize(tp.topic(), headers, valueBytes);
+      return new ConsumerRecord<>(tp.topic(), tp.partition(), record.offset(), record.timestamp(),
+          batch.timestampType(), null, record.keySize(), record.valueSize(), key, value, headers, Optional.empty());
+    } catch (RuntimeException e) {
+      throw new SerializationException("Error deserializing key/value for partition " + tp + " at offset "
+          + record.offset() + ". If needed, please seek past the record to continue consumption.", e);
+    }
+  }
+
+  /**
+   * The read-ahead of one partition of the log: the current chunk of batches read from it, and the records of
+   * the current batch. Only one batch is decompressed and held at a time.
+   */
+  private final class LogFetch {
+    private final TopicPartition tp;
+    private final PartitionLogReader reader;
+    private long nextOffset;
+    private Iterator<? extends RecordBatch> batches;
+    private RecordBatch batch;
+    private CloseableIterator<Record> records;
+
+    private LogFetch(TopicPartition tp, PartitionLogReader reader) {
+      this.tp = tp;
+      this.reader = reader;
+      this.nextOffset = -1L;
+    }
+
+    /**
+     * Drop the read-ahead, so the next fetch starts at {@code offset}, found through the log's index.
+     */
+    private void reset(long offset) {
+      if (records != null)
+        records.close();
+      records = null;
+      batch = null;
+      batches = null;
+      nextOffset = offset;
+    }
+
+    /**
+     * Add up to {@code maxRecords} records to {@code out}, opening batches until {@code maxBytes} of them have
+     * been read (or one, if the first is larger).
+     *
+     * @return the number of bytes of batches opened.
+     */
+    private int fetch(List<ConsumerRecord<K, V>> out, int maxRecords, int maxBytes) throws IOException {
+      int bytes = 0;
+      while (out.size() < maxRecords) {
+        if (records != null && records.hasNext()) {
+          Record record = records.next();
+          if (record.offset() >= nextOffset) {
+            out.add(toConsumerRecord(tp, batch, record));
+            nextOffset = record.offset() + 1;
+          }
+          continue;
+        }
+        if (records != null) {
+          records.close();
+          records = null;
+        }
+        if (bytes > 0 && bytes >= maxBytes)
+          break;
+        batch = nextBatch();
+        if (batch == null)
+          break;
+        if (batch.lastOffset() < nextOffset)
+          continue;
+        if (batch.isControlBatch()) {
+          nextOffset = batch.nextOffset();
+          continue;
+        }
+        bytes += batch.sizeInBytes();
+        records = batch.streamingIterator(decompressionBuffers);
+      }
+      return bytes;
+    }
+
+    /**
+     * The next batch of the current chunk, reading the next chunk when it runs out, and refreshing the log
+     * once if there is nothing more to read.
+     */
+    private RecordBatch nextBatch() throws IOException {
+      if (batches != null && batches.hasNext())
+        return batches.next();
+      Records chunk = read();
+      if (chunk.sizeInBytes() == 0) {
+        reader.refresh();
+        chunk = read();
+      }
+      batches = chunk.batches().iterator();
+      return batches.hasNext() ? batches.next() : null;
+    }
+
+    private Records read() throws IOException {
+      try {
+        return reader.read(nextOffset, maxPartitionFetchBytes);
+      } catch (org.apache.kafka.common.errors.OffsetOutOfRangeException e) {
+        // The log may have grown since it was last refreshed
+        reader.refresh();
+        return reader.read(nextOffset, maxPartitionFetchBytes);
+      }
+    }
+  }
+
+  private PartitionLogReader logFor(TopicPartition tp) {
+    try {
+      return this.log.partition(tp);
+    } catch (IOException e) {
+      throw new KafkaStorageException("Could not open the log of " + tp + " in " + this.log.dir(), e);
+    }
+  }
+
+  private long logBeginningOffset(TopicPartition tp) {
+    return logFor(tp).startOffset();
+  }
+
+  private long logEndOffset(TopicPartition tp) {
+    PartitionLogReader reader = logFor(tp);
+    try {
+      reader.refresh();
+      return reader.endOffset();
+    } catch (IOException e) {
+      throw new KafkaStorageException("Could not read the log of " + tp, e);
+    }
+  }
+
+  private static OffsetResetStrategy offsetResetStrategy(Map<String, ?> configs) {
+    String strategy = ClientConfigs.getString(configs, ConsumerConfig.AUTO_OFFSET_RESET_CONFIG,
+        OffsetResetStrategy.EARLIEST.toString());
+    try {
+      return OffsetResetStrategy.valueOf(strategy.toUpperCase(Locale.ROOT));
+    } catch (IllegalArgumentException e) {
+      throw new ConfigException(ConsumerConfig.AUTO_OFFSET_RESET_CONFIG, strategy, "Must be one of earliest, latest or none");
+    }
+  }
+
+  private static FileLogReader logReader(Map<String, ?> configs) {
+    String dir = ClientConfigs.getString(configs, LogConfig.LOG_DIR_CONFIG, null);
+    if (dir == null)
+      throw new ConfigException(LogConfig.LOG_DIR_CONFIG, null, "A log directory is required");
+    return new FileLogReader(Path.of(dir));
+  }
+
   @Override
   public List<PartitionInfo> partitionsFor(String topic, Duration timeout) {
     return partitionsFor(topic);
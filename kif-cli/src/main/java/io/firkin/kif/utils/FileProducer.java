@@ -24,37 +24,76 @@ import org.apache.kafka.clients.producer.internals.DefaultPartitioner;
 import org.apache.kafka.clients.producer.internals.FutureRecordMetadata;
 import org.apache.kafka.clients.producer.internals.ProduceRequestResult;
 import org.apache.kafka.common.*;
+import org.apache.kafka.common.errors.KafkaStorageException;
 import org.apache.kafka.common.errors.ProducerFencedException;
+import org.apache.kafka.common.header.Header;
+import org.apache.kafka.common.header.Headers;
+import org.apache.kafka.common.record.Record;
 import org.apache.kafka.common.record.RecordBatch;
 import org.apache.kafka.common.serialization.Serializer;
 import org.apache.kafka.common.utils.Time;
 
+import io.firkin.kif.utils.log.FileLog;
+import io.firkin.kif.utils.log.LogConfig;
+import io.firkin.kif.utils.log.PartitionLog;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
-
-public class FileProducer<K, V> implements Producer<K, V> {
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An implementation of Kafka Client's Producer interface for writing records to local files.
+ * <p/>
+ * When configured with {@code kif.log.dir}, records are appended to a {@link FileLog} under that directory,
+ * one sub-directory of segment files per topic-partition, which can later be replayed. Records are gathered
+ * into Kafka v2 record batches, compressed with {@code compression.type}, and a batch is appended once it
+ * reaches {@code batch.size}, once it has waited {@code linger.ms}, or on {@link #flush()} and {@link #close()}.
+ * The {@code Future} returned by {@code send()} completes once the record's batch is in the log. Otherwise
+ * records are only kept in memory, as with {@code MockProducer}.
+ * <p/>
+ * With a log, sends from several threads run concurrently: each partition has its own append state (its log's
+ * offset counter and open batch, and the completions waiting on it) under its own lock, so threads sending to
+ * different partitions don't contend. Sends without a log are serialized on the producer, as with
+ * {@code MockProducer}.
+ * <p/>
+ * As a {@link RecordSink}, records can also be written to the log fire-and-forget, without a
+ * {@code ProducerRecord}, {@code Future} or completion per record; see {@link #write(MutableRecord)}.
+ *
+ * This borrows heavily from MockProducer
+ */
+public class FileProducer<K, V> implements RecordSink<K, V> {
 
   private final Cluster cluster;
   private final Partitioner partitioner;
-  private final List<ProducerRecord<K, V>> sent;
-  private final List<ProducerRecord<K, V>> uncommittedSends;
+  private final RecordHistory<ProducerRecord<K, V>> sent;
+  private final RecordHistory<ProducerRecord<K, V>> uncommittedSends;
   private final Deque<FileProducer.Completion> completions;
   private final Map<TopicPartition, Long> offsets;
-  private final List<Map<String, Map<TopicPartition, OffsetAndMetadata>>> consumerGroupOffsets;
+  private final RecordHistory<Map<String, Map<TopicPartition, OffsetAndMetadata>>> consumerGroupOffsets;
   private Map<String, Map<TopicPartition, OffsetAndMetadata>> uncommittedConsumerGroupOffsets;
   private final Serializer<K> keySerializer;
   private final Serializer<V> valueSerializer;
   private boolean autoComplete;
-  private boolean closed;
+  private volatile boolean closed;
   private boolean transactionInitialized;
   private boolean transactionInFlight;
   private boolean transactionCommitted;
   private boolean transactionAborted;
-  private boolean producerFenced;
+  private volatile boolean producerFenced;
   private boolean sentOffsets;
   private long commitCount = 0L;
   private final Map<MetricName, Metric> fileMetrics;
+  private final ProducerMetrics metrics;
+  private final FileLog log;
+  private final ConcurrentMap<TopicPartition, Appender> appenders;
+  private final ScheduledExecutorService lingerTimer;
 
   public RuntimeException initTransactionException = null;
   public RuntimeException beginTransactionException = null;
@@ -67,7 +106,7 @@ public class FileProducer<K, V> implements Producer<K, V> {
   public RuntimeException closeException = null;
 
   /**
-   * Create a file producer
+   * Create a file producer, keeping a full history of sent records.
    *
    * @param cluster The cluster holding metadata for this producer
    * @param autoComplete If true automatically complete all requests successfully and execute the callback. Otherwise
@@ -83,18 +122,67 @@ public class FileProducer<K, V> implements Producer<K, V> {
                       final Partitioner partitioner,
                       final Serializer<K> keySerializer,
                       final Serializer<V> valueSerializer) {
+    this(Collections.emptyMap(), cluster, autoComplete, partitioner, keySerializer, valueSerializer,
+        RecordHistory.Mode.ALL);
+  }
+
+  /**
+   * Create a file producer for production use; every send completes on its own, so no completions are held.
+   * Unless {@code kif.history.mode} says otherwise, no history of sent records is kept either, so memory use
+   * stays flat however many records are sent. If {@code kif.log.dir} is set, records are persisted there, and
+   * each send completes once its batch has been appended to the log.
+   *
+   * @param configs Producer configs, see {@link RecordHistory#MODE_CONFIG}, {@link RecordHistory#SIZE_CONFIG},
+   *        and {@link LogConfig}.
+   * @param keySerializer The serializer for key that implements {@link Serializer}.
+   * @param valueSerializer The serializer for value that implements {@link Serializer}.
+   */
+  public FileProducer(final Map<String, ?> configs,
+                      final Serializer<K> keySerializer,
+                      final Serializer<V> valueSerializer) {
+    this(configs, Cluster.empty(), true, new DefaultPartitioner(), keySerializer, valueSerializer,
+        RecordHistory.Mode.NONE);
+  }
+
+  private FileProducer(final Map<String, ?> configs,
+                       final Cluster cluster,
+                       final boolean autoComplete,
+                       final Partitioner partitioner,
+                       final Serializer<K> keySerializer,
+                       final Serializer<V> valueSerializer,
+                       final RecordHistory.Mode defaultHistory) {
     this.cluster = cluster;
     this.autoComplete = autoComplete;
     this.partitioner = partitioner;
     this.keySerializer = keySerializer;
     this.valueSerializer = valueSerializer;
     this.offsets = new HashMap<>();
-    this.sent = new ArrayList<>();
-    this.uncommittedSends = new ArrayList<>();
-    this.consumerGroupOffsets = new ArrayList<>();
+    this.sent = RecordHistory.of(configs, defaultHistory);
+    this.uncommittedSends = RecordHistory.of(configs, defaultHistory);
+    this.consumerGroupOffsets = RecordHistory.of(configs, defaultHistory);
     this.uncommittedConsumerGroupOffsets = new HashMap<>();
     this.completions = new ArrayDeque<>();
     this.fileMetrics = new HashMap<>();
+    this.metrics = new ProducerMetrics(configs, "kif-file-producer");
+    this.appenders = new ConcurrentHashMap<>();
+    try {
+      this.log = LogConfig.isConfigured(configs)
+          ? new FileLog(LogConfig.from(configs), Time.SYSTEM, this::recordAppend)
+          : null;
+    } catch (IOException e) {
+      throw new KafkaStorageException("Could not open the log directory " + configs.get(LogConfig.LOG_DIR_CONFIG), e);
+    }
+    long lingerMs = this.log == null ? 0L : this.log.config().lingerMs();
+    if (lingerMs > 0) {
+      this.lingerTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "kif-file-producer-linger");
+        thread.setDaemon(true);
+        return thread;
+      });
+      this.lingerTimer.scheduleWithFixedDelay(this::drainIfLingered, lingerMs, lingerMs, TimeUnit.MILLISECONDS);
+    } else {
+      this.lingerTimer = null;
+    }
   }
 
   /**
@@ -204,7 +292,7 @@ public class FileProducer<K, V> implements Producer<K, V> {
 
     flush();
 
-    this.sent.addAll(this.uncommittedSends);
+    this.sent.addAll(this.uncommittedSends.list());
     if (!this.uncommittedConsumerGroupOffsets.isEmpty())
       this.consumerGroupOffsets.add(this.uncommittedConsumerGroupOffsets);
 
@@ -235,7 +323,19 @@ public class FileProducer<K, V> implements Producer<K, V> {
     this.transactionInFlight = false;
   }
 
-  private synchronized void verifyProducerState() {
+  private void verifySendable() {
+    if (this.closed) {
+      throw new IllegalStateException("FileProducer is already closed.");
+    }
+    if (this.producerFenced) {
+      throw new KafkaException("FileProducer is fenced.", new ProducerFencedException("Fenced"));
+    }
+    if (this.sendException != null) {
+      throw this.sendException;
+    }
+  }
+
+  private void verifyProducerState() {
     if (this.closed) {
       throw new IllegalStateException("FileProducer is already closed.");
     }
@@ -262,7 +362,7 @@ public class FileProducer<K, V> implements Producer<K, V> {
    * @see #history()
    */
   @Override
-  public synchronized Future<RecordMetadata> send(ProducerRecord<K, V> record) {
+  public Future<RecordMetadata> send(ProducerRecord<K, V> record) {
     return send(record, null);
   }
 
@@ -272,28 +372,33 @@ public class FileProducer<K, V> implements Producer<K, V> {
    * @see #history()
    */
   @Override
-  public synchronized Future<RecordMetadata> send(ProducerRecord<K, V> record, Callback callback) {
-    if (this.closed) {
-      throw new IllegalStateException("FileProducer is already closed.");
-    }
+  public Future<RecordMetadata> send(ProducerRecord<K, V> record, Callback callback) {
+    verifySendable();
 
-    if (this.producerFenced) {
-      throw new KafkaException("FileProducer is fenced.", new ProducerFencedException("Fenced"));
-    }
-    if (this.sendException != null) {
-      throw this.sendException;
-    }
+    // Serialized once; the same bytes go to the partitioner and the log. Even when they aren't appended, this
+    // throws ClassCastException if the serializers are not the proper ones to serialize key/value.
+    byte[] keyBytes = keySerializer.serialize(record.topic(), record.headers(), record.key());
+    byte[] valueBytes = valueSerializer.serialize(record.topic(), record.headers(), record.value());
 
     int partition = 0;
     if (!this.cluster.partitionsForTopic(record.topic()).isEmpty())
-      partition = partition(record, this.cluster);
-    else {
-      //just to throw ClassCastException if serializers are not the proper ones to serialize key/value
-      keySerializer.serialize(record.topic(), record.key());
-      valueSerializer.serialize(record.topic(), record.value());
-    }
+      partition = partition(record.topic(), record.partition(), record.key(), keyBytes, record.value(), valueBytes,
+          this.cluster);
+    else if (this.log != null && record.partition() != null)
+      // Without metadata, a log's partitions are whatever the records say they are.
+      partition = record.partition();
 
     TopicPartition topicPartition = new TopicPartition(record.topic(), partition);
+    if (this.log != null)
+      return append(topicPartition, record, keyBytes, valueBytes, callback);
+
+    synchronized (this) {
+      return sendInMemory(topicPartition, record, callback);
+    }
+  }
+
+  private Future<RecordMetadata> sendInMemory(TopicPartition topicPartition, ProducerRecord<K, V> record,
+                                              Callback callback) {
     ProduceRequestResult result = new ProduceRequestResult(topicPartition);
     FutureRecordMetadata future = new FutureRecordMetadata(result, 0, RecordBatch.NO_TIMESTAMP,
         0L, 0, 0, Time.SYSTEM);
@@ -301,10 +406,7 @@ public class FileProducer<K, V> implements Producer<K, V> {
     FileProducer.Completion completion = new FileProducer.Completion(offset, new RecordMetadata(topicPartition, 0, offset,
         RecordBatch.NO_TIMESTAMP, 0L, 0, 0), result, callback);
 
-    if (!this.transactionInFlight)
-      this.sent.add(record);
-    else
-      this.uncommittedSends.add(record);
+    addToHistory(record);
 
     if (autoComplete)
       completion.complete(null);
@@ -314,6 +416,130 @@ public class FileProducer<K, V> implements Producer<K, V> {
     return future;
   }
 
+  /**
+   * Append a serialized record to its partition's log. Offsets continue from the end of the log, so a
+   * producer re-opened on an existing directory appends after the records already there. The record's
+   * completion is held until its batch has been appended; if that fails, the future fails with a
+   * {@link KafkaStorageException}, as would a {@code KafkaProducer}'s.
+   * <p/>
+   * Only the partition's {@link Appender} is locked, and record callbacks run under that lock; as with
+   * {@code KafkaProducer}, a callback should be quick and must not block on other partitions (by flushing,
+   * say).
+   */
+  private Future<RecordMetadata> append(TopicPartition topicPartition, ProducerRecord<K, V> record,
+                                        byte[] keyBytes, byte[] valueBytes, Callback callback) {
+    Header[] headers = headerArray(record.headers());
+    long timestamp = record.timestamp() == null ? Time.SYSTEM.milliseconds() : record.timestamp();
+    int keySize = keyBytes == null ? -1 : keyBytes.length;
+    int valueSize = valueBytes == null ? -1 : valueBytes.length;
+    ProduceRequestResult result = new ProduceRequestResult(topicPartition);
+    FutureRecordMetadata future = new FutureRecordMetadata(result, 0, timestamp,
+        null, keySize, valueSize, Time.SYSTEM);
+
+    Appender appender = appender(topicPartition);
+    synchronized (appender) {
+      // Checked again under the lock, so nothing is appended to a partition log that close() has closed.
+      if (this.closed)
+        throw new IllegalStateException("FileProducer is already closed.");
+      long offset = appender.log.nextOffset();
+      appender.unappended.addLast(new FileProducer.Completion(offset, new RecordMetadata(topicPartition, 0, offset,
+          timestamp, null, keySize, valueSize), result, callback));
+      try {
+        appender.log.append(timestamp, keyBytes, valueBytes, headers);
+      } catch (IOException e) {
+        failUnappended(appender, e);
+        return future;
+      }
+      completeAppended(appender);
+    }
+
+    // Outside the appender's lock, so locks are only ever taken producer first, then appender.
+    if (this.sent.mode() != RecordHistory.Mode.NONE || this.transactionInFlight) {
+      synchronized (this) {
+        addToHistory(record);
+      }
+    }
+    return future;
+  }
+
+  /**
+   * Append a record to its partition's log without a {@code Future}, callback or completion; see
+   * {@link RecordSink#write(MutableRecord)}. A failure to append it, or an earlier write to the same partition,
+   * is thrown here, or from {@link #flush()}. Without a log, or when sent records are kept (a history mode or
+   * an open transaction), this is just {@link #send(ProducerRecord)} of a copy of the record.
+   */
+  @Override
+  public void write(MutableRecord<K, V> record) {
+    if (this.log == null || this.sent.mode() != RecordHistory.Mode.NONE || this.transactionInFlight) {
+      send(record.toProducerRecord());
+      return;
+    }
+    verifySendable();
+
+    String topic = record.topic();
+    Headers headers = record.headers();
+    byte[] keyBytes = keySerializer.serialize(topic, headers, record.key());
+    byte[] valueBytes = valueSerializer.serialize(topic, headers, record.value());
+
+    int partition = Math.max(record.partition(), 0);
+    if (!this.cluster.partitionsForTopic(topic).isEmpty())
+      partition = partition(topic, record.partition() < 0 ? null : record.partition(), record.key(), keyBytes,
+          record.value(), valueBytes, this.cluster);
+    long timestamp = record.timestamp() == RecordBatch.NO_TIMESTAMP ? Time.SYSTEM.milliseconds() : record.timestamp();
+
+    Appender appender = appender(record.topicPartition(partition));
+    synchronized (appender) {
+      if (this.closed)
+        throw new IllegalStateException("FileProducer is already closed.");
+      appender.throwIfFailed();
+      try {
+        appender.log.append(timestamp, keyBytes, valueBytes, headerArray(headers));
+      } catch (IOException e) {
+        failUnappended(appender, e);
+        appender.throwIfFailed();
+        throw new KafkaStorageException("Could not append to the log of " + appender.log.topicPartition(), e);
+      }
+      completeAppended(appender);
+    }
+  }
+
+  /**
+   * The headers to append; records without headers share one empty array instead of each allocating their own.
+   */
+  private static Header[] headerArray(Headers headers) {
+    return headers == RecordUtils.EMPTY_HEADERS ? Record.EMPTY_HEADERS : headers.toArray();
+  }
+
+  private void addToHistory(ProducerRecord<K, V> record) {
+    if (!this.transactionInFlight)
+      this.sent.add(record);
+    else
+      this.uncommittedSends.add(record);
+  }
+
+  /**
+   * The append state of a partition, opening its log on the first send to it.
+   */
+  private Appender appender(TopicPartition topicPartition) {
+    Appender appender = this.appenders.get(topicPartition);
+    if (appender != null)
+      return appender;
+    try {
+      return this.appenders.computeIfAbsent(topicPartition, tp -> {
+        try {
+          return new Appender(this.log.partition(tp));
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      });
+    } catch (UncheckedIOException e) {
+      // A send racing close() finds the log directory closed.
+      if (this.closed)
+        throw new IllegalStateException("FileProducer is already closed.");
+      throw new KafkaStorageException("Could not open the log of " + topicPartition, e.getCause());
+    }
+  }
+
   /**
    * Get the next offset for this topic/partition
    */
@@ -329,15 +555,34 @@ public class FileProducer<K, V> implements Producer<K, V> {
     }
   }
 
-  public synchronized void flush() {
+  public void flush() {
     verifyProducerState();
 
     if (this.flushException != null) {
       throw this.flushException;
     }
 
-    while (!this.completions.isEmpty())
-      completeNext();
+    KafkaStorageException failure = null;
+    for (Appender appender : this.appenders.values()) {
+      synchronized (appender) {
+        try {
+          appender.log.flush();
+          completeAppended(appender);
+        } catch (IOException e) {
+          failUnappended(appender, e);
+        }
+        if (failure == null)
+          failure = appender.failure;
+        appender.failure = null;
+      }
+    }
+    if (failure != null)
+      throw failure;
+
+    synchronized (this) {
+      while (!this.completions.isEmpty())
+        completeNext();
+    }
   }
 
   public List<PartitionInfo> partitionsFor(String topic) {
@@ -348,8 +593,14 @@ public class FileProducer<K, V> implements Producer<K, V> {
     return this.cluster.partitionsForTopic(topic);
   }
 
+  /**
+   * A {@code KafkaProducer}'s metrics, see {@link ProducerMetrics}, along with any set by
+   * {@link #setFileMetrics(MetricName, Metric)}.
+   */
   public Map<MetricName, Metric> metrics() {
-    return fileMetrics;
+    Map<MetricName, Metric> metrics = new HashMap<>(this.metrics.metrics());
+    metrics.putAll(fileMetrics);
+    return Collections.unmodifiableMap(metrics);
   }
 
   /**
@@ -370,7 +621,20 @@ public class FileProducer<K, V> implements Producer<K, V> {
       throw this.closeException;
     }
 
-    this.closed = true;
+    if (this.lingerTimer != null)
+      this.lingerTimer.shutdownNow();
+
+    synchronized (this) {
+      if (this.closed)
+        return;
+      this.closed = true;
+      try {
+        if (this.log != null)
+          closeLog();
+      } finally {
+        this.metrics.close();
+      }
+    }
   }
 
   public boolean closed() {
@@ -399,8 +663,16 @@ public class FileProducer<K, V> implements Producer<K, V> {
     return this.transactionAborted;
   }
 
-  public boolean flushed() {
-    return this.completions.isEmpty();
+  public synchronized boolean flushed() {
+    if (!this.completions.isEmpty())
+      return false;
+    for (Appender appender : this.appenders.values()) {
+      synchronized (appender) {
+        if (!appender.unappended.isEmpty())
+          return false;
+      }
+    }
+    return true;
   }
 
   public boolean sentOffsets() {
@@ -412,14 +684,15 @@ public class FileProducer<K, V> implements Producer<K, V> {
   }
 
   /**
-   * Get the list of sent records since the last call to {@link #clear()}
+   * Get the list of sent records since the last call to {@link #clear()}. Depending on {@code kif.history.mode}
+   * this is every record, only the most recent records, or none at all.
    */
   public synchronized List<ProducerRecord<K, V>> history() {
-    return new ArrayList<>(this.sent);
+    return this.sent.list();
   }
 
   public synchronized List<ProducerRecord<K, V>> uncommittedRecords() {
-    return new ArrayList<>(this.uncommittedSends);
+    return this.uncommittedSends.list();
   }
 
   /**
@@ -427,7 +700,7 @@ public class FileProducer<K, V> implements Producer<K, V> {
    * Get the list of committed consumer group offsets since the last call to {@link #clear()}
    */
   public synchronized List<Map<String, Map<TopicPartition, OffsetAndMetadata>>> consumerGroupOffsetsHistory() {
-    return new ArrayList<>(this.consumerGroupOffsets);
+    return this.consumerGroupOffsets.list();
   }
 
   public synchronized Map<String, Map<TopicPartition, OffsetAndMetadata>> uncommittedOffsets() {
@@ -470,12 +743,107 @@ public class FileProducer<K, V> implements Producer<K, V> {
     }
   }
 
+  // --- Internal Implementation Methods --------------------------------------------------------------------
+
+  /**
+   * Close every partition log, completing what they append as they close, then the log directory itself.
+   * Called with the producer's lock held, after {@link #closed} is set.
+   */
+  private void closeLog() {
+    IOException failure = null;
+    for (Appender appender : this.appenders.values()) {
+      synchronized (appender) {
+        try {
+          appender.log.close();
+          completeAppended(appender);
+        } catch (IOException e) {
+          completeAppended(appender);
+          failUnappended(appender, e);
+          if (failure == null)
+            failure = e;
+          else
+            failure.addSuppressed(e);
+        }
+      }
+    }
+    try {
+      // The partition logs are already closed; this only marks the directory closed.
+      this.log.close();
+    } catch (IOException e) {
+      if (failure == null)
+        failure = e;
+      else
+        failure.addSuppressed(e);
+    }
+    if (failure != null)
+      throw new KafkaStorageException("Could not close the log directory " + this.log.config().dir(), failure);
+  }
+
+  /**
+   * Complete the sends whose records the partition's log has appended to its segments. Called with the
+   * appender's lock held.
+   */
+  private void completeAppended(Appender appender) {
+    Deque<FileProducer.Completion> pending = appender.unappended;
+    long appendedOffset = appender.log.appendedOffset();
+    while (!pending.isEmpty() && pending.peekFirst().offset < appendedOffset)
+      pending.pollFirst().complete(null);
+  }
+
+  /**
+   * Fail every send to the partition that hasn't been appended yet; its open batch is lost. If records written
+   * without a future were lost too, the failure is kept for the next {@link #write(MutableRecord)} or
+   * {@link #flush()} to throw. Called with the appender's lock held.
+   */
+  private void failUnappended(Appender appender, IOException cause) {
+    Deque<FileProducer.Completion> pending = appender.unappended;
+    long lost = appender.log.nextOffset() - appender.log.appendedOffset();
+    if (pending.isEmpty() && lost <= 0)
+      return;
+    TopicPartition topicPartition = appender.log.topicPartition();
+    KafkaStorageException e = new KafkaStorageException("Could not append to the log of " + topicPartition, cause);
+    this.metrics.recordErrors(topicPartition.topic(), (int) Math.max(lost, pending.size()));
+    if (lost > pending.size())
+      appender.failure = e;
+    while (!pending.isEmpty())
+      pending.pollFirst().complete(e);
+  }
+
+  /**
+   * Told of every batch appended to the log, see {@link PartitionLog.AppendListener}. Record sizes are recorded
+   * per batch, as the largest record in it, as {@code KafkaProducer} does; so no sensor is shared by every send.
+   */
+  private void recordAppend(TopicPartition topicPartition, int records, int sizeInBytes, int maxRecordSize,
+                            double compressionRatio, long queueTimeMs, long appendTimeNanos) {
+    this.metrics.recordSize(maxRecordSize);
+    this.metrics.recordRequest(records, sizeInBytes, appendTimeNanos);
+    this.metrics.recordBatch(topicPartition.topic(), records, sizeInBytes);
+    this.metrics.recordCompression(topicPartition.topic(), compressionRatio, queueTimeMs);
+  }
+
+  /**
+   * Called from the linger timer; appends the open batches that have waited {@code linger.ms}.
+   */
+  private void drainIfLingered() {
+    for (Appender appender : this.appenders.values()) {
+      synchronized (appender) {
+        if (this.closed)
+          return;
+        try {
+          if (appender.log.drainIfLingered())
+            completeAppended(appender);
+        } catch (IOException e) {
+          failUnappended(appender, e);
+        }
+      }
+    }
+  }
+
   /**
    * computes partition for given record.
    */
-  private int partition(ProducerRecord<K, V> record, Cluster cluster) {
-    Integer partition = record.partition();
-    String topic = record.topic();
+  private int partition(String topic, Integer partition, K key, byte[] keyBytes, V value, byte[] valueBytes,
+                        Cluster cluster) {
     if (partition != null) {
       List<PartitionInfo> partitions = cluster.partitionsForTopic(topic);
       int numPartitions = partitions.size();
@@ -487,9 +855,30 @@ public class FileProducer<K, V> implements Producer<K, V> {
             + "].");
       return partition;
     }
-    byte[] keyBytes = keySerializer.serialize(topic, record.headers(), record.key());
-    byte[] valueBytes = valueSerializer.serialize(topic, record.headers(), record.value());
-    return this.partitioner.partition(topic, record.key(), keyBytes, record.value(), valueBytes, cluster);
+    return this.partitioner.partition(topic, key, keyBytes, value, valueBytes, cluster);
+  }
+
+  /**
+   * A partition's append state: its log, whose offset counter and open batch it holds, and the sends waiting
+   * for their records to be appended, in offset order. Guarded by its own monitor.
+   */
+  private static class Appender {
+    private final PartitionLog log;
+    private final Deque<FileProducer.Completion> unappended;
+    private KafkaStorageException failure; // of records written without a future
+
+    Appender(PartitionLog log) {
+      this.log = log;
+      this.unappended = new ArrayDeque<>();
+    }
+
+    void throwIfFailed() {
+      KafkaStorageException e = failure;
+      if (e != null) {
+        failure = null;
+        throw e;
+      }
+    }
   }
 
   private static class Completion {
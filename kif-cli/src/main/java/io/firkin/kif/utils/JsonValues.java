@@ -0,0 +1,128 @@
+/*
+ * Copyright © 2021 Kif Contributors (https://kif.firkin.io/)
+ * Copyright © 2021 Firkin•IO (https://firkin.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.firkin.kif.utils;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.Message;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericEnumSymbol;
+import org.apache.avro.generic.GenericFixed;
+import org.apache.avro.generic.IndexedRecord;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Converts the values produced by kif's deserializers (Avro records, Protobuf messages, maps, lists, and Java
+ * primitives) to Jackson trees, so that any of them can be written as JSON.
+ * <p/>
+ * Records and messages are walked by their schema or descriptor, never by reflection: Avro strings, enums and
+ * fixed values become text or binary nodes, Protobuf enums their names, and bytes binary nodes (written as
+ * base64). Anything else is converted as Jackson would convert it.
+ */
+public final class JsonValues {
+
+  private static final JsonNodeFactory NODES = JsonNodeFactory.instance;
+
+  private JsonValues() {
+  }
+
+  public static JsonNode toJson(Object value) {
+    if (value == null)
+      return NODES.nullNode();
+    if (value instanceof JsonNode)
+      return (JsonNode) value;
+    if (value instanceof CharSequence)
+      return NODES.textNode(value.toString());
+    if (value instanceof Integer || value instanceof Short || value instanceof Byte)
+      return NODES.numberNode(((Number) value).intValue());
+    if (value instanceof Long)
+      return NODES.numberNode((Long) value);
+    if (value instanceof Double)
+      return NODES.numberNode((Double) value);
+    if (value instanceof Float)
+      return NODES.numberNode((Float) value);
+    if (value instanceof BigDecimal)
+      return NODES.numberNode((BigDecimal) value);
+    if (value instanceof BigInteger)
+      return NODES.numberNode((BigInteger) value);
+    if (value instanceof Boolean)
+      return NODES.booleanNode((Boolean) value);
+    if (value instanceof IndexedRecord)
+      return toJson((IndexedRecord) value);
+    if (value instanceof Message)
+      return toJson((Message) value);
+    if (value instanceof Map) {
+      ObjectNode node = NODES.objectNode();
+      for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet())
+        node.set(String.valueOf(entry.getKey()), toJson(entry.getValue()));
+      return node;
+    }
+    if (value instanceof Collection) {
+      ArrayNode node = NODES.arrayNode(((Collection<?>) value).size());
+      for (Object element : (Collection<?>) value)
+        node.add(toJson(element));
+      return node;
+    }
+    if (value instanceof byte[])
+      return NODES.binaryNode((byte[]) value);
+    if (value instanceof ByteBuffer) {
+      ByteBuffer buffer = ((ByteBuffer) value).duplicate();
+      byte[] bytes = new byte[buffer.remaining()];
+      buffer.get(bytes);
+      return NODES.binaryNode(bytes);
+    }
+    if (value instanceof GenericFixed)
+      return NODES.binaryNode(((GenericFixed) value).bytes());
+    if (value instanceof ByteString)
+      return NODES.binaryNode(((ByteString) value).toByteArray());
+    if (value instanceof GenericEnumSymbol)
+      return NODES.textNode(value.toString());
+    if (value instanceof Descriptors.EnumValueDescriptor)
+      return NODES.textNode(((Descriptors.EnumValueDescriptor) value).getName());
+    return NODES.pojoNode(value); // serialized by Jackson
+  }
+
+  // --- Internal Implementation Methods --------------------------------------------------------------------
+
+  private static JsonNode toJson(IndexedRecord record) {
+    List<Schema.Field> fields = record.getSchema().getFields();
+    ObjectNode node = NODES.objectNode();
+    for (int i = 0, n = fields.size(); i < n; i++) {
+      Schema.Field field = fields.get(i);
+      node.set(field.name(), toJson(record.get(field.pos())));
+    }
+    return node;
+  }
+
+  private static JsonNode toJson(Message message) {
+    ObjectNode node = NODES.objectNode();
+    for (Map.Entry<Descriptors.FieldDescriptor, Object> entry : message.getAllFields().entrySet())
+      node.set(entry.getKey().getJsonName(), toJson(entry.getValue()));
+    return node;
+  }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright © 2021 Kif Contributors (https://kif.firkin.io/)
+ * Copyright © 2021 Firkin•IO (https://firkin.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.firkin.kif.utils;
+
+import io.confluent.kafka.schemaregistry.ParsedSchema;
+import io.confluent.kafka.schemaregistry.client.SchemaRegistryClient;
+import io.confluent.kafka.schemaregistry.client.rest.exceptions.RestClientException;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.io.BinaryDecoder;
+import org.apache.avro.io.DatumReader;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.kafka.common.errors.SerializationException;
+import org.apache.kafka.common.serialization.Deserializer;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reads Avro values in the Schema Registry's wire format, as written by {@link KifAvroSerializer} or
+ * {@code KafkaAvroSerializer}, into generic records, or Strings and boxed primitives; a {@code bytes} value is
+ * returned as the {@code byte[]} it was written as.
+ * <p/>
+ * Unlike {@code KafkaAvroDeserializer}, the decoder is reused, and the {@link DatumReader} of each writer
+ * schema is kept, so a value costs only its decoding.
+ * <i> This class is <em>not</em> threadsafe;</i> a {@link SerdePool} gives each thread its own.
+ */
+public class KifAvroDeserializer implements Deserializer<Object> {
+
+  private final SchemaRegistryClient registry;
+  private final Map<Integer, Schema> schemas;
+  private final Map<Integer, DatumReader<Object>> readers;
+  private BinaryDecoder decoder;
+  private boolean isKey;
+
+  public KifAvroDeserializer(SchemaRegistryClient registry) {
+    this.registry = registry;
+    this.schemas = new HashMap<>();
+    this.readers = new HashMap<>();
+  }
+
+  public KifAvroDeserializer(SchemaRegistryClient registry, Map<String, ?> configs, boolean isKey) {
+    this(registry);
+    configure(configs, isKey);
+  }
+
+  @Override
+  public void configure(Map<String, ?> configs, boolean isKey) {
+    this.isKey = isKey;
+  }
+
+  @Override
+  public Object deserialize(String topic, byte[] data) {
+    if (data == null)
+      return null;
+    int headerSize = 1 + KifAvroSerializer.ID_SIZE;
+    if (data.length < headerSize || data[0] != KifAvroSerializer.MAGIC_BYTE)
+      throw new SerializationException("Unknown magic byte!");
+    int id = (data[1] & 0xff) << 24 | (data[2] & 0xff) << 16 | (data[3] & 0xff) << 8 | (data[4] & 0xff);
+    Schema schema = schemaOf(topic, id);
+    try {
+      if (schema.getType() == Schema.Type.BYTES)
+        return Arrays.copyOfRange(data, headerSize, data.length);
+      decoder = DecoderFactory.get().binaryDecoder(data, headerSize, data.length - headerSize, decoder);
+      Object value = readerOf(id, schema).read(null, decoder);
+      return schema.getType() == Schema.Type.STRING ? value.toString() : value;
+    } catch (IOException | RuntimeException e) {
+      throw new SerializationException("Error deserializing Avro message for id " + id, e);
+    }
+  }
+
+  // --- Internal Implementation Methods --------------------------------------------------------------------
+
+  private Schema schemaOf(String topic, int id) {
+    Schema schema = schemas.get(id);
+    if (schema != null)
+      return schema;
+    String subject = topic == null ? null : topic + (isKey ? "-key" : "-value");
+    try {
+      ParsedSchema parsed = registry.getSchemaBySubjectAndId(subject, id);
+      if (!(parsed.rawSchema() instanceof Schema))
+        throw new SerializationException("Schema " + id + " is a " + parsed.schemaType() + " schema, not Avro");
+      schema = (Schema) parsed.rawSchema();
+    } catch (IOException | RestClientException e) {
+      throw new SerializationException("Error retrieving Avro schema for id " + id, e);
+    }
+    if (schemas.size() >= KifAvroSerializer.MAX_CACHED_SCHEMAS) {
+      schemas.clear();
+      readers.clear();
+    }
+    schemas.put(id, schema);
+    return schema;
+  }
+
+  private DatumReader<Object> readerOf(int id, Schema schema) {
+    DatumReader<Object> reader = readers.get(id);
+    if (reader == null) {
+      reader = new GenericDatumReader<>(schema);
+      readers.put(id, reader);
+    }
+    return reader;
+  }
+}
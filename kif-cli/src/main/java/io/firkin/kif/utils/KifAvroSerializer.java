@@ -0,0 +1,227 @@
+/*
+ * Copyright © 2021 Kif Contributors (https://kif.firkin.io/)
+ * Copyright © 2021 Firkin•IO (https://firkin.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.firkin.kif.utils;
+
+import io.confluent.kafka.schemaregistry.avro.AvroSchema;
+import io.confluent.kafka.schemaregistry.client.SchemaRegistryClient;
+import io.confluent.kafka.schemaregistry.client.rest.exceptions.RestClientException;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericContainer;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.DatumWriter;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.avro.specific.SpecificDatumWriter;
+import org.apache.avro.specific.SpecificRecord;
+import org.apache.kafka.common.errors.SerializationException;
+import org.apache.kafka.common.serialization.Serializer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Writes Avro values in the Schema Registry's wire format, as {@code KafkaAvroSerializer} does: a zero magic
+ * byte, the schema's 4-byte id, then the value's Avro binary encoding, or a {@code byte[]} value as it is.
+ * Schemas are registered under the topic's {@code -key} or {@code -value} subject, or only looked up if
+ * {@code auto.register.schemas} is false.
+ * <p/>
+ * Unlike {@code KafkaAvroSerializer}, nothing is allocated per value but the returned bytes: the encoder and
+ * output buffer are reused, and the id and {@link DatumWriter} of each schema are kept, so a value costs its
+ * encoding and one copy.
+ * <i> This class is <em>not</em> threadsafe;</i> a {@link SerdePool} gives each thread its own.
+ */
+public class KifAvroSerializer implements Serializer<Object> {
+
+  public static final String AUTO_REGISTER_SCHEMAS_CONFIG = "auto.register.schemas";
+
+  static final byte MAGIC_BYTE = 0x0;
+  static final int ID_SIZE = 4;
+
+  /**
+   * The most schemas whose ids and writers are kept; values with new schemas each time only churn the cache.
+   */
+  static final int MAX_CACHED_SCHEMAS = 1000;
+
+  private final SchemaRegistryClient registry;
+  private final Map<Schema, Integer> ids;
+  private final Map<Schema, DatumWriter<Object>> writers;
+  private final Buffer buffer;
+  private BinaryEncoder encoder;
+  private boolean autoRegister;
+  private boolean isKey;
+
+  public KifAvroSerializer(SchemaRegistryClient registry) {
+    this.registry = registry;
+    this.ids = new HashMap<>();
+    this.writers = new HashMap<>();
+    this.buffer = new Buffer();
+    this.autoRegister = true;
+  }
+
+  public KifAvroSerializer(SchemaRegistryClient registry, Map<String, ?> configs, boolean isKey) {
+    this(registry);
+    configure(configs, isKey);
+  }
+
+  @Override
+  public void configure(Map<String, ?> configs, boolean isKey) {
+    Object autoRegister = configs.get(AUTO_REGISTER_SCHEMAS_CONFIG);
+    this.autoRegister = autoRegister == null || Boolean.parseBoolean(autoRegister.toString());
+    this.isKey = isKey;
+  }
+
+  @Override
+  public byte[] serialize(String topic, Object value) {
+    if (value == null)
+      return null;
+    Schema schema = schemaOf(value);
+    try {
+      buffer.reset();
+      buffer.write(MAGIC_BYTE);
+      buffer.writeInt(idOf(topic, schema));
+      if (value instanceof byte[]) {
+        buffer.write((byte[]) value);
+      } else {
+        encoder = EncoderFactory.get().binaryEncoder(buffer, encoder);
+        writerOf(schema, value).write(value, encoder);
+        encoder.flush();
+      }
+      return buffer.toByteArray();
+    } catch (IOException | RuntimeException e) {
+      encoder = null; // it may still hold part of the failed value, which reusing it would flush into the next
+      throw new SerializationException("Error serializing Avro message for " + topic, e);
+    }
+  }
+
+  // --- Internal Implementation Methods --------------------------------------------------------------------
+
+  private int idOf(String topic, Schema schema) {
+    Integer id = ids.get(schema);
+    if (id != null)
+      return id;
+    String subject = topic + (isKey ? "-key" : "-value");
+    try {
+      AvroSchema parsed = new AvroSchema(schema);
+      id = autoRegister ? registry.register(subject, parsed) : registry.getId(subject, parsed);
+    } catch (IOException | RestClientException e) {
+      throw new SerializationException("Error retrieving the id of an Avro schema of " + subject, e);
+    }
+    if (ids.size() >= MAX_CACHED_SCHEMAS)
+      ids.clear();
+    ids.put(schema, id);
+    return id;
+  }
+
+  private DatumWriter<Object> writerOf(Schema schema, Object value) {
+    DatumWriter<Object> writer = writers.get(schema);
+    if (writer == null) {
+      writer = value instanceof SpecificRecord ? new SpecificDatumWriter<>(schema) : new GenericDatumWriter<>(schema);
+      if (writers.size() >= MAX_CACHED_SCHEMAS)
+        writers.clear();
+      writers.put(schema, writer);
+    }
+    return writer;
+  }
+
+  /**
+   * The schema of a record, enum or fixed, or the primitive schema of a Java value.
+   */
+  static Schema schemaOf(Object value) {
+    if (value instanceof GenericContainer)
+      return ((GenericContainer) value).getSchema();
+    if (value instanceof CharSequence)
+      return Primitives.STRING;
+    if (value instanceof Integer)
+      return Primitives.INT;
+    if (value instanceof Long)
+      return Primitives.LONG;
+    if (value instanceof Boolean)
+      return Primitives.BOOLEAN;
+    if (value instanceof Double)
+      return Primitives.DOUBLE;
+    if (value instanceof Float)
+      return Primitives.FLOAT;
+    if (value instanceof byte[] || value instanceof ByteBuffer)
+      return Primitives.BYTES;
+    throw new SerializationException("Unsupported Avro type " + value.getClass().getName()
+        + "; values must be records, enums, fixed or primitives");
+  }
+
+  private static final class Primitives {
+    static final Schema STRING = Schema.create(Schema.Type.STRING);
+    static final Schema INT = Schema.create(Schema.Type.INT);
+    static final Schema LONG = Schema.create(Schema.Type.LONG);
+    static final Schema BOOLEAN = Schema.create(Schema.Type.BOOLEAN);
+    static final Schema DOUBLE = Schema.create(Schema.Type.DOUBLE);
+    static final Schema FLOAT = Schema.create(Schema.Type.FLOAT);
+    static final Schema BYTES = Schema.create(Schema.Type.BYTES);
+  }
+
+  /**
+   * A growable, reusable output buffer; unlike {@link java.io.ByteArrayOutputStream}, it isn't synchronized.
+   */
+  static final class Buffer extends OutputStream {
+    private byte[] bytes = new byte[256];
+    private int size;
+
+    void reset() {
+      size = 0;
+    }
+
+    void writeInt(int value) {
+      ensureCapacity(4);
+      bytes[size++] = (byte) (value >>> 24);
+      bytes[size++] = (byte) (value >>> 16);
+      bytes[size++] = (byte) (value >>> 8);
+      bytes[size++] = (byte) value;
+    }
+
+    @Override
+    public void write(int b) {
+      ensureCapacity(1);
+      bytes[size++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      ensureCapacity(len);
+      System.arraycopy(b, off, bytes, size, len);
+      size += len;
+    }
+
+    byte[] bytes() {
+      return bytes;
+    }
+
+    int size() {
+      return size;
+    }
+
+    byte[] toByteArray() {
+      return Arrays.copyOf(bytes, size);
+    }
+
+    private void ensureCapacity(int more) {
+      if (size + more > bytes.length)
+        bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + more));
+    }
+  }
+}
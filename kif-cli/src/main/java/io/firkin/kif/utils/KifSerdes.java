@@ -18,6 +18,7 @@
 package io.firkin.kif.utils;
 
 import com.google.protobuf.Message;
+import io.confluent.kafka.schemaregistry.client.SchemaRegistryClient;
 import io.confluent.kafka.serializers.KafkaAvroDeserializer;
 import io.confluent.kafka.serializers.KafkaAvroSerializer;
 import io.confluent.kafka.serializers.KafkaJsonDeserializer;
@@ -27,6 +28,13 @@ import io.confluent.kafka.serializers.json.KafkaJsonSchemaSerializer;
 import io.confluent.kafka.serializers.protobuf.KafkaProtobufDeserializer;
 import io.confluent.kafka.serializers.protobuf.KafkaProtobufSerializer;
 
+import java.util.Map;
+
+/**
+ * Serdes by format. The serdes returned by {@link #avro()}, {@link #json()}, {@link #jsonSchema()} and
+ * {@link #protobuf()} are unconfigured and shared by every caller; to serialize with a Schema Registry on many
+ * threads, take each thread's own configured serdes from a {@link #pool(SchemaRegistryClient, Map)}.
+ */
 public class KifSerdes {
 
   public interface KifSerde<S,D> {
@@ -91,6 +99,13 @@ public class KifSerdes {
     }
   }
 
+  /**
+   * A pool of serdes of {@code registry}, configured with {@code configs}, of which each thread gets its own.
+   */
+  public static SerdePool pool(SchemaRegistryClient registry, Map<String, ?> configs) {
+    return new SerdePool(registry, configs);
+  }
+
   public static <T> KifSerde<KafkaAvroSerializer, KafkaAvroDeserializer> avro() {
     return AVRO_SERDE;
   }
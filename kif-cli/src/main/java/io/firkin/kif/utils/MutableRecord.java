@@ -0,0 +1,105 @@
+/*
+ * Copyright © 2021 Kif Contributors (https://kif.firkin.io/)
+ * Copyright © 2021 Firkin•IO (https://firkin.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.firkin.kif.utils;
+
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.header.Headers;
+import org.apache.kafka.common.record.RecordBatch;
+
+/**
+ * A record to be written to a {@link RecordSink}: the same fields as a {@link ProducerRecord}, but mutable, so
+ * one holder can be filled and written again for every record, as {@link RecordFrame} is on the way out.
+ * A negative partition means none, leaving it to the partitioner, and a timestamp of
+ * {@link RecordBatch#NO_TIMESTAMP} means the time it is written.
+ * <i> This class is <em>not</em> threadsafe.</i>
+ */
+public final class MutableRecord<K, V> {
+
+  private String topic;
+  private int partition = -1;
+  private long timestamp = RecordBatch.NO_TIMESTAMP;
+  private K key;
+  private V value;
+  private Headers headers = RecordUtils.EMPTY_HEADERS;
+  private TopicPartition topicPartition;
+
+  /**
+   * Replaces the content of this record.
+   *
+   * @return this record
+   */
+  public MutableRecord<K, V> set(String topic, int partition, long timestamp, K key, V value, Headers headers) {
+    this.topic = topic;
+    this.partition = partition;
+    this.timestamp = timestamp;
+    this.key = key;
+    this.value = value;
+    this.headers = headers == null ? RecordUtils.EMPTY_HEADERS : headers;
+    return this;
+  }
+
+  public String topic() {
+    return topic;
+  }
+
+  public int partition() {
+    return partition;
+  }
+
+  public long timestamp() {
+    return timestamp;
+  }
+
+  public K key() {
+    return key;
+  }
+
+  public V value() {
+    return value;
+  }
+
+  public Headers headers() {
+    return headers;
+  }
+
+  /**
+   * A copy of this record, for sinks that need to keep it.
+   */
+  public ProducerRecord<K, V> toProducerRecord() {
+    return new ProducerRecord<>(topic, partition < 0 ? null : partition,
+        timestamp == RecordBatch.NO_TIMESTAMP ? null : timestamp, key, value, headers);
+  }
+
+  /**
+   * The {@link TopicPartition} of this record's topic and the given partition; the last one is kept, so a holder
+   * written to the same partition again and again doesn't make a new one every time.
+   */
+  TopicPartition topicPartition(int partition) {
+    TopicPartition last = this.topicPartition;
+    if (last == null || last.partition() != partition || !last.topic().equals(topic))
+      this.topicPartition = last = new TopicPartition(topic, partition);
+    return last;
+  }
+
+  @Override
+  public String toString() {
+    return "MutableRecord(topic=" + topic + ", partition=" + partition + ", timestamp=" + timestamp
+        + ", key=" + key + ", value=" + value + ", headers=" + headers + ")";
+  }
+}
@@ -0,0 +1,381 @@
+/*
+ * Copyright © 2021 Kif Contributors (https://kif.firkin.io/)
+ * Copyright © 2021 Firkin•IO (https://firkin.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.firkin.kif.utils;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.util.ByteBufferBackedInputStream;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.KafkaException;
+import org.apache.kafka.common.errors.InterruptException;
+import org.apache.kafka.common.errors.KafkaStorageException;
+import org.apache.kafka.common.errors.SerializationException;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.apache.kafka.common.record.TimestampType;
+import org.apache.kafka.common.utils.Time;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reads a file of newline-delimited JSON values, one record per value, on many threads at once, as the
+ * {@link RecordPipeline.Source} of a pipeline.
+ * <p/>
+ * The file is split into byte ranges which start just after a newline, at least one per thread and none
+ * longer than {@link #MAX_RANGE_BYTES}. Each thread memory-maps one range at a time and finds its values,
+ * copying out each value's bytes unchanged: when validating, with a Jackson {@link JsonParser} of its own,
+ * which also checks there is one value per line; otherwise by taking each non-blank line for a value, found
+ * with a {@link ByteScanner}. Records are handed to
+ * the pipeline in the order of the file all the same, since each range queues its values separately and the
+ * ranges are read one after another. A range can get at most {@link #QUEUED_BATCHES} batches ahead of the
+ * pipeline, so no more than that many batches per thread are held in memory.
+ * <p/>
+ * Records are of partition 0, and are given consecutive offsets from 0 and the time the file was opened.
+ * When validating, invalid JSON, or a value which spans lines or shares one, fails the source once every
+ * value before it has been read.
+ * <i> This class is <em>not</em> threadsafe.</i>
+ */
+public class NdjsonFileSource implements RecordPipeline.Source<ConsumerRecord<byte[], byte[]>>, Closeable {
+
+  /** The longest range to map at once. */
+  public static final long MAX_RANGE_BYTES = 1L << 30;
+
+  /** The shortest range worth a thread of its own. */
+  public static final long MIN_RANGE_BYTES = 1L << 20;
+
+  /** The most values in a batch queued by a range. */
+  public static final int BATCH_SIZE = 256;
+
+  /** The most batches a range queues ahead of the pipeline. */
+  public static final int QUEUED_BATCHES = 4;
+
+  private static final JsonFactory JSON = new JsonFactory();
+  private static final List<byte[]> END = Collections.emptyList();
+  private static final long POLL_MS = 100L;
+  private static final int SCAN_BYTES = 64 * 1024;
+  private static final int PROBE_BYTES = 64 * 1024;
+
+  private final Path file;
+  private final String topic;
+  private final boolean validate;
+  private final FileChannel channel;
+  private final long[] starts;
+  private final List<BlockingQueue<List<byte[]>>> queues;
+  private final RuntimeException[] failures;
+  private final AtomicInteger nextRange;
+  private final Thread[] readers;
+  private final long timestamp;
+  private volatile boolean closed;
+  private int range;
+  private List<byte[]> batch;
+  private int index;
+  private long offset;
+
+  /**
+   * Whether {@code file} looks like newline-delimited JSON: its first non-blank character opens an object, or
+   * opens an array which ends on the same line, within the first {@link #PROBE_BYTES} bytes of it. Framed
+   * records never start with an object, and only by chance with a line which reads as a whole array.
+   */
+  public static boolean isNdjson(Path file) throws IOException {
+    try (InputStream in = Files.newInputStream(file)) {
+      int c;
+      while ((c = in.read()) == ' ' || c == '\t' || c == '\r' || c == '\n')
+        ;
+      if (c != '[')
+        return c == '{';
+      byte[] line = new byte[PROBE_BYTES];
+      line[0] = '[';
+      int n = 1 + in.readNBytes(line, 1, line.length - 1);
+      int newline = ByteScanner.indexOf(line, 0, n, (byte) '\n');
+      if (newline < 0 && n == line.length)
+        return false; // a longer first line than is worth parsing
+      try (JsonParser parser = JSON.createParser(line, 0, newline < 0 ? n : newline)) {
+        parser.nextToken();
+        parser.skipChildren();
+        return parser.nextToken() == null;
+      } catch (JsonProcessingException e) {
+        return false;
+      }
+    }
+  }
+
+  /**
+   * Open {@code file}, and start {@code threads} threads reading it.
+   *
+   * @param validate whether to parse each value as it is read, or only split the file into lines, leaving the
+   *        values to be parsed by whatever reads the records.
+   */
+  public static NdjsonFileSource open(Path file, String topic, int threads, boolean validate) {
+    try {
+      return new NdjsonFileSource(file, topic, threads, validate);
+    } catch (IOException e) {
+      throw new KafkaStorageException("Could not open " + file, e);
+    }
+  }
+
+  private NdjsonFileSource(Path file, String topic, int threads, boolean validate) throws IOException {
+    this.file = file;
+    this.topic = topic;
+    this.validate = validate;
+    this.channel = FileChannel.open(file, StandardOpenOption.READ);
+    try {
+      this.starts = rangeStarts(channel, threads);
+    } catch (IOException e) {
+      channel.close();
+      throw e;
+    }
+    int ranges = starts.length - 1;
+    this.queues = new ArrayList<>(ranges);
+    for (int i = 0; i < ranges; i++)
+      queues.add(new ArrayBlockingQueue<>(QUEUED_BATCHES + 1)); // room for the end of the range, too
+    this.failures = new RuntimeException[ranges];
+    this.nextRange = new AtomicInteger();
+    this.timestamp = Time.SYSTEM.milliseconds();
+    this.readers = new Thread[Math.min(threads, ranges)];
+    for (int i = 0; i < readers.length; i++) {
+      readers[i] = new Thread(this::readRanges, "kif-ndjson-reader-" + i);
+      readers[i].setDaemon(true);
+      readers[i].start();
+    }
+  }
+
+  /**
+   * The number of ranges the file was split into.
+   */
+  public int ranges() {
+    return starts.length - 1;
+  }
+
+  @Override
+  public int read(List<? super ConsumerRecord<byte[], byte[]>> into, int max) {
+    if (batch == null || index == batch.size()) {
+      if (range == ranges())
+        return -1;
+      try {
+        batch = queues.get(range).poll(POLL_MS, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        throw new InterruptException(e);
+      }
+      index = 0;
+      if (batch == null)
+        return 0;
+      if (batch == END) {
+        RuntimeException failure = failures[range++];
+        if (failure != null)
+          throw failure;
+        return 0;
+      }
+    }
+    int n = 0;
+    while (n < max && index < batch.size()) {
+      byte[] value = batch.get(index++);
+      into.add(new ConsumerRecord<>(topic, 0, offset++, timestamp, TimestampType.CREATE_TIME, null, -1,
+          value.length, null, value, new RecordHeaders(), Optional.empty()));
+      n++;
+    }
+    return n;
+  }
+
+  /**
+   * Stop the reader threads, and close the file.
+   */
+  @Override
+  public void close() throws IOException {
+    closed = true;
+    for (Thread reader : readers)
+      reader.interrupt();
+    channel.close();
+  }
+
+  // --- Internal Implementation Methods --------------------------------------------------------------------
+
+  /**
+   * Split the file into ranges, one per thread but none longer than {@link #MAX_RANGE_BYTES}, each moved on
+   * to just after the next newline.
+   *
+   * @return the start of each range, then the end of the file.
+   */
+  private static long[] rangeStarts(FileChannel channel, int threads) throws IOException {
+    long size = channel.size();
+    int ranges = (int) Math.max(Math.max(1L, Math.min(threads, size / MIN_RANGE_BYTES)),
+        (size + MAX_RANGE_BYTES - 1) / MAX_RANGE_BYTES);
+    long[] starts = new long[ranges + 1];
+    ByteBuffer scan = ByteBuffer.allocate(SCAN_BYTES);
+    for (int i = 1; i < ranges; i++)
+      starts[i] = Math.max(starts[i - 1], afterNewline(channel, size * i / ranges, scan));
+    starts[ranges] = size;
+    return starts;
+  }
+
+  /**
+   * The position just after the first newline at or after {@code from}, or the end of the file.
+   */
+  private static long afterNewline(FileChannel channel, long from, ByteBuffer scan) throws IOException {
+    long position = from;
+    while (true) {
+      scan.clear();
+      int read = channel.read(scan, position);
+      if (read < 0)
+        return channel.size();
+      int newline = ByteScanner.indexOf(scan, 0, read, (byte) '\n');
+      if (newline >= 0)
+        return position + newline + 1;
+      position += read;
+    }
+  }
+
+  /**
+   * Body of each reader thread: reads the next range not yet taken, until there are none left.
+   */
+  private void readRanges() {
+    int r;
+    while (!closed && (r = nextRange.getAndIncrement()) < ranges()) {
+      try {
+        readRange(r);
+      } catch (InterruptedException e) {
+        return;
+      } catch (IOException e) {
+        if (closed)
+          return;
+        failures[r] = new KafkaStorageException("Could not read " + file, e);
+      } catch (RuntimeException e) {
+        failures[r] = new KafkaException("Could not read " + file, e);
+      }
+      try {
+        queues.get(r).put(END);
+      } catch (InterruptedException e) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Queues the values of a range, in batches; an invalid value fails the range, after the values before it.
+   */
+  private void readRange(int r) throws IOException, InterruptedException {
+    long start = starts[r];
+    long length = starts[r + 1] - start;
+    if (length == 0)
+      return;
+    MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+    BlockingQueue<List<byte[]>> queue = queues.get(r);
+    List<byte[]> values = validate ? parseValues(r, map, queue) : splitLines(map, queue);
+    if (!values.isEmpty())
+      queue.put(values);
+  }
+
+  /**
+   * Finds each value with a parser, so that each is checked to be valid JSON, and to be alone on its line. A
+   * newline can't be within a JSON string, so a value spans lines exactly when its bytes hold one.
+   *
+   * @return the last batch, not yet queued.
+   */
+  private List<byte[]> parseValues(int r, ByteBuffer map, BlockingQueue<List<byte[]>> queue)
+      throws IOException, InterruptedException {
+    List<byte[]> values = new ArrayList<>(BATCH_SIZE);
+    try (JsonParser parser = JSON.createParser(new ByteBufferBackedInputStream(map.duplicate()))) {
+      int end = -1;
+      while (parser.nextToken() != null) {
+        int from = (int) parser.getTokenLocation().getByteOffset();
+        if (end >= 0 && ByteScanner.indexOf(map, end, from, (byte) '\n') < 0) {
+          failures[r] = new SerializationException("A second JSON value on one line at byte " + (starts[r] + from)
+              + " of " + file);
+          break;
+        }
+        parser.skipChildren();
+        end = (int) parser.getCurrentLocation().getByteOffset();
+        if (ByteScanner.indexOf(map, from, end, (byte) '\n') >= 0) {
+          failures[r] = new SerializationException("A JSON value spanning lines at byte " + (starts[r] + from)
+              + " of " + file);
+          break;
+        }
+        values = add(values, copy(map, from, end), queue);
+      }
+    } catch (JsonProcessingException e) {
+      long at = starts[r] + (e.getLocation() == null ? 0L : e.getLocation().getByteOffset());
+      failures[r] = new SerializationException("Invalid JSON at byte " + at + " of " + file, e);
+    }
+    return values;
+  }
+
+  /**
+   * Takes each non-blank line for a value, finding the newlines eight bytes at a time.
+   *
+   * @return the last batch, not yet queued.
+   */
+  private List<byte[]> splitLines(ByteBuffer map, BlockingQueue<List<byte[]>> queue) throws InterruptedException {
+    List<byte[]> values = new ArrayList<>(BATCH_SIZE);
+    int length = map.limit();
+    int position = 0;
+    while (position < length) {
+      int newline = ByteScanner.indexOf(map, position, length, (byte) '\n');
+      int from = position;
+      int to = newline < 0 ? length : newline;
+      position = to + 1;
+      while (from < to && isBlank(map.get(from)))
+        from++;
+      while (to > from && isBlank(map.get(to - 1)))
+        to--;
+      if (to > from)
+        values = add(values, copy(map, from, to), queue);
+    }
+    return values;
+  }
+
+  /**
+   * Adds a value to the batch, queueing the batch once it is full.
+   *
+   * @return the batch to add the next value to.
+   */
+  private static List<byte[]> add(List<byte[]> values, byte[] value, BlockingQueue<List<byte[]>> queue)
+      throws InterruptedException {
+    values.add(value);
+    if (values.size() < BATCH_SIZE)
+      return values;
+    queue.put(values);
+    return new ArrayList<>(BATCH_SIZE);
+  }
+
+  private static byte[] copy(ByteBuffer map, int from, int to) {
+    byte[] value = new byte[to - from];
+    ByteBuffer bytes = map.duplicate();
+    bytes.position(from);
+    bytes.get(value);
+    return value;
+  }
+
+  private static boolean isBlank(byte b) {
+    return b == ' ' || b == '\t' || b == '\r' || b == '\n';
+  }
+}
@@ -0,0 +1,504 @@
+/*
+ * Copyright © 2021 Kif Contributors (https://kif.firkin.io/)
+ * Copyright © 2021 Firkin•IO (https://firkin.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.firkin.kif.utils;
+
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.KafkaException;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.config.ConfigException;
+import org.apache.kafka.common.errors.WakeupException;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Base64;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hands the records of a {@link Consumer} to a {@link RecordHandler} on a pool of worker threads, for handlers
+ * which spend their time waiting (on a database, or a remote service) and so are too slow one partition at a
+ * time. The consumer must already be subscribed or assigned, and must not commit offsets itself
+ * ({@code enable.auto.commit=false}).
+ * <p/>
+ * Records with the same key are handled one at a time, in offset order; records with different keys, or
+ * without a key, are handled concurrently, so concurrency is bounded by the number of distinct keys in flight
+ * rather than by the number of partitions. Keys are compared with {@code equals}, except that {@code byte[]}
+ * keys are compared by content.
+ * <p/>
+ * A poll thread owns the consumer: it polls, dispatches, and commits. Records finish out of order, so for each
+ * partition it keeps a bitmap of the offsets still in flight, and commits only the offset below which
+ * everything has finished. The offsets which have finished beyond that are written, run-length encoded, into the
+ * commit's metadata; when a partition is next assigned, its records are skipped if the metadata says they
+ * finished, so a restart replays only what was actually in flight. Should the encoding not fit in
+ * {@value #MAX_METADATA_LENGTH} characters (the broker's default {@code offset.metadata.max.bytes} is 4096),
+ * it is cut short, and the finished offsets beyond the cut are replayed.
+ * <ul>
+ *   <li>{@code kif.processor.workers} the number of worker threads; default 16.</li>
+ *   <li>{@code kif.processor.max.pending.records} how many records may be polled but not yet handled before the
+ *       consumer is paused; default 10000.</li>
+ *   <li>{@code kif.commit.interval.ms} how often finished offsets are committed; default 1000.</li>
+ *   <li>{@code kif.poll.timeout.ms} the timeout of each poll; default 100.</li>
+ * </ul>
+ * If the handler throws, nothing more is dispatched, the offsets which finished are committed, and
+ * {@link #close()} throws the handler's exception. Delivery is at least once: records in flight when a
+ * partition is revoked, or when the process dies, are handled again.
+ *
+ * @param <K> The Record Key type.
+ * @param <V> The Record Value type.
+ */
+public class ParallelRecordProcessor<K, V> {
+
+  public static final String WORKERS_CONFIG = "kif.processor.workers";
+  public static final String MAX_PENDING_RECORDS_CONFIG = "kif.processor.max.pending.records";
+  public static final String COMMIT_INTERVAL_MS_CONFIG = "kif.commit.interval.ms";
+  public static final String POLL_TIMEOUT_MS_CONFIG = DefaultRecordInputStream.POLL_TIMEOUT_MS_CONFIG;
+
+  public static final int DEFAULT_WORKERS = 16;
+  public static final int DEFAULT_MAX_PENDING_RECORDS = 10000;
+  public static final long DEFAULT_COMMIT_INTERVAL_MS = 1000L;
+  public static final long DEFAULT_POLL_TIMEOUT_MS = 100L;
+
+  /** The longest commit metadata written; the broker rejects more than {@code offset.metadata.max.bytes}. */
+  public static final int MAX_METADATA_LENGTH = 4000;
+
+  private static final long CLOSE_TIMEOUT_MS = 30000L;
+
+  /**
+   * Handles one record. Called on a worker thread; calls for records with equal keys never overlap.
+   */
+  @FunctionalInterface
+  public interface RecordHandler<K, V> {
+    void handle(ConsumerRecord<K, V> record) throws Exception;
+  }
+
+  private final Consumer<K, V> consumer;
+  private final RecordHandler<K, V> handler;
+  private final ExecutorService workers;
+  private final int maxPending;
+  private final long commitIntervalMs;
+  private final Duration pollTimeout;
+  private final Thread poller;
+
+  // The records waiting behind the one in flight for each key; a key is present while one of its records is.
+  private final Map<Object, ArrayDeque<ConsumerRecord<K, V>>> lanes = new HashMap<>();
+  private final ConcurrentLinkedQueue<ConsumerRecord<K, V>> finished = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger pending = new AtomicInteger();
+  private volatile boolean closed;
+  private volatile KafkaException failure;
+
+  // Only touched by the poll thread.
+  private final Map<TopicPartition, OffsetTracker> trackers = new HashMap<>();
+  private boolean paused;
+
+  /**
+   * @param configs see {@link #WORKERS_CONFIG}, {@link #MAX_PENDING_RECORDS_CONFIG},
+   *        {@link #COMMIT_INTERVAL_MS_CONFIG} and {@link #POLL_TIMEOUT_MS_CONFIG}.
+   */
+  public ParallelRecordProcessor(Consumer<K, V> consumer, RecordHandler<K, V> handler, Map<String, ?> configs) {
+    int workers = ClientConfigs.getInt(configs, WORKERS_CONFIG, DEFAULT_WORKERS);
+    if (workers <= 0)
+      throw new ConfigException(WORKERS_CONFIG, workers, "Must be positive");
+    this.maxPending = ClientConfigs.getInt(configs, MAX_PENDING_RECORDS_CONFIG, DEFAULT_MAX_PENDING_RECORDS);
+    if (this.maxPending <= 0)
+      throw new ConfigException(MAX_PENDING_RECORDS_CONFIG, this.maxPending, "Must be positive");
+    this.commitIntervalMs = ClientConfigs.getLong(configs, COMMIT_INTERVAL_MS_CONFIG, DEFAULT_COMMIT_INTERVAL_MS);
+    if (this.commitIntervalMs < 0)
+      throw new ConfigException(COMMIT_INTERVAL_MS_CONFIG, this.commitIntervalMs, "Must not be negative");
+    long pollTimeoutMs = ClientConfigs.getLong(configs, POLL_TIMEOUT_MS_CONFIG, DEFAULT_POLL_TIMEOUT_MS);
+    if (pollTimeoutMs < 0)
+      throw new ConfigException(POLL_TIMEOUT_MS_CONFIG, pollTimeoutMs, "Must not be negative");
+    this.pollTimeout = Duration.ofMillis(pollTimeoutMs);
+    this.consumer = consumer;
+    this.handler = handler;
+    AtomicInteger sequence = new AtomicInteger();
+    this.workers = Executors.newFixedThreadPool(workers, r -> {
+      Thread thread = new Thread(r, "kif-processor-worker-" + sequence.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+    this.poller = new Thread(this::poll, "kif-processor-poll");
+    this.poller.setDaemon(true);
+    this.poller.start();
+  }
+
+  public ParallelRecordProcessor(Consumer<K, V> consumer, RecordHandler<K, V> handler) {
+    this(consumer, handler, Collections.emptyMap());
+  }
+
+  /**
+   * The number of records polled but not yet handled.
+   */
+  public int pending() {
+    return pending.get();
+  }
+
+  /**
+   * Whether the processor is still dispatching records: it has been neither closed, nor stopped by a failure.
+   */
+  public boolean isRunning() {
+    return !closed && failure == null;
+  }
+
+  /**
+   * Stop polling, wait for the records already dispatched to be handled, commit, and close the consumer.
+   *
+   * @throws KafkaException the handler's or the consumer's failure, if either failed.
+   */
+  public void close() {
+    closed = true;
+    consumer.wakeup();
+    try {
+      poller.join(2 * CLOSE_TIMEOUT_MS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    KafkaException e = failure;
+    if (e != null)
+      throw e;
+  }
+
+  // --- Internal Implementation Methods --------------------------------------------------------------------
+
+  /**
+   * Run by the poll thread, which has the consumer to itself until it closes it.
+   */
+  private void poll() {
+    long nextCommitMs = System.currentTimeMillis() + commitIntervalMs;
+    try {
+      while (isRunning()) {
+        applyFinished();
+        long now = System.currentTimeMillis();
+        if (now >= nextCommitMs) {
+          commit(false);
+          nextCommitMs = now + commitIntervalMs;
+        }
+        pauseIfFull();
+
+        ConsumerRecords<K, V> records;
+        try {
+          records = consumer.poll(pollTimeout);
+        } catch (WakeupException e) {
+          continue; // from close(), or from someone else: either way the loop decides
+        }
+        trackers.keySet().retainAll(consumer.assignment()); // forget revoked partitions
+        for (ConsumerRecord<K, V> record : records) {
+          TopicPartition tp = new TopicPartition(record.topic(), record.partition());
+          OffsetTracker tracker = trackers.get(tp);
+          if (tracker == null)
+            trackers.put(tp, tracker = OffsetTracker.restore(committed(tp), record.offset()));
+          if (tracker.dispatch(record.offset()))
+            dispatch(record);
+        }
+      }
+    } catch (KafkaException e) {
+      fail(e);
+    } catch (RuntimeException e) {
+      fail(new KafkaException("Polling the consumer failed", e));
+    } finally {
+      workers.shutdown();
+      try {
+        workers.awaitTermination(CLOSE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      try {
+        applyFinished();
+        commit(true);
+      } catch (RuntimeException e) {
+        fail(e instanceof KafkaException ? (KafkaException) e : new KafkaException("Committing offsets failed", e));
+      }
+      try {
+        consumer.close(Duration.ofMillis(CLOSE_TIMEOUT_MS));
+      } catch (RuntimeException e) {
+        fail(e instanceof KafkaException ? (KafkaException) e : new KafkaException("Closing the consumer failed", e));
+      }
+    }
+  }
+
+  private OffsetAndMetadata committed(TopicPartition tp) {
+    try {
+      return consumer.committed(Collections.singleton(tp)).get(tp);
+    } catch (WakeupException e) {
+      return consumer.committed(Collections.singleton(tp)).get(tp); // the wakeup is spent; don't drop the poll
+    }
+  }
+
+  /**
+   * Pause every assigned partition while too many records are pending, and resume them once enough have been
+   * handled. The consumer is still polled while paused, so it stays in its group.
+   */
+  private void pauseIfFull() {
+    boolean full = pending.get() >= maxPending;
+    if (full)
+      consumer.pause(consumer.assignment()); // again, in case partitions were assigned since
+    else if (paused)
+      consumer.resume(consumer.paused());
+    paused = full;
+  }
+
+  private void dispatch(ConsumerRecord<K, V> record) {
+    pending.incrementAndGet();
+    Object lane = lane(record.key());
+    if (lane != null) {
+      synchronized (lanes) {
+        ArrayDeque<ConsumerRecord<K, V>> waiting = lanes.get(lane);
+        if (waiting != null) {
+          waiting.add(record);
+          return;
+        }
+        lanes.put(lane, new ArrayDeque<>());
+      }
+    }
+    workers.execute(() -> handle(record, lane));
+  }
+
+  /**
+   * Run by a worker: handle the record, then each record that queued up behind it with the same key.
+   */
+  private void handle(ConsumerRecord<K, V> record, Object lane) {
+    while (record != null && failure == null) {
+      try {
+        handler.handle(record);
+      } catch (Exception e) {
+        fail(new KafkaException("Handling the record at offset " + record.offset() + " of "
+            + record.topic() + "-" + record.partition() + " failed", e));
+        return;
+      }
+      finished.add(record);
+      pending.decrementAndGet();
+      record = next(lane);
+    }
+  }
+
+  private ConsumerRecord<K, V> next(Object lane) {
+    if (lane == null)
+      return null;
+    synchronized (lanes) {
+      ArrayDeque<ConsumerRecord<K, V>> waiting = lanes.get(lane);
+      ConsumerRecord<K, V> next = waiting.poll();
+      if (next == null)
+        lanes.remove(lane);
+      return next;
+    }
+  }
+
+  private static Object lane(Object key) {
+    return key instanceof byte[] ? ByteBuffer.wrap((byte[]) key) : key;
+  }
+
+  private void applyFinished() {
+    ConsumerRecord<K, V> record;
+    while ((record = finished.poll()) != null) {
+      OffsetTracker tracker = trackers.get(new TopicPartition(record.topic(), record.partition()));
+      if (tracker != null)
+        tracker.finish(record.offset());
+    }
+  }
+
+  /**
+   * Commit each partition whose offset or finished offsets have changed since it was last committed.
+   */
+  private void commit(boolean sync) {
+    Map<TopicPartition, OffsetAndMetadata> offsets = new HashMap<>();
+    for (Map.Entry<TopicPartition, OffsetTracker> entry : trackers.entrySet()) {
+      OffsetAndMetadata offset = entry.getValue().toCommit();
+      if (offset != null)
+        offsets.put(entry.getKey(), offset);
+    }
+    if (offsets.isEmpty())
+      return;
+    if (sync) {
+      try {
+        consumer.commitSync(offsets);
+      } catch (WakeupException e) {
+        consumer.commitSync(offsets);
+      }
+    } else
+      consumer.commitAsync(offsets, null); // a failed commit is covered by the next one
+  }
+
+  private void fail(KafkaException e) {
+    if (failure == null)
+      failure = e;
+  }
+
+  /**
+   * The offsets of one partition that have been dispatched but not yet handled. Offsets below {@code base} have
+   * all finished; from {@code base} up to {@code end}, a set bit is an offset in flight, or one a previous run
+   * left unfinished. Offsets which never arrive (compacted away, or transaction markers) count as finished.
+   */
+  static final class OffsetTracker {
+    private static final String METADATA_PREFIX = "kif1:";
+
+    private long base;
+    private long end;
+    private BitSet unfinished;
+    private OffsetAndMetadata lastCommitted;
+
+    private OffsetTracker(long base, long end, BitSet unfinished, OffsetAndMetadata lastCommitted) {
+      this.base = base;
+      this.end = end;
+      this.unfinished = unfinished;
+      this.lastCommitted = lastCommitted;
+    }
+
+    /**
+     * Start tracking a partition from its committed offset and metadata; or, if it has none (or metadata kif
+     * didn't write), from its first record.
+     */
+    static OffsetTracker restore(OffsetAndMetadata committed, long firstOffset) {
+      if (committed == null)
+        return new OffsetTracker(firstOffset, firstOffset, new BitSet(), null);
+      long base = committed.offset();
+      String metadata = committed.metadata();
+      BitSet unfinished = new BitSet();
+      long length = metadata == null || !metadata.startsWith(METADATA_PREFIX) ? 0L
+          : decode(metadata.substring(METADATA_PREFIX.length()), unfinished);
+      return new OffsetTracker(base, base + length, unfinished, committed);
+    }
+
+    /**
+     * Track an offset as it is dispatched.
+     *
+     * @return false if the record has already been handled, and should be skipped.
+     */
+    boolean dispatch(long offset) {
+      if (offset < base)
+        return true; // the consumer was moved back; handled again, but not tracked
+      int bit = index(offset);
+      if (offset < end)
+        return unfinished.get(bit); // left unfinished by a previous run, or else already handled
+      unfinished.set(bit);
+      end = offset + 1;
+      return true;
+    }
+
+    void finish(long offset) {
+      if (offset >= base && offset < end)
+        unfinished.clear(index(offset));
+    }
+
+    /**
+     * Move {@code base} up to the first unfinished offset.
+     *
+     * @return the offset and metadata to commit, or null if they are what was last committed.
+     */
+    OffsetAndMetadata toCommit() {
+      int first = unfinished.nextSetBit(0);
+      long offset = first < 0 ? end : base + first;
+      if (offset > base) {
+        int shift = index(offset);
+        unfinished = unfinished.get(shift, Math.max(shift, unfinished.length()));
+        base = offset;
+      }
+      OffsetAndMetadata commit = new OffsetAndMetadata(offset, encode());
+      if (commit.equals(lastCommitted))
+        return null;
+      lastCommitted = commit;
+      return commit;
+    }
+
+    private int index(long offset) {
+      long index = offset - base;
+      if (index > Integer.MAX_VALUE)
+        throw new KafkaException("Offset " + offset + " is too far ahead of unfinished offset " + base);
+      return (int) index;
+    }
+
+    /**
+     * The runs of alternately unfinished and finished offsets from {@code base} to {@code end}, as varints,
+     * base64 encoded. The first run is of unfinished offsets, since {@code base} is unfinished (or there are no
+     * runs at all). Runs which don't fit in {@link #MAX_METADATA_LENGTH} are left out.
+     */
+    private String encode() {
+      if (base == end)
+        return "";
+      int maxBytes = (MAX_METADATA_LENGTH - METADATA_PREFIX.length()) / 4 * 3;
+      ByteArrayOutputStream runs = new ByteArrayOutputStream();
+      int length = (int) (end - base);
+      for (int from = 0; from < length; ) {
+        boolean set = unfinished.get(from);
+        int to = set ? unfinished.nextClearBit(from) : unfinished.nextSetBit(from);
+        if (to < 0 || to > length)
+          to = length;
+        if (runs.size() + 5 > maxBytes)
+          break; // the rest counts as unfinished, and is replayed
+        writeVarint(runs, to - from);
+        from = to;
+      }
+      return METADATA_PREFIX + Base64.getUrlEncoder().withoutPadding().encodeToString(runs.toByteArray());
+    }
+
+    /**
+     * Set the unfinished bits written by {@link #encode()}.
+     *
+     * @return the number of offsets the runs cover.
+     */
+    private static long decode(String encoded, BitSet unfinished) {
+      ByteBuffer runs;
+      try {
+        runs = ByteBuffer.wrap(Base64.getUrlDecoder().decode(encoded));
+      } catch (IllegalArgumentException e) {
+        return 0L; // not ours after all; replay everything past the committed offset
+      }
+      int from = 0;
+      boolean set = true;
+      while (runs.hasRemaining()) {
+        int run = readVarint(runs);
+        if (run < 0 || from + run < 0)
+          return 0L;
+        if (set)
+          unfinished.set(from, from + run);
+        from += run;
+        set = !set;
+      }
+      return from;
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+      while ((value & ~0x7F) != 0) {
+        out.write((value & 0x7F) | 0x80);
+        value >>>= 7;
+      }
+      out.write(value);
+    }
+
+    private static int readVarint(ByteBuffer in) {
+      int value = 0;
+      for (int shift = 0; shift < 32 && in.hasRemaining(); shift += 7) {
+        byte b = in.get();
+        value |= (b & 0x7F) << shift;
+        if ((b & 0x80) == 0)
+          return value;
+      }
+      return -1;
+    }
+  }
+}
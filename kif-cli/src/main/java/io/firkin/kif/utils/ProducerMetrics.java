@@ -0,0 +1,199 @@
+/*
+ * Copyright © 2021 Kif Contributors (https://kif.firkin.io/)
+ * Copyright © 2021 Firkin•IO (https://firkin.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.firkin.kif.utils;
+
+import org.apache.kafka.common.Metric;
+import org.apache.kafka.common.MetricName;
+import org.apache.kafka.common.metrics.Metrics;
+import org.apache.kafka.common.metrics.Sensor;
+import org.apache.kafka.common.metrics.stats.Avg;
+import org.apache.kafka.common.metrics.stats.Max;
+import org.apache.kafka.common.metrics.stats.Meter;
+import org.apache.kafka.common.metrics.stats.WindowedCount;
+import org.apache.kafka.common.utils.Time;
+
+import java.io.Closeable;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * The metrics of a {@link StreamProducer} or {@link FileProducer}: those of a {@code KafkaProducer} which mean
+ * something for a local producer, with the same names, groups, tags and meanings, so that code written
+ * against {@code KafkaProducer.metrics()} works unchanged.
+ * <p/>
+ * A "request" is a single write of buffered frames to a stream, or the append of a single batch to a log; its
+ * latency is how long the write or append took.
+ * <ul>
+ *   <li>{@code producer-metrics}: {@code record-send-rate/total}, {@code record-error-rate/total},
+ *       {@code record-size-avg/max}, {@code batch-size-avg/max}, {@code compression-rate-avg},
+ *       {@code record-queue-time-avg/max}, {@code request-latency-avg/max}, {@code request-rate/total},
+ *       {@code records-per-request-avg} and {@code outgoing-byte-rate/total}.</li>
+ *   <li>{@code producer-topic-metrics}, tagged with the topic: {@code record-send-rate/total},
+ *       {@code byte-rate/total}, {@code compression-rate} and {@code record-error-rate/total}.</li>
+ * </ul>
+ * Every metric is tagged with the producer's {@code client.id}.
+ */
+final class ProducerMetrics implements Closeable {
+
+  static final String GROUP = "producer-metrics";
+  static final String TOPIC_GROUP = "producer-topic-metrics";
+
+  private final Metrics metrics;
+  private final Map<String, String> tags;
+  private final Sensor recordsSent;
+  private final Sensor recordErrors;
+  private final Sensor recordSize;
+  private final Sensor batchSize;
+  private final Sensor compressionRate;
+  private final Sensor queueTime;
+  private final Sensor requestLatency;
+  private final Sensor recordsPerRequest;
+  private final Sensor outgoingBytes;
+  private final ConcurrentMap<String, Sensor> topicSensors;
+
+  /**
+   * @param clientIdPrefix the prefix of the {@code client.id} generated when none is configured.
+   */
+  ProducerMetrics(Map<String, ?> configs, String clientIdPrefix) {
+    this.metrics = new Metrics(ClientConfigs.metricConfig(configs), Time.SYSTEM);
+    this.tags = Collections.singletonMap("client-id", ClientConfigs.clientId(configs, clientIdPrefix));
+    this.topicSensors = new ConcurrentHashMap<>();
+
+    this.recordsSent = metrics.sensor("record-send");
+    recordsSent.add(new Meter(metricName("record-send-rate", "The average number of records sent per second."),
+        metricName("record-send-total", "The total number of records sent.")));
+    this.recordErrors = metrics.sensor("record-errors");
+    recordErrors.add(new Meter(metricName("record-error-rate", "The average per-second number of record sends that resulted in errors"),
+        metricName("record-error-total", "The total number of record sends that resulted in errors")));
+    this.recordSize = metrics.sensor("record-size");
+    recordSize.add(metricName("record-size-avg", "The average record size"), new Avg());
+    recordSize.add(metricName("record-size-max", "The maximum record size"), new Max());
+    this.batchSize = metrics.sensor("batch-size");
+    batchSize.add(metricName("batch-size-avg", "The average number of bytes sent per partition per-request."), new Avg());
+    batchSize.add(metricName("batch-size-max", "The max number of bytes sent per partition per-request."), new Max());
+    this.compressionRate = metrics.sensor("compression-rate");
+    compressionRate.add(metricName("compression-rate-avg", "The average compression rate of record batches."), new Avg());
+    this.queueTime = metrics.sensor("queue-time");
+    queueTime.add(metricName("record-queue-time-avg", "The average time in ms record batches spent in the send buffer."), new Avg());
+    queueTime.add(metricName("record-queue-time-max", "The maximum time in ms record batches spent in the send buffer."), new Max());
+    this.requestLatency = metrics.sensor("request-latency");
+    requestLatency.add(metricName("request-latency-avg", "The average request latency in ms"), new Avg());
+    requestLatency.add(metricName("request-latency-max", "The maximum request latency in ms"), new Max());
+    requestLatency.add(new Meter(new WindowedCount(),
+        metricName("request-rate", "The number of requests sent per second"),
+        metricName("request-total", "The total number of requests sent")));
+    this.recordsPerRequest = metrics.sensor("records-per-request");
+    recordsPerRequest.add(metricName("records-per-request-avg", "The average number of records per request."), new Avg());
+    this.outgoingBytes = metrics.sensor("bytes-sent");
+    outgoingBytes.add(new Meter(metricName("outgoing-byte-rate", "The number of outgoing bytes sent per second"),
+        metricName("outgoing-byte-total", "The total number of outgoing bytes sent")));
+  }
+
+  /**
+   * The size of a record, recorded as it is sent.
+   */
+  void recordSize(int sizeInBytes) {
+    recordSize.record(sizeInBytes);
+  }
+
+  /**
+   * A request: the write or append of {@code records} records in {@code sizeInBytes} bytes.
+   */
+  void recordRequest(int records, int sizeInBytes, long latencyNanos) {
+    requestLatency.record(latencyNanos / (double) TimeUnit.MILLISECONDS.toNanos(1));
+    recordsPerRequest.record(records);
+    outgoingBytes.record(sizeInBytes);
+  }
+
+  /**
+   * A batch of {@code records} records of a topic, in {@code sizeInBytes} bytes, successfully sent.
+   */
+  void recordBatch(String topic, int records, int sizeInBytes) {
+    batchSize.record(sizeInBytes);
+    recordsSent.record(records);
+    topicSensor(topic, "records-per-batch", "record-send", "records").record(records);
+    topicSensor(topic, "bytes", "byte", "bytes").record(sizeInBytes);
+  }
+
+  /**
+   * The compression ratio, and time spent waiting for records, of a batch appended to a log.
+   */
+  void recordCompression(String topic, double compressionRatio, long queueTimeMs) {
+    compressionRate.record(compressionRatio);
+    queueTime.record(queueTimeMs);
+    topicSensor(topic, "compression-rate", sensor -> sensor.add(topicMetricName(topic, "compression-rate",
+        "The average compression rate of record batches for a topic."), new Avg())).record(compressionRatio);
+  }
+
+  /**
+   * Sends of {@code records} records of a topic that failed.
+   */
+  void recordErrors(String topic, int records) {
+    recordErrors.record(records);
+    topicSensor(topic, "record-errors", "record-error", "record sends that resulted in errors").record(records);
+  }
+
+  Map<MetricName, ? extends Metric> metrics() {
+    return Collections.unmodifiableMap(metrics.metrics());
+  }
+
+  @Override
+  public void close() {
+    metrics.close();
+  }
+
+  // --- Internal Implementation Methods --------------------------------------------------------------------
+
+  /**
+   * A per-topic sensor, registered on first use as a {@code KafkaProducer} does, with a {@code <name>-rate} and
+   * {@code <name>-total} metric.
+   */
+  private Sensor topicSensor(String topic, String sensorName, String metricName, String what) {
+    return topicSensor(topic, sensorName, sensor -> sensor.add(new Meter(
+        topicMetricName(topic, metricName + "-rate", "The average number of " + what + " sent per second for a topic."),
+        topicMetricName(topic, metricName + "-total", "The total number of " + what + " sent for a topic."))));
+  }
+
+  /**
+   * A per-topic sensor, created and given its metrics by {@code register} on first use. Batches of several
+   * partitions are recorded at once, so the first batches of a topic may race here; only one creates its
+   * sensor, and none records to it before its metrics are added.
+   */
+  private Sensor topicSensor(String topic, String sensorName, Consumer<Sensor> register) {
+    return topicSensors.computeIfAbsent("topic." + topic + "." + sensorName, name -> {
+      Sensor sensor = metrics.sensor(name);
+      register.accept(sensor);
+      return sensor;
+    });
+  }
+
+  private MetricName metricName(String name, String description) {
+    return metrics.metricName(name, GROUP, description, tags);
+  }
+
+  private MetricName topicMetricName(String topic, String name, String description) {
+    Map<String, String> topicTags = new HashMap<>(tags);
+    topicTags.put("topic", topic);
+    return metrics.metricName(name, TOPIC_GROUP, description, topicTags);
+  }
+}
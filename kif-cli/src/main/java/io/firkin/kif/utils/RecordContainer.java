@@ -0,0 +1,122 @@
+/*
+ * Copyright © 2021 Kif Contributors (https://kif.firkin.io/)
+ * Copyright © 2021 Firkin•IO (https://firkin.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.firkin.kif.utils;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.zip.CRC32C;
+
+/**
+ * The kif container format: {@link RecordFrame}s grouped into checksummed blocks, each behind a sync marker,
+ * so that a file can be split at any byte offset and each split read on its own, and so that a corrupt block
+ * costs only its own records. {@link StreamProducer} writes it when {@code kif.stream.container} is set, and
+ * {@link StreamConsumer} reads it in place of bare frames whenever a stream starts with its magic.
+ * <p/>
+ * All fields are big-endian. A container starts with a header, followed by any number of blocks:
+ * <pre>
+ *  +---------+--------------------------------------------------------+
+ *  | 4 bytes | magic, "KIFC"                                          |
+ *  | int8    | format version, 1                                      |
+ *  | 16 bytes| sync marker, random for each container                 |
+ *  +---------+--------------------------------------------------------+
+ *  | 16 bytes| sync marker                                            |
+ *  | int32   | block length, the number of bytes which follow the crc |
+ *  | int32   | crc32c of the block's remaining bytes                  |
+ *  | int32   | record count                                           |
+ *  |         | that many length-prefixed {@link RecordFrame}s         |
+ *  +---------+--------------------------------------------------------+</pre>
+ * <p/>
+ * A reader starting from an arbitrary offset reads the header, then scans from that offset for the sync
+ * marker, and reads every block whose marker starts before the end of its split; the block straddling a split
+ * boundary thus belongs to exactly one split. A block whose length or checksum is wrong is skipped by scanning
+ * for the next marker; see {@link RecordContainerReader}.
+ */
+public final class RecordContainer {
+
+  /** Producer config; whether a {@link StreamProducer} writes a container rather than bare frames. */
+  public static final String CONTAINER_CONFIG = "kif.stream.container";
+
+  /** The container's magic, which can't be mistaken for the length of a frame. */
+  public static final byte[] MAGIC = "KIFC".getBytes(StandardCharsets.US_ASCII);
+
+  public static final byte VERSION = 1;
+
+  public static final int SYNC_SIZE = 16;
+
+  /** Size of the container header: magic, version, and sync marker. */
+  public static final int HEADER_SIZE = 4 + 1 + SYNC_SIZE;
+
+  /** Size of the bytes of a block before its crc'd bytes: sync marker, length, and crc. */
+  public static final int BLOCK_PREFIX_SIZE = SYNC_SIZE + 4 + 4;
+
+  /** Size of the bytes of a block before its first frame. */
+  public static final int BLOCK_HEADER_SIZE = BLOCK_PREFIX_SIZE + 4;
+
+  private static final SecureRandom RANDOM = new SecureRandom();
+
+  private RecordContainer() {
+  }
+
+  /**
+   * A new random sync marker.
+   */
+  public static byte[] newSync() {
+    byte[] sync = new byte[SYNC_SIZE];
+    RANDOM.nextBytes(sync);
+    return sync;
+  }
+
+  /**
+   * Whether {@code bytes} start with the container magic.
+   */
+  public static boolean isContainer(byte[] bytes, int offset, int length) {
+    if (length < MAGIC.length)
+      return false;
+    for (int i = 0; i < MAGIC.length; i++)
+      if (bytes[offset + i] != MAGIC[i])
+        return false;
+    return true;
+  }
+
+  /**
+   * Writes the container header at the buffer's current position.
+   */
+  public static void writeHeader(ByteBuffer buffer, byte[] sync) {
+    buffer.put(MAGIC);
+    buffer.put(VERSION);
+    buffer.put(sync);
+  }
+
+  /**
+   * Completes the block which starts at {@code blockStart} and ends at the buffer's current position, whose
+   * frames were written after {@link #BLOCK_HEADER_SIZE} bytes were left for its header.
+   */
+  public static void sealBlock(ByteBuffer buffer, int blockStart, int recordCount, byte[] sync) {
+    int end = buffer.position();
+    int checked = blockStart + BLOCK_PREFIX_SIZE;
+    buffer.putInt(checked, recordCount);
+    ByteBuffer body = buffer.duplicate();
+    body.limit(end).position(checked);
+    CRC32C crc = new CRC32C();
+    crc.update(body);
+    ByteBuffer prefix = buffer.duplicate(); // leaving the buffer's position at the end of the block
+    prefix.position(blockStart);
+    prefix.put(sync).putInt(end - checked).putInt((int) crc.getValue());
+  }
+}
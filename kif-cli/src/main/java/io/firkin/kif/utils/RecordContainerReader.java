@@ -0,0 +1,292 @@
+/*
+ * Copyright © 2021 Kif Contributors (https://kif.firkin.io/)
+ * Copyright © 2021 Firkin•IO (https://firkin.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.firkin.kif.utils;
+
+import org.apache.kafka.common.InvalidRecordException;
+import org.apache.kafka.common.errors.CorruptRecordException;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32C;
+
+/**
+ * Reads the {@link RecordFrame}s of a {@link RecordContainer}, either the whole of a stream or the blocks of
+ * one split of a file: those whose sync marker starts within {@code [start, end)}.
+ * <p/>
+ * A block whose length, checksum, or frames are wrong makes {@link #next(RecordFrame)} throw a
+ * {@link CorruptRecordException}, after which the reader can carry on: the next call scans for the next sync
+ * marker, so the corruption costs only the records of that block. Bytes between blocks that are not a block
+ * are reported in the same way.
+ * <i> This class is <em>not</em> threadsafe.</i>
+ */
+public class RecordContainerReader implements Closeable {
+
+  private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+  private final InputStream in;
+  private final byte[] sync;
+  private final long end;
+  private final int maxBlockBytes;
+  private final CRC32C crc;
+  private byte[] buffer;
+  private int pos;
+  private int limit;
+  private long bufferStart;
+  private boolean eof;
+  private boolean aligned;
+  private ByteBuffer block;
+  private int blockRecords;
+  private long blockStart;
+
+  /**
+   * A reader of the container which {@code in} holds, starting with its header.
+   *
+   * @param maxBlockBytes the longest block to accept; a longer one is taken to be corrupt.
+   * @throws InvalidRecordException if {@code in} does not start with a container header.
+   */
+  public RecordContainerReader(InputStream in, int maxBlockBytes) throws IOException {
+    this(in, readHeader(in), 0L, RecordContainer.HEADER_SIZE, Long.MAX_VALUE, maxBlockBytes);
+  }
+
+  private RecordContainerReader(InputStream in, byte[] sync, long start, long position, long end,
+                                int maxBlockBytes) {
+    this.in = in;
+    this.sync = sync;
+    this.end = end;
+    this.maxBlockBytes = maxBlockBytes;
+    this.crc = new CRC32C();
+    this.buffer = new byte[READ_BUFFER_SIZE];
+    this.bufferStart = position;
+    // A split which starts within a block scans for the next one, without taking the skipped bytes for junk.
+    this.aligned = start <= RecordContainer.HEADER_SIZE;
+  }
+
+  /**
+   * A reader of the blocks of {@code file} whose sync markers start within {@code [start, end)}; splits which
+   * together cover a file read each of its blocks exactly once.
+   */
+  public static RecordContainerReader open(Path file, long start, long end, int maxBlockBytes) throws IOException {
+    FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+    try {
+      InputStream in = Channels.newInputStream(channel);
+      byte[] sync = readHeader(in);
+      long position = Math.max(start, RecordContainer.HEADER_SIZE);
+      channel.position(position);
+      return new RecordContainerReader(in, sync, start, position, end, maxBlockBytes);
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Reads the next frame into {@code frame}.
+   *
+   * @return false once there are no more blocks in this reader's range.
+   * @throws CorruptRecordException if a block, or the bytes before it, are corrupt; reading may carry on.
+   */
+  public boolean next(RecordFrame frame) throws IOException {
+    while (true) {
+      if (block != null) {
+        if (block.hasRemaining())
+          return readFrame(frame);
+        int records = blockRecords;
+        block = null;
+        if (records != 0)
+          throw corrupt("its record count is off by " + records);
+      }
+      if (!readBlock())
+        return false;
+    }
+  }
+
+  /**
+   * The position in the file, or stream, of the next byte to be read.
+   */
+  public long position() {
+    return bufferStart + pos;
+  }
+
+  /**
+   * Closes the underlying stream or file.
+   */
+  @Override
+  public void close() throws IOException {
+    in.close();
+  }
+
+  // --- Internal Implementation Methods --------------------------------------------------------------------
+
+  private static byte[] readHeader(InputStream in) throws IOException {
+    byte[] header = new byte[RecordContainer.HEADER_SIZE];
+    int n = in.readNBytes(header, 0, header.length);
+    if (!RecordContainer.isContainer(header, 0, n))
+      throw new InvalidRecordException("Not a kif record container");
+    if (n < header.length)
+      throw new EOFException("Truncated record container header");
+    if (header[RecordContainer.MAGIC.length] != RecordContainer.VERSION)
+      throw new InvalidRecordException("Unsupported record container version " + header[RecordContainer.MAGIC.length]);
+    byte[] sync = new byte[RecordContainer.SYNC_SIZE];
+    System.arraycopy(header, RecordContainer.MAGIC.length + 1, sync, 0, sync.length);
+    return sync;
+  }
+
+  private boolean readFrame(RecordFrame frame) {
+    blockRecords--;
+    int length = block.remaining() >= RecordFrame.LENGTH_SIZE ? block.getInt() : -1;
+    if (length < RecordFrame.FIXED_SIZE || length > block.remaining()) {
+      block = null;
+      throw corrupt("it holds an invalid record frame length: " + length);
+    }
+    int blockLimit = block.limit();
+    block.limit(block.position() + length);
+    try {
+      frame.readFrom(block);
+    } catch (InvalidRecordException e) {
+      block = null;
+      throw corrupt(e.getMessage());
+    }
+    block.position(block.limit()).limit(blockLimit);
+    return true;
+  }
+
+  /**
+   * Finds and checks the next block in range, leaving it in {@link #block}.
+   *
+   * @return false if there are no more blocks in range.
+   */
+  private boolean readBlock() throws IOException {
+    if (!seekSync())
+      return false;
+    blockStart = position();
+    aligned = false; // until the block proves good
+    if (!fill(RecordContainer.BLOCK_HEADER_SIZE)) {
+      pos = limit;
+      throw corrupt("it is truncated");
+    }
+    int length = getInt(pos + RecordContainer.SYNC_SIZE);
+    int checksum = getInt(pos + RecordContainer.SYNC_SIZE + 4);
+    if (length < 4 || length > maxBlockBytes) {
+      pos++;
+      throw corrupt("its length is " + length);
+    }
+    if (!fill(RecordContainer.BLOCK_PREFIX_SIZE + length)) {
+      pos = limit;
+      throw corrupt("it is truncated");
+    }
+    int checked = pos + RecordContainer.BLOCK_PREFIX_SIZE;
+    crc.reset();
+    crc.update(buffer, checked, length);
+    if ((int) crc.getValue() != checksum) {
+      pos++;
+      throw corrupt("its checksum does not match");
+    }
+    blockRecords = getInt(checked);
+    block = ByteBuffer.wrap(buffer, checked + 4, length - 4);
+    pos = checked + length;
+    aligned = true;
+    return true;
+  }
+
+  /**
+   * Moves to the next sync marker, scanning for it if it isn't the next thing in the stream.
+   *
+   * @return false if there is none before the end of the stream or of this reader's range.
+   * @throws CorruptRecordException if bytes were skipped where a block should have been.
+   */
+  private boolean seekSync() throws IOException {
+    long from = position();
+    while (true) {
+      if (!fill(RecordContainer.SYNC_SIZE)) {
+        pos = limit;
+        return skipped(from, false);
+      }
+      if (position() >= end)
+        return skipped(from, false);
+      int last = limit - RecordContainer.SYNC_SIZE;
+      for (int i = pos; i <= last; i++) {
+        if (buffer[i] == sync[0] && matchesSync(i)) {
+          pos = i;
+          return position() < end && skipped(from, true);
+        }
+      }
+      pos = last + 1; // the rest could be the start of a marker
+    }
+  }
+
+  private boolean skipped(long from, boolean found) {
+    if (aligned && position() > from) {
+      aligned = false; // a marker that was found is read by the next call
+      throw new CorruptRecordException("Skipped " + (position() - from) + " bytes of corrupt data at offset "
+          + from + " of the record container");
+    }
+    return found;
+  }
+
+  private boolean matchesSync(int at) {
+    for (int i = 1; i < RecordContainer.SYNC_SIZE; i++)
+      if (buffer[at + i] != sync[i])
+        return false;
+    return true;
+  }
+
+  /**
+   * Makes at least {@code n} bytes available from {@code pos}, moving them to the start of the buffer and
+   * growing it as needed.
+   *
+   * @return false if the stream ends first.
+   */
+  private boolean fill(int n) throws IOException {
+    if (limit - pos >= n)
+      return true;
+    if (pos > 0) {
+      System.arraycopy(buffer, pos, buffer, 0, limit - pos);
+      bufferStart += pos;
+      limit -= pos;
+      pos = 0;
+    }
+    if (n > buffer.length)
+      buffer = Arrays.copyOf(buffer, Math.max(n, 2 * buffer.length));
+    while (limit < n && !eof) {
+      int read = in.read(buffer, limit, buffer.length - limit);
+      if (read < 0)
+        eof = true;
+      else
+        limit += read;
+    }
+    return limit >= n;
+  }
+
+  private int getInt(int at) {
+    return (buffer[at] & 0xff) << 24 | (buffer[at + 1] & 0xff) << 16 | (buffer[at + 2] & 0xff) << 8
+        | (buffer[at + 3] & 0xff);
+  }
+
+  private CorruptRecordException corrupt(String reason) {
+    return new CorruptRecordException("Skipped the corrupt block at offset " + blockStart
+        + " of the record container, as " + reason);
+  }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright © 2021 Kif Contributors (https://kif.firkin.io/)
+ * Copyright © 2021 Firkin•IO (https://firkin.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.firkin.kif.utils;
+
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.errors.CorruptRecordException;
+import org.apache.kafka.common.errors.KafkaStorageException;
+import org.apache.kafka.common.errors.SerializationException;
+import org.apache.kafka.common.header.Headers;
+import org.apache.kafka.common.record.TimestampType;
+import org.apache.kafka.common.serialization.Deserializer;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Optional;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * A {@link Spliterator} over the records of a {@link RecordContainer} file, in the order they were written,
+ * for reading a large container with a parallel {@link java.util.stream.Stream}.
+ * <p/>
+ * A split hands off the first half of its byte range; each half reads the blocks whose sync markers start
+ * within it, through a {@link RecordContainerReader} of its own, so splits can be traversed on different
+ * threads. The key and value deserializers are shared by all of them, so must be threadsafe, as Kafka's own
+ * are. The number of records in a range is not known until it is read, so sizes are estimated in bytes.
+ * <p/>
+ * A corrupt block is skipped, so that every intact record is still read; the first such corruption in a
+ * split is thrown once the rest of the split has been read.
+ * <i> This class is <em>not</em> threadsafe.</i>
+ */
+public class RecordContainerSpliterator<K, V> implements Spliterator<ConsumerRecord<K, V>>, AutoCloseable {
+
+  /**
+   * The fewest bytes worth splitting a range for.
+   */
+  public static final long MIN_SPLIT_BYTES = 1024L * 1024L;
+
+  /**
+   * The longest block to accept, as for a {@link StreamConsumer} with the default {@code fetch.max.bytes}.
+   */
+  public static final int MAX_BLOCK_BYTES = ConsumerConfig.DEFAULT_FETCH_MAX_BYTES;
+
+  private static final int CHARACTERISTICS = ORDERED | NONNULL | IMMUTABLE;
+
+  private final Path file;
+  private final String topic;
+  private final Deserializer<K> keyDeserializer;
+  private final Deserializer<V> valueDeserializer;
+  private long start;
+  private final long end;
+  private final RecordFrame frame;
+  private RecordContainerReader reader;
+  private CorruptRecordException corruption;
+  private boolean done;
+
+  /**
+   * A spliterator over every record of the container {@code file}, whose records are of {@code topic}.
+   */
+  public static <K, V> RecordContainerSpliterator<K, V> open(Path file, String topic,
+                                                            Deserializer<K> keyDeserializer,
+                                                            Deserializer<V> valueDeserializer) {
+    try {
+      return new RecordContainerSpliterator<>(file, topic, keyDeserializer, valueDeserializer, 0L, Files.size(file));
+    } catch (IOException e) {
+      throw new KafkaStorageException("Could not open the record container " + file, e);
+    }
+  }
+
+  private RecordContainerSpliterator(Path file, String topic, Deserializer<K> keyDeserializer,
+                                     Deserializer<V> valueDeserializer, long start, long end) {
+    this.file = file;
+    this.topic = topic;
+    this.keyDeserializer = keyDeserializer;
+    this.valueDeserializer = valueDeserializer;
+    this.start = start;
+    this.end = end;
+    this.frame = new RecordFrame();
+  }
+
+  @Override
+  public boolean tryAdvance(Consumer<? super ConsumerRecord<K, V>> action) {
+    if (!next())
+      return false;
+    action.accept(toConsumerRecord(frame));
+    return true;
+  }
+
+  @Override
+  public void forEachRemaining(Consumer<? super ConsumerRecord<K, V>> action) {
+    while (next())
+      action.accept(toConsumerRecord(frame));
+  }
+
+  /**
+   * Hand off the first half of the byte range. Nothing is split once reading has begun.
+   */
+  @Override
+  public RecordContainerSpliterator<K, V> trySplit() {
+    if (reader != null || done || end - start < 2 * MIN_SPLIT_BYTES)
+      return null;
+    long mid = start + (end - start) / 2;
+    RecordContainerSpliterator<K, V> split = new RecordContainerSpliterator<>(file, topic, keyDeserializer,
+        valueDeserializer, start, mid);
+    start = mid;
+    return split;
+  }
+
+  @Override
+  public long estimateSize() {
+    return done ? 0L : end - (reader == null ? start : Math.min(end, reader.position()));
+  }
+
+  @Override
+  public int characteristics() {
+    return CHARACTERISTICS;
+  }
+
+  /**
+   * Close the reader, if a traversal stopped part way through the range.
+   */
+  @Override
+  public void close() {
+    closeReader();
+  }
+
+  // --- Internal Implementation Methods --------------------------------------------------------------------
+
+  /**
+   * Reads the next record of the range into {@link #frame}.
+   *
+   * @return false once the range has all been read.
+   */
+  private boolean next() {
+    if (done)
+      return false;
+    try {
+      if (reader == null)
+        reader = RecordContainerReader.open(file, start, end, MAX_BLOCK_BYTES);
+      while (true) {
+        try {
+          if (reader.next(frame))
+            return true;
+          break;
+        } catch (CorruptRecordException e) {
+          if (corruption == null)
+            corruption = e;
+        }
+      }
+    } catch (IOException e) {
+      closeReader();
+      done = true;
+      throw new KafkaStorageException("Could not read the record container " + file, e);
+    }
+    closeReader();
+    done = true;
+    if (corruption != null)
+      throw corruption;
+    return false;
+  }
+
+  private void closeReader() {
+    if (reader == null)
+      return;
+    try {
+      reader.close();
+    } catch (IOException e) {
+      throw new KafkaStorageException("Could not close the record container " + file, e);
+    } finally {
+      reader = null;
+    }
+  }
+
+  private ConsumerRecord<K, V> toConsumerRecord(RecordFrame frame) {
+    Headers headers = frame.headers();
+    try {
+      K key = frame.key() == null ? null : keyDeserializer.deserialize(topic, headers, frame.key());
+      V value = frame.value() == null ? null : valueDeserializer.deserialize(topic, headers, frame.value());
+      return new ConsumerRecord<>(topic, frame.partition(), frame.offset(), frame.timestamp(),
+          TimestampType.CREATE_TIME, null, frame.serializedKeySize(), frame.serializedValueSize(), key, value,
+          headers, Optional.empty());
+    } catch (RuntimeException e) {
+      throw new SerializationException("Error deserializing key/value for partition " + topic + "-"
+          + frame.partition() + " at offset " + frame.offset() + ".", e);
+    }
+  }
+}
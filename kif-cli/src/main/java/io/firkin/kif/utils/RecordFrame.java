@@ -0,0 +1,213 @@
+/*
+ * Copyright © 2021 Kif Contributors (https://kif.firkin.io/)
+ * Copyright © 2021 Firkin•IO (https://firkin.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.firkin.kif.utils;
+
+import org.apache.kafka.common.InvalidRecordException;
+import org.apache.kafka.common.header.Header;
+import org.apache.kafka.common.header.Headers;
+import org.apache.kafka.common.header.internals.RecordHeader;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A single length-prefixed record, as written by {@link StreamProducer} and read back by {@link StreamConsumer}.
+ * <p/>
+ * All fields are big-endian. Null keys and values (and null header values) are written with a length of -1.
+ * <pre>
+ *  +---------+--------------------------------------------------------+
+ *  | int32   | frame length, the number of bytes which follow         |
+ *  | int32   | partition                                              |
+ *  | int64   | offset                                                 |
+ *  | int64   | timestamp                                              |
+ *  | int32   | key length, followed by the key bytes                  |
+ *  | int32   | value length, followed by the value bytes              |
+ *  | int32   | header count, followed by (for each header):           |
+ *  |         |   int32 key length, utf-8 key bytes,                   |
+ *  |         |   int32 value length, value bytes                      |
+ *  +---------+--------------------------------------------------------+</pre>
+ * <p/>
+ * A RecordFrame is mutable so that a single instance may be re-used for every record that passes through
+ * a producer or consumer; the key and value arrays are referenced, never copied.
+ * <i> This class is <em>not</em> threadsafe.</i>
+ */
+public final class RecordFrame {
+
+  /** Size of the length prefix of every frame. */
+  public static final int LENGTH_SIZE = 4;
+
+  /** Size of the fixed-width fields of a frame (partition, offset, timestamp, header count). */
+  public static final int FIXED_SIZE = 4 + 8 + 8 + 4;
+
+  private static final Header[] NO_HEADERS = new Header[0];
+
+  private int partition;
+  private long offset;
+  private long timestamp;
+  private byte[] key;
+  private byte[] value;
+  private Header[] headers = NO_HEADERS;
+  private byte[][] headerKeys = new byte[0][];
+  private int size;
+
+  /**
+   * Replaces the content of this frame, and computes its encoded size. Header keys are encoded only once, here.
+   *
+   * @return this frame
+   */
+  public RecordFrame set(int partition, long offset, long timestamp, byte[] key, byte[] value, Headers headers) {
+    this.partition = partition;
+    this.offset = offset;
+    this.timestamp = timestamp;
+    this.key = key;
+    this.value = value;
+    this.headers = headers == null ? NO_HEADERS : headers.toArray();
+
+    int size = LENGTH_SIZE + FIXED_SIZE + lengthOf(key) + lengthOf(value);
+    if (this.headerKeys.length < this.headers.length)
+      this.headerKeys = new byte[this.headers.length][];
+    for (int i = 0; i < this.headers.length; i++) {
+      byte[] headerKey = this.headers[i].key().getBytes(StandardCharsets.UTF_8);
+      this.headerKeys[i] = headerKey;
+      size += lengthOf(headerKey) + lengthOf(this.headers[i].value());
+    }
+    this.size = size;
+    return this;
+  }
+
+  /**
+   * The number of bytes {@link #writeTo(ByteBuffer)} will write, including the length prefix.
+   */
+  public int sizeInBytes() {
+    return size;
+  }
+
+  /**
+   * Writes this frame, including its length prefix, at the buffer's current position.
+   *
+   * @throws java.nio.BufferOverflowException if the buffer has less than {@link #sizeInBytes()} remaining.
+   */
+  public void writeTo(ByteBuffer buffer) {
+    buffer.putInt(size - LENGTH_SIZE);
+    buffer.putInt(partition);
+    buffer.putLong(offset);
+    buffer.putLong(timestamp);
+    putBytes(buffer, key);
+    putBytes(buffer, value);
+    buffer.putInt(headers.length);
+    for (int i = 0; i < headers.length; i++) {
+      putBytes(buffer, headerKeys[i]);
+      putBytes(buffer, headers[i].value());
+    }
+  }
+
+  /**
+   * Reads a frame body, that is everything after the length prefix, from the buffer's current position up to
+   * its limit. Key, value and header arrays are copied out of the buffer, which may therefore be re-used.
+   *
+   * @return this frame
+   * @throws InvalidRecordException if the frame is truncated or malformed.
+   */
+  public RecordFrame readFrom(ByteBuffer body) {
+    try {
+      int bodySize = body.remaining();
+      this.partition = body.getInt();
+      this.offset = body.getLong();
+      this.timestamp = body.getLong();
+      this.key = getBytes(body);
+      this.value = getBytes(body);
+      int headerCount = body.getInt();
+      if (headerCount < 0 || headerCount > body.remaining() / 8)
+        throw new InvalidRecordException("Invalid header count in record frame: " + headerCount);
+      this.headers = headerCount == 0 ? NO_HEADERS : new Header[headerCount];
+      for (int i = 0; i < headerCount; i++) {
+        byte[] headerKey = getBytes(body);
+        if (headerKey == null)
+          throw new InvalidRecordException("Null header key in record frame");
+        this.headers[i] = new RecordHeader(new String(headerKey, StandardCharsets.UTF_8), getBytes(body));
+      }
+      this.headerKeys = new byte[0][];
+      this.size = LENGTH_SIZE + bodySize;
+      return this;
+    } catch (BufferUnderflowException e) {
+      throw new InvalidRecordException("Truncated record frame");
+    }
+  }
+
+  public int partition() {
+    return partition;
+  }
+
+  public long offset() {
+    return offset;
+  }
+
+  public long timestamp() {
+    return timestamp;
+  }
+
+  public byte[] key() {
+    return key;
+  }
+
+  public byte[] value() {
+    return value;
+  }
+
+  /**
+   * A fresh {@code Headers} instance holding this frame's headers.
+   */
+  public Headers headers() {
+    return new RecordHeaders(headers.length == 0 ? NO_HEADERS : headers.clone());
+  }
+
+  public int serializedKeySize() {
+    return key == null ? -1 : key.length;
+  }
+
+  public int serializedValueSize() {
+    return value == null ? -1 : value.length;
+  }
+
+  // --- Internal Implementation Methods --------------------------------------------------------------------
+
+  private static int lengthOf(byte[] bytes) {
+    return 4 + (bytes == null ? 0 : bytes.length);
+  }
+
+  private static void putBytes(ByteBuffer buffer, byte[] bytes) {
+    if (bytes == null) {
+      buffer.putInt(-1);
+    } else {
+      buffer.putInt(bytes.length);
+      buffer.put(bytes);
+    }
+  }
+
+  private static byte[] getBytes(ByteBuffer buffer) {
+    int length = buffer.getInt();
+    if (length < 0) return null;
+    if (length > buffer.remaining())
+      throw new InvalidRecordException("Field length " + length + " exceeds the remaining " + buffer.remaining() + " bytes of the record frame");
+    byte[] bytes = new byte[length];
+    buffer.get(bytes);
+    return bytes;
+  }
+}
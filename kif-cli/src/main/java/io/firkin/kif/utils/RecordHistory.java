@@ -0,0 +1,154 @@
+/*
+ * Copyright © 2021 Kif Contributors (https://kif.firkin.io/)
+ * Copyright © 2021 Firkin•IO (https://firkin.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.firkin.kif.utils;
+
+import org.apache.kafka.common.config.ConfigException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Holds the records (or offsets) a local {@code Producer} has sent, for inspection by tests and when debugging.
+ * <p/>
+ * How much is kept depends on the {@link Mode}:
+ * <ul>
+ *   <li>{@link Mode#ALL} keeps everything; memory grows with every record. This is the {@code MockProducer}
+ *       behavior, intended for tests.</li>
+ *   <li>{@link Mode#RECENT} keeps only the most recent {@code kif.history.size} entries in a fixed-size ring.</li>
+ *   <li>{@link Mode#NONE} keeps nothing; memory stays flat no matter how many records are sent.</li>
+ * </ul>
+ * <i> This class is <em>not</em> threadsafe.</i>
+ *
+ * @param <E> The type of the entries kept.
+ */
+public class RecordHistory<E> {
+
+  /** One of {@code all}, {@code recent}, or {@code none}. */
+  public static final String MODE_CONFIG = "kif.history.mode";
+
+  /** The number of entries kept when {@code kif.history.mode=recent}. */
+  public static final String SIZE_CONFIG = "kif.history.size";
+
+  public static final int DEFAULT_SIZE = 1024;
+
+  public enum Mode {
+    ALL,
+    RECENT,
+    NONE
+  }
+
+  private final Mode mode;
+  private final int capacity;
+  private final List<E> all;
+  private final Object[] ring;
+  private long count;
+
+  public RecordHistory(Mode mode, int capacity) {
+    if (mode == Mode.RECENT && capacity <= 0)
+      throw new IllegalArgumentException("A recent history must have a positive size: " + capacity);
+    this.mode = mode;
+    this.capacity = capacity;
+    this.all = mode == Mode.ALL ? new ArrayList<>() : null;
+    this.ring = mode == Mode.RECENT ? new Object[capacity] : null;
+  }
+
+  /**
+   * Build a history from {@code kif.history.mode} and {@code kif.history.size}.
+   *
+   * @param defaultMode the mode used when {@code kif.history.mode} isn't set.
+   */
+  public static <E> RecordHistory<E> of(Map<String, ?> configs, Mode defaultMode) {
+    String modeName = ClientConfigs.getString(configs, MODE_CONFIG, defaultMode.name());
+    Mode mode;
+    try {
+      mode = Mode.valueOf(modeName.toUpperCase(Locale.ROOT));
+    } catch (IllegalArgumentException e) {
+      throw new ConfigException(MODE_CONFIG, modeName, "Expected one of all, recent, or none");
+    }
+    int size = ClientConfigs.getInt(configs, SIZE_CONFIG, DEFAULT_SIZE);
+    if (mode == Mode.RECENT && size <= 0)
+      throw new ConfigException(SIZE_CONFIG, size, "Expected a positive size for a recent history");
+    return new RecordHistory<>(mode, size);
+  }
+
+  public Mode mode() {
+    return mode;
+  }
+
+  public void add(E entry) {
+    switch (mode) {
+      case ALL:
+        all.add(entry);
+        break;
+      case RECENT:
+        ring[(int) (count % capacity)] = entry;
+        break;
+      case NONE:
+      default:
+        break;
+    }
+    count++;
+  }
+
+  public void addAll(Collection<? extends E> entries) {
+    for (E entry : entries)
+      add(entry);
+  }
+
+  /**
+   * The entries currently kept, oldest first.
+   */
+  @SuppressWarnings("unchecked")
+  public List<E> list() {
+    switch (mode) {
+      case ALL:
+        return new ArrayList<>(all);
+      case RECENT:
+        int size = (int) Math.min(count, capacity);
+        List<E> result = new ArrayList<>(size);
+        for (long i = count - size; i < count; i++)
+          result.add((E) ring[(int) (i % capacity)]);
+        return result;
+      case NONE:
+      default:
+        return Collections.emptyList();
+    }
+  }
+
+  /**
+   * The number of entries added since the last {@link #clear()}, whether or not they were kept.
+   */
+  public long count() {
+    return count;
+  }
+
+  public boolean isEmpty() {
+    return count == 0;
+  }
+
+  public void clear() {
+    if (all != null) all.clear();
+    if (ring != null) Arrays.fill(ring, null);
+    count = 0;
+  }
+}
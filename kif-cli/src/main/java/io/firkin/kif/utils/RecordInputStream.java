@@ -17,10 +17,71 @@
 
 package io.firkin.kif.utils;
 
+import java.time.Duration;
+import java.util.Collection;
+
 public interface RecordInputStream<T> {
   boolean hasNext();
 
   T read();
 
+  /**
+   * Read up to {@code max} values that are ready into {@code into}, from index 0; like {@link #read()}, this
+   * never waits.
+   *
+   * @return the number of values read, which is 0 if none are ready.
+   */
+  default int readBatch(int max, T[] into) {
+    int limit = Math.min(max, into.length);
+    int n = 0;
+    while (n < limit && hasNext())
+      into[n++] = read();
+    return n;
+  }
+
+  /**
+   * The next value, waiting up to {@code timeout} for one to be ready. A stream whose values arrive over time
+   * should override this to block until one does, so that its readers needn't poll {@link #hasNext()}; the
+   * default returns at once, as {@link #read()} does.
+   *
+   * @return the value, or null if none was ready in time, or the stream has ended.
+   */
+  default T read(Duration timeout) {
+    return hasNext() ? read() : null;
+  }
+
+  /**
+   * Read up to {@code max} values into {@code into}, from index 0, waiting up to {@code timeout} for the first of
+   * them. A stream whose values arrive over time should override this, as {@link #read(Duration)}; the default
+   * returns at once, as {@link #readBatch(int, Object[])} does.
+   *
+   * @return the number of values read, which is 0 if none was ready in time, or the stream has ended.
+   */
+  default int readBatch(int max, T[] into, Duration timeout) {
+    return readBatch(max, into);
+  }
+
+  /**
+   * Add every value that is ready to {@code into}; like {@link #read()}, this never waits.
+   *
+   * @return the number of values added.
+   */
+  default int drainTo(Collection<? super T> into) {
+    int n = 0;
+    while (hasNext()) {
+      into.add(read());
+      n++;
+    }
+    return n;
+  }
+
+  /**
+   * Whether every value has been read, and no more ever will be: the stream's source has ended, or the stream
+   * has been closed. A stream whose source never ends (a Kafka topic, say) only ends once it is closed.
+   */
+  default boolean isEndOfStream() {
+    return false;
+  }
+
   void close();
 }
@@ -17,17 +17,30 @@
 
 package io.firkin.kif.utils;
 
-import org.apache.kafka.clients.producer.MockProducer;
+import org.apache.kafka.clients.producer.Callback;
 import org.apache.kafka.clients.producer.Producer;
 import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
 import org.apache.kafka.common.header.Headers;
+import org.apache.kafka.common.record.RecordBatch;
 
 import io.firkin.kif.utils.RecordUtils.KeyResolver;
 import io.firkin.kif.utils.RecordUtils.PartitionResolver;
 import io.firkin.kif.utils.RecordUtils.ValueResolver;
 import io.firkin.kif.utils.RecordUtils.HeaderResolver;
+import io.firkin.kif.utils.RecordUtils.IntPartitionResolver;
+
+import java.util.Objects;
+import java.util.concurrent.Future;
 
 /**
+ * Writes objects to a topic, resolving each one's key, value, partition and headers.
+ * <p/>
+ * When the producer is a kif-native {@link RecordSink}, objects are written through it, filling one
+ * {@link MutableRecord} over and over; so no {@code ProducerRecord}, headers or {@code Future} is made per
+ * object. An {@link IntPartitionResolver}, such as the default {@link RecordUtils#zeroPartition()}, also
+ * resolves partitions without boxing.
+ * <i> This class is <em>not</em> threadsafe.</i>
  *
  * @param <T> The type of the Java Object produced to the Topic
  * @param <K> The type of the Key Object used to key the Record
@@ -43,8 +56,11 @@ public class RecordOutputStream <T, K, V> extends RecordStream {
   PartitionResolver<T> pr;
   HeaderResolver<T> hr;
 
+  private final RecordSink<K,V> sink;
+  private final MutableRecord<K,V> holder;
+
   public RecordOutputStream (Producer<K,V> producer) {
-    this(new MockProducer<>(),
+    this(producer,
         RecordUtils.nullKey(),
         RecordUtils.identityValue(),
         RecordUtils.zeroPartition(),
@@ -78,6 +94,8 @@ public class RecordOutputStream <T, K, V> extends RecordStream {
     this.hr = headerResolver;
 
     this.producer = producer;
+    this.sink = producer instanceof RecordSink ? (RecordSink<K,V>) producer : null;
+    this.holder = this.sink == null ? null : new MutableRecord<>();
   }
 
   public K key(T t) {
@@ -101,6 +119,10 @@ public class RecordOutputStream <T, K, V> extends RecordStream {
   }
 
   public void write(T t) {
+    if (sink != null) {
+      sink.write(holder.set(topic, intPartition(t), RecordBatch.NO_TIMESTAMP, kr.key(t), vr.value(t), hr.headers(t)));
+      return;
+    }
     producer.send(
         new ProducerRecord<K,V>(topic,
             pr.partition(t),
@@ -109,7 +131,75 @@ public class RecordOutputStream <T, K, V> extends RecordStream {
             hr.headers(t)));
   }
 
+  /**
+   * Write an object, and have {@code callback} called once the producer has acknowledged it, or failed to.
+   * The record always goes through {@link Producer#send(ProducerRecord, Callback)}, even when the producer is a
+   * {@link RecordSink}, so that every record's metadata is reported.
+   */
+  public Future<RecordMetadata> write(T t, Callback callback) {
+    return producer.send(
+        new ProducerRecord<K,V>(topic,
+            pr.partition(t),
+            kr.key(t),
+            vr.value(t),
+            hr.headers(t)),
+        callback);
+  }
+
+  /**
+   * Wait until every record written so far has been acknowledged by the producer; see {@link Producer#flush()}.
+   */
+  public void flush() {
+    producer.flush();
+  }
+
+  /**
+   * Write every object, in order. The resolvers, topic and producer are looked up once for the whole batch.
+   */
+  public void writeAll(Iterable<? extends T> batch) {
+    if (sink != null) {
+      for (T t : batch)
+        write(t);
+      return;
+    }
+    Producer<K,V> producer = this.producer;
+    String topic = this.topic;
+    KeyResolver<T,K> kr = this.kr;
+    ValueResolver<T,V> vr = this.vr;
+    PartitionResolver<T> pr = this.pr;
+    HeaderResolver<T> hr = this.hr;
+    for (T t : batch)
+      producer.send(new ProducerRecord<K,V>(topic, pr.partition(t), kr.key(t), vr.value(t), hr.headers(t)));
+  }
+
+  /**
+   * Write {@code len} objects of {@code batch}, from {@code off}, in order. The resolvers, topic and producer
+   * are looked up once for the whole batch.
+   */
+  public void write(T[] batch, int off, int len) {
+    Objects.checkFromIndexSize(off, len, batch.length);
+    if (sink != null) {
+      for (int i = off, end = off + len; i < end; i++)
+        write(batch[i]);
+      return;
+    }
+    Producer<K,V> producer = this.producer;
+    String topic = this.topic;
+    KeyResolver<T,K> kr = this.kr;
+    ValueResolver<T,V> vr = this.vr;
+    PartitionResolver<T> pr = this.pr;
+    HeaderResolver<T> hr = this.hr;
+    for (int i = off, end = off + len; i < end; i++) {
+      T t = batch[i];
+      producer.send(new ProducerRecord<K,V>(topic, pr.partition(t), kr.key(t), vr.value(t), hr.headers(t)));
+    }
+  }
+
   public void write(T obj, K key, V value) {
+    if (sink != null) {
+      sink.write(holder.set(topic, intPartition(obj), RecordBatch.NO_TIMESTAMP, key, value, hr.headers(obj)));
+      return;
+    }
     producer.send(
         new ProducerRecord<>(topic,
             pr.partition(obj),
@@ -117,4 +207,13 @@ public class RecordOutputStream <T, K, V> extends RecordStream {
             value,
             hr.headers(obj)));
   }
+
+  // --- Internal Implementation Methods --------------------------------------------------------------------
+
+  private int intPartition(T t) {
+    if (pr instanceof IntPartitionResolver)
+      return ((IntPartitionResolver<T>) pr).intPartition(t);
+    Integer partition = pr.partition(t);
+    return partition == null ? -1 : partition;
+  }
 }
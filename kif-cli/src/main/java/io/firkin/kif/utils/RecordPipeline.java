@@ -0,0 +1,396 @@
+/*
+ * Copyright © 2021 Kif Contributors (https://kif.firkin.io/)
+ * Copyright © 2021 Firkin•IO (https://firkin.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.firkin.kif.utils;
+
+import org.apache.kafka.common.KafkaException;
+import org.apache.kafka.common.config.ConfigException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Moves records from a {@link Source}, through a sequence of stages, to a {@link Sink}, with every stage on
+ * its own thread or pool of threads. For example, to convert a stream of records:
+ * <pre>
+ *   RecordPipeline.from(source, configs)
+ *       .stage("decode", 8, () -> decoder)
+ *       .stage("transform", 8, () -> transformer)
+ *       .stage("encode", 8, () -> encoder)
+ *       .to(sink)
+ *       .run();</pre>
+ * <p/>
+ * The source is read a batch at a time, and batches are numbered as they are read. A stage with {@code W}
+ * workers gives batch {@code n} to worker {@code n % W}, and each pair of neighbouring workers is joined by its
+ * own bounded {@link SpscRing}; so every worker knows which ring the next batch it needs arrives on, and which
+ * ring to send it on. The sink takes the batches in the order they were read without any reordering buffer,
+ * and records leave the pipeline in exactly the order they entered it; in particular, the records of each
+ * partition stay in order, however many workers each stage has.
+ * <p/>
+ * Each worker applies its stage's function to every record of a batch, in place. A function may return null
+ * to drop a record; later stages skip it, and it is never written. Every worker gets its own function from the stage's factory, so functions such as
+ * serializers need not be threadsafe.
+ * <ul>
+ *   <li>{@code kif.pipeline.batch.size} the most records read from the source into a batch; default 256.</li>
+ *   <li>{@code kif.pipeline.ring.batches} the batches that may wait between two workers; default 4.</li>
+ * </ul>
+ * When the ring ahead of a worker is full it waits, so memory is bounded by the batches in the rings. If the
+ * source, a stage or the sink fails, every worker stops, and {@link #run()} throws the first failure.
+ *
+ * @param <I> The type of the records read from the source.
+ * @param <O> The type of the records produced by the last stage.
+ */
+public final class RecordPipeline<I, O> {
+
+  public static final String BATCH_SIZE_CONFIG = "kif.pipeline.batch.size";
+  public static final String RING_BATCHES_CONFIG = "kif.pipeline.ring.batches";
+
+  public static final int DEFAULT_BATCH_SIZE = 256;
+  public static final int DEFAULT_RING_BATCHES = 4;
+
+  /** How long a worker waits on a ring before looking again at whether the pipeline has stopped. */
+  private static final long WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+  /**
+   * Where the records of a pipeline come from. Only the pipeline's reader thread calls the source.
+   */
+  @FunctionalInterface
+  public interface Source<I> {
+    /**
+     * Add up to {@code max} records to {@code into}. This may wait for records, but should not wait
+     * indefinitely.
+     *
+     * @return the number of records added, 0 if none are ready yet, or -1 at the end of the source.
+     */
+    int read(List<? super I> into, int max) throws Exception;
+  }
+
+  /**
+   * Where the records of a pipeline go. Only the pipeline's writer thread calls the sink.
+   */
+  @FunctionalInterface
+  public interface Sink<O> {
+    /**
+     * Write the records of {@code batch}, in order.
+     */
+    void write(List<? extends O> batch) throws Exception;
+  }
+
+  private final Source<I> source;
+  private final int batchSize;
+  private final int ringBatches;
+  private final List<Stage> stages = new ArrayList<>();
+  private Sink<? super O> sink;
+
+  private final AtomicReference<Throwable> failure = new AtomicReference<>();
+  private final List<SpscRing<Batch>> rings = new ArrayList<>();
+  private volatile boolean stopped;
+  private long written;
+
+  // --- Initialization -------------------------------------------------------------------------------------
+
+  /**
+   * @param configs see {@link #BATCH_SIZE_CONFIG} and {@link #RING_BATCHES_CONFIG}.
+   */
+  public static <I> RecordPipeline<I,I> from(Source<I> source, Map<String, ?> configs) {
+    return new RecordPipeline<>(source, configs);
+  }
+
+  public static <I> RecordPipeline<I,I> from(Source<I> source) {
+    return from(source, Collections.emptyMap());
+  }
+
+  private RecordPipeline(Source<I> source, Map<String, ?> configs) {
+    this.source = Objects.requireNonNull(source);
+    this.batchSize = ClientConfigs.getInt(configs, BATCH_SIZE_CONFIG, DEFAULT_BATCH_SIZE);
+    if (this.batchSize <= 0)
+      throw new ConfigException(BATCH_SIZE_CONFIG, this.batchSize, "Must be positive");
+    this.ringBatches = ClientConfigs.getInt(configs, RING_BATCHES_CONFIG, DEFAULT_RING_BATCHES);
+    if (this.ringBatches <= 0)
+      throw new ConfigException(RING_BATCHES_CONFIG, this.ringBatches, "Must be positive");
+  }
+
+  // --- Configuration --------------------------------------------------------------------------------------
+
+  /**
+   * Add a stage which applies a function to every record, on {@code workers} threads.
+   *
+   * @param name names the stage's threads, and its failures.
+   * @param factory called once for each worker.
+   */
+  @SuppressWarnings("unchecked")
+  public <R> RecordPipeline<I,R> stage(String name, int workers, Supplier<? extends Function<? super O, ? extends R>> factory) {
+    if (workers <= 0)
+      throw new IllegalArgumentException("A stage needs at least one worker: " + name);
+    if (sink != null)
+      throw new IllegalStateException("Stages can't be added after the sink");
+    stages.add(new Stage(name, workers, (Supplier<? extends Function<Object, Object>>) (Supplier<?>) factory));
+    return (RecordPipeline<I,R>) this;
+  }
+
+  public RecordPipeline<I,O> to(Sink<? super O> sink) {
+    this.sink = Objects.requireNonNull(sink);
+    return this;
+  }
+
+  // --- Execution ------------------------------------------------------------------------------------------
+
+  /**
+   * Run the pipeline until the source ends and every record has been written, or until something fails.
+   *
+   * @return the number of records written to the sink.
+   * @throws KafkaException the first failure of the source, a stage or the sink.
+   */
+  public long run() {
+    if (sink == null)
+      throw new IllegalStateException("A pipeline needs a sink");
+
+    // Node 0 is the reader, the last node the writer; between them, each stage's workers.
+    int nodes = stages.size() + 2;
+    int[] workers = new int[nodes];
+    workers[0] = 1;
+    for (int s = 0; s < stages.size(); s++)
+      workers[s + 1] = stages.get(s).workers;
+    workers[nodes - 1] = 1;
+
+    // links[n][u][d] joins worker u of node n to worker d of node n + 1.
+    SpscRing<Batch>[][][] links = newLinks(nodes - 1);
+    for (int n = 0; n < nodes - 1; n++) {
+      links[n] = newRings(workers[n], workers[n + 1]);
+      for (SpscRing<Batch>[] row : links[n])
+        Collections.addAll(rings, row);
+    }
+
+    List<Thread> threads = new ArrayList<>();
+    threads.add(thread("read", () -> read(links[0][0], workers[1])));
+    for (int s = 0; s < stages.size(); s++) {
+      Stage stage = stages.get(s);
+      int n = s + 1;
+      for (int w = 0; w < stage.workers; w++) {
+        Function<Object, Object> function = stage.factory.get();
+        int worker = w;
+        threads.add(thread(stage.name + "-" + w,
+            () -> transform(stage.name, function, worker, workers[n], links[n - 1], links[n], workers[n + 1])));
+      }
+    }
+    threads.add(thread("write", () -> write(links[nodes - 2], workers[nodes - 2])));
+
+    for (Thread thread : threads)
+      thread.start();
+    try {
+      for (Thread thread : threads)
+        thread.join();
+    } catch (InterruptedException e) {
+      stop(e);
+      Thread.currentThread().interrupt();
+    }
+
+    Throwable e = failure.get();
+    if (e instanceof KafkaException)
+      throw (KafkaException) e;
+    if (e != null)
+      throw new KafkaException("The record pipeline failed", e);
+    return written;
+  }
+
+  /**
+   * Stop every worker, leaving any records still in the pipeline unwritten. {@link #run()} returns once they
+   * have stopped.
+   */
+  public void close() {
+    stopped = true;
+    for (SpscRing<Batch> ring : rings)
+      ring.close();
+  }
+
+  // --- Internal Implementation Methods --------------------------------------------------------------------
+
+  @SuppressWarnings("unchecked")
+  private void read(SpscRing<Batch>[] out, int downstream) {
+    long k = 0;
+    ArrayList<Object> items = new ArrayList<>(batchSize);
+    while (!stopped) {
+      int size;
+      try {
+        size = source.read((List<? super I>) items, batchSize);
+      } catch (Exception e) {
+        stop(e instanceof KafkaException ? e : new KafkaException("Reading the pipeline's source failed", e));
+        return;
+      }
+      if (!items.isEmpty()) {
+        if (!put(out[(int) (k % downstream)], new Batch(items)))
+          return;
+        items = new ArrayList<>(batchSize);
+        k++;
+      }
+      if (size < 0) {
+        Batch end = Batch.end(k);
+        for (long next = k; next < k + downstream; next++)
+          if (!put(out[(int) (next % downstream)], end))
+            return;
+        return;
+      }
+    }
+  }
+
+  private void transform(String name, Function<Object, Object> function, int worker, int workers,
+                         SpscRing<Batch>[][] in, SpscRing<Batch>[][] out, int downstream) {
+    int upstream = in.length;
+    SpscRing<Batch>[] ahead = out[worker];
+    for (long k = worker; ; k += workers) {
+      Batch batch = take(in[(int) (k % upstream)][worker]);
+      if (batch == null)
+        return;
+      if (batch.isEnd()) {
+        // Every worker of the next node is owed an end, at the first number past the last batch it will get.
+        for (long next = k; next < batch.count + downstream; next += workers)
+          if (!put(ahead[(int) (next % downstream)], batch))
+            return;
+        return;
+      }
+      ArrayList<Object> items = batch.items;
+      try {
+        for (int i = 0, size = items.size(); i < size; i++) {
+          Object item = items.get(i);
+          if (item != null) // dropped by an earlier stage
+            items.set(i, function.apply(item));
+        }
+      } catch (KafkaException e) {
+        stop(e);
+        return;
+      } catch (RuntimeException e) {
+        stop(new KafkaException("The " + name + " stage of the pipeline failed", e));
+        return;
+      }
+      if (!put(ahead[(int) (k % downstream)], batch))
+        return;
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private void write(SpscRing<Batch>[][] in, int upstream) {
+    Sink<Object> sink = (Sink<Object>) this.sink;
+    long count = 0;
+    try {
+      for (long k = 0; ; k++) {
+        Batch batch = take(in[(int) (k % upstream)][0]);
+        if (batch == null || batch.isEnd())
+          break;
+        ArrayList<Object> items = batch.items;
+        items.removeIf(Objects::isNull);
+        if (!items.isEmpty())
+          sink.write(items);
+        count += items.size();
+      }
+    } catch (Exception e) {
+      stop(e instanceof KafkaException ? e : new KafkaException("Writing to the pipeline's sink failed", e));
+    } finally {
+      written = count;
+    }
+  }
+
+  private Batch take(SpscRing<Batch> ring) {
+    Batch batch;
+    while ((batch = ring.poll(WAIT_NANOS)) == null)
+      if (stopped || ring.isClosed())
+        return null;
+    return batch;
+  }
+
+  private boolean put(SpscRing<Batch> ring, Batch batch) {
+    while (!ring.offer(batch, WAIT_NANOS))
+      if (stopped || ring.isClosed())
+        return false;
+    return true;
+  }
+
+  private void stop(Throwable e) {
+    failure.compareAndSet(null, e);
+    close();
+  }
+
+  private Thread thread(String name, Runnable body) {
+    Thread thread = new Thread(() -> {
+      try {
+        body.run();
+      } catch (Throwable e) {
+        stop(e);
+      }
+    }, "kif-pipeline-" + name);
+    thread.setDaemon(true);
+    return thread;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static SpscRing<Batch>[][][] newLinks(int n) {
+    return (SpscRing<Batch>[][][]) new SpscRing<?>[n][][];
+  }
+
+  @SuppressWarnings("unchecked")
+  private SpscRing<Batch>[][] newRings(int upstream, int downstream) {
+    SpscRing<Batch>[][] rings = (SpscRing<Batch>[][]) new SpscRing<?>[upstream][downstream];
+    for (int u = 0; u < upstream; u++)
+      for (int d = 0; d < downstream; d++)
+        rings[u][d] = new SpscRing<>(ringBatches);
+    return rings;
+  }
+
+  private static final class Stage {
+    private final String name;
+    private final int workers;
+    private final Supplier<? extends Function<Object, Object>> factory;
+
+    Stage(String name, int workers, Supplier<? extends Function<Object, Object>> factory) {
+      this.name = name;
+      this.workers = workers;
+      this.factory = factory;
+    }
+  }
+
+  /**
+   * A numbered run of records; or, with no records, the end of the source, after {@code count} batches.
+   */
+  private static final class Batch {
+    private final ArrayList<Object> items;
+    private final long count;
+
+    Batch(ArrayList<Object> items) {
+      this.items = items;
+      this.count = -1L;
+    }
+
+    private Batch(long count) {
+      this.items = null;
+      this.count = count;
+    }
+
+    static Batch end(long count) {
+      return new Batch(count);
+    }
+
+    boolean isEnd() {
+      return items == null;
+    }
+  }
+}
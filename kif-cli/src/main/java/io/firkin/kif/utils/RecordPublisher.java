@@ -0,0 +1,199 @@
+/*
+ * Copyright © 2021 Kif Contributors (https://kif.firkin.io/)
+ * Copyright © 2021 Firkin•IO (https://firkin.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.firkin.kif.utils;
+
+import org.apache.kafka.common.config.ConfigException;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Publishes the values of a {@link RecordInputStream} to a single {@link Flow.Subscriber}, reading no more
+ * values than the subscriber has requested.
+ * <p/>
+ * An emitter thread reads for the subscriber: while there is demand, up to {@code kif.publisher.batch.size}
+ * values at a time, but never more than is outstanding; while there is none, it reads nothing, so a
+ * {@link DefaultRecordInputStream}'s prefetch ring fills up and its consumer stops polling. Demand is what drives
+ * the consumer, and nothing is buffered between it and the subscriber beyond the prefetched batches.
+ * <ul>
+ *   <li>{@code kif.publisher.batch.size} the most values read at a time; default 500, as for
+ *       {@code max.poll.records}.</li>
+ *   <li>{@code kif.poll.timeout.ms} how long each read waits for values; default 100.</li>
+ * </ul>
+ * The subscriber is completed once {@link RecordInputStream#isEndOfStream()}, and gets the stream's failure,
+ * if it fails. The publisher owns the stream: it closes it when the subscription ends, whether it completed,
+ * failed, or was cancelled. Only one subscriber is allowed, since a stream can only be read once; any other
+ * is sent an {@code IllegalStateException}.
+ *
+ * @param <T> The type of the values published.
+ */
+public class RecordPublisher<T> implements Flow.Publisher<T> {
+
+  public static final String BATCH_SIZE_CONFIG = "kif.publisher.batch.size";
+  public static final String POLL_TIMEOUT_MS_CONFIG = DefaultRecordInputStream.POLL_TIMEOUT_MS_CONFIG;
+
+  public static final int DEFAULT_BATCH_SIZE = 500;
+  public static final long DEFAULT_POLL_TIMEOUT_MS = 100L;
+
+  private final RecordInputStream<T> in;
+  private final int batchSize;
+  private final Duration pollTimeout;
+  private final AtomicBoolean subscribed = new AtomicBoolean();
+
+  /**
+   * @param configs see {@link #BATCH_SIZE_CONFIG} and {@link #POLL_TIMEOUT_MS_CONFIG}.
+   */
+  public RecordPublisher(RecordInputStream<T> in, Map<String, ?> configs) {
+    this.in = in;
+    this.batchSize = ClientConfigs.getInt(configs, BATCH_SIZE_CONFIG, DEFAULT_BATCH_SIZE);
+    if (this.batchSize <= 0)
+      throw new ConfigException(BATCH_SIZE_CONFIG, this.batchSize, "Must be positive");
+    long pollTimeoutMs = ClientConfigs.getLong(configs, POLL_TIMEOUT_MS_CONFIG, DEFAULT_POLL_TIMEOUT_MS);
+    if (pollTimeoutMs < 0)
+      throw new ConfigException(POLL_TIMEOUT_MS_CONFIG, pollTimeoutMs, "Must not be negative");
+    this.pollTimeout = Duration.ofMillis(pollTimeoutMs);
+  }
+
+  public RecordPublisher(RecordInputStream<T> in) {
+    this(in, Collections.emptyMap());
+  }
+
+  @Override
+  public void subscribe(Flow.Subscriber<? super T> subscriber) {
+    if (subscriber == null)
+      throw new NullPointerException();
+    if (!subscribed.compareAndSet(false, true)) {
+      subscriber.onSubscribe(new Flow.Subscription() {
+        @Override
+        public void request(long n) {
+        }
+
+        @Override
+        public void cancel() {
+        }
+      });
+      subscriber.onError(new IllegalStateException("A record stream can only have one subscriber"));
+      return;
+    }
+    Emitter emitter = new Emitter(subscriber);
+    subscriber.onSubscribe(emitter);
+    emitter.start();
+  }
+
+  // --- Internal Implementation Methods --------------------------------------------------------------------
+
+  /**
+   * The subscription, and the thread which reads the stream for it. Only the emitter thread reads the stream
+   * or signals the subscriber, so the subscriber's signals are never concurrent.
+   */
+  private final class Emitter implements Flow.Subscription, Runnable {
+    private final Flow.Subscriber<? super T> subscriber;
+    private final AtomicLong demand = new AtomicLong();
+    private final Thread thread;
+    private volatile boolean cancelled;
+    private volatile Throwable invalidRequest;
+
+    Emitter(Flow.Subscriber<? super T> subscriber) {
+      this.subscriber = subscriber;
+      this.thread = new Thread(this, "kif-record-publisher");
+      this.thread.setDaemon(true);
+    }
+
+    void start() {
+      thread.start();
+    }
+
+    @Override
+    public void request(long n) {
+      if (n <= 0) {
+        invalidRequest = new IllegalArgumentException("A subscriber must request a positive number: " + n);
+        cancelled = true;
+      } else {
+        demand.getAndAccumulate(n, (current, more) -> current + more < 0 ? Long.MAX_VALUE : current + more);
+      }
+      LockSupport.unpark(thread);
+    }
+
+    @Override
+    public void cancel() {
+      cancelled = true;
+      LockSupport.unpark(thread);
+    }
+
+    @Override
+    public void run() {
+      Object[] values = new Object[batchSize];
+      try {
+        while (!cancelled) {
+          long wanted = demand.get();
+          if (wanted == 0) {
+            if (in.isEndOfStream()) { // completing needs no demand
+              subscriber.onComplete();
+              return;
+            }
+            LockSupport.parkNanos(this, pollTimeout.toNanos());
+            continue;
+          }
+          int n = read(values, (int) Math.min(wanted, batchSize));
+          if (n == 0) {
+            if (in.isEndOfStream()) {
+              subscriber.onComplete();
+              return;
+            }
+            continue;
+          }
+          demand.addAndGet(-n);
+          for (int i = 0; i < n; i++) {
+            @SuppressWarnings("unchecked")
+            T value = (T) values[i];
+            values[i] = null;
+            if (cancelled)
+              return;
+            try {
+              subscriber.onNext(value);
+            } catch (RuntimeException e) {
+              cancelled = true; // a subscriber may not throw; if it does, its subscription is over
+              return;
+            }
+          }
+        }
+        Throwable e = invalidRequest;
+        if (e != null)
+          subscriber.onError(e);
+      } catch (RuntimeException e) {
+        if (!cancelled)
+          subscriber.onError(e);
+      } finally {
+        in.close();
+      }
+    }
+
+    /**
+     * Read up to {@code max} values, waiting up to the poll timeout for the first of them.
+     */
+    @SuppressWarnings("unchecked")
+    private int read(Object[] values, int max) {
+      return in.readBatch(max, (T[]) values, pollTimeout);
+    }
+  }
+}
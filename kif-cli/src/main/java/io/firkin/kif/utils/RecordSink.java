@@ -0,0 +1,36 @@
+/*
+ * Copyright © 2021 Kif Contributors (https://kif.firkin.io/)
+ * Copyright © 2021 Firkin•IO (https://firkin.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.firkin.kif.utils;
+
+import org.apache.kafka.clients.producer.Producer;
+
+/**
+ * A kif-native producer that can take records without a {@code ProducerRecord} or a {@code Future} per record.
+ * {@link RecordOutputStream} writes through this, where it can, filling one {@link MutableRecord} over and over.
+ * Being a {@link Producer} of the same key and value types, a producer is found to be a sink with a plain
+ * {@code instanceof}, and cast without an unchecked conversion.
+ */
+public interface RecordSink<K, V> extends Producer<K, V> {
+
+  /**
+   * Send a record, fire-and-forget. The record is not kept, so it may be refilled as soon as this returns.
+   * There is no {@code Future} to report a failure: a record that can't be sent fails this call, or, if it
+   * was buffered, a later one, with the same exception a {@code send()} future would have failed with.
+   */
+  void write(MutableRecord<K, V> record);
+}
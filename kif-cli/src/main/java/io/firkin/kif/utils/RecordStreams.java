@@ -31,6 +31,7 @@ import io.confluent.kafka.serializers.json.KafkaJsonSchemaDeserializer;
 import io.confluent.kafka.serializers.json.KafkaJsonSchemaSerializer;
 import io.confluent.kafka.serializers.protobuf.KafkaProtobufDeserializer;
 import io.confluent.kafka.serializers.protobuf.KafkaProtobufSerializer;
+import io.firkin.kif.utils.log.LogSpliterator;
 import org.apache.avro.generic.IndexedRecord;
 import org.apache.kafka.clients.consumer.*;
 import org.apache.kafka.clients.producer.MockProducer;
@@ -43,7 +44,10 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.URI;
 import java.nio.file.Path;
+import java.time.Duration;
 import java.util.*;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * Static class for building input and output record streams. Example usage:
@@ -106,6 +110,12 @@ public class RecordStreams<T,K,V> {
 
   public static final long DEFAULT_CLOSE_TIMEOUT_MS = 30000L;
 
+  /**
+   * How long each read of {@link #records(RecordInputStream)} waits for the next value, before checking whether
+   * the stream has ended.
+   */
+  private static final Duration READ_TIMEOUT = Duration.ofMillis(100);
+
   // --- Initialization -------------------------------------------------------------------------------------
 
   public static <T,K,V> RecordStreams<T,K,V> stream() { return new RecordStreams<>(); }
@@ -186,6 +196,36 @@ public class RecordStreams<T,K,V> {
     return this;
   }
 
+  // --- Record Field Configuration -------------------------------------------------------------------------
+
+  private String keyPath;
+  private String partitionPath;
+  private int numPartitions;
+
+  /**
+   * Key each record by the field at {@code path}, e.g. {@code $.customer.id}; see {@link FieldPath}.
+   */
+  public RecordStreams<T,K,V> key(String path) {
+    FieldPath.compile(path); // fail fast on a bad path
+    this.keyPath = path;
+    return this;
+  }
+
+  /**
+   * Partition each record by the field at {@code path}, e.g. {@code $.region}; see
+   * {@link RecordUtils#pathPartition(String, int)}. Without a partition count, only numeric fields are used.
+   */
+  public RecordStreams<T,K,V> partitionBy(String path, int numPartitions) {
+    FieldPath.compile(path);
+    this.partitionPath = path;
+    this.numPartitions = numPartitions;
+    return this;
+  }
+
+  public RecordStreams<T,K,V> partitionBy(String path) {
+    return partitionBy(path, 0);
+  }
+
   // --- InputStream Configuration --------------------------------------------------------------------------
 
   private Path         inPath;
@@ -250,13 +290,35 @@ public class RecordStreams<T,K,V> {
    * @return
    */
   public RecordStreams<T,K,V> registry(SchemaRegistry schemaRegistry) { return this; }
-  public RecordStreams<T,K,V> registry(Properties schemaProperties) { return this; }
+  /**
+   * Configure the Schema Registry from {@code schema.registry.url} and the client's other configs. Schemas are
+   * cached on disk across invocations; see {@link CachingSchemaRegistryClient}.
+   */
+  public RecordStreams<T,K,V> registry(Properties schemaProperties) {
+    this.registryConfigs = new HashMap<>();
+    schemaProperties.forEach((key, value) -> registryConfigs.put(String.valueOf(key), value));
+    return this;
+  }
+
+  private Map<String, Object> registryConfigs;
+
+  /**
+   * The configured Schema Registry's client, or a mock if none is configured.
+   */
+  SchemaRegistryClient registryClient() {
+    if (registryConfigs == null || !registryConfigs.containsKey(CachingSchemaRegistryClient.SCHEMA_REGISTRY_URL_CONFIG))
+      return new MockSchemaRegistryClient();
+    return new CachingSchemaRegistryClient(registryConfigs);
+  }
 
   public RecordStreams<T,K,V> cluster(Properties kafkaProperties) { return this; }
   public RecordStreams<T,K,V> credentials(String apiToken) { return this; }
   public RecordStreams<T,K,V> credentials(String user, String password) { return this; }
   public RecordStreams<T,K,V> group(String consumerGroupId) { return this; }
-  public RecordStreams<T,K,V> topic(String topic) { return this; }
+  public RecordStreams<T,K,V> topic(String topic) {
+    this.topics.add(topic);
+    return this;
+  }
   public RecordStreams<T,K,V> topics(String[] topics) { return this; }
 
   // --- Stream Realization ---------------------------------------------------------------------------------
@@ -287,17 +349,77 @@ public class RecordStreams<T,K,V> {
 
   public DefaultRecordInputStream<T,K,V> in(Consumer<K,V> consumer) {
 
-    // TODO Implement Schema Registry Client based on registry() settings above.
-    SchemaRegistryClient srClient = new MockSchemaRegistryClient();
-    Map<String, ?> deserializerConfig = new HashMap<>();
-    Deserializer<T> deserializer = (Deserializer<T>) new KafkaAvroDeserializer(srClient, deserializerConfig);
+    SchemaRegistryClient srClient = registryClient();
+    // The stream's own deserializer, as it may be used from its prefetch thread; see SerdePool for sharing.
+    Deserializer<T> deserializer = (Deserializer<T>) (Deserializer<?>) new KifAvroDeserializer(srClient);
 
     return new DefaultRecordInputStream<T,K,V>(consumer, deserializer);
   }
 
+  /**
+   * Hand the consumer's records to {@code handler} on a pool of workers, keeping each key's records in order;
+   * see {@link ParallelRecordProcessor}.
+   */
+  public ParallelRecordProcessor<K,V> process(Consumer<K,V> consumer,
+                                              ParallelRecordProcessor.RecordHandler<K,V> handler) {
+    Map<String, Object> configMap = new HashMap<>();
+    return new ParallelRecordProcessor<>(consumer, handler, configMap);
+  }
+
+  /**
+   * A {@link Spliterator} over the records of the first topic's partitions in the log directory given to
+   * {@link #from(Path)}, which splits by partition and then by segment or offset range, so a parallel stream
+   * over it fans out across partitions and across the segments of each; see {@link LogSpliterator}.
+   */
+  public LogSpliterator<K,V> spliterator(Deserializer<K> keyDes, Deserializer<V> valDes) {
+    if (inPath == null)
+      throw new IllegalStateException("A log directory is required; see from(Path)");
+    if (topics.isEmpty())
+      throw new IllegalStateException("A topic is required; see topic(String)");
+    return LogSpliterator.open(inPath, topics.get(0), keyDes, valDes);
+  }
+
+  /**
+   * A stream of the records of {@link #spliterator(Deserializer, Deserializer)}, which is sequential until
+   * {@link Stream#parallel()} is called. Closing the stream closes the spliterator.
+   */
+  public Stream<ConsumerRecord<K,V>> records(Deserializer<K> keyDes, Deserializer<V> valDes) {
+    LogSpliterator<K,V> spliterator = spliterator(keyDes, valDes);
+    return StreamSupport.stream(spliterator, false).onClose(spliterator::close);
+  }
+
+  /**
+   * A stream of the values read from {@code in}, until it ends; blocking in {@link RecordInputStream#read(Duration)}
+   * until each value is ready, where {@link RecordInputStream#read()} doesn't wait. Such a stream can only be
+   * split by buffering a batch of values at a time, so a parallel stream over it only fans out the work done on
+   * each value. Closing the stream closes {@code in}.
+   */
+  public static <T> Stream<T> records(RecordInputStream<T> in) {
+    Spliterator<T> spliterator = new Spliterators.AbstractSpliterator<T>(Long.MAX_VALUE,
+        Spliterator.ORDERED | Spliterator.NONNULL) {
+      @Override
+      public boolean tryAdvance(java.util.function.Consumer<? super T> action) {
+        T value;
+        while ((value = in.read(READ_TIMEOUT)) == null)
+          if (in.isEndOfStream())
+            return false;
+        action.accept(value);
+        return true;
+      }
+    };
+    return StreamSupport.stream(spliterator, false).onClose(in::close);
+  }
+
   public RecordOutputStream<T,K,V> out() {
-    Producer<K,T> producer = new MockProducer<>();
-    return new RecordOutputStream(producer);
+    Producer<K,V> producer = new MockProducer<>();
+    if (keyPath == null && partitionPath == null)
+      return new RecordOutputStream<>(producer);
+    return new RecordOutputStream<>(producer,
+        keyPath == null ? RecordUtils.nullKey() : RecordUtils.pathKey(keyPath),
+        RecordUtils.identityValue(),
+        partitionPath == null ? RecordUtils.zeroPartition()
+            : numPartitions > 0 ? RecordUtils.pathPartition(partitionPath, numPartitions)
+            : RecordUtils.pathPartition(partitionPath));
   }
 
   /**
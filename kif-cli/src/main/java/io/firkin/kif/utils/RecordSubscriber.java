@@ -0,0 +1,140 @@
+/*
+ * Copyright © 2021 Kif Contributors (https://kif.firkin.io/)
+ * Copyright © 2021 Firkin•IO (https://firkin.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.firkin.kif.utils;
+
+import org.apache.kafka.clients.producer.Callback;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.common.KafkaException;
+import org.apache.kafka.common.config.ConfigException;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Writes the values it is sent to a {@link RecordOutputStream}, asking for more only as the producer acknowledges
+ * what it has already written.
+ * <p/>
+ * At most {@code kif.subscriber.max.in.flight} values are ever requested but not yet acknowledged: that many
+ * are requested up front, and more are requested, a quarter of them at a time, as the producer's callbacks
+ * report records written. When the producer's buffer fills up, its acknowledgements slow down, and so do the
+ * requests upstream; nothing is buffered between the publisher and the producer.
+ * <ul>
+ *   <li>{@code kif.subscriber.max.in.flight} the most values requested but not yet acknowledged; default
+ *       1024.</li>
+ * </ul>
+ * When the publisher completes, the output stream is flushed and {@link #completion()} completes. If the
+ * publisher fails, or a record can't be written, the subscription is cancelled and {@link #completion()}
+ * completes exceptionally. The output stream is not closed.
+ *
+ * @param <T> The type of the values written.
+ */
+public class RecordSubscriber<T> implements Flow.Subscriber<T> {
+
+  public static final String MAX_IN_FLIGHT_CONFIG = "kif.subscriber.max.in.flight";
+
+  public static final int DEFAULT_MAX_IN_FLIGHT = 1024;
+
+  private final RecordOutputStream<T, ?, ?> out;
+  private final int maxInFlight;
+  private final int requestBatch;
+  private final AtomicInteger acknowledged = new AtomicInteger();
+  private final CompletableFuture<Void> completion = new CompletableFuture<>();
+  private final Callback callback = this::onAcknowledged;
+  private volatile Flow.Subscription subscription;
+
+  /**
+   * @param configs see {@link #MAX_IN_FLIGHT_CONFIG}.
+   */
+  public RecordSubscriber(RecordOutputStream<T, ?, ?> out, Map<String, ?> configs) {
+    this.out = out;
+    this.maxInFlight = ClientConfigs.getInt(configs, MAX_IN_FLIGHT_CONFIG, DEFAULT_MAX_IN_FLIGHT);
+    if (this.maxInFlight <= 0)
+      throw new ConfigException(MAX_IN_FLIGHT_CONFIG, this.maxInFlight, "Must be positive");
+    this.requestBatch = Math.max(1, this.maxInFlight / 4);
+  }
+
+  public RecordSubscriber(RecordOutputStream<T, ?, ?> out) {
+    this(out, Collections.emptyMap());
+  }
+
+  /**
+   * Completes once every value has been written and acknowledged, or exceptionally with the first failure.
+   */
+  public CompletableFuture<Void> completion() {
+    return completion;
+  }
+
+  @Override
+  public void onSubscribe(Flow.Subscription subscription) {
+    if (this.subscription != null || completion.isDone()) {
+      subscription.cancel(); // one subscription per subscriber
+      return;
+    }
+    this.subscription = subscription;
+    subscription.request(maxInFlight);
+  }
+
+  @Override
+  public void onNext(T value) {
+    if (completion.isDone())
+      return;
+    try {
+      out.write(value, callback);
+    } catch (RuntimeException e) {
+      fail(e);
+    }
+  }
+
+  @Override
+  public void onError(Throwable e) {
+    completion.completeExceptionally(e);
+  }
+
+  @Override
+  public void onComplete() {
+    try {
+      out.flush();
+      completion.complete(null);
+    } catch (RuntimeException e) {
+      completion.completeExceptionally(e);
+    }
+  }
+
+  // --- Internal Implementation Methods --------------------------------------------------------------------
+
+  /**
+   * Called by the producer, possibly on its own I/O thread, as each record is acknowledged.
+   */
+  private void onAcknowledged(RecordMetadata metadata, Exception exception) {
+    if (exception != null) {
+      fail(exception);
+      return;
+    }
+    if (acknowledged.incrementAndGet() % requestBatch == 0 && !completion.isDone())
+      subscription.request(requestBatch);
+  }
+
+  private void fail(Exception e) {
+    if (completion.completeExceptionally(e instanceof KafkaException ? e
+        : new KafkaException("Writing to the record stream failed", e)))
+      subscription.cancel();
+  }
+}
@@ -19,16 +19,34 @@ package io.firkin.kif.utils;
 
 import org.apache.kafka.common.header.Header;
 import org.apache.kafka.common.header.Headers;
+import org.apache.kafka.common.header.internals.RecordHeader;
 import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.apache.kafka.common.utils.Utils;
 
 import java.math.BigDecimal;
 import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
 import java.util.Collections;
 import java.util.function.Function;
 import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
+import java.util.function.ToLongFunction;
 
+/**
+ * Resolvers which derive a record's key, partition, value and headers from the object being written.
+ * <p/>
+ * Constant resolvers box their value once, not on every call. Where a resolver's result is a primitive, an
+ * {@code Int}/{@code Long} specialization is returned too, so a caller that knows about it (as
+ * {@link RecordOutputStream} does) can skip boxing altogether.
+ */
 public class RecordUtils {
 
+  /**
+   * Shared, read-only empty headers. {@code ProducerRecord} copies the headers it is given, so sharing these is
+   * safe; but anything that tries to add to them (a serializer, say) throws {@code IllegalStateException}.
+   */
+  public static final Headers EMPTY_HEADERS = readOnlyEmptyHeaders();
+
   // --- Key Resolution -------------------------------------------------------------------------------------
 
   @FunctionalInterface
@@ -36,29 +54,62 @@ public class RecordUtils {
     K key(T t);
   }
 
+  @FunctionalInterface
+  public interface IntKeyResolver<T> extends KeyResolver<T,Integer> {
+    int intKey(T t);
+
+    @Override
+    default Integer key(T t) {
+      return intKey(t);
+    }
+  }
+
+  @FunctionalInterface
+  public interface LongKeyResolver<T> extends KeyResolver<T,Long> {
+    long longKey(T t);
+
+    @Override
+    default Long key(T t) {
+      return longKey(t);
+    }
+  }
+
   public static <T,K> KeyResolver<T,K> nullKey() {
     return (t) -> (K) null;
   }
   public static <T> KeyResolver<T,Boolean> cKey(boolean value) {
-    return (t) -> Boolean.valueOf(value);
+    Boolean boxed = value;
+    return (t) -> boxed;
   }
   public static <T> KeyResolver<T,Byte> cKey(byte value) {
-    return (t) -> Byte.valueOf(value);
+    Byte boxed = value;
+    return (t) -> boxed;
   }
   public static <T> KeyResolver<T,Short> cKey(short value) {
-    return (t) -> Short.valueOf(value);
-  }
-  public static <T> KeyResolver<T,Integer> cKey(int value) {
-    return (t) -> Integer.valueOf(value);
-  }
-  public static <T> KeyResolver<T,Long> cKey(long value) {
-    return (t) -> Long.valueOf(value);
+    Short boxed = value;
+    return (t) -> boxed;
+  }
+  public static <T> IntKeyResolver<T> cKey(int value) {
+    Integer boxed = value;
+    return new IntKeyResolver<T>() {
+      @Override public int intKey(T t) { return value; }
+      @Override public Integer key(T t) { return boxed; }
+    };
+  }
+  public static <T> LongKeyResolver<T> cKey(long value) {
+    Long boxed = value;
+    return new LongKeyResolver<T>() {
+      @Override public long longKey(T t) { return value; }
+      @Override public Long key(T t) { return boxed; }
+    };
   }
   public static <T> KeyResolver<T,Float> cKey(float value) {
-    return (t) -> Float.valueOf(value);
+    Float boxed = value;
+    return (t) -> boxed;
   }
   public static <T> KeyResolver<T,Double> cKey(double value) {
-    return (t) -> Double.valueOf(value);
+    Double boxed = value;
+    return (t) -> boxed;
   }
   public static <T> KeyResolver<T,BigInteger> cKey(BigInteger value) {
     return (T) -> value;
@@ -81,6 +132,20 @@ public class RecordUtils {
   public static <T,K> KeyResolver<T,K> fnKey(Function<T,K> fn) {
     return (t) -> fn.apply(t);
   }
+  public static <T> IntKeyResolver<T> intKey(ToIntFunction<T> fn) {
+    return fn::applyAsInt;
+  }
+  public static <T> LongKeyResolver<T> longKey(ToLongFunction<T> fn) {
+    return fn::applyAsLong;
+  }
+  /**
+   * Key each object by the field at {@code path}, e.g. {@code $.customer.id}; see {@link FieldPath}.
+   */
+  @SuppressWarnings("unchecked")
+  public static <T,K> KeyResolver<T,K> pathKey(String path) {
+    FieldPath fieldPath = FieldPath.compile(path);
+    return (t) -> (K) fieldPath.get(t);
+  }
 
   // --- Partition Resolution -------------------------------------------------------------------------------
 
@@ -89,32 +154,47 @@ public class RecordUtils {
     Integer partition(T t);
   }
 
-  public static <T> PartitionResolver<T> nullPartition() {
-    return (t) -> (Integer)null;
+  /**
+   * A partition resolver which never boxes; a negative partition means none, leaving it to the partitioner.
+   */
+  @FunctionalInterface
+  public interface IntPartitionResolver<T> extends PartitionResolver<T> {
+    int intPartition(T t);
+
+    @Override
+    default Integer partition(T t) {
+      int partition = intPartition(t);
+      return partition < 0 ? null : partition;
+    }
+  }
+
+  public static <T> IntPartitionResolver<T> nullPartition() {
+    return (t) -> -1;
   }
-  public static <T> PartitionResolver<T> zeroPartition() {
+  public static <T> IntPartitionResolver<T> zeroPartition() {
     return (t) -> 0;
   }
-  public static <T> PartitionResolver<T> onePartition() {
+  public static <T> IntPartitionResolver<T> onePartition() {
     return (t) -> 1;
   }
-  public static <T> PartitionResolver<T> cPartition(boolean value) {
+  public static <T> IntPartitionResolver<T> cPartition(boolean value) {
     return (t) -> value? 1: 0;
   }
-  public static <T> PartitionResolver<T> cPartition(byte value) {
+  public static <T> IntPartitionResolver<T> cPartition(byte value) {
     return (t) -> Byte.toUnsignedInt(value);
   }
-  public static <T> PartitionResolver<T> cPartition(short value) {
+  public static <T> IntPartitionResolver<T> cPartition(short value) {
     return (t) -> Short.toUnsignedInt(value);
   }
-  public static <T> PartitionResolver<T> cPartition(int value) {
-    return (t) -> Integer.valueOf(value & Integer.MAX_VALUE);
+  public static <T> IntPartitionResolver<T> cPartition(int value) {
+    return (t) -> value & Integer.MAX_VALUE;
   }
-  public static <T> PartitionResolver<T> cPartition(long value) {
+  public static <T> IntPartitionResolver<T> cPartition(long value) {
     return (t) -> ((int)value) & Integer.MAX_VALUE;
   }
-  public static <T> PartitionResolver<T> cPartition(BigInteger value) {
-    return (t) -> value.intValue() & Integer.MAX_VALUE;
+  public static <T> IntPartitionResolver<T> cPartition(BigInteger value) {
+    int partition = value.intValue() & Integer.MAX_VALUE;
+    return (t) -> partition;
   }
   public static <T> PartitionResolver<T> fnPartition(Supplier<Integer> fn) {
     return (t) -> fn.get();
@@ -122,6 +202,38 @@ public class RecordUtils {
   public static <T> PartitionResolver<T> fnPartition(Function<T,Integer> fn) {
     return (t) -> fn.apply(t);
   }
+  public static <T> IntPartitionResolver<T> intPartition(ToIntFunction<T> fn) {
+    return fn::applyAsInt;
+  }
+  /**
+   * Partition each object by the number at {@code path}; objects without one are left to the partitioner.
+   */
+  public static <T> IntPartitionResolver<T> pathPartition(String path) {
+    FieldPath fieldPath = FieldPath.compile(path);
+    return (t) -> {
+      Object value = fieldPath.get(t);
+      return value instanceof Number ? ((Number) value).intValue() & Integer.MAX_VALUE : -1;
+    };
+  }
+  /**
+   * Spread objects over {@code numPartitions} by the field at {@code path}, e.g. {@code $.region}: a number
+   * modulo the partition count, anything else by the murmur2 hash of its string form, as Kafka's default
+   * partitioner hashes keys. Objects without the field are left to the partitioner.
+   */
+  public static <T> IntPartitionResolver<T> pathPartition(String path, int numPartitions) {
+    if (numPartitions <= 0)
+      throw new IllegalArgumentException("The number of partitions must be positive: " + numPartitions);
+    FieldPath fieldPath = FieldPath.compile(path);
+    return (t) -> {
+      Object value = fieldPath.get(t);
+      if (value == null)
+        return -1;
+      if (value instanceof Number)
+        return (int) Math.floorMod(((Number) value).longValue(), (long) numPartitions);
+      byte[] bytes = value.toString().getBytes(StandardCharsets.UTF_8);
+      return Utils.toPositive(Utils.murmur2(bytes)) % numPartitions;
+    };
+  }
 
   // --- Value Resolution -----------------------------------------------------------------------------------
 
@@ -143,6 +255,15 @@ public class RecordUtils {
     return (t) -> fn.apply(t);
   }
 
+  /**
+   * Take each object's value from the field at {@code path}; see {@link FieldPath}.
+   */
+  @SuppressWarnings("unchecked")
+  public static <T,V> ValueResolver<T,V> pathValue(String path) {
+    FieldPath fieldPath = FieldPath.compile(path);
+    return (t) -> (V) fieldPath.get(t);
+  }
+
   // --- Header Resolution ----------------------------------------------------------------------------------
 
   public interface HeaderResolver<T> {
@@ -150,8 +271,7 @@ public class RecordUtils {
   }
 
   public static <T> HeaderResolver<T> emptyHeaders() {
-    // TODO Make this an unmodifiable Header...
-    return (t) -> new RecordHeaders();
+    return (t) -> EMPTY_HEADERS;
   }
   public static <T> HeaderResolver<T> cHeaders(Headers headers) {
     return (t) -> headers;
@@ -162,6 +282,25 @@ public class RecordUtils {
   public static <T> HeaderResolver<T> fnHeaders(Function<T,Headers> fn) {
     return (t) -> fn.apply(t);
   }
+  /**
+   * A single header {@code name}, whose value is the string form of the field at {@code path}, in UTF-8; no
+   * header at all for objects without the field.
+   */
+  public static <T> HeaderResolver<T> pathHeader(String name, String path) {
+    FieldPath fieldPath = FieldPath.compile(path);
+    return (t) -> {
+      Object value = fieldPath.get(t);
+      if (value == null)
+        return EMPTY_HEADERS;
+      return new RecordHeaders(new Header[] {
+          new RecordHeader(name, value.toString().getBytes(StandardCharsets.UTF_8)) });
+    };
+  }
 
+  private static Headers readOnlyEmptyHeaders() {
+    RecordHeaders headers = new RecordHeaders();
+    headers.setReadOnly();
+    return headers;
+  }
 }
 
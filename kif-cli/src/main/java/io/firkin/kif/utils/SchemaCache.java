@@ -0,0 +1,362 @@
+/*
+ * Copyright © 2021 Kif Contributors (https://kif.firkin.io/)
+ * Copyright © 2021 Firkin•IO (https://firkin.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.firkin.kif.utils;
+
+import io.confluent.kafka.schemaregistry.ParsedSchema;
+import io.confluent.kafka.schemaregistry.client.rest.entities.SchemaReference;
+import org.apache.kafka.common.utils.Crc32C;
+import org.apache.kafka.common.utils.Time;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The schemas, and the ids of schemas registered under subjects, that a {@link CachingSchemaRegistryClient}
+ * has fetched from one registry, kept in a file so later invocations needn't ask again.
+ * <p/>
+ * The file is a log of frames, each a length, a CRC32C and an entry, appended as entries are learnt; a later
+ * entry for the same key replaces an earlier one. Each read and append holds a lock on the file, so
+ * invocations running at once share it safely. A frame torn by a crash is truncated away when the file is next
+ * read, and a file holding more replaced entries than live ones is rewritten.
+ * <p/>
+ * Schemas by id never change in a registry, so by default entries never expire; a TTL has entries older than it
+ * fetched again, for registries that are reset or whose subjects are deleted.
+ */
+final class SchemaCache {
+  private static final Logger log = LoggerFactory.getLogger(SchemaCache.class);
+
+  private static final int MAGIC = 0x4b534331; // "KSC1"
+  private static final byte SCHEMA = 1;
+  private static final byte SUBJECT_ID = 2;
+  private static final int FRAME_OVERHEAD = 8;
+
+  /**
+   * File locks are held by the JVM, not a thread, so access from this JVM is serialized here as well.
+   */
+  private static final Object FILE_ACCESS = new Object();
+
+  /**
+   * A schema as the registry gave it, before it is parsed.
+   */
+  static final class CachedSchema {
+    final int id;
+    final String type;
+    final String schema;
+    final List<SchemaReference> references;
+    final long fetchedMs;
+
+    private CachedSchema(int id, String type, String schema, List<SchemaReference> references, long fetchedMs) {
+      this.id = id;
+      this.type = type;
+      this.schema = schema;
+      this.references = references;
+      this.fetchedMs = fetchedMs;
+    }
+  }
+
+  private final Path file;
+  private final long ttlMs;
+  private final Time time;
+  private final Map<Integer, CachedSchema> schemas;
+  private final Map<String, Integer> subjectIds;
+  private final Map<String, Long> subjectIdFetchedMs;
+  private boolean loaded;
+
+  SchemaCache(Path file, long ttlMs, Time time) {
+    this.file = file;
+    this.ttlMs = ttlMs;
+    this.time = time;
+    this.schemas = new HashMap<>();
+    this.subjectIds = new HashMap<>();
+    this.subjectIdFetchedMs = new HashMap<>();
+  }
+
+  Path file() {
+    return file;
+  }
+
+  /**
+   * The schema with {@code id}, or null if it isn't cached or has expired.
+   */
+  synchronized CachedSchema schema(int id) {
+    ensureLoaded();
+    CachedSchema cached = schemas.get(id);
+    return cached == null || isExpired(cached.fetchedMs) ? null : cached;
+  }
+
+  /**
+   * The id of {@code schema} under {@code subject}, or null if it isn't cached or has expired.
+   */
+  synchronized Integer id(String subject, ParsedSchema schema) {
+    ensureLoaded();
+    String key = subjectKey(subject, schema.schemaType(), schema.canonicalString());
+    Long fetchedMs = subjectIdFetchedMs.get(key);
+    return fetchedMs == null || isExpired(fetchedMs) ? null : subjectIds.get(key);
+  }
+
+  synchronized void putSchema(int id, ParsedSchema schema) {
+    ensureLoaded();
+    CachedSchema cached = new CachedSchema(id, schema.schemaType(), schema.canonicalString(),
+        schema.references() == null ? Collections.emptyList() : schema.references(), time.milliseconds());
+    if (put(cached))
+      append(encode(cached));
+  }
+
+  /**
+   * Cache the id of {@code schema} under {@code subject}, and the schema itself, which the entry for the
+   * subject refers to.
+   */
+  synchronized void putId(String subject, int id, ParsedSchema schema) {
+    ensureLoaded();
+    CachedSchema known = schemas.get(id);
+    if (known == null || isExpired(known.fetchedMs) || !known.schema.equals(schema.canonicalString()))
+      putSchema(id, schema);
+    long nowMs = time.milliseconds();
+    putSubjectId(subject, id, nowMs);
+    append(encodeSubjectId(subject, id, nowMs));
+  }
+
+  /**
+   * Forget every entry, in memory only; the file is read again on next use.
+   */
+  synchronized void reset() {
+    schemas.clear();
+    subjectIds.clear();
+    subjectIdFetchedMs.clear();
+    loaded = false;
+  }
+
+  // --- Internal Implementation Methods --------------------------------------------------------------------
+
+  private boolean isExpired(long fetchedMs) {
+    return ttlMs > 0 && ttlMs < Long.MAX_VALUE && time.milliseconds() - fetchedMs > ttlMs;
+  }
+
+  /**
+   * Remember {@code cached}, returning whether it differs from what was already known.
+   */
+  private boolean put(CachedSchema cached) {
+    CachedSchema old = schemas.put(cached.id, cached);
+    return old == null || old.fetchedMs != cached.fetchedMs || !old.schema.equals(cached.schema);
+  }
+
+  private void putSubjectId(String subject, int id, long fetchedMs) {
+    CachedSchema cached = schemas.get(id);
+    if (cached == null)
+      return;
+    String key = subjectKey(subject, cached.type, cached.schema);
+    subjectIds.put(key, id);
+    subjectIdFetchedMs.put(key, fetchedMs);
+  }
+
+  private static String subjectKey(String subject, String type, String schema) {
+    return subject + '\u0000' + type + '\u0000' + schema;
+  }
+
+  /**
+   * Read the file, if it exists. A cache that can't be read is only slower, so failures are logged, not thrown.
+   */
+  private void ensureLoaded() {
+    if (loaded)
+      return;
+    loaded = true;
+    if (!Files.exists(file))
+      return;
+    synchronized (FILE_ACCESS) {
+      load();
+    }
+  }
+
+  private void load() {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+         FileLock lock = channel.lock()) {
+      long size = channel.size();
+      ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(size, Integer.MAX_VALUE));
+      while (buffer.hasRemaining() && channel.read(buffer, buffer.position()) >= 0) { }
+      buffer.flip();
+      if (buffer.remaining() < 4 || buffer.getInt() != MAGIC) {
+        log.warn("Ignoring schema cache {}, which is not a schema cache", file);
+        return;
+      }
+      int frames = 0;
+      int valid = buffer.position();
+      while (buffer.limit() - valid >= FRAME_OVERHEAD) {
+        int length = buffer.getInt(valid);
+        int crc = buffer.getInt(valid + 4);
+        if (length <= 0 || length > buffer.limit() - valid - FRAME_OVERHEAD)
+          break;
+        if ((int) Crc32C.compute(buffer.array(), valid + FRAME_OVERHEAD, length) != crc)
+          break;
+        decode(buffer.array(), valid + FRAME_OVERHEAD, length);
+        valid += FRAME_OVERHEAD + length;
+        frames++;
+      }
+      if (valid < size) {
+        log.warn("Truncating schema cache {} from {} to {} bytes, dropping a torn or corrupt entry", file, size, valid);
+        channel.truncate(valid);
+      }
+      if (frames > 2 * (schemas.size() + subjectIds.size()) + 64)
+        rewrite();
+    } catch (IOException | RuntimeException e) {
+      log.warn("Could not read schema cache {}: {}", file, e.toString());
+    }
+  }
+
+  private void decode(byte[] bytes, int offset, int length) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes, offset, length));
+    byte kind = in.readByte();
+    if (kind == SCHEMA) {
+      int id = in.readInt();
+      long fetchedMs = in.readLong();
+      String type = in.readUTF();
+      byte[] schema = new byte[in.readInt()];
+      in.readFully(schema);
+      int count = in.readUnsignedShort();
+      List<SchemaReference> references = count == 0 ? Collections.emptyList() : new ArrayList<>(count);
+      for (int i = 0; i < count; i++)
+        references.add(new SchemaReference(in.readUTF(), in.readUTF(), in.readInt()));
+      put(new CachedSchema(id, type, new String(schema, StandardCharsets.UTF_8), references, fetchedMs));
+    } else if (kind == SUBJECT_ID) {
+      int id = in.readInt();
+      long fetchedMs = in.readLong();
+      putSubjectId(in.readUTF(), id, fetchedMs);
+    }
+    // Entries of kinds added since are skipped.
+  }
+
+  private static byte[] encode(CachedSchema cached) {
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + cached.schema.length());
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeByte(SCHEMA);
+      out.writeInt(cached.id);
+      out.writeLong(cached.fetchedMs);
+      out.writeUTF(cached.type);
+      byte[] schema = cached.schema.getBytes(StandardCharsets.UTF_8);
+      out.writeInt(schema.length);
+      out.write(schema);
+      out.writeShort(cached.references.size());
+      for (SchemaReference reference : cached.references) {
+        out.writeUTF(reference.getName());
+        out.writeUTF(reference.getSubject());
+        out.writeInt(reference.getVersion() == null ? -1 : reference.getVersion());
+      }
+      return bytes.toByteArray();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static byte[] encodeSubjectId(String subject, int id, long fetchedMs) {
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 + subject.length());
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeByte(SUBJECT_ID);
+      out.writeInt(id);
+      out.writeLong(fetchedMs);
+      out.writeUTF(subject);
+      return bytes.toByteArray();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static ByteBuffer frame(byte[] entry) {
+    ByteBuffer frame = ByteBuffer.allocate(FRAME_OVERHEAD + entry.length);
+    frame.putInt(entry.length);
+    frame.putInt((int) Crc32C.compute(entry, 0, entry.length));
+    frame.put(entry);
+    frame.flip();
+    return frame;
+  }
+
+  /**
+   * Append an entry to the file, creating it if need be. A cache that can't be written is only slower, so
+   * failures are logged, not thrown.
+   */
+  private void append(byte[] entry) {
+    synchronized (FILE_ACCESS) {
+      appendLocked(entry);
+    }
+  }
+
+  private void appendLocked(byte[] entry) {
+    try {
+      Files.createDirectories(file.toAbsolutePath().getParent());
+      try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+          StandardOpenOption.WRITE); FileLock lock = channel.lock()) {
+        long position = channel.size();
+        if (position == 0) {
+          ByteBuffer magic = ByteBuffer.allocate(4).putInt(MAGIC);
+          magic.flip();
+          while (magic.hasRemaining())
+            position += channel.write(magic, position);
+        }
+        ByteBuffer frame = frame(entry);
+        while (frame.hasRemaining())
+          position += channel.write(frame, position);
+      }
+    } catch (IOException e) {
+      log.warn("Could not write schema cache {}: {}", file, e.toString());
+    }
+  }
+
+  /**
+   * Replace the file with one holding only the live entries. The caller holds the file's lock.
+   */
+  private void rewrite() throws IOException {
+    Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+    try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING)) {
+      ByteBuffer magic = ByteBuffer.allocate(4).putInt(MAGIC);
+      magic.flip();
+      channel.write(magic);
+      for (CachedSchema cached : schemas.values())
+        writeFully(channel, frame(encode(cached)));
+      for (Map.Entry<String, Integer> entry : subjectIds.entrySet()) {
+        String subject = entry.getKey().substring(0, entry.getKey().indexOf('\u0000'));
+        writeFully(channel, frame(encodeSubjectId(subject, entry.getValue(), subjectIdFetchedMs.get(entry.getKey()))));
+      }
+      channel.force(true);
+    }
+    Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining())
+      channel.write(buffer);
+  }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright © 2021 Kif Contributors (https://kif.firkin.io/)
+ * Copyright © 2021 Firkin•IO (https://firkin.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.firkin.kif.utils;
+
+import io.confluent.kafka.schemaregistry.ParsedSchema;
+import io.confluent.kafka.schemaregistry.client.SchemaRegistryClient;
+import io.confluent.kafka.schemaregistry.client.rest.exceptions.RestClientException;
+import org.apache.kafka.common.errors.SerializationException;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Forwards values in the Schema Registry's wire format, a zero magic byte and a 4-byte schema id before the
+ * encoded value, from one registry's ids to another's, without decoding them. This holds for Avro, Protobuf
+ * and JSON Schema alike, whose encodings follow the id untouched.
+ * <p/>
+ * Between clients of the same registry, values are forwarded as they are. Otherwise, each source id's schema
+ * is registered under the topic's subject in the target registry once, and the ids are kept in a table, so
+ * every later value only has its id rewritten. Both clients are typically {@link CachingSchemaRegistryClient}s,
+ * so a later copy between the same registries makes no registry requests at all.
+ * <p/>
+ * This class is threadsafe.
+ */
+public class SchemaIdRemapper {
+
+  private final SchemaRegistryClient source;
+  private final SchemaRegistryClient target;
+  private final Map<String, Integer> ids;
+
+  public SchemaIdRemapper(SchemaRegistryClient source, SchemaRegistryClient target) {
+    this.source = source;
+    this.target = target;
+    this.ids = new ConcurrentHashMap<>();
+  }
+
+  /**
+   * Whether ids are rewritten; they aren't between clients of the same registry.
+   */
+  public boolean isRemapping() {
+    return source != target;
+  }
+
+  /**
+   * Whether {@code data} starts with a wire-format envelope.
+   */
+  public static boolean hasEnvelope(byte[] data) {
+    return data != null && data.length >= 5 && data[0] == KifAvroSerializer.MAGIC_BYTE;
+  }
+
+  /**
+   * The schema id in the envelope of {@code data}, which must have one.
+   */
+  public static int schemaId(byte[] data) {
+    return (data[1] & 0xff) << 24 | (data[2] & 0xff) << 16 | (data[3] & 0xff) << 8 | (data[4] & 0xff);
+  }
+
+  /**
+   * {@code data} with its schema id rewritten to the target registry's, or {@code data} itself if there is
+   * nothing to rewrite.
+   *
+   * @throws SerializationException if ids are rewritten and {@code data} has no envelope.
+   */
+  public byte[] remap(String topic, boolean isKey, byte[] data) {
+    if (data == null || !isRemapping())
+      return data;
+    if (!hasEnvelope(data))
+      throw new SerializationException("Unknown magic byte!");
+    int id = schemaId(data);
+    String subject = topic + (isKey ? "-key" : "-value");
+    int targetId = targetId(subject, id);
+    if (targetId == id)
+      return data;
+    byte[] remapped = data.clone();
+    remapped[1] = (byte) (targetId >>> 24);
+    remapped[2] = (byte) (targetId >>> 16);
+    remapped[3] = (byte) (targetId >>> 8);
+    remapped[4] = (byte) targetId;
+    return remapped;
+  }
+
+  // --- Internal Implementation Methods --------------------------------------------------------------------
+
+  private int targetId(String subject, int id) {
+    String key = subject + '\u0000' + id;
+    Integer targetId = ids.get(key);
+    if (targetId != null)
+      return targetId;
+    try {
+      ParsedSchema schema = source.getSchemaBySubjectAndId(subject, id);
+      targetId = target.register(subject, schema);
+    } catch (IOException | RestClientException e) {
+      throw new SerializationException("Error mapping schema id " + id + " of " + subject + " to the target registry", e);
+    }
+    ids.put(key, targetId);
+    return targetId;
+  }
+}
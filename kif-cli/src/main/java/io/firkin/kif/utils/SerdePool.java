@@ -0,0 +1,192 @@
+/*
+ * Copyright © 2021 Kif Contributors (https://kif.firkin.io/)
+ * Copyright © 2021 Firkin•IO (https://firkin.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.firkin.kif.utils;
+
+import io.confluent.kafka.schemaregistry.client.SchemaRegistryClient;
+import io.confluent.kafka.serializers.json.KafkaJsonSchemaDeserializer;
+import io.confluent.kafka.serializers.json.KafkaJsonSchemaSerializer;
+import io.confluent.kafka.serializers.protobuf.KafkaProtobufDeserializer;
+import io.confluent.kafka.serializers.protobuf.KafkaProtobufSerializer;
+import org.apache.kafka.common.serialization.Deserializer;
+import org.apache.kafka.common.serialization.Serializer;
+
+import java.io.Closeable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Serializers and deserializers of one Schema Registry, configured once, of which each thread gets its own,
+ * keyed by format and by whether they are for keys or values. Their caches of schemas and writers, and their
+ * encoders and buffers, are then never shared, so serialization scales with the threads doing it.
+ * <p/>
+ * Avro uses {@link KifAvroSerializer} and {@link KifAvroDeserializer}; Protobuf and JSON Schema use Confluent's
+ * serdes, one per thread. All of them share the pool's {@link SchemaRegistryClient}, which is threadsafe.
+ * <p/>
+ * A serde taken from the pool must only be used by the thread that took it; take it again on each use
+ * rather than handing it to another thread, which costs only a {@link ThreadLocal} lookup. Once the pool is
+ * closed, so are its serdes, and none can be taken from it.
+ */
+public class SerdePool implements Closeable {
+
+  public enum Format {
+    AVRO,
+    PROTOBUF,
+    JSON_SCHEMA
+  }
+
+  private static final String SCHEMA_REGISTRY_URL_CONFIG = CachingSchemaRegistryClient.SCHEMA_REGISTRY_URL_CONFIG;
+  // Confluent's serdes require a url, though they only use it to create a client, and they are given the pool's.
+  private static final String PLACEHOLDER_URL = "mock://kif-serde-pool";
+  private static final int SLOTS = 2 * Format.values().length;
+
+  private final SchemaRegistryClient registry;
+  private final Map<String, ?> configs;
+  private final ThreadLocal<Serializer<Object>[]> serializers;
+  private final ThreadLocal<Deserializer<Object>[]> deserializers;
+  private final Queue<AutoCloseable> created;
+  private volatile boolean closed;
+
+  @SuppressWarnings("unchecked")
+  public SerdePool(SchemaRegistryClient registry, Map<String, ?> configs) {
+    this.registry = registry;
+    if (configs.containsKey(SCHEMA_REGISTRY_URL_CONFIG)) {
+      this.configs = configs;
+    } else {
+      Map<String, Object> withUrl = new HashMap<>(configs);
+      withUrl.put(SCHEMA_REGISTRY_URL_CONFIG, PLACEHOLDER_URL);
+      this.configs = withUrl;
+    }
+    this.serializers = ThreadLocal.withInitial(() -> new Serializer[SLOTS]);
+    this.deserializers = ThreadLocal.withInitial(() -> new Deserializer[SLOTS]);
+    this.created = new ConcurrentLinkedQueue<>();
+  }
+
+  public SchemaRegistryClient registry() {
+    return registry;
+  }
+
+  /**
+   * The calling thread's serializer of {@code format}, for keys or values.
+   *
+   * @throws IllegalStateException if the pool is closed.
+   */
+  public Serializer<Object> serializer(Format format, boolean isKey) {
+    ensureOpen();
+    Serializer<Object>[] slots = serializers.get();
+    int slot = slot(format, isKey);
+    Serializer<Object> serializer = slots[slot];
+    if (serializer == null) {
+      serializer = newSerializer(format);
+      serializer.configure(configs, isKey);
+      track(serializer);
+      slots[slot] = serializer;
+    }
+    return serializer;
+  }
+
+  /**
+   * The calling thread's deserializer of {@code format}, for keys or values.
+   *
+   * @throws IllegalStateException if the pool is closed.
+   */
+  public Deserializer<Object> deserializer(Format format, boolean isKey) {
+    ensureOpen();
+    Deserializer<Object>[] slots = deserializers.get();
+    int slot = slot(format, isKey);
+    Deserializer<Object> deserializer = slots[slot];
+    if (deserializer == null) {
+      deserializer = newDeserializer(format);
+      deserializer.configure(configs, isKey);
+      track(deserializer);
+      slots[slot] = deserializer;
+    }
+    return deserializer;
+  }
+
+  public boolean closed() {
+    return closed;
+  }
+
+  /**
+   * Close every serde the pool has created. The serdes threads still hold are closed too, so the pool refuses
+   * to hand them out from now on.
+   */
+  @Override
+  public void close() {
+    closed = true;
+    AutoCloseable serde;
+    while ((serde = created.poll()) != null) {
+      try {
+        serde.close();
+      } catch (Exception e) {
+        // Closing a serde only releases what it holds; there is nothing more to do if that fails.
+      }
+    }
+  }
+
+  // --- Internal Implementation Methods --------------------------------------------------------------------
+
+  private void ensureOpen() {
+    if (closed)
+      throw new IllegalStateException("SerdePool is already closed.");
+  }
+
+  /**
+   * Keep a new serde to close with the pool; one created as the pool was being closed is closed here instead.
+   */
+  private void track(AutoCloseable serde) {
+    created.add(serde);
+    if (closed) {
+      close();
+      ensureOpen();
+    }
+  }
+
+  private static int slot(Format format, boolean isKey) {
+    return 2 * format.ordinal() + (isKey ? 1 : 0);
+  }
+
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  private Serializer<Object> newSerializer(Format format) {
+    switch (format) {
+      case AVRO:
+        return new KifAvroSerializer(registry);
+      case PROTOBUF:
+        return (Serializer) new KafkaProtobufSerializer<>(registry);
+      case JSON_SCHEMA:
+        return new KafkaJsonSchemaSerializer<>(registry);
+      default:
+        throw new IllegalArgumentException("Unsupported format " + format);
+    }
+  }
+
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  private Deserializer<Object> newDeserializer(Format format) {
+    switch (format) {
+      case AVRO:
+        return new KifAvroDeserializer(registry);
+      case PROTOBUF:
+        return (Deserializer) new KafkaProtobufDeserializer<>(registry);
+      case JSON_SCHEMA:
+        return new KafkaJsonSchemaDeserializer<>(registry);
+      default:
+        throw new IllegalArgumentException("Unsupported format " + format);
+    }
+  }
+}
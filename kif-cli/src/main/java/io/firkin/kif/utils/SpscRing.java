@@ -0,0 +1,167 @@
+/*
+ * Copyright © 2021 Kif Contributors (https://kif.firkin.io/)
+ * Copyright © 2021 Firkin•IO (https://firkin.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.firkin.kif.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded, lock-free queue for exactly one producer thread and one consumer thread. Each side owns its own
+ * index and only reads the other's; no locks or CAS loops are needed, so handing an element across costs a
+ * couple of volatile writes.
+ * <p/>
+ * Either side may block, when the ring is empty or full, by parking until the other side wakes it. A waiting
+ * side publishes itself before re-checking the ring, and the other side checks for a waiter after publishing
+ * its index, so a wakeup is never lost. {@link #close()} wakes both sides, and ends any waiting.
+ * <i> Only one thread may call the producer methods, and only one the consumer methods.</i>
+ */
+final class SpscRing<E> {
+
+  private final Object[] elements;
+  private final int mask;
+  private final AtomicLong head = new AtomicLong(); // next slot to take, written by the consumer
+  private final AtomicLong tail = new AtomicLong(); // next slot to fill, written by the producer
+  private volatile Thread waitingConsumer;
+  private volatile Thread waitingProducer;
+  private volatile boolean closed;
+
+  /**
+   * @param capacity the number of elements the ring holds, rounded up to a power of two.
+   */
+  SpscRing(int capacity) {
+    if (capacity <= 0)
+      throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+    int size = Integer.highestOneBit(capacity);
+    if (size < capacity)
+      size <<= 1;
+    this.elements = new Object[size];
+    this.mask = size - 1;
+  }
+
+  int capacity() {
+    return elements.length;
+  }
+
+  boolean isEmpty() {
+    return head.get() == tail.get();
+  }
+
+  boolean isClosed() {
+    return closed;
+  }
+
+  // --- Producer -------------------------------------------------------------------------------------------
+
+  /**
+   * Add an element if there is room for it.
+   *
+   * @return false if the ring is full or closed.
+   */
+  boolean offer(E element) {
+    if (element == null)
+      throw new NullPointerException();
+    if (closed)
+      return false;
+    long t = tail.get();
+    if (t - head.get() == elements.length)
+      return false;
+    elements[(int) t & mask] = element;
+    tail.set(t + 1);
+    LockSupport.unpark(waitingConsumer);
+    return true;
+  }
+
+  /**
+   * Add an element, waiting up to {@code timeoutNanos} for room.
+   *
+   * @return false if the ring is still full once the timeout has passed, or is closed.
+   */
+  boolean offer(E element, long timeoutNanos) {
+    if (offer(element))
+      return true;
+    long deadline = System.nanoTime() + timeoutNanos;
+    waitingProducer = Thread.currentThread();
+    try {
+      while (!offer(element)) {
+        long remaining = deadline - System.nanoTime();
+        if (closed || remaining <= 0)
+          return false;
+        LockSupport.parkNanos(this, remaining);
+      }
+      return true;
+    } finally {
+      waitingProducer = null;
+    }
+  }
+
+  // --- Consumer -------------------------------------------------------------------------------------------
+
+  /**
+   * Take the oldest element, if there is one.
+   *
+   * @return the element, or null if the ring is empty.
+   */
+  @SuppressWarnings("unchecked")
+  E poll() {
+    long h = head.get();
+    if (h == tail.get())
+      return null;
+    int slot = (int) h & mask;
+    E element = (E) elements[slot];
+    elements[slot] = null;
+    head.set(h + 1);
+    LockSupport.unpark(waitingProducer);
+    return element;
+  }
+
+  /**
+   * Take the oldest element, waiting up to {@code timeoutNanos} for one.
+   *
+   * @return the element, or null if the ring is still empty once the timeout has passed, or is closed and
+   *         empty.
+   */
+  E poll(long timeoutNanos) {
+    E element = poll();
+    if (element != null || timeoutNanos <= 0)
+      return element;
+    long deadline = System.nanoTime() + timeoutNanos;
+    waitingConsumer = Thread.currentThread();
+    try {
+      while ((element = poll()) == null) {
+        long remaining = deadline - System.nanoTime();
+        if (closed)
+          return poll(); // the producer may have added its last elements just before closing
+        if (remaining <= 0)
+          return null;
+        LockSupport.parkNanos(this, remaining);
+      }
+      return element;
+    } finally {
+      waitingConsumer = null;
+    }
+  }
+
+  /**
+   * Refuse any more elements, and wake both sides. Elements already in the ring can still be taken.
+   */
+  void close() {
+    closed = true;
+    LockSupport.unpark(waitingConsumer);
+    LockSupport.unpark(waitingProducer);
+  }
+}
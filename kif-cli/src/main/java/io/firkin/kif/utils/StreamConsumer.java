@@ -21,24 +21,46 @@ import org.apache.kafka.clients.Metadata;
 import org.apache.kafka.clients.consumer.*;
 import org.apache.kafka.clients.consumer.internals.NoOpConsumerRebalanceListener;
 import org.apache.kafka.clients.consumer.internals.SubscriptionState;
+import org.apache.kafka.common.InvalidRecordException;
 import org.apache.kafka.common.KafkaException;
 import org.apache.kafka.common.Metric;
 import org.apache.kafka.common.MetricName;
+import org.apache.kafka.common.Node;
 import org.apache.kafka.common.PartitionInfo;
 import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.config.ConfigException;
+import org.apache.kafka.common.errors.CorruptRecordException;
+import org.apache.kafka.common.errors.InterruptException;
+import org.apache.kafka.common.errors.SerializationException;
 import org.apache.kafka.common.errors.WakeupException;
+import org.apache.kafka.common.header.Header;
+import org.apache.kafka.common.header.Headers;
+import org.apache.kafka.common.record.TimestampType;
+import org.apache.kafka.common.serialization.Deserializer;
 import org.apache.kafka.common.utils.LogContext;
+import org.apache.kafka.common.utils.Time;
 
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
 import java.util.Queue;
 import java.util.Set;
@@ -81,14 +103,45 @@ import java.util.stream.Collectors;
  *  |      System.in       | --> Reads bytes from source.
  *  +----------------------+</pre>
  * <p/>
+ * When constructed with an {@code InputStream}, a background thread reads the length-prefixed
+ * {@link RecordFrame}s written by a {@link StreamProducer}, deserializes them and queues them for
+ * {@link #poll(Duration)}, up to {@code fetch.max.bytes} of records ahead of the application. As with a
+ * {@code KafkaConsumer}, a record whose key or value can't be deserialized doesn't end the stream: polls return
+ * the records before it, then throw a {@link SerializationException} until the application seeks past it. A poll with nothing
+ * queued blocks until the reader queues a record, the timeout expires, or {@link #wakeup()} is called; so an idle
+ * consumer uses no CPU, yet returns as soon as data arrives. Records can't be read again once polled: seeking
+ * backwards has no effect, seeking forwards skips records as they arrive.
+ * <p/>
+ * A stream which starts with the magic of a {@link RecordContainer} is read block by block instead. A corrupt
+ * block is skipped, and the first corruption is thrown by {@link #poll(Duration)} once every intact record has
+ * been polled.
+ * <p/>
+ * Without an {@code InputStream}, records are added in memory, as with {@code MockConsumer}.
  *
  * @param <K> The Record Key type.
  * @param <V> The Record Value type.
  */
 public class StreamConsumer<K, V> implements Consumer<K,V> {
 
+  /** Default for {@code max.poll.records}, as for a {@code KafkaConsumer}. */
+  public static final int DEFAULT_MAX_POLL_RECORDS = 500;
+  /** Size of the buffer through which the reader thread reads the {@code InputStream}. */
+  private static final int READ_BUFFER_SIZE = 64 * 1024;
+
   InputStream inputStream;
 
+  private final String topic;
+  private final Deserializer<K> keyDeserializer;
+  private final Deserializer<V> valueDeserializer;
+  private final int maxPollRecords;
+  private final int fetchMaxBytes;
+  private final Deque<ConsumerRecord<K, V>> fetched;
+  private final ConsumerMetrics metrics;
+  private long fetchedBytes;
+  private boolean endOfStream;
+  private KafkaException readException;
+  private CorruptRecordException containerException;
+  private final Map<ConsumerRecord<K, V>, SerializationException> undeserializable;
   private final Map<String, List<PartitionInfo>> partitions;
   private final SubscriptionState subscriptions;
   private final Map<TopicPartition, Long> beginningOffsets;
@@ -106,6 +159,52 @@ public class StreamConsumer<K, V> implements Consumer<K,V> {
   private boolean shouldRebalance;
 
   public StreamConsumer() {
+    this(Collections.emptyMap(), null, null, null, null);
+  }
+
+  /**
+   * Create a consumer which reads framed records, as written by a {@link StreamProducer}, from {@code in}. The
+   * stream is read by a background thread from construction onwards.
+   *
+   * @param in The stream from which records are read. It is not closed by {@link #close()}.
+   * @param topic The topic of the records in the stream; frames only carry their partition.
+   * @param configs Consumer configs; {@code max.poll.records} and {@code fetch.max.bytes} are honored, the
+   *        latter bounding the bytes of records read ahead of {@link #poll(Duration)}.
+   * @param keyDeserializer The deserializer for keys that implements {@link Deserializer}.
+   * @param valueDeserializer The deserializer for values that implements {@link Deserializer}.
+   */
+  public StreamConsumer(final InputStream in,
+                        final String topic,
+                        final Map<String, ?> configs,
+                        final Deserializer<K> keyDeserializer,
+                        final Deserializer<V> valueDeserializer) {
+    this(configs, Objects.requireNonNull(in), Objects.requireNonNull(topic),
+        Objects.requireNonNull(keyDeserializer), Objects.requireNonNull(valueDeserializer));
+    Thread reader = new Thread(this::readStream, "kif-stream-consumer-reader");
+    reader.setDaemon(true);
+    reader.start();
+  }
+
+  private StreamConsumer(final Map<String, ?> configs,
+                         final InputStream in,
+                         final String topic,
+                         final Deserializer<K> keyDeserializer,
+                         final Deserializer<V> valueDeserializer) {
+    this.inputStream = in;
+    this.topic = topic;
+    this.keyDeserializer = keyDeserializer;
+    this.valueDeserializer = valueDeserializer;
+    this.maxPollRecords = ClientConfigs.getInt(configs, ConsumerConfig.MAX_POLL_RECORDS_CONFIG,
+        DEFAULT_MAX_POLL_RECORDS);
+    this.fetchMaxBytes = ClientConfigs.getInt(configs, ConsumerConfig.FETCH_MAX_BYTES_CONFIG,
+        ConsumerConfig.DEFAULT_FETCH_MAX_BYTES);
+    if (this.maxPollRecords <= 0)
+      throw new ConfigException(ConsumerConfig.MAX_POLL_RECORDS_CONFIG, this.maxPollRecords, "Must be positive");
+    if (this.fetchMaxBytes <= 0)
+      throw new ConfigException(ConsumerConfig.FETCH_MAX_BYTES_CONFIG, this.fetchMaxBytes, "Must be positive");
+    this.fetched = new ArrayDeque<>();
+    this.undeserializable = new IdentityHashMap<>();
+    this.metrics = new ConsumerMetrics(configs, "kif-stream-consumer");
     // TODO Pass in offsetResetStrategy as parameter? See MockConsumer for details.
     this.subscriptions = new SubscriptionState(new LogContext(), OffsetResetStrategy.EARLIEST);
     this.partitions = new HashMap<>();
@@ -144,6 +243,9 @@ public class StreamConsumer<K, V> implements Consumer<K,V> {
     committed.clear();
     this.subscriptions.subscribe(pattern, listener);
     Set<String> topicsToSubscribe = new HashSet<>();
+    // A stream's partitions are only known once records arrive, but its topic is known upfront.
+    if (this.inputStream != null && pattern.matcher(this.topic).matches())
+      topicsToSubscribe.add(this.topic);
     for (String topic: partitions.keySet()) {
       if (pattern.matcher(topic).matches() &&
           !subscriptions.subscription().contains(topic))
@@ -153,7 +255,7 @@ public class StreamConsumer<K, V> implements Consumer<K,V> {
     this.subscriptions.subscribeFromPattern(topicsToSubscribe);
     final Set<TopicPartition> assignedPartitions = new HashSet<>();
     for (final String topic : topicsToSubscribe) {
-      for (final PartitionInfo info : this.partitions.get(topic)) {
+      for (final PartitionInfo info : this.partitions.getOrDefault(topic, Collections.emptyList())) {
         assignedPartitions.add(new TopicPartition(topic, info.partition()));
       }
 
@@ -171,6 +273,8 @@ public class StreamConsumer<K, V> implements Consumer<K,V> {
     ensureNotClosed();
     committed.clear();
     this.subscriptions.subscribe(new HashSet<>(topics), listener);
+    if (this.inputStream != null)
+      assignFromStream();
   }
 
   @Override
@@ -218,6 +322,9 @@ public class StreamConsumer<K, V> implements Consumer<K,V> {
       throw exception;
     }
 
+    if (this.inputStream != null)
+      return pollStream(timeout);
+
     // Handle seeks that need to wait for a poll() call to be processed
     for (TopicPartition tp : subscriptions.assignedPartitions())
       if (!subscriptions.hasValidPosition(tp))
@@ -354,7 +461,7 @@ public class StreamConsumer<K, V> implements Consumer<K,V> {
   @Override
   public synchronized Map<MetricName, ? extends Metric> metrics() {
     ensureNotClosed();
-    return Collections.emptyMap();
+    return metrics.metrics();
   }
 
   @Override
@@ -402,7 +509,13 @@ public class StreamConsumer<K, V> implements Consumer<K,V> {
   @Deprecated
   @Override
   public synchronized void close(long timeout, TimeUnit unit) {
+    if (!this.closed)
+      this.metrics.close();
     this.closed = true;
+    // Release the reader thread, should it be waiting for room to queue a record.
+    this.fetched.clear();
+    this.undeserializable.clear();
+    notifyAll();
   }
 
   @Override
@@ -413,6 +526,7 @@ public class StreamConsumer<K, V> implements Consumer<K,V> {
   @Override
   public synchronized void wakeup() {
     wakeup.set(true);
+    notifyAll();
   }
 
   @Override
@@ -497,8 +611,283 @@ public class StreamConsumer<K, V> implements Consumer<K,V> {
     subscriptions.requestOffsetReset(partitions, OffsetResetStrategy.EARLIEST);
   }
 
+  /**
+   * Whether the whole stream has been read and polled, so that no poll will return any more records. A failure
+   * reading the stream is thrown by the next poll, not reported here.
+   */
+  public synchronized boolean isEndOfStream() {
+    return endOfStream && fetched.isEmpty() && readException == null;
+  }
+
   // --- Internal Implementation Methods --------------------------------------------------------------------
 
+  /**
+   * Poll the records read from the stream, waiting up to {@code timeout} for the reader thread to queue some if
+   * there are none yet.
+   */
+  private ConsumerRecords<K, V> pollStream(Duration timeout) {
+    long startNs = Time.SYSTEM.nanoseconds();
+    long now = Time.SYSTEM.milliseconds();
+    long deadline = timeout.toMillis() >= Long.MAX_VALUE - now ? Long.MAX_VALUE : now + timeout.toMillis();
+    while (true) {
+      // Handle seeks that need to wait for a poll() call to be processed, once the partition has records
+      for (TopicPartition tp : subscriptions.assignedPartitions())
+        if (!subscriptions.hasValidPosition(tp) && beginningOffsets.containsKey(tp))
+          updateFetchPosition(tp);
+
+      Map<TopicPartition, List<ConsumerRecord<K, V>>> results = fetchFromStream();
+      if (!results.isEmpty()) {
+        metrics.recordFetch(Time.SYSTEM.nanoseconds() - startNs);
+        return new ConsumerRecords<>(results);
+      }
+      if (readException != null) {
+        KafkaException exception = readException;
+        readException = null;
+        throw exception;
+      }
+      long remaining = deadline - Time.SYSTEM.milliseconds();
+      if (endOfStream || remaining <= 0) {
+        metrics.recordFetch(Time.SYSTEM.nanoseconds() - startNs);
+        return ConsumerRecords.empty();
+      }
+      try {
+        wait(remaining);
+      } catch (InterruptedException e) {
+        throw new InterruptException(e);
+      }
+      if (wakeup.get()) {
+        wakeup.set(false);
+        throw new WakeupException();
+      }
+    }
+  }
+
+  /**
+   * Take up to {@code max.poll.records} queued records, in the order they were read, skipping those of paused
+   * partitions and dropping those of unassigned ones. Each partition's position is updated once, after its
+   * records are taken. A record which couldn't be deserialized stops the poll, and is left queued: its failure is
+   * thrown if nothing was taken before it, else by a later poll, until its partition's position is past it.
+   */
+  private Map<TopicPartition, List<ConsumerRecord<K, V>>> fetchFromStream() {
+    metrics.retainLag(subscriptions.assignedPartitions());
+    Map<TopicPartition, List<ConsumerRecord<K, V>>> results = new HashMap<>();
+    boolean dequeued = false;
+    int count = 0;
+    Iterator<ConsumerRecord<K, V>> iterator = fetched.iterator();
+    while (count < maxPollRecords && iterator.hasNext()) {
+      ConsumerRecord<K, V> rec = iterator.next();
+      TopicPartition tp = new TopicPartition(rec.topic(), rec.partition());
+      boolean assigned = subscriptions.isAssigned(tp);
+      if (assigned && subscriptions.isPaused(tp))
+        continue;
+      List<ConsumerRecord<K, V>> recs = results.get(tp);
+      long position = !assigned ? -1L
+          : recs == null ? subscriptions.position(tp).offset : recs.get(recs.size() - 1).offset() + 1;
+      SerializationException failure = undeserializable.isEmpty() ? null : undeserializable.get(rec);
+      if (failure != null && assigned && rec.offset() >= position) {
+        if (!results.isEmpty())
+          break;
+        if (dequeued)
+          notifyAll();
+        throw failure;
+      }
+      iterator.remove();
+      fetchedBytes -= sizeOf(rec);
+      dequeued = true;
+      if (failure != null)
+        undeserializable.remove(rec);
+      if (!assigned)
+        continue;
+      if (failure == null && rec.offset() >= position) {
+        results.computeIfAbsent(tp, partition -> new ArrayList<>()).add(rec);
+        count++;
+      }
+    }
+    for (Map.Entry<TopicPartition, List<ConsumerRecord<K, V>>> entry : results.entrySet()) {
+      List<ConsumerRecord<K, V>> recs = entry.getValue();
+      ConsumerRecord<K, V> last = recs.get(recs.size() - 1);
+      Metadata.LeaderAndEpoch leaderAndEpoch = new Metadata.LeaderAndEpoch(Optional.empty(), last.leaderEpoch());
+      subscriptions.position(entry.getKey(), new SubscriptionState.FetchPosition(
+          last.offset() + 1, last.leaderEpoch(), leaderAndEpoch));
+      int bytes = 0;
+      for (ConsumerRecord<K, V> rec : recs)
+        bytes += sizeOf(rec);
+      metrics.recordPartition(entry.getKey(), recs.size(), bytes);
+      metrics.recordLag(entry.getKey(), Math.max(0L, endOffsets.get(entry.getKey()) - (last.offset() + 1)));
+    }
+    if (dequeued)
+      notifyAll();
+    return results;
+  }
+
+  /**
+   * Body of the reader thread: reads frames, bare or in the blocks of a {@link RecordContainer}, from the stream
+   * until it ends, or the consumer is closed. A frame is read as soon as its bytes are available, and queued as
+   * soon as it is read.
+   */
+  private void readStream() {
+    BufferedInputStream buffered = new BufferedInputStream(this.inputStream, READ_BUFFER_SIZE);
+    RecordFrame frame = new RecordFrame();
+    try {
+      buffered.mark(RecordContainer.MAGIC.length);
+      byte[] magic = buffered.readNBytes(RecordContainer.MAGIC.length);
+      buffered.reset();
+      boolean read = RecordContainer.isContainer(magic, 0, magic.length)
+          ? readContainer(buffered, frame)
+          : readFrames(new DataInputStream(buffered), frame);
+      if (read)
+        endOfStream(containerException);
+    } catch (EOFException e) {
+      endOfStream(new InvalidRecordException("Truncated record frame at the end of the stream"));
+    } catch (IOException e) {
+      endOfStream(new KafkaException("Could not read records from the input stream.", e));
+    } catch (KafkaException e) {
+      endOfStream(e);
+    } catch (InterruptedException e) {
+      endOfStream(new InterruptException(e));
+    } catch (RuntimeException e) {
+      endOfStream(new KafkaException("Could not read records from the input stream.", e));
+    }
+  }
+
+  /**
+   * Reads bare frames until the stream ends.
+   *
+   * @return false if the consumer was closed first.
+   */
+  private boolean readFrames(DataInputStream in, RecordFrame frame) throws IOException, InterruptedException {
+    byte[] body = new byte[READ_BUFFER_SIZE];
+    while (true) {
+      int first = in.read();
+      if (first < 0)
+        return true;
+      int length = first << 24 | in.readUnsignedByte() << 16 | in.readUnsignedByte() << 8 | in.readUnsignedByte();
+      if (length < RecordFrame.FIXED_SIZE)
+        throw new InvalidRecordException("Invalid record frame length: " + length);
+      if (length > fetchMaxBytes) // most likely not a stream of frames at all
+        throw new InvalidRecordException("Record frame length " + length + " exceeds "
+            + ConsumerConfig.FETCH_MAX_BYTES_CONFIG + " (" + fetchMaxBytes + ")");
+      if (length > body.length)
+        body = new byte[length];
+      in.readFully(body, 0, length);
+      frame.readFrom(ByteBuffer.wrap(body, 0, length));
+      if (!enqueue(frame))
+        return false;
+    }
+  }
+
+  /**
+   * Reads the blocks of a {@link RecordContainer} until the stream ends. A corrupt block is skipped, so that
+   * every intact record is still read; the first such corruption is reported once the stream ends.
+   *
+   * @return false if the consumer was closed first.
+   */
+  private boolean readContainer(InputStream in, RecordFrame frame) throws IOException, InterruptedException {
+    RecordContainerReader reader = new RecordContainerReader(in, fetchMaxBytes);
+    while (true) {
+      try {
+        if (!reader.next(frame))
+          return true;
+      } catch (CorruptRecordException e) {
+        if (containerException == null)
+          containerException = e;
+        continue;
+      }
+      if (!enqueue(frame))
+        return false;
+    }
+  }
+
+  /**
+   * Queue the record of a frame read from the stream. A record which can't be deserialized is queued all the
+   * same, without its key and value, along with its failure for {@link #poll(Duration)} to throw.
+   *
+   * @return false if the consumer has been closed.
+   */
+  private boolean enqueue(RecordFrame frame) throws InterruptedException {
+    try {
+      return enqueue(toConsumerRecord(frame), null);
+    } catch (SerializationException e) {
+      return enqueue(new ConsumerRecord<>(topic, frame.partition(), frame.offset(), frame.timestamp(),
+          TimestampType.CREATE_TIME, null, frame.serializedKeySize(), frame.serializedValueSize(), null, null,
+          frame.headers(), Optional.empty()), e);
+    }
+  }
+
+  /**
+   * Queue a record read from the stream, first waiting while {@code fetch.max.bytes} of records are queued.
+   *
+   * @param failure why the record couldn't be deserialized, or null.
+   * @return false if the consumer has been closed.
+   */
+  private synchronized boolean enqueue(ConsumerRecord<K, V> record, SerializationException failure)
+      throws InterruptedException {
+    while (!closed && fetchedBytes >= fetchMaxBytes)
+      wait();
+    if (closed)
+      return false;
+    TopicPartition tp = new TopicPartition(record.topic(), record.partition());
+    if (beginningOffsets.putIfAbsent(tp, record.offset()) == null) {
+      List<PartitionInfo> infos = new ArrayList<>(partitions.getOrDefault(topic, Collections.emptyList()));
+      infos.add(new PartitionInfo(topic, tp.partition(), null, new Node[0], new Node[0]));
+      partitions.put(topic, infos);
+      if (subscriptions.subscription().contains(topic))
+        assignFromStream();
+    }
+    endOffsets.put(tp, record.offset() + 1);
+    fetched.add(record);
+    if (failure != null)
+      undeserializable.put(record, failure);
+    fetchedBytes += sizeOf(record);
+    notifyAll();
+    return true;
+  }
+
+  private synchronized void endOfStream(KafkaException exception) {
+    endOfStream = true;
+    readException = exception;
+    notifyAll();
+  }
+
+  /**
+   * Assign every partition seen so far in the stream, if its topic is subscribed.
+   */
+  private void assignFromStream() {
+    Set<TopicPartition> found = new HashSet<>();
+    for (String topic : subscriptions.subscription())
+      for (PartitionInfo info : partitions.getOrDefault(topic, Collections.emptyList()))
+        found.add(new TopicPartition(topic, info.partition()));
+    if (!found.isEmpty())
+      subscriptions.assignFromSubscribed(found);
+  }
+
+  private ConsumerRecord<K, V> toConsumerRecord(RecordFrame frame) {
+    Headers headers = frame.headers();
+    try {
+      K key = frame.key() == null ? null : keyDeserializer.deserialize(topic, headers, frame.key());
+      V value = frame.value() == null ? null : valueDeserializer.deserialize(topic, headers, frame.value());
+      return new ConsumerRecord<>(topic, frame.partition(), frame.offset(), frame.timestamp(),
+          TimestampType.CREATE_TIME, null, frame.serializedKeySize(), frame.serializedValueSize(), key, value,
+          headers, Optional.empty());
+    } catch (RuntimeException e) {
+      throw new SerializationException("Error deserializing key/value for partition " + topic + "-"
+          + frame.partition() + " at offset " + frame.offset()
+          + ". If needed, please seek past the record to continue consumption.", e);
+    }
+  }
+
+  /**
+   * The size of the frame the record was read from; each key, value and header part has a 4 byte length.
+   */
+  private static int sizeOf(ConsumerRecord<?, ?> record) {
+    int size = RecordFrame.LENGTH_SIZE + RecordFrame.FIXED_SIZE
+        + 4 + Math.max(0, record.serializedKeySize()) + 4 + Math.max(0, record.serializedValueSize());
+    for (Header header : record.headers())
+      size += 4 + header.key().getBytes(StandardCharsets.UTF_8).length
+          + 4 + (header.value() == null ? 0 : header.value().length);
+    return size;
+  }
+
   /**
    * Used by MockConsumer to simulate records being added from Kafka Client
    * Used by StreamConsumer to buffer up records as they're read from the stream.
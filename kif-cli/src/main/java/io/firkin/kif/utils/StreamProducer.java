@@ -22,6 +22,7 @@ import org.apache.kafka.clients.consumer.OffsetAndMetadata;
 import org.apache.kafka.clients.producer.Callback;
 import org.apache.kafka.clients.producer.Partitioner;
 import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.clients.producer.ProducerConfig;
 import org.apache.kafka.clients.producer.ProducerRecord;
 import org.apache.kafka.clients.producer.RecordMetadata;
 import org.apache.kafka.clients.producer.internals.DefaultPartitioner;
@@ -33,20 +34,31 @@ import org.apache.kafka.common.Metric;
 import org.apache.kafka.common.MetricName;
 import org.apache.kafka.common.PartitionInfo;
 import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.config.ConfigException;
 import org.apache.kafka.common.errors.ProducerFencedException;
 import org.apache.kafka.common.record.RecordBatch;
 import org.apache.kafka.common.serialization.Serializer;
 import org.apache.kafka.common.utils.Time;
 
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.time.Duration;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Deque;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * An implementation of the {@code Producer} interface which produces records to an {@code OutputStream}.
@@ -80,21 +92,47 @@ import java.util.concurrent.Future;
  *  |     System.out       | --> Writes to console.
  *  +----------------------+</pre>
  * <p/>
+ * When constructed with an {@code OutputStream}, each record's key, value and headers are serialized once and
+ * written as a length-prefixed {@link RecordFrame} into a re-used buffer of {@code batch.size} bytes. The buffer
+ * is written to the stream in a single large write when it fills, when {@code linger.ms} has passed since the
+ * first record was buffered, or on {@link #flush()} and {@link #close()}. The {@code Future} returned by
+ * {@code send()} completes once the record's bytes have been handed to the stream. With
+ * {@code kif.stream.container=true}, each such buffer is written as one checksummed block of a
+ * {@link RecordContainer}, which can be split for parallel reads.
+ * <p/>
+ * Without an {@code OutputStream}, records are only kept in memory, as with {@code MockProducer}.
  *
  * @param <K> The Record Key type.
  * @param <V> The Record Value type.
  */
 public class StreamProducer<K, V> implements Producer<K,V> {
 
-  // TODO Add the actual OutputStream to which we write...
+  /** Default for {@code batch.size}; the size of the buffer written to the stream in a single write. */
+  public static final int DEFAULT_BATCH_SIZE = 256 * 1024;
+
+  /** Default for {@code linger.ms}; how long a partially filled buffer may wait before it is written. */
+  public static final long DEFAULT_LINGER_MS = 5L;
+
+  private final OutputStream out;
+  private final FileChannel channel;
+  private final ByteBuffer buffer;
+  private final byte[] sync;
+  private int blockStart;
+  private final long lingerMs;
+  private final RecordFrame frame;
+  private final List<StreamProducer.Completion> unwritten;
+  private final ScheduledExecutorService lingerTimer;
+  private ScheduledFuture<?> lingerDrain;
+  private long lingerStartMs;
+  private KafkaException sinkException;
 
   private final Cluster cluster;
   private final Partitioner partitioner;
-  private final List<ProducerRecord<K, V>> sent;
-  private final List<ProducerRecord<K, V>> uncommittedSends;
+  private final RecordHistory<ProducerRecord<K, V>> sent;
+  private final RecordHistory<ProducerRecord<K, V>> uncommittedSends;
   private final Deque<StreamProducer.Completion> completions;
   private final Map<TopicPartition, Long> offsets;
-  private final List<Map<String, Map<TopicPartition, OffsetAndMetadata>>> consumerGroupOffsets;
+  private final RecordHistory<Map<String, Map<TopicPartition, OffsetAndMetadata>>> consumerGroupOffsets;
   private Map<String, Map<TopicPartition, OffsetAndMetadata>> uncommittedConsumerGroupOffsets;
   private final Serializer<K> keySerializer;
   private final Serializer<V> valueSerializer;
@@ -107,7 +145,7 @@ public class StreamProducer<K, V> implements Producer<K,V> {
   private boolean producerFenced;
   private boolean sentOffsets;
   private long commitCount = 0L;
-  private final Map<MetricName, Metric> streamMetrics;
+  private final ProducerMetrics metrics;
 
   // TODO These are part of Mock ... but may not be needed for a Stream?
   public RuntimeException initTransactionException = null;
@@ -142,18 +180,110 @@ public class StreamProducer<K, V> implements Producer<K,V> {
                         final Partitioner partitioner,
                         final Serializer<K> keySerializer,
                         final Serializer<V> valueSerializer) {
+    this(null, Collections.emptyMap(), cluster, autoComplete, partitioner, keySerializer, valueSerializer,
+        RecordHistory.Mode.ALL);
+  }
+
+  /**
+   * Create a producer which writes framed records to {@code out}.
+   *
+   * @param out The stream to which records are written. It is flushed, but not closed, by {@link #close()}.
+   * @param configs Producer configs; {@code batch.size}, {@code linger.ms}, {@code kif.stream.container} and
+   *        {@code kif.history.mode} are honored. Unless {@code kif.history.mode} says otherwise, no history of
+   *        sent records is kept.
+   * @param keySerializer The serializer for key that implements {@link Serializer}.
+   * @param valueSerializer The serializer for value that implements {@link Serializer}.
+   */
+  public StreamProducer(final OutputStream out,
+                        final Map<String, ?> configs,
+                        final Serializer<K> keySerializer,
+                        final Serializer<V> valueSerializer) {
+    this(out, configs, Cluster.empty(), new DefaultPartitioner(), keySerializer, valueSerializer);
+  }
+
+  /**
+   * Create a producer which writes framed records to {@code out}, using the cluster metadata and partitioner
+   * to assign partitions to records which do not specify one.
+   */
+  public StreamProducer(final OutputStream out,
+                        final Map<String, ?> configs,
+                        final Cluster cluster,
+                        final Partitioner partitioner,
+                        final Serializer<K> keySerializer,
+                        final Serializer<V> valueSerializer) {
+    this(Objects.requireNonNull(out), configs, cluster, false, partitioner, keySerializer, valueSerializer,
+        RecordHistory.Mode.NONE);
+  }
+
+  private StreamProducer(final OutputStream out,
+                         final Map<String, ?> configs,
+                         final Cluster cluster,
+                         final boolean autoComplete,
+                         final Partitioner partitioner,
+                         final Serializer<K> keySerializer,
+                         final Serializer<V> valueSerializer,
+                         final RecordHistory.Mode defaultHistory) {
+    this.out = out;
     this.cluster = cluster;
     this.autoComplete = autoComplete;
     this.partitioner = partitioner;
     this.keySerializer = keySerializer;
     this.valueSerializer = valueSerializer;
     this.offsets = new HashMap<>();
-    this.sent = new ArrayList<>();
-    this.uncommittedSends = new ArrayList<>();
-    this.consumerGroupOffsets = new ArrayList<>();
+    this.sent = RecordHistory.of(configs, defaultHistory);
+    this.uncommittedSends = RecordHistory.of(configs, defaultHistory);
+    this.consumerGroupOffsets = RecordHistory.of(configs, defaultHistory);
     this.uncommittedConsumerGroupOffsets = new HashMap<>();
     this.completions = new ArrayDeque<>();
-    this.streamMetrics = new HashMap<>();
+    this.metrics = new ProducerMetrics(configs, "kif-stream-producer");
+
+    this.frame = new RecordFrame();
+    this.unwritten = new ArrayList<>();
+    this.lingerStartMs = -1L;
+    if (out == null) {
+      this.channel = null;
+      this.buffer = null;
+      this.sync = null;
+      this.lingerMs = 0L;
+      this.lingerTimer = null;
+    } else {
+      int batchSize = ClientConfigs.getInt(configs, ProducerConfig.BATCH_SIZE_CONFIG, DEFAULT_BATCH_SIZE);
+      boolean container = ClientConfigs.getBoolean(configs, RecordContainer.CONTAINER_CONFIG, false);
+      int overhead = container ? RecordContainer.HEADER_SIZE + RecordContainer.BLOCK_HEADER_SIZE : 0;
+      if (batchSize < overhead + RecordFrame.LENGTH_SIZE + RecordFrame.FIXED_SIZE)
+        throw new ConfigException(ProducerConfig.BATCH_SIZE_CONFIG, batchSize, "Must hold at least one empty record frame");
+      this.lingerMs = ClientConfigs.getLong(configs, ProducerConfig.LINGER_MS_CONFIG, DEFAULT_LINGER_MS);
+      // A FileOutputStream (including one opened on FileDescriptor.out) can be written straight from a
+      // direct buffer, anything else is written from the buffer's backing array.
+      if (out instanceof FileOutputStream) {
+        this.channel = ((FileOutputStream) out).getChannel();
+        this.buffer = ByteBuffer.allocateDirect(batchSize);
+      } else {
+        this.channel = null;
+        this.buffer = ByteBuffer.allocate(batchSize);
+      }
+      // Each buffer of frames is written as one block, so the block header is left room for at its start.
+      if (container) {
+        this.sync = RecordContainer.newSync();
+        RecordContainer.writeHeader(this.buffer, this.sync);
+        this.blockStart = RecordContainer.HEADER_SIZE;
+        this.buffer.position(this.blockStart + RecordContainer.BLOCK_HEADER_SIZE);
+      } else {
+        this.sync = null;
+      }
+      if (this.lingerMs > 0) {
+        // The timer only wakes once per buffer, linger.ms after its first record; not while nothing is buffered.
+        ScheduledThreadPoolExecutor lingerTimer = new ScheduledThreadPoolExecutor(1, r -> {
+          Thread thread = new Thread(r, "kif-stream-producer-linger");
+          thread.setDaemon(true);
+          return thread;
+        });
+        lingerTimer.setRemoveOnCancelPolicy(true);
+        this.lingerTimer = lingerTimer;
+      } else {
+        this.lingerTimer = null;
+      }
+    }
   }
 
   @Override
@@ -238,7 +368,7 @@ public class StreamProducer<K, V> implements Producer<K,V> {
 
     flush();
 
-    this.sent.addAll(this.uncommittedSends);
+    this.sent.addAll(this.uncommittedSends.list());
     if (!this.uncommittedConsumerGroupOffsets.isEmpty())
       this.consumerGroupOffsets.add(this.uncommittedConsumerGroupOffsets);
 
@@ -300,29 +430,49 @@ public class StreamProducer<K, V> implements Producer<K,V> {
     if (this.sendException != null) {
       throw this.sendException;
     }
+    if (this.sinkException != null) {
+      throw this.sinkException;
+    }
+
+    // Serialized once; the same bytes go to the partitioner and are written. Even when they aren't written,
+    // this throws ClassCastException if the serializers are not the proper ones to serialize key/value.
+    byte[] keyBytes = keySerializer.serialize(record.topic(), record.headers(), record.key());
+    byte[] valueBytes = valueSerializer.serialize(record.topic(), record.headers(), record.value());
 
     int partition = 0;
     if (!this.cluster.partitionsForTopic(record.topic()).isEmpty())
-      partition = partition(record, this.cluster);
-    else {
-      //just to throw ClassCastException if serializers are not the proper ones to serialize key/value
-      keySerializer.serialize(record.topic(), record.key());
-      valueSerializer.serialize(record.topic(), record.value());
-    }
+      partition = partition(record, keyBytes, valueBytes, this.cluster);
+    else if (this.out != null && record.partition() != null)
+      // Without metadata, a stream's partitions are whatever the records say they are.
+      partition = record.partition();
 
     TopicPartition topicPartition = new TopicPartition(record.topic(), partition);
-    ProduceRequestResult result = new ProduceRequestResult(topicPartition);
-    FutureRecordMetadata future = new FutureRecordMetadata(result, 0, RecordBatch.NO_TIMESTAMP,
-        0L, 0, 0, Time.SYSTEM);
     long offset = nextOffset(topicPartition);
-    StreamProducer.Completion completion = new StreamProducer.Completion(offset, new RecordMetadata(topicPartition, 0, offset,
-        RecordBatch.NO_TIMESTAMP, 0L, 0, 0), result, callback);
 
     if (!this.transactionInFlight)
       this.sent.add(record);
     else
       this.uncommittedSends.add(record);
 
+    if (this.out != null) {
+      long timestamp = record.timestamp() == null ? Time.SYSTEM.milliseconds() : record.timestamp();
+      frame.set(partition, offset, timestamp, keyBytes, valueBytes, record.headers());
+
+      ProduceRequestResult result = new ProduceRequestResult(topicPartition);
+      FutureRecordMetadata future = new FutureRecordMetadata(result, 0, timestamp,
+          null, frame.serializedKeySize(), frame.serializedValueSize(), Time.SYSTEM);
+      StreamProducer.Completion completion = new StreamProducer.Completion(offset, new RecordMetadata(topicPartition, 0, offset,
+          timestamp, null, frame.serializedKeySize(), frame.serializedValueSize()), frame.sizeInBytes(), result, callback);
+      append(frame, completion);
+      return future;
+    }
+
+    ProduceRequestResult result = new ProduceRequestResult(topicPartition);
+    FutureRecordMetadata future = new FutureRecordMetadata(result, 0, RecordBatch.NO_TIMESTAMP,
+        0L, 0, 0, Time.SYSTEM);
+    StreamProducer.Completion completion = new StreamProducer.Completion(offset, new RecordMetadata(topicPartition, 0, offset,
+        RecordBatch.NO_TIMESTAMP, 0L, 0, 0), 0, result, callback);
+
     if (autoComplete)
       completion.complete(null);
     else
@@ -335,13 +485,16 @@ public class StreamProducer<K, V> implements Producer<K,V> {
    * See {@link Producer#flush()}
    */
   @Override
-  public void flush() {
+  public synchronized void flush() {
     verifyProducerState();
 
     if (this.flushException != null) {
       throw this.flushException;
     }
 
+    if (this.out != null)
+      drain(true);
+
     while (!this.completions.isEmpty())
       completeNext();
   }
@@ -360,11 +513,12 @@ public class StreamProducer<K, V> implements Producer<K,V> {
   }
 
   /**
-   * See {@link Producer#metrics()}
+   * See {@link Producer#metrics()}. With an {@code OutputStream}, these are a {@code KafkaProducer}'s metrics, see
+   * {@link ProducerMetrics}.
    */
   @Override
   public Map<MetricName, ? extends Metric> metrics() {
-    return streamMetrics;
+    return metrics.metrics();
   }
 
   /**
@@ -386,7 +540,16 @@ public class StreamProducer<K, V> implements Producer<K,V> {
       throw this.closeException;
     }
 
-    this.closed = true;
+    if (this.lingerTimer != null)
+      this.lingerTimer.shutdownNow();
+
+    synchronized (this) {
+      if (!this.closed && this.out != null)
+        drain(true);
+      if (!this.closed)
+        this.metrics.close();
+      this.closed = true;
+    }
   }
 
   // --- Internal Implementation Methods --------------------------------------------------------------------
@@ -425,6 +588,37 @@ public class StreamProducer<K, V> implements Producer<K,V> {
     this.producerFenced = true;
   }
 
+  /**
+   * Get the list of sent records since the last call to {@link #clear()}. Depending on {@code kif.history.mode}
+   * this is every record, only the most recent records, or none at all.
+   */
+  public synchronized List<ProducerRecord<K, V>> history() {
+    return this.sent.list();
+  }
+
+  public synchronized List<ProducerRecord<K, V>> uncommittedRecords() {
+    return this.uncommittedSends.list();
+  }
+
+  /**
+   * Get the list of committed consumer group offsets since the last call to {@link #clear()}
+   */
+  public synchronized List<Map<String, Map<TopicPartition, OffsetAndMetadata>>> consumerGroupOffsetsHistory() {
+    return this.consumerGroupOffsets.list();
+  }
+
+  /**
+   * Clear the stored history of sent records, consumer group offsets
+   */
+  public synchronized void clear() {
+    this.sent.clear();
+    this.uncommittedSends.clear();
+    this.sentOffsets = false;
+    this.completions.clear();
+    this.consumerGroupOffsets.clear();
+    this.uncommittedConsumerGroupOffsets.clear();
+  }
+
   /**
    * Get the next offset for the specified topic/partition
    */
@@ -440,7 +634,127 @@ public class StreamProducer<K, V> implements Producer<K,V> {
     }
   }
 
-  private int partition(ProducerRecord<K, V> record, Cluster cluster) {
+  /**
+   * Appends a frame to the buffer, writing the buffer out first if the frame will not fit. Frames larger than
+   * {@code batch.size} are written on their own, in a block of their own when writing a container.
+   */
+  private void append(RecordFrame frame, StreamProducer.Completion completion) {
+    int size = frame.sizeInBytes();
+    this.metrics.recordSize(size);
+    if (size > this.buffer.remaining())
+      drain(false);
+
+    int blockHeaderSize = this.sync == null ? 0 : RecordContainer.BLOCK_HEADER_SIZE;
+    if (size > this.buffer.capacity() - blockHeaderSize) {
+      ByteBuffer large = ByteBuffer.allocate(blockHeaderSize + size);
+      large.position(blockHeaderSize);
+      frame.writeTo(large);
+      if (this.sync != null)
+        RecordContainer.sealBlock(large, 0, 1, this.sync);
+      large.flip();
+      this.unwritten.add(completion);
+      write(large, false);
+      return;
+    }
+
+    if (this.unwritten.isEmpty()) {
+      this.lingerStartMs = Time.SYSTEM.milliseconds();
+      if (this.lingerTimer != null && this.buffer.remaining() > size)
+        this.lingerDrain = this.lingerTimer.schedule(this::drainIfLingered, this.lingerMs, TimeUnit.MILLISECONDS);
+    }
+    frame.writeTo(this.buffer);
+    this.unwritten.add(completion);
+
+    if (this.lingerMs <= 0 || !this.buffer.hasRemaining())
+      drain(false);
+  }
+
+  /**
+   * Writes out the buffered frames, as one block when writing a container, completing their sends.
+   *
+   * @param flushStream whether to also flush the underlying {@code OutputStream}.
+   */
+  private void drain(boolean flushStream) {
+    this.lingerStartMs = -1L;
+    if (this.lingerDrain != null) {
+      this.lingerDrain.cancel(false);
+      this.lingerDrain = null;
+    }
+    if (this.sync != null) {
+      if (this.unwritten.isEmpty())
+        this.buffer.position(this.blockStart); // no block, though the container header may not be written yet
+      else
+        RecordContainer.sealBlock(this.buffer, this.blockStart, this.unwritten.size(), this.sync);
+    }
+    this.buffer.flip();
+    try {
+      write(this.buffer, flushStream);
+    } finally {
+      this.buffer.clear();
+      if (this.sync != null) {
+        this.blockStart = 0;
+        this.buffer.position(RecordContainer.BLOCK_HEADER_SIZE);
+      }
+    }
+  }
+
+  private void write(ByteBuffer bytes, boolean flushStream) {
+    int size = bytes.remaining();
+    long startNs = Time.SYSTEM.nanoseconds();
+    if (this.sinkException == null) {
+      try {
+        if (this.channel != null) {
+          while (bytes.hasRemaining())
+            this.channel.write(bytes);
+        } else if (bytes.hasRemaining()) {
+          this.out.write(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+          bytes.position(bytes.limit());
+        }
+        if (flushStream)
+          this.out.flush();
+      } catch (IOException e) {
+        this.sinkException = new KafkaException("Could not write records to the output stream.", e);
+      }
+    }
+    if (this.sinkException == null)
+      this.metrics.recordRequest(this.unwritten.size(), size, Time.SYSTEM.nanoseconds() - startNs);
+    recordSends(this.unwritten, this.sinkException != null);
+    for (StreamProducer.Completion completion : this.unwritten)
+      completion.complete(this.sinkException);
+    this.unwritten.clear();
+  }
+
+  /**
+   * Record written (or failed) sends as one batch per run of records of the same topic.
+   */
+  private void recordSends(List<StreamProducer.Completion> completions, boolean failed) {
+    int start = 0;
+    while (start < completions.size()) {
+      String topic = completions.get(start).metadata.topic();
+      int end = start;
+      int bytes = 0;
+      while (end < completions.size() && completions.get(end).metadata.topic().equals(topic))
+        bytes += completions.get(end++).sizeInBytes;
+      if (failed)
+        this.metrics.recordErrors(topic, end - start);
+      else
+        this.metrics.recordBatch(topic, end - start, bytes);
+      start = end;
+    }
+  }
+
+  /**
+   * Called from the linger timer; writes out a partially filled buffer once it has waited {@code linger.ms}. A
+   * drain that was cancelled too late to stop finds a newer buffer, which hasn't waited long enough yet.
+   */
+  private synchronized void drainIfLingered() {
+    if (this.closed || this.lingerStartMs < 0)
+      return;
+    if (Time.SYSTEM.milliseconds() - this.lingerStartMs >= this.lingerMs)
+      drain(true);
+  }
+
+  private int partition(ProducerRecord<K, V> record, byte[] keyBytes, byte[] valueBytes, Cluster cluster) {
     Integer partition = record.partition();
     String topic = record.topic();
     if (partition != null) {
@@ -454,8 +768,6 @@ public class StreamProducer<K, V> implements Producer<K,V> {
             + "].");
       return partition;
     }
-    byte[] keyBytes = keySerializer.serialize(topic, record.headers(), record.key());
-    byte[] valueBytes = valueSerializer.serialize(topic, record.headers(), record.value());
     return this.partitioner.partition(topic, record.key(), keyBytes, record.value(), valueBytes, cluster);
   }
 
@@ -486,14 +798,17 @@ public class StreamProducer<K, V> implements Producer<K,V> {
   private static class Completion {
     private final long offset;
     private final RecordMetadata metadata;
+    private final int sizeInBytes;
     private final ProduceRequestResult result;
     private final Callback callback;
 
     public Completion(long offset,
                       RecordMetadata metadata,
+                      int sizeInBytes,
                       ProduceRequestResult result,
                       Callback callback) {
       this.metadata = metadata;
+      this.sizeInBytes = sizeInBytes;
       this.offset = offset;
       this.result = result;
       this.callback = callback;
@@ -0,0 +1,161 @@
+/*
+ * Copyright © 2021 Kif Contributors (https://kif.firkin.io/)
+ * Copyright © 2021 Firkin•IO (https://firkin.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.firkin.kif.utils.log;
+
+import org.apache.kafka.common.utils.ByteBufferUnmapper;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A sparse, memory-mapped index of a {@link LogSegment}, a sorted array of fixed size entries each holding an
+ * offset relative to the segment's base offset. Entries are only ever appended, so lookups are binary searches.
+ * <p/>
+ * A writable index is preallocated to {@code segment.index.bytes} and trimmed to the entries written when it is
+ * sealed. A read-only index maps the file as it is; if it belongs to a segment still being written, the zero
+ * filled, preallocated tail is found by its relative offsets, which only the first entry may have as zero.
+ * <i> This class is <em>not</em> threadsafe.</i>
+ */
+abstract class AbstractIndex implements Closeable {
+
+  protected final Path path;
+  protected final long baseOffset;
+  private final boolean writable;
+  protected final int maxEntries;
+  protected MappedByteBuffer mmap;
+  protected int entries;
+
+  /**
+   * Map an index file: a writable index is created (or emptied) and preallocated to {@code maxIndexSize}
+   * bytes, a read-only index must already exist.
+   */
+  protected AbstractIndex(Path path, long baseOffset, int maxIndexSize, boolean writable) throws IOException {
+    this.path = path;
+    this.baseOffset = baseOffset;
+    this.writable = writable;
+    try (FileChannel channel = writable
+        ? FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+            StandardOpenOption.READ, StandardOpenOption.WRITE)
+        : FileChannel.open(path, StandardOpenOption.READ)) {
+      long size = writable ? maxIndexSize : Math.min(channel.size(), Integer.MAX_VALUE);
+      size -= size % entrySize();
+      this.maxEntries = (int) (size / entrySize());
+      this.mmap = channel.map(writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY, 0, size);
+    }
+    this.entries = writable ? 0 : countEntries();
+    this.mmap.position(entries * entrySize());
+  }
+
+  public Path path() {
+    return path;
+  }
+
+  public int entries() {
+    return entries;
+  }
+
+  public boolean isFull() {
+    return entries >= maxEntries;
+  }
+
+  /**
+   * Force the entries to disk, unmap the index, and trim its file to the entries actually written. A
+   * read-only index is just unmapped.
+   */
+  void seal() throws IOException {
+    if (mmap == null)
+      return;
+    if (writable)
+      mmap.force();
+    ByteBufferUnmapper.unmap(path.toString(), mmap);
+    mmap = null;
+    if (writable) {
+      try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+        channel.truncate((long) entries * entrySize());
+        channel.force(true);
+      }
+    }
+  }
+
+  void flush() {
+    if (writable && mmap != null)
+      mmap.force();
+  }
+
+  void delete() throws IOException {
+    seal();
+    Files.deleteIfExists(path);
+  }
+
+  @Override
+  public void close() throws IOException {
+    seal();
+  }
+
+  // --- Internal Implementation Methods --------------------------------------------------------------------
+
+  protected abstract int entrySize();
+
+  /**
+   * The offset of the n-th entry, relative to the segment's base offset.
+   */
+  protected abstract int relativeOffset(int n);
+
+  protected int toRelative(long offset) {
+    long relative = offset - baseOffset;
+    if (relative < 0 || relative > Integer.MAX_VALUE)
+      throw new IllegalArgumentException("Offset " + offset + " is out of range for the index " + path);
+    return (int) relative;
+  }
+
+  protected void ensureWritable() {
+    if (!writable || mmap == null)
+      throw new IllegalStateException("The index " + path + " is not open for appends");
+    if (entries >= maxEntries)
+      throw new IllegalStateException("The index " + path + " is full");
+  }
+
+  /**
+   * Whether the first entry is unwritten; only the index knows whether an all zero first entry is a real one.
+   */
+  protected boolean isFirstEntryUnused() {
+    return false;
+  }
+
+  /**
+   * The number of entries written, the index of the first entry past the first whose relative offset is zero.
+   */
+  private int countEntries() {
+    if (maxEntries == 0 || isFirstEntryUnused())
+      return 0;
+    int low = 1;
+    int high = maxEntries;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (relativeOffset(mid) == 0)
+        high = mid;
+      else
+        low = mid + 1;
+    }
+    return low;
+  }
+}
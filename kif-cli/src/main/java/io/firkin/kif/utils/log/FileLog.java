@@ -0,0 +1,124 @@
+/*
+ * Copyright © 2021 Kif Contributors (https://kif.firkin.io/)
+ * Copyright © 2021 Firkin•IO (https://firkin.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.firkin.kif.utils.log;
+
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.utils.Time;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A directory of {@link PartitionLog}s, one per topic-partition, opened as records for them are appended.
+ * <p/>
+ * Partition logs may be opened from several threads, but each {@link PartitionLog} is <em>not</em> threadsafe:
+ * its user must make sure only one thread at a time appends to, flushes or closes it.
+ */
+public class FileLog implements Closeable {
+
+  private final LogConfig config;
+  private final Time time;
+  private final PartitionLog.AppendListener listener;
+  private final Map<TopicPartition, PartitionLog> partitions;
+  private boolean closed;
+
+  public FileLog(LogConfig config) throws IOException {
+    this(config, Time.SYSTEM, null);
+  }
+
+  /**
+   * @param listener told of every batch appended to any of the partition logs; may be null.
+   */
+  public FileLog(LogConfig config, Time time, PartitionLog.AppendListener listener) throws IOException {
+    this.config = config;
+    this.time = time;
+    this.listener = listener;
+    this.partitions = new HashMap<>();
+    Files.createDirectories(config.dir());
+  }
+
+  public LogConfig config() {
+    return config;
+  }
+
+  /**
+   * The log of a topic-partition, opened (or created) on first use.
+   */
+  public synchronized PartitionLog partition(TopicPartition topicPartition) throws IOException {
+    if (closed)
+      throw new IOException("The log in " + config.dir() + " is closed");
+    PartitionLog log = partitions.get(topicPartition);
+    if (log == null) {
+      log = PartitionLog.open(topicPartition, config, time, listener);
+      partitions.put(topicPartition, log);
+    }
+    return log;
+  }
+
+  /**
+   * The partition logs opened so far.
+   */
+  public synchronized Collection<PartitionLog> partitions() {
+    return Collections.unmodifiableCollection(new ArrayList<>(partitions.values()));
+  }
+
+  /**
+   * Append every partition's open batch and force the appended records to disk.
+   */
+  public synchronized void flush() throws IOException {
+    IOException failure = null;
+    for (PartitionLog log : partitions.values()) {
+      try {
+        log.flush();
+      } catch (IOException e) {
+        failure = addFailure(failure, e);
+      }
+    }
+    if (failure != null)
+      throw failure;
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    closed = true;
+    IOException failure = null;
+    for (PartitionLog log : partitions.values()) {
+      try {
+        log.close();
+      } catch (IOException e) {
+        failure = addFailure(failure, e);
+      }
+    }
+    partitions.clear();
+    if (failure != null)
+      throw failure;
+  }
+
+  private static IOException addFailure(IOException failure, IOException e) {
+    if (failure == null)
+      return e;
+    failure.addSuppressed(e);
+    return failure;
+  }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright © 2021 Kif Contributors (https://kif.firkin.io/)
+ * Copyright © 2021 Firkin•IO (https://firkin.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.firkin.kif.utils.log;
+
+import org.apache.kafka.common.TopicPartition;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Stream;
+
+/**
+ * A read-only view of a {@link FileLog}'s directory, with a {@link PartitionLogReader} per topic-partition,
+ * opened as they are asked for.
+ * <i> This class is <em>not</em> threadsafe.</i>
+ */
+public class FileLogReader implements Closeable {
+
+  private final Path dir;
+  private final Map<TopicPartition, PartitionLogReader> partitions;
+
+  public FileLogReader(Path dir) {
+    this.dir = dir;
+    this.partitions = new HashMap<>();
+  }
+
+  public Path dir() {
+    return dir;
+  }
+
+  /**
+   * The reader of a topic-partition's log, opened and refreshed on first use. A topic-partition with no log
+   * (yet) reads as empty.
+   */
+  public PartitionLogReader partition(TopicPartition topicPartition) throws IOException {
+    PartitionLogReader reader = partitions.get(topicPartition);
+    if (reader == null) {
+      reader = new PartitionLogReader(topicPartition, dir);
+      reader.refresh();
+      partitions.put(topicPartition, reader);
+    }
+    return reader;
+  }
+
+  /**
+   * The topics that have at least one partition log in the directory.
+   */
+  public Set<String> topics() throws IOException {
+    Set<String> found = new TreeSet<>();
+    if (!Files.isDirectory(dir))
+      return found;
+    try (Stream<Path> files = Files.list(dir)) {
+      files.filter(Files::isDirectory)
+          .map(path -> path.getFileName().toString())
+          .filter(name -> name.lastIndexOf('-') > 0
+              && name.substring(name.lastIndexOf('-') + 1).chars().allMatch(Character::isDigit)
+              && name.lastIndexOf('-') < name.length() - 1)
+          .forEach(name -> found.add(name.substring(0, name.lastIndexOf('-'))));
+    }
+    return found;
+  }
+
+  /**
+   * The partitions of {@code topic} that have a log in the directory, in partition order.
+   */
+  public List<TopicPartition> partitionsFor(String topic) throws IOException {
+    List<TopicPartition> found = new ArrayList<>();
+    if (!Files.isDirectory(dir))
+      return found;
+    String prefix = topic + "-";
+    try (Stream<Path> files = Files.list(dir)) {
+      files.filter(Files::isDirectory)
+          .map(path -> path.getFileName().toString())
+          .filter(name -> name.startsWith(prefix) && name.length() > prefix.length()
+              && name.substring(prefix.length()).chars().allMatch(Character::isDigit))
+          .forEach(name -> found.add(new TopicPartition(topic, Integer.parseInt(name.substring(prefix.length())))));
+    }
+    found.sort(Comparator.comparingInt(TopicPartition::partition));
+    return found;
+  }
+
+  @Override
+  public void close() throws IOException {
+    IOException failure = null;
+    for (PartitionLogReader reader : partitions.values()) {
+      try {
+        reader.close();
+      } catch (IOException e) {
+        if (failure == null) failure = e;
+        else failure.addSuppressed(e);
+      }
+    }
+    partitions.clear();
+    if (failure != null)
+      throw failure;
+  }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright © 2021 Kif Contributors (https://kif.firkin.io/)
+ * Copyright © 2021 Firkin•IO (https://firkin.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.firkin.kif.utils.log;
+
+import io.firkin.kif.utils.ClientConfigs;
+import org.apache.kafka.clients.producer.ProducerConfig;
+import org.apache.kafka.common.config.ConfigException;
+import org.apache.kafka.common.config.TopicConfig;
+import org.apache.kafka.common.record.CompressionType;
+
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Settings of a {@link FileLog}. Apart from {@code kif.log.dir}, these use Kafka's topic and producer config
+ * names and have the same meaning as they do on a broker or producer.
+ * <ul>
+ *   <li>{@code kif.log.dir} the directory holding the log; required.</li>
+ *   <li>{@code compression.type} the codec each record batch is compressed with: {@code none}, {@code gzip},
+ *       {@code snappy}, {@code lz4} or {@code zstd}.</li>
+ *   <li>{@code batch.size} the (compressed) size at which a partition's open batch is closed and appended.</li>
+ *   <li>{@code linger.ms} how long a partition's open batch may wait for more records before it is appended.</li>
+ *   <li>{@code segment.bytes} the size each segment is preallocated to; a segment rolls once it is full.</li>
+ *   <li>{@code segment.ms} the age at which a segment rolls, even if it isn't full.</li>
+ *   <li>{@code segment.index.bytes} the size each segment's offset and time indexes are preallocated to; a
+ *       segment rolls once either is full.</li>
+ *   <li>{@code index.interval.bytes} the number of bytes of batches between index entries.</li>
+ *   <li>{@code flush.messages} the number of records appended to a partition between fsyncs.</li>
+ *   <li>{@code flush.ms} the time between fsyncs of a partition.</li>
+ * </ul>
+ * By default nothing is fsync'd until the producer is flushed or closed, leaving it to the OS; as with Kafka.
+ */
+public final class LogConfig {
+
+  public static final String LOG_DIR_CONFIG = "kif.log.dir";
+
+  public static final CompressionType DEFAULT_COMPRESSION_TYPE = CompressionType.NONE;
+  public static final int DEFAULT_BATCH_SIZE = 256 * 1024;
+  public static final long DEFAULT_LINGER_MS = 5L;
+  public static final int DEFAULT_SEGMENT_BYTES = 128 * 1024 * 1024;
+  public static final long DEFAULT_SEGMENT_MS = TimeUnit.DAYS.toMillis(7);
+  public static final int DEFAULT_SEGMENT_INDEX_BYTES = 10 * 1024 * 1024;
+  public static final int DEFAULT_INDEX_INTERVAL_BYTES = 4096;
+  public static final long DEFAULT_FLUSH_MESSAGES = Long.MAX_VALUE;
+  public static final long DEFAULT_FLUSH_MS = Long.MAX_VALUE;
+
+  private final Path dir;
+  private final CompressionType compressionType;
+  private final int batchSize;
+  private final long lingerMs;
+  private final int segmentBytes;
+  private final long segmentMs;
+  private final int segmentIndexBytes;
+  private final int indexIntervalBytes;
+  private final long flushMessages;
+  private final long flushMs;
+
+  public LogConfig(Path dir, CompressionType compressionType, int batchSize, long lingerMs,
+                   int segmentBytes, long segmentMs, int segmentIndexBytes, int indexIntervalBytes,
+                   long flushMessages, long flushMs) {
+    if (dir == null)
+      throw new ConfigException(LOG_DIR_CONFIG, null, "A log directory is required");
+    if (compressionType == null)
+      throw new ConfigException(ProducerConfig.COMPRESSION_TYPE_CONFIG, null, "A compression type is required");
+    if (batchSize <= 0)
+      throw new ConfigException(ProducerConfig.BATCH_SIZE_CONFIG, batchSize, "Must be positive");
+    if (lingerMs < 0)
+      throw new ConfigException(ProducerConfig.LINGER_MS_CONFIG, lingerMs, "Must not be negative");
+    if (segmentBytes <= 0)
+      throw new ConfigException(TopicConfig.SEGMENT_BYTES_CONFIG, segmentBytes, "Must be positive");
+    if (segmentMs <= 0)
+      throw new ConfigException(TopicConfig.SEGMENT_MS_CONFIG, segmentMs, "Must be positive");
+    if (segmentIndexBytes < 12)
+      throw new ConfigException(TopicConfig.SEGMENT_INDEX_BYTES_CONFIG, segmentIndexBytes, "Must hold at least one entry");
+    if (indexIntervalBytes < 0)
+      throw new ConfigException(TopicConfig.INDEX_INTERVAL_BYTES_CONFIG, indexIntervalBytes, "Must not be negative");
+    if (flushMessages <= 0)
+      throw new ConfigException(TopicConfig.FLUSH_MESSAGES_INTERVAL_CONFIG, flushMessages, "Must be positive");
+    if (flushMs <= 0)
+      throw new ConfigException(TopicConfig.FLUSH_MS_CONFIG, flushMs, "Must be positive");
+    this.dir = dir;
+    this.compressionType = compressionType;
+    this.batchSize = batchSize;
+    this.lingerMs = lingerMs;
+    this.segmentBytes = segmentBytes;
+    this.segmentMs = segmentMs;
+    this.segmentIndexBytes = segmentIndexBytes;
+    this.indexIntervalBytes = indexIntervalBytes;
+    this.flushMessages = flushMessages;
+    this.flushMs = flushMs;
+  }
+
+  /**
+   * Whether the configs ask for a file log at all, that is whether {@code kif.log.dir} is set.
+   */
+  public static boolean isConfigured(Map<String, ?> configs) {
+    return configs != null && configs.get(LOG_DIR_CONFIG) != null;
+  }
+
+  public static LogConfig from(Map<String, ?> configs) {
+    String dir = ClientConfigs.getString(configs, LOG_DIR_CONFIG, null);
+    return new LogConfig(dir == null ? null : Path.of(dir),
+        compressionType(configs),
+        ClientConfigs.getInt(configs, ProducerConfig.BATCH_SIZE_CONFIG, DEFAULT_BATCH_SIZE),
+        ClientConfigs.getLong(configs, ProducerConfig.LINGER_MS_CONFIG, DEFAULT_LINGER_MS),
+        ClientConfigs.getInt(configs, TopicConfig.SEGMENT_BYTES_CONFIG, DEFAULT_SEGMENT_BYTES),
+        ClientConfigs.getLong(configs, TopicConfig.SEGMENT_MS_CONFIG, DEFAULT_SEGMENT_MS),
+        ClientConfigs.getInt(configs, TopicConfig.SEGMENT_INDEX_BYTES_CONFIG, DEFAULT_SEGMENT_INDEX_BYTES),
+        ClientConfigs.getInt(configs, TopicConfig.INDEX_INTERVAL_BYTES_CONFIG, DEFAULT_INDEX_INTERVAL_BYTES),
+        ClientConfigs.getLong(configs, TopicConfig.FLUSH_MESSAGES_INTERVAL_CONFIG, DEFAULT_FLUSH_MESSAGES),
+        ClientConfigs.getLong(configs, TopicConfig.FLUSH_MS_CONFIG, DEFAULT_FLUSH_MS));
+  }
+
+  public Path dir() {
+    return dir;
+  }
+
+  public CompressionType compressionType() {
+    return compressionType;
+  }
+
+  public int batchSize() {
+    return batchSize;
+  }
+
+  public long lingerMs() {
+    return lingerMs;
+  }
+
+  public int segmentBytes() {
+    return segmentBytes;
+  }
+
+  public long segmentMs() {
+    return segmentMs;
+  }
+
+  public int segmentIndexBytes() {
+    return segmentIndexBytes;
+  }
+
+  public int indexIntervalBytes() {
+    return indexIntervalBytes;
+  }
+
+  public long flushMessages() {
+    return flushMessages;
+  }
+
+  public long flushMs() {
+    return flushMs;
+  }
+
+  private static CompressionType compressionType(Map<String, ?> configs) {
+    String name = ClientConfigs.getString(configs, ProducerConfig.COMPRESSION_TYPE_CONFIG, null);
+    if (name == null)
+      return DEFAULT_COMPRESSION_TYPE;
+    try {
+      return CompressionType.forName(name);
+    } catch (IllegalArgumentException e) {
+      throw new ConfigException(ProducerConfig.COMPRESSION_TYPE_CONFIG, name, e.getMessage());
+    }
+  }
+}
@@ -0,0 +1,303 @@
+/*
+ * Copyright © 2021 Kif Contributors (https://kif.firkin.io/)
+ * Copyright © 2021 Firkin•IO (https://firkin.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.firkin.kif.utils.log;
+
+import org.apache.kafka.common.record.DefaultRecordBatch;
+import org.apache.kafka.common.record.MemoryRecords;
+import org.apache.kafka.common.record.MutableRecordBatch;
+import org.apache.kafka.common.record.RecordBatch;
+import org.apache.kafka.common.record.Records;
+import org.apache.kafka.common.utils.ByteBufferUnmapper;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * One file of a partition's log, holding the records from {@link #baseOffset()} up to (but excluding)
+ * {@link #nextOffset()} as a sequence of Kafka v2 record batches; byte for byte what a broker keeps in its own
+ * {@code .log} files, so a segment can be read with {@code FileRecords} and its batches sent on as they are.
+ * Alongside it are a sparse {@link OffsetIndex} and {@link TimeIndex}, which let a reader find an offset or a
+ * timestamp without scanning the segment.
+ * <p/>
+ * While it is being appended to, a segment is preallocated to its full size and memory-mapped, so an append is
+ * just a copy into the page cache. Unused, preallocated space is zero-filled, which is how the end of the
+ * segment is found again when an unsealed segment is reopened; a batch torn by a crash fails its CRC check
+ * and is dropped, along with anything after it, and the indexes are rebuilt from the batches that remain.
+ * Sealing a segment forces it to disk, unmaps it, and trims the file and its indexes to the bytes written.
+ * <i> This class is <em>not</em> threadsafe.</i>
+ */
+public class LogSegment implements Closeable {
+
+  static final String LOG_SUFFIX = ".log";
+
+  private final Path path;
+  private final long baseOffset;
+  private final long createdMs;
+  private final int indexIntervalBytes;
+  private final OffsetIndex offsetIndex;
+  private final TimeIndex timeIndex;
+  private FileChannel channel;
+  private MappedByteBuffer mmap;
+  private boolean sealing;
+  private long nextOffset;
+  private int bytesSinceLastIndexEntry;
+  private long maxTimestampSoFar;
+  private long offsetOfMaxTimestampSoFar;
+
+  private LogSegment(Path path, long baseOffset, long createdMs, LogConfig config, FileChannel channel,
+                     MappedByteBuffer mmap) throws IOException {
+    this.path = path;
+    this.baseOffset = baseOffset;
+    this.createdMs = createdMs;
+    this.indexIntervalBytes = config.indexIntervalBytes();
+    this.channel = channel;
+    this.mmap = mmap;
+    this.nextOffset = baseOffset;
+    this.maxTimestampSoFar = RecordBatch.NO_TIMESTAMP;
+    this.offsetOfMaxTimestampSoFar = baseOffset;
+    Path dir = path.getParent();
+    this.offsetIndex = new OffsetIndex(dir.resolve(fileName(baseOffset, OffsetIndex.SUFFIX)), baseOffset,
+        config.segmentIndexBytes(), true);
+    try {
+      this.timeIndex = new TimeIndex(dir.resolve(fileName(baseOffset, TimeIndex.SUFFIX)), baseOffset,
+          config.segmentIndexBytes(), true);
+    } catch (IOException | RuntimeException e) {
+      offsetIndex.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Create a new, empty segment in {@code dir}, preallocated to {@code size} bytes.
+   */
+  static LogSegment create(Path dir, long baseOffset, int size, LogConfig config, long nowMs) throws IOException {
+    Path path = dir.resolve(fileName(baseOffset, LOG_SUFFIX));
+    FileChannel channel = FileChannel.open(path,
+        StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    try {
+      MappedByteBuffer mmap = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+      return new LogSegment(path, baseOffset, nowMs, config, channel, mmap);
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Reopen an existing segment for appending, growing it to at least {@code config.segmentBytes()}. The end of
+   * the data is found by scanning the segment's batches up to the first empty (or torn) one, re-indexing them
+   * as they are scanned.
+   */
+  static LogSegment open(Path path, LogConfig config) throws IOException {
+    long baseOffset = baseOffset(path);
+    long createdMs = Files.readAttributes(path, BasicFileAttributes.class).creationTime().toMillis();
+    FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    try {
+      long mapSize = Math.max(channel.size(), config.segmentBytes());
+      if (mapSize > Integer.MAX_VALUE)
+        throw new IOException("Log segment " + path + " is too large to map: " + mapSize + " bytes");
+      MappedByteBuffer mmap = channel.map(FileChannel.MapMode.READ_WRITE, 0, mapSize);
+      LogSegment segment = new LogSegment(path, baseOffset, createdMs, config, channel, mmap);
+      segment.recover();
+      return segment;
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  public Path path() {
+    return path;
+  }
+
+  public long baseOffset() {
+    return baseOffset;
+  }
+
+  /**
+   * The offset the next record appended to this segment will have.
+   */
+  public long nextOffset() {
+    return nextOffset;
+  }
+
+  public long createdMs() {
+    return createdMs;
+  }
+
+  /**
+   * The largest timestamp of the records in this segment, or {@link RecordBatch#NO_TIMESTAMP} if it is empty.
+   */
+  public long maxTimestamp() {
+    return maxTimestampSoFar;
+  }
+
+  /**
+   * The number of bytes of records in this segment.
+   */
+  public int sizeInBytes() {
+    return mmap == null ? -1 : mmap.position();
+  }
+
+  public boolean isEmpty() {
+    return nextOffset == baseOffset;
+  }
+
+  /**
+   * Whether a batch of {@code bytes}, ending at {@code lastOffset}, can be appended to this segment and its
+   * indexes.
+   */
+  public boolean canFit(int bytes, long lastOffset) {
+    return mmap != null && !sealing && mmap.remaining() >= bytes && !offsetIndex.isFull() && !timeIndex.isFull()
+        && lastOffset - baseOffset <= Integer.MAX_VALUE;
+  }
+
+  /**
+   * Append whole record batches, which must be in order and start at this segment's {@link #nextOffset()}.
+   */
+  void append(MemoryRecords records) {
+    long next = nextOffset;
+    for (MutableRecordBatch batch : records.batches()) {
+      if (batch.baseOffset() != next)
+        throw new IllegalArgumentException("Out of order append to " + path + ": expected offset " + next
+            + " but was " + batch.baseOffset());
+      next = batch.nextOffset();
+    }
+    // Batches go in before their index entries, so a reader never finds an entry without its batch.
+    int position = mmap.position();
+    mmap.put(records.buffer());
+    for (MutableRecordBatch batch : records.batches()) {
+      index(batch, position);
+      position += batch.sizeInBytes();
+    }
+    nextOffset = next;
+  }
+
+  /**
+   * Force the appended records and their index entries to disk.
+   */
+  void flush() {
+    if (mmap != null)
+      mmap.force();
+    offsetIndex.flush();
+    timeIndex.flush();
+  }
+
+  /**
+   * Flush and unmap this segment, trimming its file to the bytes actually written. The time index gets a last
+   * entry with the segment's largest timestamp. No more records may be appended once a segment is sealed, or
+   * once sealing has begun: a seal that fails part way (its files removed, say) is finished by the next call.
+   */
+  void seal() throws IOException {
+    if (mmap == null)
+      return;
+    if (!sealing) {
+      sealing = true;
+      timeIndex.maybeAppend(maxTimestampSoFar, offsetOfMaxTimestampSoFar);
+    }
+    offsetIndex.seal();
+    timeIndex.seal();
+    int size = mmap.position();
+    mmap.force();
+    ByteBufferUnmapper.unmap(path.toString(), mmap);
+    mmap = null;
+    channel.truncate(size);
+    channel.force(true);
+    channel.close();
+    channel = null;
+  }
+
+  /**
+   * Seal this segment and delete its files.
+   */
+  void delete() throws IOException {
+    seal();
+    Files.deleteIfExists(path);
+    offsetIndex.delete();
+    timeIndex.delete();
+  }
+
+  @Override
+  public void close() throws IOException {
+    seal();
+  }
+
+  @Override
+  public String toString() {
+    return "LogSegment(path=" + path + ", baseOffset=" + baseOffset + ", nextOffset=" + nextOffset + ")";
+  }
+
+  // --- Internal Implementation Methods --------------------------------------------------------------------
+
+  /**
+   * Scan the batches written before a crash or restart, stopping at the first empty or invalid one.
+   */
+  private void recover() {
+    int position = 0;
+    while (position + Records.LOG_OVERHEAD <= mmap.limit()) {
+      int batchSize = Records.LOG_OVERHEAD + mmap.getInt(position + Records.SIZE_OFFSET);
+      if (batchSize < DefaultRecordBatch.RECORD_BATCH_OVERHEAD || position + batchSize > mmap.limit())
+        break;
+      ByteBuffer slice = mmap.duplicate().position(position).limit(position + batchSize).slice();
+      MutableRecordBatch batch = MemoryRecords.readableRecords(slice).batches().iterator().next();
+      if (!batch.isValid() || batch.baseOffset() != nextOffset)
+        break;
+      index(batch, position);
+      nextOffset = batch.nextOffset();
+      position += batchSize;
+    }
+    mmap.position(position);
+  }
+
+  /**
+   * Track the batch's timestamp and index it, if {@code index.interval.bytes} have been appended since the
+   * last index entry; as a broker does.
+   */
+  private void index(RecordBatch batch, int position) {
+    if (batch.maxTimestamp() > maxTimestampSoFar) {
+      maxTimestampSoFar = batch.maxTimestamp();
+      offsetOfMaxTimestampSoFar = batch.lastOffset();
+    }
+    if (bytesSinceLastIndexEntry > indexIntervalBytes) {
+      offsetIndex.append(batch.lastOffset(), position);
+      timeIndex.maybeAppend(maxTimestampSoFar, offsetOfMaxTimestampSoFar);
+      bytesSinceLastIndexEntry = 0;
+    }
+    bytesSinceLastIndexEntry += batch.sizeInBytes();
+  }
+
+  static String fileName(long baseOffset, String suffix) {
+    return String.format("%020d%s", baseOffset, suffix);
+  }
+
+  static boolean isSegmentFile(Path path) {
+    String name = path.getFileName().toString();
+    return name.endsWith(LOG_SUFFIX) && name.length() == 20 + LOG_SUFFIX.length();
+  }
+
+  static long baseOffset(Path path) {
+    String name = path.getFileName().toString();
+    return Long.parseLong(name.substring(0, name.length() - LOG_SUFFIX.length()));
+  }
+}
@@ -0,0 +1,397 @@
+/*
+ * Copyright © 2021 Kif Contributors (https://kif.firkin.io/)
+ * Copyright © 2021 Firkin•IO (https://firkin.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.firkin.kif.utils.log;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.KafkaStorageException;
+import org.apache.kafka.common.errors.SerializationException;
+import org.apache.kafka.common.header.Headers;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.apache.kafka.common.record.Record;
+import org.apache.kafka.common.record.RecordBatch;
+import org.apache.kafka.common.serialization.Deserializer;
+import org.apache.kafka.common.utils.BufferSupplier;
+import org.apache.kafka.common.utils.CloseableIterator;
+import org.apache.kafka.common.utils.Utils;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.Optional;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * A {@link Spliterator} over the records of some topic-partitions of a {@link FileLog}'s directory, in
+ * partition order and then offset order, for reading a large log with a parallel {@link java.util.stream.Stream}.
+ * <p/>
+ * Each partition's range of offsets is fixed when the spliterator is opened; records appended after that are
+ * not read. A split hands off half of the partitions, by record count; a single partition is split at the
+ * segment boundary nearest the middle of its range or, within one segment, at the middle offset, which the
+ * offset index turns into a byte position, so each half starts reading at the batch holding its first offset.
+ * A log written by a {@link PartitionLog} holds every offset in its range, so each split knows its size
+ * exactly and reports {@link #SIZED} and {@link #SUBSIZED}.
+ * <p/>
+ * Each split opens its own {@link PartitionLogReader} as it reaches each partition, so splits can be
+ * traversed on different threads; the key and value deserializers are shared by all of them, so must be
+ * threadsafe, as Kafka's own are. Each reader is closed once its range has been read; a traversal that stops
+ * early leaves its reader to be closed by {@link #close()}.
+ * <i> This class is <em>not</em> threadsafe.</i>
+ */
+public class LogSpliterator<K, V> implements Spliterator<ConsumerRecord<K, V>>, AutoCloseable {
+
+  /**
+   * How many bytes of batches to read from a segment at a time.
+   */
+  public static final int READ_BYTES = 1024 * 1024;
+
+  /**
+   * The fewest records worth splitting a single partition's range for.
+   */
+  public static final long MIN_SPLIT_RECORDS = 1024L;
+
+  private static final int CHARACTERISTICS = ORDERED | NONNULL | IMMUTABLE | SIZED | SUBSIZED;
+
+  private final Path dir;
+  private final Deserializer<K> keyDeserializer;
+  private final Deserializer<V> valueDeserializer;
+  private final List<Range> ranges;
+  private int index;
+  private final int fence;
+  private long nextOffset;
+  private long size;
+  private PartitionLogReader reader;
+  private BufferSupplier decompressionBuffers;
+  private Iterator<? extends RecordBatch> batches;
+  private CloseableIterator<Record> records;
+  private RecordBatch batch;
+
+  /**
+   * A spliterator over every partition of {@code topic} that has a log in {@code dir}.
+   */
+  public static <K, V> LogSpliterator<K, V> open(Path dir, String topic,
+                                                 Deserializer<K> keyDeserializer,
+                                                 Deserializer<V> valueDeserializer) {
+    try (FileLogReader log = new FileLogReader(dir)) {
+      return open(dir, log.partitionsFor(topic), keyDeserializer, valueDeserializer);
+    } catch (IOException e) {
+      throw new KafkaStorageException("Could not list the partitions of " + topic + " in " + dir, e);
+    }
+  }
+
+  /**
+   * A spliterator over {@code partitions}, in the order given; a partition with no log reads as empty.
+   */
+  public static <K, V> LogSpliterator<K, V> open(Path dir, Collection<TopicPartition> partitions,
+                                                 Deserializer<K> keyDeserializer,
+                                                 Deserializer<V> valueDeserializer) {
+    List<Range> ranges = new ArrayList<>(partitions.size());
+    try (FileLogReader log = new FileLogReader(dir)) {
+      for (TopicPartition tp : partitions) {
+        PartitionLogReader partition = log.partition(tp);
+        long start = partition.startOffset();
+        long end = partition.endOffset();
+        if (end > start)
+          ranges.add(new Range(tp, start, end, segmentBoundaries(partition.segmentBaseOffsets(), start, end)));
+      }
+    } catch (IOException e) {
+      throw new KafkaStorageException("Could not open the logs of " + partitions + " in " + dir, e);
+    }
+    return new LogSpliterator<>(dir, keyDeserializer, valueDeserializer, ranges);
+  }
+
+  /**
+   * A split of its own {@code ranges}, which no other split shares.
+   */
+  private LogSpliterator(Path dir, Deserializer<K> keyDeserializer, Deserializer<V> valueDeserializer,
+                         List<Range> ranges) {
+    this.dir = dir;
+    this.keyDeserializer = keyDeserializer;
+    this.valueDeserializer = valueDeserializer;
+    this.ranges = ranges;
+    this.index = 0;
+    this.fence = ranges.size();
+    this.nextOffset = ranges.isEmpty() ? 0L : ranges.get(0).start;
+    long size = 0L;
+    for (Range range : ranges)
+      size += range.size();
+    this.size = size;
+  }
+
+  @Override
+  public boolean tryAdvance(Consumer<? super ConsumerRecord<K, V>> action) {
+    while (index < fence) {
+      Range range = ranges.get(index);
+      ConsumerRecord<K, V> record = next(range);
+      if (record != null) {
+        action.accept(record);
+        return true;
+      }
+      nextPartition();
+    }
+    return false;
+  }
+
+  @Override
+  public void forEachRemaining(Consumer<? super ConsumerRecord<K, V>> action) {
+    while (index < fence) {
+      Range range = ranges.get(index);
+      ConsumerRecord<K, V> record;
+      while ((record = next(range)) != null)
+        action.accept(record);
+      nextPartition();
+    }
+  }
+
+  /**
+   * Hand off the first half of what is left, by record count: whole partitions if more than one is left, or
+   * else the first part of the one partition's range. Nothing is split once reading has begun.
+   */
+  @Override
+  public LogSpliterator<K, V> trySplit() {
+    if (reader != null || index >= fence)
+      return null;
+    if (fence - index > 1) {
+      long half = size / 2;
+      long prefix = 0L;
+      int mid = index;
+      while (mid < fence - 1 && prefix + ranges.get(mid).size() / 2 < half)
+        prefix += ranges.get(mid++).size();
+      if (mid == index)
+        mid++;
+      LogSpliterator<K, V> split = new LogSpliterator<>(dir, keyDeserializer, valueDeserializer,
+          new ArrayList<>(ranges.subList(index, mid)));
+      index = mid;
+      nextOffset = ranges.get(index).start;
+      size -= split.size;
+      return split;
+    }
+    Range range = ranges.get(index);
+    long splitOffset = range.splitOffset();
+    if (splitOffset < 0)
+      return null;
+    List<Range> head = new ArrayList<>(1);
+    head.add(range.head(splitOffset));
+    LogSpliterator<K, V> split = new LogSpliterator<>(dir, keyDeserializer, valueDeserializer, head);
+    ranges.set(index, range.tail(splitOffset));
+    nextOffset = splitOffset;
+    size -= split.size;
+    return split;
+  }
+
+  @Override
+  public long estimateSize() {
+    return size;
+  }
+
+  @Override
+  public int characteristics() {
+    return CHARACTERISTICS;
+  }
+
+  /**
+   * Close the reader of the partition being read, if a traversal stopped part way through it.
+   */
+  @Override
+  public void close() {
+    closeReader();
+  }
+
+  // --- Internal Implementation Methods --------------------------------------------------------------------
+
+  /**
+   * The next record of {@code range}, or null once it has all been read.
+   */
+  private ConsumerRecord<K, V> next(Range range) {
+    try {
+      if (reader == null)
+        openReader(range);
+      while (nextOffset < range.end) {
+        while (records != null && records.hasNext()) {
+          Record record = records.next();
+          if (record.offset() < nextOffset)
+            continue;
+          if (record.offset() >= range.end)
+            break;
+          nextOffset = record.offset() + 1;
+          size--;
+          return toConsumerRecord(range.tp, batch, record);
+        }
+        if (!nextBatch(range))
+          break;
+      }
+      return null;
+    } catch (IOException e) {
+      closeReader();
+      throw new KafkaStorageException("Could not read the log of " + range.tp, e);
+    }
+  }
+
+  /**
+   * Move on to the next batch of the range that holds any offset from {@code nextOffset}, reading the next
+   * chunk of the log when the current one runs out.
+   */
+  private boolean nextBatch(Range range) throws IOException {
+    // Move past the whole of the last batch, even if it had no records left at or after nextOffset.
+    if (batch != null)
+      nextOffset = Math.max(nextOffset, batch.nextOffset());
+    closeRecords();
+    while (true) {
+      if (batches == null || !batches.hasNext()) {
+        batches = reader.read(nextOffset, READ_BYTES).batches().iterator();
+        if (!batches.hasNext())
+          return false;
+      }
+      batch = batches.next();
+      if (batch.baseOffset() >= range.end)
+        return false;
+      if (batch.lastOffset() < nextOffset)
+        continue;
+      if (batch.isControlBatch()) {
+        nextOffset = batch.nextOffset();
+        continue;
+      }
+      records = batch.streamingIterator(decompressionBuffers);
+      return true;
+    }
+  }
+
+  private void openReader(Range range) throws IOException {
+    reader = new PartitionLogReader(range.tp, dir);
+    reader.refresh();
+    if (decompressionBuffers == null)
+      decompressionBuffers = BufferSupplier.create();
+  }
+
+  private void nextPartition() {
+    closeReader();
+    if (++index < fence)
+      nextOffset = ranges.get(index).start;
+  }
+
+  private void closeRecords() {
+    if (records != null)
+      records.close();
+    records = null;
+  }
+
+  private void closeReader() {
+    closeRecords();
+    batches = null;
+    batch = null;
+    if (reader == null)
+      return;
+    try {
+      reader.close();
+    } catch (IOException e) {
+      throw new KafkaStorageException("Could not close the log of " + reader.topicPartition(), e);
+    } finally {
+      reader = null;
+    }
+  }
+
+  private ConsumerRecord<K, V> toConsumerRecord(TopicPartition tp, RecordBatch batch, Record record) {
+    Headers headers = new RecordHeaders(record.headers());
+    byte[] keyBytes = record.hasKey() ? Utils.toArray(record.key()) : null;
+    byte[] valueBytes = record.hasValue() ? Utils.toArray(record.value()) : null;
+    try {
+      K key = keyBytes == null ? null : keyDeserializer.deserialize(tp.topic(), headers, keyBytes);
+      V value = valueBytes == null ? null : valueDeserializer.deserialize(tp.topic(), headers, valueBytes);
+      return new ConsumerRecord<>(tp.topic(), tp.partition(), record.offset(), record.timestamp(),
+          batch.timestampType(), null, record.keySize(), record.valueSize(), key, value, headers, Optional.empty());
+    } catch (RuntimeException e) {
+      throw new SerializationException("Error deserializing key/value for partition " + tp + " at offset "
+          + record.offset(), e);
+    }
+  }
+
+  /**
+   * The segment base offsets strictly inside {@code [start, end)}, which are where a range can be split
+   * without two splits reading the same batch.
+   */
+  private static long[] segmentBoundaries(NavigableSet<Long> baseOffsets, long start, long end) {
+    NavigableSet<Long> inside = baseOffsets.subSet(start, false, end, false);
+    long[] boundaries = new long[inside.size()];
+    int i = 0;
+    for (long baseOffset : inside)
+      boundaries[i++] = baseOffset;
+    return boundaries;
+  }
+
+  /**
+   * The offsets {@code [start, end)} of one topic-partition still to be read, and the segment boundaries
+   * between them.
+   */
+  private static final class Range {
+    private final TopicPartition tp;
+    private final long start;
+    private final long end;
+    private final long[] boundaries;
+
+    private Range(TopicPartition tp, long start, long end, long[] boundaries) {
+      this.tp = tp;
+      this.start = start;
+      this.end = end;
+      this.boundaries = boundaries;
+    }
+
+    private long size() {
+      return end - start;
+    }
+
+    /**
+     * Where to split the range: the segment boundary nearest its middle, or else its middle offset if it is
+     * large enough to be worth splitting; -1 if it isn't.
+     */
+    private long splitOffset() {
+      long middle = start + size() / 2;
+      long best = -1L;
+      for (long boundary : boundaries) {
+        if (best < 0 || Math.abs(boundary - middle) < Math.abs(best - middle))
+          best = boundary;
+      }
+      // A boundary far from the middle splits too unevenly to be worth avoiding a shared batch.
+      if (best >= 0 && Math.abs(best - middle) <= size() / 4)
+        return best;
+      return size() >= 2 * MIN_SPLIT_RECORDS ? middle : best;
+    }
+
+    private Range head(long offset) {
+      return new Range(tp, start, offset, sub(start, offset));
+    }
+
+    private Range tail(long offset) {
+      return new Range(tp, offset, end, sub(offset, end));
+    }
+
+    private long[] sub(long from, long to) {
+      int n = 0;
+      for (long boundary : boundaries)
+        if (boundary > from && boundary < to) n++;
+      long[] found = new long[n];
+      n = 0;
+      for (long boundary : boundaries)
+        if (boundary > from && boundary < to) found[n++] = boundary;
+      return found;
+    }
+  }
+}
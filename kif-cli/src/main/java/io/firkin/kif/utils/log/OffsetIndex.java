@@ -0,0 +1,104 @@
+/*
+ * Copyright © 2021 Kif Contributors (https://kif.firkin.io/)
+ * Copyright © 2021 Firkin•IO (https://firkin.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.firkin.kif.utils.log;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Maps offsets to positions in a {@link LogSegment}. Each entry is a 4 byte offset, relative to the segment's
+ * base offset, and the 4 byte position of the batch ending at that offset; the same layout as a Kafka
+ * broker's {@code .index} files. An entry is added after every {@code index.interval.bytes} of batches, so
+ * finding an offset's batch means a binary search of the index followed by a short scan of the segment.
+ * <i> This class is <em>not</em> threadsafe.</i>
+ */
+class OffsetIndex extends AbstractIndex {
+
+  static final String SUFFIX = ".index";
+  private static final int ENTRY_SIZE = 8;
+
+  OffsetIndex(Path path, long baseOffset, int maxIndexSize, boolean writable) throws IOException {
+    super(path, baseOffset, maxIndexSize, writable);
+  }
+
+  /**
+   * Add an entry for the batch at {@code position}, whose last offset is {@code lastOffset}.
+   */
+  void append(long lastOffset, int position) {
+    ensureWritable();
+    if (entries > 0 && (lastOffset <= lastOffset() || position <= lastPosition()))
+      throw new IllegalArgumentException("Out of order entry " + lastOffset + "@" + position + " for " + path);
+    mmap.putInt(toRelative(lastOffset));
+    mmap.putInt(position);
+    entries++;
+  }
+
+  /**
+   * The position from which to scan the segment for the batch holding {@code offset}, that of the last batch
+   * indexed as ending at or before it, or 0 if there is none.
+   */
+  int lookup(long offset) {
+    int n = floorEntry(offset);
+    return n < 0 ? 0 : position(n);
+  }
+
+  /**
+   * The position of the last indexed batch, or 0 if nothing has been indexed.
+   */
+  int lastPosition() {
+    return entries == 0 ? 0 : position(entries - 1);
+  }
+
+  long lastOffset() {
+    return entries == 0 ? baseOffset : baseOffset + relativeOffset(entries - 1);
+  }
+
+  // --- Internal Implementation Methods --------------------------------------------------------------------
+
+  @Override
+  protected int entrySize() {
+    return ENTRY_SIZE;
+  }
+
+  @Override
+  protected int relativeOffset(int n) {
+    return mmap.getInt(n * ENTRY_SIZE);
+  }
+
+  private int position(int n) {
+    return mmap.getInt(n * ENTRY_SIZE + 4);
+  }
+
+  private int floorEntry(long offset) {
+    if (offset < baseOffset)
+      return -1;
+    long relative = offset - baseOffset;
+    int low = 0;
+    int high = entries - 1;
+    int found = -1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      if (relativeOffset(mid) <= relative) {
+        found = mid;
+        low = mid + 1;
+      } else {
+        high = mid - 1;
+      }
+    }
+    return found;
+  }
+}
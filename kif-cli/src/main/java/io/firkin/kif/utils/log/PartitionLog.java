@@ -0,0 +1,259 @@
+/*
+ * Copyright © 2021 Kif Contributors (https://kif.firkin.io/)
+ * Copyright © 2021 Firkin•IO (https://firkin.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.firkin.kif.utils.log;
+
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.header.Header;
+import org.apache.kafka.common.record.DefaultRecord;
+import org.apache.kafka.common.record.MemoryRecords;
+import org.apache.kafka.common.record.MemoryRecordsBuilder;
+import org.apache.kafka.common.record.TimestampType;
+import org.apache.kafka.common.utils.Time;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * The log of a single topic-partition: a directory of {@link LogSegment}s and their indexes, of which only the
+ * last (the active segment) is appended to. The active segment is rolled when it can't fit the next batch or when it is older
+ * than {@code segment.ms}, and is fsync'd according to {@code flush.messages} and {@code flush.ms}.
+ * <p/>
+ * Records are first appended to an open batch, built with Kafka's {@link MemoryRecordsBuilder} and compressed
+ * with {@code compression.type}. The batch is closed and appended to the active segment once it reaches
+ * {@code batch.size}, once it has waited {@code linger.ms} (see {@link #drainIfLingered()}), or on
+ * {@link #flush()}. Records in the open batch have offsets, but aren't yet in the segment: see
+ * {@link #appendedOffset()}.
+ * <i> This class is <em>not</em> threadsafe.</i>
+ */
+public class PartitionLog implements Closeable {
+
+  /**
+   * Told of every batch appended to a log; how a producer keeps its batch metrics.
+   */
+  public interface AppendListener {
+
+    /**
+     * @param topicPartition the partition the batch was appended to.
+     * @param records the number of records in the batch.
+     * @param sizeInBytes the size of the batch, as appended.
+     * @param maxRecordSize the size of the largest record in the batch, before compression.
+     * @param compressionRatio the ratio of the batch's compressed to uncompressed size.
+     * @param queueTimeMs how long the batch was open, waiting for records.
+     * @param appendTimeNanos how long appending the batch took, including any roll or fsync it caused.
+     */
+    void onAppend(TopicPartition topicPartition, int records, int sizeInBytes, int maxRecordSize,
+                  double compressionRatio, long queueTimeMs, long appendTimeNanos);
+  }
+
+  private final TopicPartition topicPartition;
+  private final Path dir;
+  private final LogConfig config;
+  private final Time time;
+  private final AppendListener listener;
+  private LogSegment active;
+  private ByteBuffer batchBuffer;
+  private MemoryRecordsBuilder batch;
+  private int batchRecords;
+  private int batchMaxRecordSize;
+  private long batchBaseTimestamp;
+  private long batchStartMs;
+  private long nextOffset;
+  private long unflushedMessages;
+  private long lastFlushMs;
+
+  private PartitionLog(TopicPartition topicPartition, Path dir, LogConfig config, Time time, AppendListener listener,
+                       LogSegment active) {
+    this.topicPartition = topicPartition;
+    this.dir = dir;
+    this.config = config;
+    this.time = time;
+    this.listener = listener;
+    this.active = active;
+    this.nextOffset = active.nextOffset();
+    this.lastFlushMs = time.milliseconds();
+  }
+
+  /**
+   * Open the log of a topic-partition under {@code config.dir()}, creating it if needed. If the log already
+   * has segments, appends continue from the end of the last one.
+   */
+  static PartitionLog open(TopicPartition topicPartition, LogConfig config, Time time, AppendListener listener)
+      throws IOException {
+    Path dir = config.dir().resolve(dirName(topicPartition));
+    Files.createDirectories(dir);
+    List<Path> segments = segmentFiles(dir);
+    LogSegment active = segments.isEmpty()
+        ? LogSegment.create(dir, 0L, config.segmentBytes(), config, time.milliseconds())
+        : LogSegment.open(segments.get(segments.size() - 1), config);
+    return new PartitionLog(topicPartition, dir, config, time, listener, active);
+  }
+
+  public TopicPartition topicPartition() {
+    return topicPartition;
+  }
+
+  public Path dir() {
+    return dir;
+  }
+
+  /**
+   * The offset the next record appended to this log will have.
+   */
+  public long nextOffset() {
+    return nextOffset;
+  }
+
+  /**
+   * The offset up to which (excluding) records have been appended to the segments; any records from here to
+   * {@link #nextOffset()} are still in the open batch.
+   */
+  public long appendedOffset() {
+    return active.nextOffset();
+  }
+
+  /**
+   * Append a record to the open batch, returning its offset. Appending may first close the open batch and
+   * append it to the segments, if the record doesn't fit in it.
+   */
+  public long append(long timestamp, byte[] key, byte[] value, Header[] headers) throws IOException {
+    if (batch != null && !batch.hasRoomFor(timestamp, key, value, headers))
+      drain();
+    if (batch == null)
+      openBatch();
+
+    long offset = nextOffset++;
+    batch.append(timestamp, key, value, headers);
+    if (batchRecords == 0)
+      batchBaseTimestamp = timestamp;
+    if (listener != null)
+      batchMaxRecordSize = Math.max(batchMaxRecordSize, DefaultRecord.sizeInBytes(batchRecords,
+          timestamp - batchBaseTimestamp, key == null ? -1 : key.length, value == null ? -1 : value.length, headers));
+    batchRecords++;
+
+    if (batch.isFull() || config.lingerMs() == 0 || unflushedMessages + batchRecords >= config.flushMessages())
+      drain();
+    return offset;
+  }
+
+  /**
+   * Close the open batch, if there is one, and append it to the active segment, rolling and flushing as
+   * configured.
+   */
+  public void drain() throws IOException {
+    if (batch == null)
+      return;
+    MemoryRecords records = batch.build();
+    double compressionRatio = batch.compressionRatio();
+    int count = batchRecords;
+    int maxRecordSize = batchMaxRecordSize;
+    batch = null;
+    batchRecords = 0;
+    batchMaxRecordSize = 0;
+
+    long startNs = time.nanoseconds();
+    long nowMs = time.milliseconds();
+    int size = records.sizeInBytes();
+    long lastOffset = nextOffset - 1;
+    if (!active.canFit(size, lastOffset) || (!active.isEmpty() && nowMs - active.createdMs() >= config.segmentMs()))
+      roll(size, nowMs);
+
+    active.append(records);
+
+    unflushedMessages += count;
+    if (unflushedMessages >= config.flushMessages() || nowMs - lastFlushMs >= config.flushMs())
+      force();
+
+    if (listener != null)
+      listener.onAppend(topicPartition, count, size, maxRecordSize, compressionRatio, nowMs - batchStartMs,
+          time.nanoseconds() - startNs);
+  }
+
+  /**
+   * Append the open batch if it has waited at least {@code linger.ms}.
+   *
+   * @return true if a batch was appended.
+   */
+  public boolean drainIfLingered() throws IOException {
+    if (batch == null || time.milliseconds() - batchStartMs < config.lingerMs())
+      return false;
+    drain();
+    return true;
+  }
+
+  /**
+   * Append the open batch and force everything appended so far to disk.
+   */
+  public void flush() throws IOException {
+    drain();
+    force();
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      drain();
+    } finally {
+      active.close();
+    }
+  }
+
+  // --- Internal Implementation Methods --------------------------------------------------------------------
+
+  private void openBatch() {
+    if (batchBuffer == null)
+      batchBuffer = ByteBuffer.allocate(config.batchSize());
+    batchBuffer.clear();
+    batch = MemoryRecords.builder(batchBuffer, config.compressionType(), TimestampType.CREATE_TIME, nextOffset);
+    batchStartMs = time.milliseconds();
+  }
+
+  private void force() {
+    active.flush();
+    unflushedMessages = 0;
+    lastFlushMs = time.milliseconds();
+  }
+
+  private void roll(int minimumSize, long nowMs) throws IOException {
+    long baseOffset = active.nextOffset();
+    if (active.isEmpty())
+      active.delete();
+    else
+      active.seal();
+    active = LogSegment.create(dir, baseOffset, Math.max(config.segmentBytes(), minimumSize), config, nowMs);
+    unflushedMessages = 0;
+    lastFlushMs = nowMs;
+  }
+
+  static String dirName(TopicPartition topicPartition) {
+    return topicPartition.topic() + "-" + topicPartition.partition();
+  }
+
+  static List<Path> segmentFiles(Path dir) throws IOException {
+    try (Stream<Path> files = Files.list(dir)) {
+      return files.filter(LogSegment::isSegmentFile)
+          .sorted((a, b) -> Long.compare(LogSegment.baseOffset(a), LogSegment.baseOffset(b)))
+          .collect(Collectors.toList());
+    }
+  }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright © 2021 Kif Contributors (https://kif.firkin.io/)
+ * Copyright © 2021 Firkin•IO (https://firkin.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.firkin.kif.utils.log;
+
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.OffsetOutOfRangeException;
+import org.apache.kafka.common.record.FileRecords;
+import org.apache.kafka.common.record.MemoryRecords;
+import org.apache.kafka.common.record.Records;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeMap;
+
+/**
+ * A read-only view of the log of a single topic-partition, as written by a {@link PartitionLog}. Finding the
+ * batch holding an offset is a lookup of the segment by base offset, then a binary search of that segment's
+ * {@link OffsetIndex}, then a scan of at most {@code index.interval.bytes}; finding the first record at or
+ * after a timestamp goes through the segments' {@link TimeIndex}es the same way. Neither reads any more of the
+ * log than that, however large it is.
+ * <p/>
+ * The log may still be being written. {@link #refresh()} picks up any segments and batches appended since the
+ * last refresh.
+ * <i> This class is <em>not</em> threadsafe.</i>
+ */
+public class PartitionLogReader implements Closeable {
+
+  private final TopicPartition topicPartition;
+  private final Path dir;
+  private final TreeMap<Long, SegmentReader> segments;
+
+  PartitionLogReader(TopicPartition topicPartition, Path logDir) {
+    this.topicPartition = topicPartition;
+    this.dir = logDir.resolve(PartitionLog.dirName(topicPartition));
+    this.segments = new TreeMap<>();
+  }
+
+  public TopicPartition topicPartition() {
+    return topicPartition;
+  }
+
+  /**
+   * Pick up any segments and batches appended since the last refresh.
+   */
+  public void refresh() throws IOException {
+    if (!Files.isDirectory(dir))
+      return;
+    Long lastBaseOffset = segments.isEmpty() ? null : segments.lastKey();
+    for (Path path : PartitionLog.segmentFiles(dir)) {
+      long baseOffset = LogSegment.baseOffset(path);
+      if (!segments.containsKey(baseOffset) && (lastBaseOffset == null || baseOffset > lastBaseOffset))
+        segments.put(baseOffset, new SegmentReader(path));
+    }
+    // Only the last segment we knew of, and any since, can have changed.
+    Map<Long, SegmentReader> changed = lastBaseOffset == null ? segments : segments.tailMap(lastBaseOffset, true);
+    for (SegmentReader segment : changed.values())
+      segment.refresh();
+  }
+
+  /**
+   * The offset of the first record in the log, or 0 if it is empty.
+   */
+  public long startOffset() {
+    return segments.isEmpty() ? 0L : segments.firstKey();
+  }
+
+  /**
+   * The offset after the last record in the log, as of the last {@link #refresh()}.
+   */
+  public long endOffset() throws IOException {
+    return segments.isEmpty() ? 0L : segments.lastEntry().getValue().nextOffset();
+  }
+
+  /**
+   * The base offsets of the log's segments, in order, as of the last {@link #refresh()}.
+   */
+  NavigableSet<Long> segmentBaseOffsets() {
+    return Collections.unmodifiableNavigableSet(segments.navigableKeySet());
+  }
+
+  /**
+   * Up to {@code maxBytes} of whole batches, starting with the batch holding {@code offset}, or more if that
+   * one batch is larger. The first batch may hold records before {@code offset}, which the caller must skip.
+   *
+   * @throws OffsetOutOfRangeException if {@code offset} isn't between {@link #startOffset()} and
+   *         {@link #endOffset()}.
+   */
+  public Records read(long offset, int maxBytes) throws IOException {
+    if (offset < startOffset() || offset > endOffset())
+      throw new OffsetOutOfRangeException("Offset " + offset + " is out of range for " + topicPartition
+          + ", which holds [" + startOffset() + ", " + endOffset() + ")");
+    if (segments.isEmpty())
+      return MemoryRecords.EMPTY;
+    for (SegmentReader segment : segments.tailMap(segments.floorKey(offset), true).values()) {
+      Records records = segment.read(offset, maxBytes);
+      if (records.sizeInBytes() > 0)
+        return records;
+    }
+    return MemoryRecords.EMPTY;
+  }
+
+  /**
+   * The first record with a timestamp at or after {@code timestamp}, or null if there is none.
+   */
+  public FileRecords.TimestampAndOffset offsetForTime(long timestamp) throws IOException {
+    for (SegmentReader segment : segments.values()) {
+      if (segment.maxTimestamp() < timestamp)
+        continue;
+      FileRecords.TimestampAndOffset found = segment.offsetForTime(timestamp);
+      if (found != null)
+        return found;
+    }
+    return null;
+  }
+
+  @Override
+  public void close() throws IOException {
+    IOException failure = null;
+    for (SegmentReader segment : segments.values()) {
+      try {
+        segment.close();
+      } catch (IOException e) {
+        if (failure == null) failure = e;
+        else failure.addSuppressed(e);
+      }
+    }
+    segments.clear();
+    if (failure != null)
+      throw failure;
+  }
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright © 2021 Kif Contributors (https://kif.firkin.io/)
+ * Copyright © 2021 Firkin•IO (https://firkin.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.firkin.kif.utils.log;
+
+import org.apache.kafka.common.record.DefaultRecordBatch;
+import org.apache.kafka.common.record.FileLogInputStream;
+import org.apache.kafka.common.record.FileRecords;
+import org.apache.kafka.common.record.MemoryRecords;
+import org.apache.kafka.common.record.RecordBatch;
+import org.apache.kafka.common.record.Records;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A read-only view of a {@link LogSegment}, which may still be being appended to by a {@link PartitionLog},
+ * in this process or another. The segment's valid batches are found by scanning forward from the last entry
+ * of its offset index, or from where the last {@link #refresh()} stopped, checking each batch's CRC; batches
+ * are then read through Kafka's {@link FileRecords}, with the indexes narrowing each search to a short scan.
+ * <i> This class is <em>not</em> threadsafe.</i>
+ */
+class SegmentReader implements Closeable {
+
+  private final Path path;
+  private final long baseOffset;
+  private final ByteBuffer header;
+  private OffsetIndex offsetIndex;
+  private TimeIndex timeIndex;
+  private FileRecords file;
+  private FileRecords records;
+  private final List<FileRecords> retired;
+  private int validBytes;
+  private long nextOffset;
+  private long maxTimestamp;
+
+  SegmentReader(Path path) {
+    this.path = path;
+    this.baseOffset = LogSegment.baseOffset(path);
+    this.header = ByteBuffer.allocate(Records.LOG_OVERHEAD);
+    this.retired = new ArrayList<>();
+    this.validBytes = -1;
+    this.nextOffset = baseOffset;
+    this.maxTimestamp = RecordBatch.NO_TIMESTAMP;
+  }
+
+  long baseOffset() {
+    return baseOffset;
+  }
+
+  /**
+   * The offset after the last valid batch found by the last {@link #refresh()}.
+   */
+  long nextOffset() throws IOException {
+    ensureRefreshed();
+    return nextOffset;
+  }
+
+  /**
+   * The largest timestamp in the segment. For a sealed segment, this is the time index's last entry.
+   */
+  long maxTimestamp() throws IOException {
+    loadIndexes();
+    if (validBytes < 0 && timeIndex != null && timeIndex.entries() > 0)
+      return timeIndex.lastTimestamp();
+    ensureRefreshed();
+    return maxTimestamp;
+  }
+
+  /**
+   * Find any batches appended since the last refresh.
+   */
+  void refresh() throws IOException {
+    loadIndexes();
+    openFile();
+    int position = validBytes;
+    if (position < 0) {
+      int indexed = offsetIndex == null ? 0 : offsetIndex.lastPosition();
+      if (timeIndex != null)
+        maxTimestamp = timeIndex.lastTimestamp();
+      // The indexed batch should always be there; if it isn't, fall back to scanning the whole segment.
+      position = scan(indexed);
+      if (position == indexed && indexed > 0)
+        position = scan(0);
+    } else {
+      position = scan(position);
+    }
+    validBytes = position;
+    records = file.slice(0, validBytes);
+  }
+
+  /**
+   * Up to {@code maxBytes} of whole batches starting with the batch holding {@code offset}, or more if that one
+   * batch is larger. The first batch may hold records before {@code offset}.
+   */
+  Records read(long offset, int maxBytes) throws IOException {
+    ensureRefreshed();
+    if (offset >= nextOffset)
+      return MemoryRecords.EMPTY;
+    FileRecords.LogOffsetPosition start = records.searchForOffsetWithSize(offset, lookup(offset));
+    if (start == null)
+      return MemoryRecords.EMPTY;
+    int size = Math.min(Math.max(maxBytes, start.size), validBytes - start.position);
+    return records.slice(start.position, size);
+  }
+
+  /**
+   * The first record at or after {@code timestamp}, or null if there is none in this segment.
+   */
+  FileRecords.TimestampAndOffset offsetForTime(long timestamp) throws IOException {
+    ensureRefreshed();
+    long startOffset = timeIndex == null ? baseOffset : timeIndex.lookup(timestamp);
+    if (startOffset >= nextOffset)
+      return null;
+    return records.searchForTimestamp(timestamp, lookup(startOffset), startOffset);
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      if (file != null)
+        file.closeHandlers();
+      for (FileRecords old : retired)
+        old.closeHandlers();
+    } finally {
+      retired.clear();
+      file = null;
+      records = null;
+      if (offsetIndex != null)
+        offsetIndex.close();
+      if (timeIndex != null)
+        timeIndex.close();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "SegmentReader(path=" + path + ", baseOffset=" + baseOffset + ", nextOffset=" + nextOffset + ")";
+  }
+
+  // --- Internal Implementation Methods --------------------------------------------------------------------
+
+  /**
+   * Scan the valid batches from {@code position}, returning the position after the last of them.
+   */
+  private int scan(int position) throws IOException {
+    int size = (int) Math.min(file.sizeInBytes(), file.channel().size());
+    while (position + Records.LOG_OVERHEAD <= size) {
+      header.clear();
+      file.readInto(header, position);
+      int batchSize = Records.LOG_OVERHEAD + header.getInt(Records.SIZE_OFFSET);
+      if (batchSize < DefaultRecordBatch.RECORD_BATCH_OVERHEAD || position + batchSize > size)
+        break;
+      FileLogInputStream.FileChannelRecordBatch batch = file.slice(position, batchSize).batches().iterator().next();
+      if (batch.magic() != RecordBatch.MAGIC_VALUE_V2 || batch.baseOffset() < baseOffset || !batch.isValid())
+        break;
+      nextOffset = batch.nextOffset();
+      maxTimestamp = Math.max(maxTimestamp, batch.maxTimestamp());
+      position += batchSize;
+    }
+    return position;
+  }
+
+  private void ensureRefreshed() throws IOException {
+    if (validBytes < 0)
+      refresh();
+  }
+
+  /**
+   * The position to scan from for the batch holding {@code offset}; never past the valid batches.
+   */
+  private int lookup(long offset) {
+    int position = offsetIndex == null ? 0 : offsetIndex.lookup(offset);
+    return position < validBytes ? position : 0;
+  }
+
+  /**
+   * Map the indexes, if they exist; a segment written before it was indexed is scanned instead.
+   */
+  private void loadIndexes() throws IOException {
+    Path dir = path.getParent();
+    if (offsetIndex == null) {
+      Path indexPath = dir.resolve(LogSegment.fileName(baseOffset, OffsetIndex.SUFFIX));
+      if (Files.exists(indexPath))
+        offsetIndex = new OffsetIndex(indexPath, baseOffset, 0, false);
+    }
+    if (timeIndex == null) {
+      Path indexPath = dir.resolve(LogSegment.fileName(baseOffset, TimeIndex.SUFFIX));
+      if (Files.exists(indexPath))
+        timeIndex = new TimeIndex(indexPath, baseOffset, 0, false);
+    }
+  }
+
+  /**
+   * Open the segment file, or re-open it if it has grown since it was opened. Records already read from the
+   * old handle may still be in use, so it is kept open until the reader is closed. A segment that has been
+   * trimmed only lost its unused tail, so can still be read through the old handle.
+   */
+  private void openFile() throws IOException {
+    if (file != null && file.channel().size() <= file.sizeInBytes())
+      return;
+    if (file != null)
+      retired.add(file);
+    file = FileRecords.open(path.toFile(), false);
+  }
+}
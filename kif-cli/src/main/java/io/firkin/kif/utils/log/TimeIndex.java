@@ -0,0 +1,110 @@
+/*
+ * Copyright © 2021 Kif Contributors (https://kif.firkin.io/)
+ * Copyright © 2021 Firkin•IO (https://firkin.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.firkin.kif.utils.log;
+
+import org.apache.kafka.common.record.RecordBatch;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Maps timestamps to offsets in a {@link LogSegment}. Each entry is an 8 byte timestamp and a 4 byte offset,
+ * relative to the segment's base offset, meaning that no record up to and including that offset has a later
+ * timestamp; the same layout as a Kafka broker's {@code .timeindex} files. Timestamps only ever increase from
+ * one entry to the next, even when records' timestamps don't, so the index can be binary searched. The last
+ * entry, added when the segment is sealed, holds the segment's largest timestamp.
+ * <i> This class is <em>not</em> threadsafe.</i>
+ */
+class TimeIndex extends AbstractIndex {
+
+  static final String SUFFIX = ".timeindex";
+  private static final int ENTRY_SIZE = 12;
+
+  TimeIndex(Path path, long baseOffset, int maxIndexSize, boolean writable) throws IOException {
+    super(path, baseOffset, maxIndexSize, writable);
+  }
+
+  /**
+   * Add an entry, if {@code maxTimestamp} is later than the last entry's.
+   *
+   * @param maxTimestamp the largest timestamp of the records up to and including {@code offset}.
+   */
+  void maybeAppend(long maxTimestamp, long offset) {
+    if (maxTimestamp == RecordBatch.NO_TIMESTAMP || (entries > 0 && maxTimestamp <= lastTimestamp()))
+      return;
+    ensureWritable();
+    mmap.putLong(maxTimestamp);
+    mmap.putInt(toRelative(offset));
+    entries++;
+  }
+
+  /**
+   * The offset from which to search for the first record with a timestamp at or after {@code timestamp}; every
+   * record before it has an earlier timestamp.
+   */
+  long lookup(long timestamp) {
+    int low = 0;
+    int high = entries - 1;
+    int found = -1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      if (timestamp(mid) < timestamp) {
+        found = mid;
+        low = mid + 1;
+      } else {
+        high = mid - 1;
+      }
+    }
+    return found < 0 ? baseOffset : baseOffset + relativeOffset(found) + 1;
+  }
+
+  /**
+   * Whether the index is full, keeping back the one entry needed when the segment is sealed.
+   */
+  @Override
+  public boolean isFull() {
+    return entries >= maxEntries - 1;
+  }
+
+  /**
+   * The timestamp of the last entry, or {@link RecordBatch#NO_TIMESTAMP} if there are none.
+   */
+  long lastTimestamp() {
+    return entries == 0 ? RecordBatch.NO_TIMESTAMP : timestamp(entries - 1);
+  }
+
+  // --- Internal Implementation Methods --------------------------------------------------------------------
+
+  @Override
+  protected int entrySize() {
+    return ENTRY_SIZE;
+  }
+
+  @Override
+  protected int relativeOffset(int n) {
+    return mmap.getInt(n * ENTRY_SIZE + 8);
+  }
+
+  @Override
+  protected boolean isFirstEntryUnused() {
+    return timestamp(0) == 0L && relativeOffset(0) == 0;
+  }
+
+  private long timestamp(int n) {
+    return mmap.getLong(n * ENTRY_SIZE);
+  }
+}
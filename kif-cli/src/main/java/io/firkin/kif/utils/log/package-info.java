@@ -0,0 +1,27 @@
+/*
+ * Copyright © 2021 Kif Contributors (https://kif.firkin.io/)
+ * Copyright © 2021 Firkin•IO (https://firkin.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * An append-only, segmented log of records on local disk, modelled on Kafka's own log layout.
+ * <p/>
+ * A {@link io.firkin.kif.utils.log.FileLog} is a directory holding one sub-directory per topic-partition
+ * ({@code <topic>-<partition>}), each holding a sequence of {@link io.firkin.kif.utils.log.LogSegment}
+ * files named for the first offset they contain ({@code 00000000000000000000.log}). Segments hold Kafka v2
+ * record batches, optionally compressed, in the same format as a broker's log. This is what backs
+ * {@link io.firkin.kif.utils.FileProducer} when it is configured with {@code kif.log.dir}.
+ */
+package io.firkin.kif.utils.log;
@@ -0,0 +1,135 @@
+/*
+ * Copyright © 2021 Kif Contributors (https://kif.firkin.io/)
+ * Copyright © 2021 Firkin•IO (https://firkin.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.firkin.kif;
+
+import io.confluent.kafka.schemaregistry.client.MockSchemaRegistryClient;
+import io.firkin.kif.KifGenCli.RecordFormat;
+import io.firkin.kif.utils.StreamConsumer;
+import io.firkin.kif.utils.StreamProducer;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.serialization.ByteArrayDeserializer;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static io.firkin.kif.KifGenCli.RecordFormat.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class KifGenCliTest {
+
+  @Test
+  public void conversionsThatCantBeMadeAreRefused() {
+    assertRefused("Writing protobuf", JSON, PROTOBUF, true, true, true, false);
+    assertRefused("Writing protobuf", AVRO, PROTOBUF, true, true, true, false);
+    assertRefused("Writing protobuf", RAW, PROTOBUF, true, true, true, false);
+    assertRefused("protobuf to avro", PROTOBUF, AVRO, true, true, true, false);
+    assertRefused("--schema", JSON, AVRO, false, true, true, false);
+  }
+
+  @Test
+  public void forwardedAndCopiedValuesNeedNoRegistry() {
+    for (RecordFormat format : List.of(AVRO, PROTOBUF, JSON)) {
+      assertSupported(format, format, false, false, false, false);
+      assertSupported(format, RAW, false, false, false, false);
+      assertSupported(RAW, format == PROTOBUF ? RAW : format, false, false, false, false);
+      // Copied values are never decoded, nor are their ids remapped.
+      assertSupported(format, RAW, false, false, true, true);
+    }
+  }
+
+  @Test
+  public void valuesThatAreDecodedOrRemappedNeedTheirRegistry() {
+    for (RecordFormat format : List.of(AVRO, PROTOBUF)) {
+      assertRefused("Reading " + format.name().toLowerCase() + " needs --registry", format, format,
+          false, false, false, true);
+      assertRefused("needs --registry", format, format, false, false, true, false);
+      assertRefused("needs --registry", format, JSON, false, false, false, false);
+      assertSupported(format, format, false, true, false, true);
+      assertSupported(format, format, false, true, true, false);
+      assertSupported(format, JSON, false, true, false, false);
+    }
+    assertSupported(JSON, JSON, false, false, false, true);
+  }
+
+  @Test
+  public void encodedAvroNeedsARegistryToRegisterItsSchema() {
+    assertRefused("Writing avro needs --registry or --target-registry", JSON, AVRO, true, false, false, false);
+    assertSupported(JSON, AVRO, true, true, false, false);
+    assertSupported(JSON, AVRO, true, false, true, false);
+    assertSupported(JSON, AVRO, true, false, true, true);
+  }
+
+  @Test
+  public void forwardedAvroIsNotLookedUp() {
+    // The schema id isn't in the (empty) registry; forwarding the values must not look it up.
+    ByteArrayOutputStream in = new ByteArrayOutputStream();
+    try (StreamProducer<byte[], byte[]> producer = new StreamProducer<>(in, Map.of(), new ByteArraySerializer(),
+        new ByteArraySerializer())) {
+      for (int i = 0; i < 10; i++)
+        producer.send(new ProducerRecord<>("kif", 0, null, avroValue(99, i)));
+    }
+    MockSchemaRegistryClient registry = new MockSchemaRegistryClient();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    long count = KifGenCli.convert("kif", new ByteArrayInputStream(in.toByteArray()), AVRO, out, AVRO, null, 2,
+        registry, registry, null, null);
+    assertEquals(10, count);
+
+    List<byte[]> values = new ArrayList<>();
+    try (StreamConsumer<byte[], byte[]> consumer = new StreamConsumer<>(new ByteArrayInputStream(out.toByteArray()),
+        "kif", Map.of(), new ByteArrayDeserializer(), new ByteArrayDeserializer())) {
+      consumer.subscribe(List.of("kif"));
+      while (!consumer.isEndOfStream())
+        for (ConsumerRecord<byte[], byte[]> record : consumer.poll(Duration.ofMillis(100)))
+          values.add(record.value());
+    }
+    assertEquals(10, values.size());
+    for (int i = 0; i < 10; i++)
+      assertArrayEquals(avroValue(99, i), values.get(i));
+  }
+
+  // --- Internal Implementation Methods --------------------------------------------------------------------
+
+  private static void assertRefused(String reason, RecordFormat in, RecordFormat out, boolean schema,
+                                    boolean registry, boolean targetRegistry, boolean resolve) {
+    String unsupported = KifGenCli.unsupportedConversion(in, out, schema, registry, targetRegistry, resolve);
+    assertNotNull(unsupported, in + " to " + out);
+    assertTrue(unsupported.contains(reason), unsupported);
+  }
+
+  private static void assertSupported(RecordFormat in, RecordFormat out, boolean schema, boolean registry,
+                                      boolean targetRegistry, boolean resolve) {
+    assertNull(KifGenCli.unsupportedConversion(in, out, schema, registry, targetRegistry, resolve),
+        in + " to " + out + " (schema=" + schema + ", registry=" + registry + ", targetRegistry="
+            + targetRegistry + ", resolve=" + resolve + ")");
+  }
+
+  /**
+   * A value in the Confluent wire format: a magic byte, the schema id, then (here) a single Avro int.
+   */
+  private static byte[] avroValue(int schemaId, int i) {
+    return ByteBuffer.allocate(6).put((byte) 0).putInt(schemaId).put((byte) (i << 1)).array();
+  }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright © 2021 Kif Contributors (https://kif.firkin.io/)
+ * Copyright © 2021 Firkin•IO (https://firkin.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.firkin.kif.utils;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.confluent.kafka.schemaregistry.client.MockSchemaRegistryClient;
+import io.confluent.kafka.schemaregistry.client.SchemaRegistryClient;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.kafka.common.errors.SerializationException;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AvroJsonTranscoderTest {
+
+  private static final Schema ORDER = new Schema.Parser().parse("{\"type\":\"record\",\"name\":\"Order\",\"fields\":["
+      + "{\"name\":\"id\",\"type\":\"long\"},"
+      + "{\"name\":\"note\",\"type\":[\"null\",\"string\",\"int\"]},"
+      + "{\"name\":\"status\",\"type\":{\"type\":\"enum\",\"name\":\"Status\",\"symbols\":[\"NEW\",\"PAID\",\"SHIPPED\"]}},"
+      + "{\"name\":\"payload\",\"type\":\"bytes\"},"
+      + "{\"name\":\"customer\",\"type\":{\"type\":\"record\",\"name\":\"Customer\",\"fields\":["
+      + "{\"name\":\"name\",\"type\":\"string\"},"
+      + "{\"name\":\"address\",\"type\":[\"null\",{\"type\":\"record\",\"name\":\"Address\",\"fields\":["
+      + "{\"name\":\"city\",\"type\":\"string\"}]}]}]}},"
+      + "{\"name\":\"lines\",\"type\":{\"type\":\"array\",\"items\":\"string\"}},"
+      + "{\"name\":\"tags\",\"type\":{\"type\":\"map\",\"values\":\"double\"}}]}");
+
+  @Test
+  public void avroRoundTripsThroughJson() throws Exception {
+    SchemaRegistryClient registry = new MockSchemaRegistryClient();
+    KifAvroSerializer serializer = new KifAvroSerializer(registry, Map.of(), false);
+    AvroJsonTranscoder transcoder = new AvroJsonTranscoder(registry, new ObjectMapper());
+
+    List<GenericRecord> orders = List.of(
+        order(1, null, "NEW", new byte[0], "ann", null, List.of(), Map.of()),
+        order(2, "rush", "PAID", new byte[] {0, 1, (byte) 0xff}, "bob", "Oslo", List.of("a", "b"), Map.of("x", 1.5)),
+        order(3, 42, "SHIPPED", "payload".getBytes(StandardCharsets.UTF_8), "cy", "Lima", List.of("c"),
+            Map.of("y", -2.0, "z", 0.25)));
+    for (GenericRecord order : orders) {
+      byte[] avro = serializer.serialize("orders", order);
+      byte[] json = transcoder.avroToJson("orders", avro);
+      assertArrayEquals(avro, transcoder.jsonToAvro("orders", ORDER, json), new String(json, StandardCharsets.UTF_8));
+    }
+
+    // Fields out of schema order, and a missing one taking its default, still encode as the schema has them.
+    byte[] reordered = transcoder.jsonToAvro("orders", ORDER, ("{\"tags\":{},\"lines\":[],\"customer\":{\"name\":\"ann\","
+        + "\"address\":null},\"payload\":\"\",\"status\":\"NEW\",\"note\":null,\"id\":1}").getBytes(StandardCharsets.UTF_8));
+    assertArrayEquals(serializer.serialize("orders", orders.get(0)), reordered);
+  }
+
+  @Test
+  public void bytesValuesAreNotAvroEncoded() {
+    SchemaRegistryClient registry = new MockSchemaRegistryClient();
+    AvroJsonTranscoder transcoder = new AvroJsonTranscoder(registry, new ObjectMapper());
+    Schema bytes = Schema.create(Schema.Type.BYTES);
+
+    byte[] avro = transcoder.jsonToAvro("raw", bytes, "\"AAH/\"".getBytes(StandardCharsets.UTF_8));
+    assertArrayEquals(new byte[] {0, 1, (byte) 0xff}, Arrays.copyOfRange(avro, 5, avro.length));
+    assertEquals("\"AAH/\"", new String(transcoder.avroToJson("raw", avro), StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void aFailedValueLeavesNothingBehindForTheNext() {
+    SchemaRegistryClient registry = new MockSchemaRegistryClient();
+    AvroJsonTranscoder transcoder = new AvroJsonTranscoder(registry, new ObjectMapper());
+    byte[] good = json("{\"id\":7,\"note\":\"ok\",\"status\":\"PAID\",\"payload\":\"AQI=\","
+        + "\"customer\":{\"name\":\"dee\",\"address\":{\"city\":\"Rome\"}},\"lines\":[\"l1\",\"l2\"],\"tags\":{\"t\":1.0}}");
+    byte[] expected = new AvroJsonTranscoder(registry, new ObjectMapper()).jsonToAvro("orders", ORDER, good);
+
+    // Fails part way through the top level value, after the customer's long name is encoded.
+    String name = "n".repeat(100);
+    assertThrows(SerializationException.class, () -> transcoder.jsonToAvro("orders", ORDER,
+        json("{\"id\":7,\"note\":null,\"status\":\"NEW\",\"payload\":\"\",\"customer\":{\"name\":\"" + name
+            + "\",\"address\":null},\"lines\":[],\"tags\":{\"t\":\"not a number\"}}")));
+    assertArrayEquals(expected, transcoder.jsonToAvro("orders", ORDER, good));
+
+    // Fails part way through an array, whose items are encoded apart until their count is known.
+    assertThrows(SerializationException.class, () -> transcoder.jsonToAvro("orders", ORDER,
+        json("{\"id\":7,\"note\":null,\"status\":\"NEW\",\"payload\":\"\",\"customer\":{\"name\":\"x\","
+            + "\"address\":null},\"lines\":[\"" + name + "\",\"" + name + "\",5],\"tags\":{}}")));
+    assertArrayEquals(expected, transcoder.jsonToAvro("orders", ORDER, good));
+
+    assertThrows(SerializationException.class, () -> transcoder.jsonToAvro("orders", ORDER, json("{\"id\":\"seven\"}")));
+    assertArrayEquals(expected, transcoder.jsonToAvro("orders", ORDER, good));
+  }
+
+  @Test
+  public void objectsGoToTheUnionRecordThatHoldsThem() throws Exception {
+    Schema union = new Schema.Parser().parse("[\"null\","
+        + "{\"type\":\"record\",\"name\":\"Point\",\"fields\":[{\"name\":\"x\",\"type\":\"int\"}]},"
+        + "{\"type\":\"record\",\"name\":\"Labelled\",\"fields\":[{\"name\":\"x\",\"type\":\"int\"},"
+        + "{\"name\":\"label\",\"type\":\"string\"}]},"
+        + "{\"type\":\"map\",\"values\":\"int\"}]");
+    SchemaRegistryClient registry = new MockSchemaRegistryClient();
+    AvroJsonTranscoder transcoder = new AvroJsonTranscoder(registry, new ObjectMapper());
+
+    Object point = decode(union, transcoder.jsonToAvro("shapes", union, json("{\"x\":1}")));
+    assertEquals("Point", ((GenericRecord) point).getSchema().getName());
+    Object labelled = decode(union, transcoder.jsonToAvro("shapes", union, json("{\"label\":\"a\",\"x\":2}")));
+    assertEquals("Labelled", ((GenericRecord) labelled).getSchema().getName());
+    assertEquals("a", ((GenericRecord) labelled).get("label").toString());
+    Object map = decode(union, transcoder.jsonToAvro("shapes", union, json("{\"y\":3}")));
+    assertTrue(map instanceof Map, String.valueOf(map));
+    assertNull(decode(union, transcoder.jsonToAvro("shapes", union, json("null"))));
+  }
+
+  @Test
+  public void unknownEnvelopesAreRefused() {
+    AvroJsonTranscoder transcoder = new AvroJsonTranscoder(new MockSchemaRegistryClient(), new ObjectMapper());
+    assertNull(transcoder.avroToJson("orders", null));
+    assertThrows(SerializationException.class, () -> transcoder.avroToJson("orders", new byte[] {1, 0, 0, 0, 1, 2}));
+    assertThrows(SerializationException.class, () -> transcoder.avroToJson("orders", new byte[] {0, 0}));
+    assertThrows(SerializationException.class, () -> transcoder.avroToJson("orders", new byte[] {0, 0, 0, 0, 99, 2}));
+    assertThrows(SerializationException.class, () -> transcoder.jsonToAvro("orders", ORDER, json("")));
+  }
+
+  // --- Internal Implementation Methods --------------------------------------------------------------------
+
+  private static Object decode(Schema schema, byte[] avro) throws IOException {
+    return new GenericDatumReader<>(schema).read(null,
+        DecoderFactory.get().binaryDecoder(avro, 5, avro.length - 5, null));
+  }
+
+  private static byte[] json(String json) {
+    return json.getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static GenericRecord order(long id, Object note, String status, byte[] payload, String name, String city,
+                                     List<String> lines, Map<String, Double> tags) {
+    Schema customerSchema = ORDER.getField("customer").schema();
+    GenericRecord customer = new GenericData.Record(customerSchema);
+    customer.put("name", name);
+    if (city != null) {
+      GenericRecord address = new GenericData.Record(customerSchema.getField("address").schema().getTypes().get(1));
+      address.put("city", city);
+      customer.put("address", address);
+    }
+    GenericRecord order = new GenericData.Record(ORDER);
+    order.put("id", id);
+    order.put("note", note);
+    order.put("status", new GenericData.EnumSymbol(ORDER.getField("status").schema(), status));
+    order.put("payload", ByteBuffer.wrap(payload));
+    order.put("customer", customer);
+    order.put("lines", lines);
+    order.put("tags", tags);
+    return order;
+  }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright © 2021 Kif Contributors (https://kif.firkin.io/)
+ * Copyright © 2021 Firkin•IO (https://firkin.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.firkin.kif.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ByteScannerTest {
+
+  // Bytes which differ from each other only in their high bit or their lowest, where a carry would show.
+  private static final byte[] TARGETS = {'\n', '"', 0, 1, (byte) 0x7f, (byte) 0x80, (byte) 0x81, (byte) 0xff};
+
+  @Test
+  public void everyRangeOfAnArrayMatchesAByteByByteScan() {
+    Random random = new Random(17);
+    for (int round = 0; round < 20; round++) {
+      byte[] bytes = bytes(random, 40);
+      for (byte target : TARGETS)
+        for (int from = 0; from <= bytes.length; from++)
+          for (int to = from; to <= bytes.length; to++)
+            assertEquals(naiveIndexOf(bytes, from, to, target), ByteScanner.indexOf(bytes, from, to, target),
+                "[" + from + ", " + to + ") for " + target);
+    }
+  }
+
+  @Test
+  public void everyRangeOfABufferMatchesAByteByByteScan() {
+    Random random = new Random(19);
+    for (ByteOrder order : new ByteOrder[] {ByteOrder.BIG_ENDIAN, ByteOrder.LITTLE_ENDIAN}) {
+      for (int round = 0; round < 20; round++) {
+        byte[] bytes = bytes(random, 40);
+        ByteBuffer heap = ByteBuffer.wrap(bytes).order(order);
+        ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length).put(bytes).clear().order(order);
+        for (ByteBuffer buffer : new ByteBuffer[] {heap, direct}) {
+          for (byte target : TARGETS) {
+            for (int from = 0; from <= bytes.length; from++) {
+              for (int to = from; to <= bytes.length; to++) {
+                assertEquals(naiveIndexOf(bytes, from, to, target), ByteScanner.indexOf(buffer, from, to, target),
+                    order + " " + (buffer.isDirect() ? "direct" : "heap") + " [" + from + ", " + to + ") for " + target);
+              }
+            }
+          }
+          assertEquals(0, buffer.position());
+          assertEquals(bytes.length, buffer.limit());
+        }
+      }
+    }
+  }
+
+  @Test
+  public void buffersAreScannedByAbsoluteIndex() {
+    byte[] bytes = "0123456789abcdef\n0123456789\n".getBytes();
+    ByteBuffer slice = ByteBuffer.wrap(bytes, 3, bytes.length - 3).slice();
+    slice.position(15);
+    assertEquals(13, ByteScanner.indexOf(slice, 0, slice.limit(), (byte) '\n'));
+    assertEquals(24, ByteScanner.indexOf(slice, 14, slice.limit(), (byte) '\n'));
+    assertEquals(-1, ByteScanner.indexOf(slice, 14, 24, (byte) '\n'));
+    assertEquals(15, slice.position());
+  }
+
+  @Test
+  public void matchesAreFoundInEveryPositionOfAWordAndOfTheTail() {
+    for (int length = 0; length <= 3 * Long.BYTES + 3; length++) {
+      for (int at = 0; at < length; at++) {
+        byte[] bytes = new byte[length];
+        bytes[at] = '\n';
+        if (at + 1 < length)
+          bytes[length - 1] = '\n'; // a later match, which must not be found first
+        assertEquals(at, ByteScanner.indexOf(bytes, 0, length, (byte) '\n'));
+        assertEquals(at, ByteScanner.indexOf(ByteBuffer.wrap(bytes), 0, length, (byte) '\n'));
+        assertEquals(at, ByteScanner.indexOf(ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN), 0, length,
+            (byte) '\n'));
+        assertEquals(-1, ByteScanner.indexOf(bytes, 0, at, (byte) '\n'), "a match at the end of the range is excluded");
+      }
+      assertEquals(-1, ByteScanner.indexOf(new byte[length], 0, length, (byte) '\n'));
+      assertEquals(-1, ByteScanner.indexOf(new byte[length], length, length, (byte) 0), "an empty range");
+    }
+  }
+
+  // --- Internal Implementation Methods --------------------------------------------------------------------
+
+  /**
+   * Random bytes, most of them one of the targets, so that words often hold several.
+   */
+  private static byte[] bytes(Random random, int length) {
+    byte[] bytes = new byte[length];
+    for (int i = 0; i < length; i++)
+      bytes[i] = random.nextInt(4) == 0 ? TARGETS[random.nextInt(TARGETS.length)] : (byte) random.nextInt(256);
+    return bytes;
+  }
+
+  private static int naiveIndexOf(byte[] bytes, int from, int to, byte b) {
+    for (int i = from; i < to; i++)
+      if (bytes[i] == b)
+        return i;
+    return -1;
+  }
+}
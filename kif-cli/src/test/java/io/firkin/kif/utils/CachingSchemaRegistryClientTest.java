@@ -0,0 +1,254 @@
+/*
+ * Copyright © 2021 Kif Contributors (https://kif.firkin.io/)
+ * Copyright © 2021 Firkin•IO (https://firkin.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.firkin.kif.utils;
+
+import io.confluent.kafka.schemaregistry.ParsedSchema;
+import io.confluent.kafka.schemaregistry.avro.AvroSchema;
+import io.confluent.kafka.schemaregistry.client.rest.RestService;
+import io.confluent.kafka.schemaregistry.client.rest.entities.Schema;
+import io.confluent.kafka.schemaregistry.client.rest.entities.SchemaReference;
+import io.confluent.kafka.schemaregistry.client.rest.entities.SchemaString;
+import io.confluent.kafka.schemaregistry.client.rest.exceptions.RestClientException;
+import org.apache.kafka.common.utils.SystemTime;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CachingSchemaRegistryClientTest {
+  private static String testTmpFolderPath =
+      System.getProperty("KIF_TEST_TMP_PATH", "target/test-tmp");
+
+  private static boolean keepTestFiles =
+      Boolean.parseBoolean(System.getProperty("KIF_TEST_KEEP_TMP_FILES", "true"));
+
+  private static String testRunId = LocalDateTime.now().format(DateTimeFormatter.ISO_LOCAL_DATE_TIME);
+  private static String testPath = Path
+      .of(testTmpFolderPath + "/CachingSchemaRegistryClientTest/" + testRunId.replace(':', '-'))
+      .toAbsolutePath()
+      .toString();
+
+  private static final String SUBJECT = "topic-value";
+  private static final AvroSchema USER = new AvroSchema(
+      "{\"type\":\"record\",\"name\":\"User\",\"fields\":[{\"name\":\"name\",\"type\":\"string\"}]}");
+  private static final AvroSchema ORDER = new AvroSchema(
+      "{\"type\":\"record\",\"name\":\"Order\",\"fields\":[{\"name\":\"id\",\"type\":\"long\"}]}");
+
+  @BeforeAll
+  private static void createTestFolder() {
+    Path path = Path.of(testPath);
+    System.out.println("Test Run Path: " + path);
+    File tmpFolder = path.toFile();
+    if (!tmpFolder.exists()) {
+      tmpFolder.mkdirs();
+    }
+    if (tmpFolder.exists() && !keepTestFiles) {
+      tmpFolder.deleteOnExit();
+    }
+  }
+
+  @Test
+  public void schemaByIdIsFetchedOnceAcrossClients() throws Exception {
+    StubRegistry registry = new StubRegistry();
+    int id = registry.add(SUBJECT, USER);
+    Path file = Path.of(testPath, "schemaById.cache");
+
+    ParsedSchema first = client(registry, file).getSchemaBySubjectAndId(SUBJECT, id);
+    assertEquals(USER.canonicalString(), first.canonicalString());
+    assertEquals(1, registry.requests.get());
+
+    // A second lookup, by the same client and by a later one reading the same file, never reaches the registry.
+    CachingSchemaRegistryClient client = client(registry, file);
+    assertEquals(USER.canonicalString(), client.getSchemaBySubjectAndId(SUBJECT, id).canonicalString());
+    assertSame(client.getSchemaBySubjectAndId(SUBJECT, id), client.getSchemaBySubjectAndId(SUBJECT, id));
+    assertEquals(1, registry.requests.get());
+  }
+
+  @Test
+  public void idsAreFetchedOnceAcrossClients() throws Exception {
+    StubRegistry registry = new StubRegistry();
+    int id = registry.add(SUBJECT, USER);
+    Path file = Path.of(testPath, "ids.cache");
+
+    assertEquals(id, client(registry, file).getId(SUBJECT, USER));
+    assertEquals(1, registry.requests.get());
+    assertEquals(id, client(registry, file).getId(SUBJECT, USER));
+    assertEquals(1, registry.requests.get());
+
+    // Ids are cached per subject and schema.
+    assertThrows(RestClientException.class, () -> client(registry, file).getId("other-value", USER));
+    assertEquals(2, registry.requests.get());
+  }
+
+  @Test
+  public void aSchemaIsRegisteredOnceAcrossClients() throws Exception {
+    StubRegistry registry = new StubRegistry();
+    Path file = Path.of(testPath, "register.cache");
+
+    int id = client(registry, file).register(SUBJECT, ORDER);
+    assertEquals(1, registry.requests.get());
+    CachingSchemaRegistryClient client = client(registry, file);
+    assertEquals(id, client.register(SUBJECT, ORDER));
+    assertEquals(id, client.getId(SUBJECT, ORDER));
+    assertEquals(1, registry.requests.get());
+    assertEquals(ORDER.canonicalString(), registry.schemas.get(id).canonicalString());
+  }
+
+  @Test
+  public void expiredEntriesAreFetchedAgain() throws Exception {
+    StubRegistry registry = new StubRegistry();
+    int id = registry.add(SUBJECT, USER);
+    Path file = Path.of(testPath, "expired.cache");
+    AdjustableTime time = new AdjustableTime();
+
+    new CachingSchemaRegistryClient(registry, file, 1000L, Map.of(), time).getSchemaBySubjectAndId(SUBJECT, id);
+    time.advance(1000L);
+    new CachingSchemaRegistryClient(registry, file, 1000L, Map.of(), time).getSchemaBySubjectAndId(SUBJECT, id);
+    assertEquals(1, registry.requests.get());
+    time.advance(1L);
+    new CachingSchemaRegistryClient(registry, file, 1000L, Map.of(), time).getSchemaBySubjectAndId(SUBJECT, id);
+    assertEquals(2, registry.requests.get());
+  }
+
+  @Test
+  public void resetKeepsTheCacheFile() throws Exception {
+    StubRegistry registry = new StubRegistry();
+    int id = registry.add(SUBJECT, USER);
+    Path file = Path.of(testPath, "reset.cache");
+
+    CachingSchemaRegistryClient client = client(registry, file);
+    ParsedSchema before = client.getSchemaBySubjectAndId(SUBJECT, id);
+    client.reset();
+    // Only what is in memory is forgotten; the schema is parsed again from the file, not fetched.
+    ParsedSchema after = client.getSchemaBySubjectAndId(SUBJECT, id);
+    assertNotSame(before, after);
+    assertEquals(before.canonicalString(), after.canonicalString());
+    assertEquals(1, registry.requests.get());
+  }
+
+  @Test
+  public void aTornEntryIsDroppedAndTheRestKept() throws Exception {
+    StubRegistry registry = new StubRegistry();
+    int user = registry.add(SUBJECT, USER);
+    int order = registry.add(SUBJECT, ORDER);
+    Path file = Path.of(testPath, "torn.cache");
+
+    CachingSchemaRegistryClient client = client(registry, file);
+    client.getSchemaBySubjectAndId(SUBJECT, user);
+    long intact = Files.size(file);
+    client.getSchemaBySubjectAndId(SUBJECT, order);
+    // As if the process died part way through appending the second entry.
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+      channel.truncate(Files.size(file) - 3);
+    }
+
+    client = client(registry, file);
+    client.getSchemaBySubjectAndId(SUBJECT, user);
+    assertEquals(2, registry.requests.get());
+    assertTrue(Files.size(file) >= intact);
+    client.getSchemaBySubjectAndId(SUBJECT, order);
+    assertEquals(3, registry.requests.get());
+    client(registry, file).getSchemaBySubjectAndId(SUBJECT, order);
+    assertEquals(3, registry.requests.get());
+  }
+
+  // --- Internal Implementation Methods --------------------------------------------------------------------
+
+  private static CachingSchemaRegistryClient client(StubRegistry registry, Path file) {
+    return new CachingSchemaRegistryClient(registry, file, CachingSchemaRegistryClient.DEFAULT_CACHE_TTL_MS,
+        Map.of(), new SystemTime());
+  }
+
+  /**
+   * A registry in memory, counting the requests that reach it.
+   */
+  private static final class StubRegistry extends RestService {
+    final Map<Integer, ParsedSchema> schemas = new HashMap<>();
+    final Map<String, Integer> ids = new HashMap<>();
+    final AtomicInteger requests = new AtomicInteger();
+
+    StubRegistry() {
+      super("http://localhost:8081");
+    }
+
+    synchronized int add(String subject, ParsedSchema schema) {
+      return ids.computeIfAbsent(subject + "|" + schema.canonicalString(), key -> {
+        int id = schemas.size() + 1;
+        schemas.put(id, schema);
+        return id;
+      });
+    }
+
+    @Override
+    public synchronized SchemaString getId(int id, String subject) throws IOException, RestClientException {
+      requests.incrementAndGet();
+      ParsedSchema schema = schemas.get(id);
+      if (schema == null)
+        throw new RestClientException("Schema not found", 404, 40403);
+      SchemaString found = new SchemaString(schema.canonicalString());
+      found.setSchemaType(schema.schemaType());
+      found.setReferences(schema.references());
+      return found;
+    }
+
+    @Override
+    public synchronized Schema lookUpSubjectVersion(String schemaString, String schemaType,
+                                                    List<SchemaReference> references, String subject,
+                                                    boolean lookupDeletedSchema)
+        throws IOException, RestClientException {
+      requests.incrementAndGet();
+      Integer id = ids.get(subject + "|" + schemaString);
+      if (id == null)
+        throw new RestClientException("Schema not found", 404, 40403);
+      return new Schema(subject, 1, id, schemaType, references, schemaString);
+    }
+
+    @Override
+    public int registerSchema(String schemaString, String schemaType, List<SchemaReference> references,
+                              String subject) throws IOException, RestClientException {
+      requests.incrementAndGet();
+      return add(subject, new AvroSchema(schemaString));
+    }
+  }
+
+  private static final class AdjustableTime extends SystemTime {
+    private long nowMs = 1_600_000_000_000L;
+
+    void advance(long ms) {
+      nowMs += ms;
+    }
+
+    @Override
+    public long milliseconds() {
+      return nowMs;
+    }
+  }
+}
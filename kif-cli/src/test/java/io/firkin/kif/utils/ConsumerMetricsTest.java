@@ -0,0 +1,152 @@
+/*
+ * Copyright © 2021 Kif Contributors (https://kif.firkin.io/)
+ * Copyright © 2021 Firkin•IO (https://firkin.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.firkin.kif.utils;
+
+import io.firkin.kif.utils.log.LogConfig;
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.Metric;
+import org.apache.kafka.common.MetricName;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.serialization.StringDeserializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ConsumerMetricsTest {
+  private static String testTmpFolderPath =
+      System.getProperty("KIF_TEST_TMP_PATH", "target/test-tmp");
+
+  private static boolean keepTestFiles =
+      Boolean.parseBoolean(System.getProperty("KIF_TEST_KEEP_TMP_FILES", "true"));
+
+  private static String testRunId = LocalDateTime.now().format(DateTimeFormatter.ISO_LOCAL_DATE_TIME);
+  private static String testPath = Path
+      .of(testTmpFolderPath + "/ConsumerMetricsTest/" + testRunId.replace(':', '-'))
+      .toAbsolutePath()
+      .toString();
+
+  @BeforeAll
+  private static void createTestFolder() {
+    Path path = Path.of(testPath);
+    System.out.println("Test Run Path: " + path);
+    File tmpFolder = path.toFile();
+    if (!tmpFolder.exists()) {
+      tmpFolder.mkdirs();
+    }
+    if (tmpFolder.exists() && !keepTestFiles) {
+      tmpFolder.deleteOnExit();
+    }
+  }
+
+  @Test
+  public void fileConsumerReportsLagAsItPolls() {
+    Map<String, Object> configs = new HashMap<>();
+    configs.put(LogConfig.LOG_DIR_CONFIG, Path.of(testPath, "lag").toString());
+    try (FileProducer<String, String> producer = new FileProducer<>(configs, new StringSerializer(),
+        new StringSerializer())) {
+      for (int i = 0; i < 100; i++)
+        producer.send(new ProducerRecord<>("lag", 0, "key-" + i, "value-" + i));
+    }
+
+    configs.put(ConsumerConfig.MAX_POLL_RECORDS_CONFIG, 10);
+    configs.put(ConsumerConfig.CLIENT_ID_CONFIG, "lag-metrics");
+    try (FileConsumer<String, String> consumer = new FileConsumer<>(configs, new StringDeserializer(),
+        new StringDeserializer())) {
+      consumer.assign(List.of(new TopicPartition("lag", 0)));
+      assertEquals(10, consumer.poll(Duration.ZERO).count());
+      assertEquals(90.0, lag(consumer.metrics()));
+      assertEquals(10, consumer.poll(Duration.ZERO).count());
+      assertEquals(80.0, lag(consumer.metrics()));
+      while (!consumer.poll(Duration.ZERO).isEmpty())
+        ;
+
+      Map<MetricName, ? extends Metric> metrics = consumer.metrics();
+      assertEquals(0.0, lag(metrics));
+      assertEquals(90.0, ProducerMetricsTest.value(metrics, "records-lag-max", ConsumerMetrics.GROUP, "lag"));
+      assertEquals(100.0, total(metrics, "records-consumed-total"));
+      assertEquals(11.0, total(metrics, "fetch-total"), "ten polls of records, and the empty one");
+      for (MetricName name : metrics.keySet())
+        if (!name.group().equals("kafka-metrics-count"))
+          assertEquals("lag-metrics", name.tags().get("client-id"), name.toString());
+
+      // Lag metrics go with the partition's assignment.
+      consumer.assign(List.of(new TopicPartition("lag", 1)));
+      consumer.poll(Duration.ZERO);
+      assertTrue(consumer.metrics().keySet().stream().noneMatch(name -> name.name().equals("records-lag")));
+    }
+  }
+
+  @Test
+  public void streamConsumerCountsRecordsAndBytes() {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (StreamProducer<String, String> producer = new StreamProducer<>(out, Map.of(), new StringSerializer(),
+        new StringSerializer())) {
+      for (int i = 0; i < 100; i++)
+        producer.send(new ProducerRecord<>("topic", 0, "key-" + i, "value-" + i));
+    }
+    try (StreamConsumer<String, String> consumer = new StreamConsumer<>(new ByteArrayInputStream(out.toByteArray()),
+        "topic", Map.of(ConsumerConfig.MAX_POLL_RECORDS_CONFIG, 30), new StringDeserializer(),
+        new StringDeserializer())) {
+      consumer.subscribe(List.of("topic"));
+      int polled = 0;
+      while (!consumer.isEndOfStream()) {
+        ConsumerRecords<String, String> records = consumer.poll(Duration.ofMillis(100));
+        assertTrue(records.count() <= 30);
+        polled += records.count();
+      }
+      assertEquals(100, polled);
+
+      Map<MetricName, ? extends Metric> metrics = consumer.metrics();
+      assertEquals(100.0, total(metrics, "records-consumed-total"));
+      assertEquals(100.0, ProducerMetricsTest.value(metrics, "records-consumed-total", ConsumerMetrics.GROUP, "topic"));
+      assertEquals((double) out.size(), total(metrics, "bytes-consumed-total"), "frames are counted whole");
+      assertEquals(0.0, lag(metrics));
+    }
+  }
+
+  // --- Internal Implementation Methods --------------------------------------------------------------------
+
+  private static double lag(Map<MetricName, ? extends Metric> metrics) {
+    return ProducerMetricsTest.value(metrics, "records-lag", ConsumerMetrics.GROUP, null);
+  }
+
+  /**
+   * The value of the consumer-wide metric of {@code name}, not that of a topic.
+   */
+  private static double total(Map<MetricName, ? extends Metric> metrics, String name) {
+    for (Map.Entry<MetricName, ? extends Metric> entry : metrics.entrySet())
+      if (entry.getKey().name().equals(name) && !entry.getKey().tags().containsKey("topic"))
+        return ((Number) entry.getValue().metricValue()).doubleValue();
+    return fail("no " + name);
+  }
+}
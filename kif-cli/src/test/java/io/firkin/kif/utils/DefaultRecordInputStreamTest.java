@@ -0,0 +1,147 @@
+/*
+ * Copyright © 2021 Kif Contributors (https://kif.firkin.io/)
+ * Copyright © 2021 Firkin•IO (https://firkin.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.firkin.kif.utils;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.MockConsumer;
+import org.apache.kafka.clients.consumer.OffsetResetStrategy;
+import org.apache.kafka.clients.producer.ProducerConfig;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.KafkaException;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.serialization.StringDeserializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DefaultRecordInputStreamTest {
+
+  private static final int COUNT = 10_000;
+
+  @Test
+  public void readBatchReadsEveryValueInOrder() {
+    // Small prefetched batches, so that a read spans several of them.
+    DefaultRecordInputStream<String, String, String> in = stream(Map.of(
+        DefaultRecordInputStream.PREFETCH_BATCHES_CONFIG, 2));
+    try {
+      List<String> values = new ArrayList<>();
+      String[] batch = new String[300];
+      while (!in.isEndOfStream()) {
+        int n = in.readBatch(batch.length, batch, Duration.ofMillis(100));
+        assertTrue(n <= batch.length);
+        for (int i = 0; i < n; i++)
+          values.add(batch[i]);
+      }
+      assertValues(values);
+      assertEquals(0, in.readBatch(batch.length, batch));
+    } finally {
+      in.close();
+    }
+  }
+
+  @Test
+  public void readBatchNeverReadsMoreThanAsked() {
+    DefaultRecordInputStream<String, String, String> in = stream(Map.of());
+    try {
+      List<String> values = new ArrayList<>();
+      String[] batch = new String[10];
+      while (!in.isEndOfStream()) {
+        int n = in.readBatch(3, batch, Duration.ofMillis(100));
+        assertTrue(n <= 3);
+        for (int i = 0; i < n; i++)
+          values.add(batch[i]);
+        assertNull(batch[3]);
+      }
+      assertValues(values);
+    } finally {
+      in.close();
+    }
+  }
+
+  @Test
+  public void drainToMixedWithReadLosesNothing() {
+    DefaultRecordInputStream<String, String, String> in = stream(Map.of());
+    try {
+      List<String> values = new ArrayList<>();
+      while (!in.isEndOfStream()) {
+        String value = in.read(Duration.ofMillis(100));
+        if (value != null)
+          values.add(value);
+        in.drainTo(values);
+      }
+      assertValues(values);
+    } finally {
+      in.close();
+    }
+  }
+
+  @Test
+  public void consumerFailureIsThrownOnceEverythingIsRead() {
+    MockConsumer<String, String> consumer = new MockConsumer<>(OffsetResetStrategy.EARLIEST);
+    TopicPartition tp = new TopicPartition("topic", 0);
+    consumer.assign(List.of(tp));
+    consumer.updateBeginningOffsets(Map.of(tp, 0L));
+    consumer.addRecord(new ConsumerRecord<>("topic", 0, 0L, "key", "value"));
+    // The first poll returns the record, the second fails.
+    consumer.schedulePollTask(() -> { });
+    consumer.schedulePollTask(() -> consumer.setPollException(new KafkaException("broken")));
+    DefaultRecordInputStream<String, String, String> in = new DefaultRecordInputStream<>(consumer,
+        new StringDeserializer());
+    try {
+      String[] batch = new String[10];
+      assertEquals(1, in.readBatch(batch.length, batch, Duration.ofSeconds(10)));
+      assertEquals("value", batch[0]);
+      KafkaException e = assertThrows(KafkaException.class, () -> {
+        while (true)
+          in.readBatch(batch.length, batch, Duration.ofMillis(100));
+      });
+      assertEquals("broken", e.getMessage());
+    } finally {
+      in.close();
+    }
+  }
+
+  // --- Internal Implementation Methods --------------------------------------------------------------------
+
+  private static DefaultRecordInputStream<String, String, String> stream(Map<String, ?> configs) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (StreamProducer<String, String> producer = new StreamProducer<>(out,
+        Map.of(ProducerConfig.BATCH_SIZE_CONFIG, 4096), new StringSerializer(), new StringSerializer())) {
+      for (int i = 0; i < COUNT; i++)
+        producer.send(new ProducerRecord<>("topic", 0, "key-" + i, "value-" + i));
+    }
+    StreamConsumer<String, String> consumer = new StreamConsumer<>(new ByteArrayInputStream(out.toByteArray()),
+        "topic", Map.of("max.poll.records", 128), new StringDeserializer(), new StringDeserializer());
+    consumer.subscribe(List.of("topic"));
+    return new DefaultRecordInputStream<>(consumer, new StringDeserializer(), configs);
+  }
+
+  private static void assertValues(List<String> values) {
+    assertEquals(COUNT, values.size());
+    for (int i = 0; i < COUNT; i++)
+      assertEquals("value-" + i, values.get(i));
+  }
+}
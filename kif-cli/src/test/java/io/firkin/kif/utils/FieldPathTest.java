@@ -0,0 +1,360 @@
+/*
+ * Copyright © 2021 Kif Contributors (https://kif.firkin.io/)
+ * Copyright © 2021 Firkin•IO (https://firkin.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.firkin.kif.utils;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.protobuf.DescriptorProtos.DescriptorProto;
+import com.google.protobuf.DescriptorProtos.FieldDescriptorProto;
+import com.google.protobuf.DescriptorProtos.FileDescriptorProto;
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.DynamicMessage;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.avro.util.Utf8;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.header.Header;
+import org.apache.kafka.common.serialization.Serializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.apache.kafka.common.utils.Utils;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FieldPathTest {
+
+  private static final Schema CUSTOMER_SCHEMA = new Schema.Parser().parse("{\"type\": \"record\", "
+      + "\"name\": \"Customer\", \"fields\": [{\"name\": \"id\", \"type\": \"string\"}]}");
+  private static final Schema ORDER_SCHEMA = new Schema.Parser().addTypes(Map.of("Customer", CUSTOMER_SCHEMA))
+      .parse("{\"type\": \"record\", \"name\": \"Order\", \"fields\": ["
+          + "{\"name\": \"customer\", \"type\": [\"null\", \"Customer\"]},"
+          + "{\"name\": \"skus\", \"type\": {\"type\": \"array\", \"items\": \"string\"}},"
+          + "{\"name\": \"attrs\", \"type\": {\"type\": \"map\", \"values\": \"string\"}},"
+          + "{\"name\": \"total\", \"type\": \"long\"}]}");
+
+  @Test
+  public void pathsParse() {
+    assertEquals(List.of("c1"), FieldPath.compile("$").get(List.of("c1")));
+    assertEquals("whole", FieldPath.compile("").get("whole"));
+    Map<String, Object> order = Map.of("customer", Map.of("id", "c1"), "lines", List.of(List.of("a", "b")));
+    assertEquals("c1", FieldPath.compile("$.customer.id").get(order));
+    assertEquals("c1", FieldPath.compile("customer.id").get(order), "the $ is optional");
+    assertEquals("c1", FieldPath.compile("  $.customer.id  ").get(order));
+    assertEquals("b", FieldPath.compile("$.lines[0][1]").get(order));
+    assertEquals("b", FieldPath.compile("$.lines[ 0 ][ 1 ]").get(order));
+    assertEquals("a", FieldPath.compile("$[0]").get(List.of("a")));
+    assertEquals(" $.customer.id", FieldPath.compile(" $.customer.id").toString());
+  }
+
+  @Test
+  public void badPathsAreRefused() {
+    for (String path : List.of("$.", "$..id", "$.customer.", "$customer", "$.lines[", "$.lines[x]",
+        "$.lines[]", "$.lines[-1]", "$.lines[0]x", "customer..id")) {
+      IllegalArgumentException e = assertThrows(IllegalArgumentException.class, () -> FieldPath.compile(path),
+          path);
+      assertTrue(e.getMessage().endsWith(path), e.getMessage());
+    }
+  }
+
+  @Test
+  public void pojosAreReadByGetterOrField() {
+    Order order = new Order(new Customer("c1", true), new int[] {3, 4}, List.of("a"));
+    assertEquals("c1", FieldPath.compile("$.customer.id").get(order), "a get getter");
+    assertEquals(true, FieldPath.compile("$.customer.vip").get(order), "an is getter");
+    assertEquals("a", FieldPath.compile("$.skus[0]").get(order), "a record-style getter");
+    assertEquals(4, FieldPath.compile("$.quantities[1]").get(order), "a public field");
+    assertEquals("secret", FieldPath.compile("$.note").get(order), "a private field");
+    assertEquals("hidden", FieldPath.compile("$.hidden.name").get(order), "a getter of a private class");
+    assertNull(FieldPath.compile("$.customer.name").get(order));
+    assertNull(FieldPath.compile("$.DEFAULT_NOTE").get(order), "static fields aren't read");
+    assertThrows(IllegalStateException.class, () -> FieldPath.compile("$.broken").get(order));
+  }
+
+  @Test
+  public void avroRecordsAreReadByPosition() throws IOException {
+    GenericRecord order = avroOrder();
+    for (GenericRecord record : List.of(order, roundTrip(order))) {
+      assertEquals("c1", FieldPath.compile("$.customer.id").get(record));
+      assertEquals("b", FieldPath.compile("$.skus[1]").get(record));
+      assertEquals("red", FieldPath.compile("$.attrs.color").get(record));
+      assertEquals(12L, FieldPath.compile("$.total").get(record));
+      assertEquals(12L, FieldPath.compile("$[3]").get(record));
+      assertEquals("c1", FieldPath.compile("$.customer[0]").get(record));
+      assertNull(FieldPath.compile("$.attrs.size").get(record));
+      assertNull(FieldPath.compile("$.skus[2]").get(record));
+      assertNull(FieldPath.compile("$.missing").get(record));
+      assertNull(FieldPath.compile("$[4]").get(record));
+    }
+  }
+
+  @Test
+  public void stepsRelinkWhenTheSchemaChanges() {
+    Schema first = new Schema.Parser().parse("{\"type\": \"record\", \"name\": \"A\", \"fields\": ["
+        + "{\"name\": \"id\", \"type\": \"string\"}, {\"name\": \"n\", \"type\": \"int\"}]}");
+    Schema second = new Schema.Parser().parse("{\"type\": \"record\", \"name\": \"A\", \"fields\": ["
+        + "{\"name\": \"n\", \"type\": \"int\"}, {\"name\": \"id\", \"type\": \"string\"}]}");
+    GenericRecord a = new GenericData.Record(first);
+    a.put("id", "a");
+    a.put("n", 1);
+    GenericRecord b = new GenericData.Record(second);
+    b.put("id", "b");
+    b.put("n", 2);
+
+    FieldPath id = FieldPath.compile("$.id");
+    for (int i = 0; i < 3; i++) {
+      assertEquals("a", id.get(a));
+      assertEquals("b", id.get(b));
+      assertEquals("m", id.get(Map.of("id", "m")));
+      assertEquals("c", id.get(new Customer("c", false)));
+    }
+  }
+
+  @Test
+  public void protobufMessagesAreReadByDescriptor() throws Exception {
+    Descriptors.FileDescriptor file = Descriptors.FileDescriptor.buildFrom(FileDescriptorProto.newBuilder()
+        .setName("order.proto").setSyntax("proto3")
+        .addMessageType(DescriptorProto.newBuilder().setName("Customer")
+            .addField(field("id", 1, FieldDescriptorProto.Type.TYPE_STRING)))
+        .addMessageType(DescriptorProto.newBuilder().setName("Order")
+            .addField(field("customer", 1, FieldDescriptorProto.Type.TYPE_MESSAGE).setTypeName(".Customer"))
+            .addField(field("skus", 2, FieldDescriptorProto.Type.TYPE_STRING)
+                .setLabel(FieldDescriptorProto.Label.LABEL_REPEATED))
+            .addField(field("total", 3, FieldDescriptorProto.Type.TYPE_INT64)))
+        .build(), new Descriptors.FileDescriptor[0]);
+    Descriptors.Descriptor customerType = file.findMessageTypeByName("Customer");
+    Descriptors.Descriptor orderType = file.findMessageTypeByName("Order");
+    DynamicMessage customer = DynamicMessage.newBuilder(customerType)
+        .setField(customerType.findFieldByName("id"), "c1").build();
+    DynamicMessage order = DynamicMessage.newBuilder(orderType)
+        .setField(orderType.findFieldByName("customer"), customer)
+        .addRepeatedField(orderType.findFieldByName("skus"), "a")
+        .addRepeatedField(orderType.findFieldByName("skus"), "b")
+        .setField(orderType.findFieldByName("total"), 12L)
+        .build();
+
+    assertEquals("c1", FieldPath.compile("$.customer.id").get(order));
+    assertEquals("b", FieldPath.compile("$.skus[1]").get(order));
+    assertEquals(12L, FieldPath.compile("$.total").get(order));
+    assertNull(FieldPath.compile("$.skus[2]").get(order));
+    assertNull(FieldPath.compile("$.missing").get(order));
+
+    // An unset message is missing; an unset scalar has its proto3 default.
+    DynamicMessage empty = DynamicMessage.getDefaultInstance(orderType);
+    assertNull(FieldPath.compile("$.customer").get(empty));
+    assertNull(FieldPath.compile("$.customer.id").get(empty));
+    assertEquals(0L, FieldPath.compile("$.total").get(empty));
+  }
+
+  @Test
+  public void jsonTreesAreReadAsJavaValues() throws IOException {
+    JsonNode order = new ObjectMapper().readTree("{\"customer\": {\"id\": \"c1\"}, \"lines\": [{\"sku\": \"a\"}],"
+        + " \"total\": 3.5, \"count\": 2, \"paid\": true, \"note\": null, \"a/b~c\": 1}");
+    assertEquals("c1", FieldPath.compile("$.customer.id").get(order));
+    assertEquals("a", FieldPath.compile("$.lines[0].sku").get(order));
+    assertEquals(3.5, FieldPath.compile("$.total").get(order));
+    assertEquals(2, FieldPath.compile("$.count").get(order));
+    assertEquals(true, FieldPath.compile("$.paid").get(order));
+    assertEquals(1, FieldPath.compile("$.a/b~c").get(order), "pointer characters are escaped");
+    assertSame(order.get("customer"), FieldPath.compile("$.customer").get(order));
+    assertSame(order, FieldPath.compile("$").get(order));
+    assertNull(FieldPath.compile("$.note").get(order));
+    assertNull(FieldPath.compile("$.note.id").get(order));
+    assertNull(FieldPath.compile("$.lines[1].sku").get(order));
+    assertNull(FieldPath.compile("$.customer[0]").get(order));
+
+    // A tree within another container is read a step at a time.
+    Map<String, Object> wrapper = Map.of("order", order);
+    assertEquals("a", FieldPath.compile("$.order.lines[0].sku").get(wrapper));
+    assertNull(FieldPath.compile("$.order.note").get(wrapper));
+  }
+
+  @Test
+  public void mapsListsAndArraysAreReadByKeyAndIndex() {
+    Map<String, Object> order = new HashMap<>();
+    order.put("lines", List.of(Map.of("sku", "a"), Map.of("sku", "b")));
+    order.put("matrix", new int[][] {{1, 2}, {3, 4}});
+    order.put("names", new String[] {"x", "y"});
+    order.put("customer", null);
+    assertEquals("b", FieldPath.compile("$.lines[1].sku").get(order));
+    assertEquals(3, FieldPath.compile("$.matrix[1][0]").get(order));
+    assertEquals("y", FieldPath.compile("$.names[1]").get(order));
+    assertNull(FieldPath.compile("$.lines[2].sku").get(order));
+    assertNull(FieldPath.compile("$.matrix[2][0]").get(order));
+    assertNull(FieldPath.compile("$[0]").get(order), "a map has no index");
+    assertNull(FieldPath.compile("$.customer.id").get(order));
+    assertNull(FieldPath.compile("$.missing.id").get(order));
+    assertNull(FieldPath.compile("$.id").get(null));
+  }
+
+  @Test
+  public void missingAndNullIntermediatesReadAsNull() throws IOException {
+    assertNull(FieldPath.compile("$.customer.id").get(new Order(null, null, null)));
+    assertNull(FieldPath.compile("$.quantities[0]").get(new Order(null, null, null)));
+    GenericRecord order = avroOrder();
+    order.put("customer", null);
+    assertNull(FieldPath.compile("$.customer.id").get(order));
+    assertNull(FieldPath.compile("$.customer.id").get(roundTrip(order)));
+    assertNull(FieldPath.compile("$.customer.id.length").get(Map.of("customer", Map.of())));
+  }
+
+  @Test
+  public void pathResolversKeyPartitionAndLabelRecords() {
+    StreamProducer<Object, Object> producer = new StreamProducer<>(true, new ObjectSerializer(),
+        new ObjectSerializer());
+    RecordOutputStream<Map<String, Object>, Object, Object> byRegion = new RecordOutputStream<>(producer,
+        RecordUtils.pathKey("$.customer.id"), RecordUtils.pathValue("$.lines[0]"),
+        RecordUtils.pathPartition("$.region", 4), RecordUtils.pathHeader("sku", "$.lines[0].sku"));
+    byRegion.topic = "orders";
+    RecordOutputStream<Map<String, Object>, Object, Object> byShard = new RecordOutputStream<>(producer,
+        RecordUtils.pathKey("$.customer.id"), RecordUtils.pathValue("$.lines[0]"),
+        RecordUtils.pathPartition("$.shard"), RecordUtils.emptyHeaders());
+    byShard.topic = "orders";
+
+    List<Map<String, Object>> orders = List.of(
+        Map.of("customer", Map.of("id", "c1"), "region", "eu", "shard", 7, "lines", List.of(Map.of("sku", "a"))),
+        Map.of("customer", Map.of("id", "c2"), "region", 6, "shard", -7, "lines", List.of()),
+        Map.of("customer", Map.of(), "lines", List.of(Map.of("qty", 1))));
+    byRegion.writeAll(orders);
+    byShard.writeAll(orders);
+
+    List<ProducerRecord<Object, Object>> sent = producer.history();
+    assertEquals(6, sent.size());
+    assertEquals(Arrays.asList("c1", "c2", null, "c1", "c2", null),
+        Arrays.asList(sent.stream().map(ProducerRecord::key).toArray()));
+    assertEquals(Map.of("sku", "a"), sent.get(0).value());
+    assertNull(sent.get(1).value());
+    assertEquals(Map.of("qty", 1), sent.get(2).value());
+
+    int eu = Utils.toPositive(Utils.murmur2("eu".getBytes(StandardCharsets.UTF_8))) % 4;
+    assertEquals(Arrays.asList(eu, 2, null, 7, Integer.MAX_VALUE & -7, null),
+        Arrays.asList(sent.stream().map(ProducerRecord::partition).toArray()));
+
+    Header sku = sent.get(0).headers().lastHeader("sku");
+    assertArrayEquals("a".getBytes(StandardCharsets.UTF_8), sku.value());
+    for (int i = 1; i < sent.size(); i++)
+      assertEquals(0, sent.get(i).headers().toArray().length, "no header without a sku");
+  }
+
+  // --- Internal Implementation Methods --------------------------------------------------------------------
+
+  private static GenericRecord avroOrder() {
+    GenericRecord customer = new GenericData.Record(CUSTOMER_SCHEMA);
+    customer.put("id", "c1");
+    GenericRecord order = new GenericData.Record(ORDER_SCHEMA);
+    order.put("customer", customer);
+    order.put("skus", List.of("a", "b"));
+    order.put("attrs", Map.of("color", "red"));
+    order.put("total", 12L);
+    return order;
+  }
+
+  /**
+   * The record as a reader decodes it, with its strings and map keys as {@link Utf8}.
+   */
+  private static GenericRecord roundTrip(GenericRecord record) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    BinaryEncoder encoder = EncoderFactory.get().binaryEncoder(out, null);
+    new GenericDatumWriter<GenericRecord>(record.getSchema()).write(record, encoder);
+    encoder.flush();
+    GenericRecord decoded = new GenericDatumReader<GenericRecord>(record.getSchema())
+        .read(null, DecoderFactory.get().binaryDecoder(out.toByteArray(), null));
+    assertTrue(((Map<?, ?>) decoded.get("attrs")).keySet().iterator().next() instanceof Utf8);
+    return decoded;
+  }
+
+  private static FieldDescriptorProto.Builder field(String name, int number, FieldDescriptorProto.Type type) {
+    return FieldDescriptorProto.newBuilder().setName(name).setNumber(number).setType(type);
+  }
+
+  public static class Customer {
+    private final String id;
+    private final boolean vip;
+
+    public Customer(String id, boolean vip) {
+      this.id = id;
+      this.vip = vip;
+    }
+
+    public String getId() {
+      return id;
+    }
+
+    public boolean isVip() {
+      return vip;
+    }
+  }
+
+  public static class Order {
+    public static final String DEFAULT_NOTE = "none";
+
+    public final Customer customer;
+    public final int[] quantities;
+    private final List<String> skus;
+    private final String note = "secret";
+
+    public Order(Customer customer, int[] quantities, List<String> skus) {
+      this.customer = customer;
+      this.quantities = quantities;
+      this.skus = skus;
+    }
+
+    public List<String> skus() {
+      return skus;
+    }
+
+    public Object getHidden() {
+      return new Hidden();
+    }
+
+    public String getBroken() {
+      throw new IllegalStateException("broken");
+    }
+  }
+
+  private static class Hidden {
+    public String getName() {
+      return "hidden";
+    }
+  }
+
+  /**
+   * Serializes anything by its string form; only the history is looked at.
+   */
+  private static class ObjectSerializer implements Serializer<Object> {
+    private final StringSerializer strings = new StringSerializer();
+
+    @Override
+    public byte[] serialize(String topic, Object data) {
+      return data == null ? null : strings.serialize(topic, data.toString());
+    }
+  }
+}
@@ -0,0 +1,404 @@
+/*
+ * Copyright © 2021 Kif Contributors (https://kif.firkin.io/)
+ * Copyright © 2021 Firkin•IO (https://firkin.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.firkin.kif.utils;
+
+import io.firkin.kif.utils.log.LogConfig;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.producer.ProducerConfig;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.config.TopicConfig;
+import org.apache.kafka.common.errors.KafkaStorageException;
+import org.apache.kafka.common.header.Headers;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.apache.kafka.common.record.RecordBatch;
+import org.apache.kafka.common.serialization.StringDeserializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FileProducerTest {
+  private static String testTmpFolderPath =
+      System.getProperty("KIF_TEST_TMP_PATH", "target/test-tmp");
+
+  private static boolean keepTestFiles =
+      Boolean.parseBoolean(System.getProperty("KIF_TEST_KEEP_TMP_FILES", "true"));
+
+  private static String testRunId = LocalDateTime.now().format(DateTimeFormatter.ISO_LOCAL_DATE_TIME);
+  private static String testPath = Path
+      .of(testTmpFolderPath + "/FileProducerTest/" + testRunId.replace(':', '-'))
+      .toAbsolutePath()
+      .toString();
+
+  private static final int THREADS = 8;
+
+  @BeforeAll
+  private static void createTestFolder() {
+    Path path = Path.of(testPath);
+    System.out.println("Test Run Path: " + path);
+    File tmpFolder = path.toFile();
+    if (!tmpFolder.exists()) {
+      tmpFolder.mkdirs();
+    }
+    if (tmpFolder.exists() && !keepTestFiles) {
+      tmpFolder.deleteOnExit();
+    }
+  }
+
+  @Test
+  public void concurrentSendsToOnePartitionCompleteInOffsetOrder() throws Exception {
+    sendConcurrently("one", 1, 500);
+  }
+
+  @Test
+  public void concurrentSendsToManyPartitionsCompleteInOffsetOrder() throws Exception {
+    sendConcurrently("many", 4, 500);
+  }
+
+  @Test
+  public void closeRacingSendsNeitherLosesCompletionsNorAppendsAfterClose() throws Exception {
+    Map<String, Object> configs = logConfigs("close");
+    ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+    Queue<Future<RecordMetadata>> futures = new ConcurrentLinkedQueue<>();
+    AtomicInteger callbacks = new AtomicInteger();
+    AtomicInteger refused = new AtomicInteger();
+    try {
+      FileProducer<String, String> producer = new FileProducer<>(configs, new StringSerializer(),
+          new StringSerializer());
+      CountDownLatch sending = new CountDownLatch(THREADS);
+      List<Future<?>> senders = new ArrayList<>();
+      for (int t = 0; t < THREADS; t++) {
+        int thread = t;
+        senders.add(executor.submit(() -> {
+          // Each thread also opens a partition of its own part way through, racing close() to open its log.
+          for (int i = 0; ; i++) {
+            if (i == 100)
+              sending.countDown();
+            int partition = i < 200 ? thread % 2 : 2 + thread;
+            try {
+              futures.add(producer.send(new ProducerRecord<>("close", partition, "key-" + i, "value-" + i),
+                  (metadata, e) -> callbacks.incrementAndGet()));
+            } catch (IllegalStateException e) {
+              refused.incrementAndGet();
+              return null;
+            }
+          }
+        }));
+      }
+      sending.await();
+      producer.close();
+      assertTrue(producer.closed());
+      for (Future<?> sender : senders)
+        sender.get(30, TimeUnit.SECONDS);
+      assertEquals(THREADS, refused.get(), "every thread is refused once the producer is closed");
+
+      // Every send that was accepted was appended by close(), and nothing after it.
+      Map<TopicPartition, List<Long>> sent = new HashMap<>();
+      for (Future<RecordMetadata> future : futures) {
+        assertTrue(future.isDone());
+        RecordMetadata metadata = future.get();
+        sent.computeIfAbsent(new TopicPartition(metadata.topic(), metadata.partition()), tp -> new ArrayList<>())
+            .add(metadata.offset());
+      }
+      assertEquals(futures.size(), callbacks.get());
+
+      Map<TopicPartition, List<Long>> appended = readOffsets(configs, "close", 2 + THREADS);
+      for (List<Long> offsets : sent.values())
+        Collections.sort(offsets);
+      assertEquals(sent, appended);
+      for (List<Long> offsets : appended.values())
+        assertEquals(offsets(offsets.size()), offsets, "offsets are unique and contiguous from 0");
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void writesOfOneReusedRecordAreEachAppended() {
+    Map<String, Object> configs = logConfigs("write");
+    MutableRecord<String, String> record = new MutableRecord<>();
+    try (FileProducer<String, String> producer = new FileProducer<>(configs, new StringSerializer(),
+        new StringSerializer())) {
+      for (int i = 0; i < 100; i++) {
+        Headers headers = i % 10 == 0 ? new RecordHeaders().add("i", new byte[] {(byte) i}) : null;
+        producer.write(record.set("write", i % 2, 1000L + i, "key-" + i, "value-" + i, headers));
+      }
+      producer.flush();
+      assertTrue(producer.history().isEmpty(), "written records aren't kept");
+    }
+
+    List<ConsumerRecord<String, String>> records = readRecords(configs, "write", 2);
+    assertEquals(100, records.size());
+    Map<Integer, Long> nextOffsets = new HashMap<>();
+    for (ConsumerRecord<String, String> read : records) {
+      int i = Integer.parseInt(read.key().substring("key-".length()));
+      assertEquals(i % 2, read.partition());
+      assertEquals(nextOffsets.getOrDefault(read.partition(), 0L), read.offset());
+      nextOffsets.put(read.partition(), read.offset() + 1);
+      assertEquals("value-" + i, read.value());
+      assertEquals(1000L + i, read.timestamp());
+      if (i % 10 == 0)
+        assertArrayEquals(new byte[] {(byte) i}, read.headers().lastHeader("i").value());
+      else
+        assertEquals(0, read.headers().toArray().length);
+    }
+  }
+
+  @Test
+  public void writesAreSentAsCopiesWhenHistoryIsKept() {
+    Map<String, Object> configs = logConfigs("write-history");
+    configs.put(RecordHistory.MODE_CONFIG, "all");
+    MutableRecord<String, String> record = new MutableRecord<>();
+    try (FileProducer<String, String> producer = new FileProducer<>(configs, new StringSerializer(),
+        new StringSerializer())) {
+      for (int i = 0; i < 3; i++)
+        producer.write(record.set("write-history", -1, RecordBatch.NO_TIMESTAMP, "key-" + i, "value-" + i, null));
+      List<ProducerRecord<String, String>> history = producer.history();
+      assertEquals(3, history.size());
+      for (int i = 0; i < 3; i++) {
+        assertEquals("key-" + i, history.get(i).key());
+        assertNull(history.get(i).partition());
+        assertNull(history.get(i).timestamp());
+      }
+    }
+    assertEquals(3, readRecords(configs, "write-history", 1).size());
+  }
+
+  @Test
+  public void aFailedAppendOfWrittenRecordsFailsTheNextWrite() throws Exception {
+    Map<String, Object> configs = failingLogConfigs("fail-write");
+    MutableRecord<String, String> record = new MutableRecord<>();
+    try (FileProducer<String, String> producer = new FileProducer<>(configs, new StringSerializer(),
+        new StringSerializer())) {
+      breakPartitionLog(producer, configs, "fail-write");
+      for (int i = 1; i <= 3; i++)
+        producer.write(record.set("fail-write", 0, RecordBatch.NO_TIMESTAMP, "key-" + i, "value-" + i, null));
+
+      // A send too big to share the open batch appends it, and the roll that needs fails.
+      AtomicReference<Exception> failed = new AtomicReference<>();
+      Future<RecordMetadata> future = producer.send(
+          new ProducerRecord<>("fail-write", 0, "key-4", "x".repeat(2048)), (metadata, e) -> failed.set(e));
+      ExecutionException e = assertThrows(ExecutionException.class, future::get);
+      assertTrue(e.getCause() instanceof KafkaStorageException);
+      assertSame(e.getCause(), failed.get());
+
+      // The written records were lost with it; the next write says so, and only once.
+      KafkaStorageException thrown = assertThrows(KafkaStorageException.class,
+          () -> producer.write(record.set("fail-write", 0, RecordBatch.NO_TIMESTAMP, "key-5", "value-5", null)));
+      assertTrue(thrown.getMessage().contains("fail-write-0"), thrown.getMessage());
+      producer.write(record.set("fail-write", 0, RecordBatch.NO_TIMESTAMP, "key-6", "value-6", null));
+
+      // That one is lost by the flush that tries to append it.
+      assertThrows(KafkaStorageException.class, producer::flush);
+      producer.flush();
+    }
+  }
+
+  @Test
+  public void aFailedAppendOfWrittenRecordsFailsTheNextFlush() throws Exception {
+    Map<String, Object> configs = failingLogConfigs("fail-flush");
+    MutableRecord<String, String> record = new MutableRecord<>();
+    FileProducer<String, String> producer = new FileProducer<>(configs, new StringSerializer(),
+        new StringSerializer());
+    breakPartitionLog(producer, configs, "fail-flush");
+    for (int i = 1; i <= 3; i++)
+      producer.write(record.set("fail-flush", 0, RecordBatch.NO_TIMESTAMP, "key-" + i, "value-" + i, null));
+
+    KafkaStorageException thrown = assertThrows(KafkaStorageException.class, producer::flush);
+    assertTrue(thrown.getMessage().contains("fail-flush-0"), thrown.getMessage());
+    assertTrue(thrown.getCause() instanceof IOException);
+    // Thrown once; nothing is left to append, so the next write and flush go ahead.
+    producer.write(record.set("fail-flush", 1, RecordBatch.NO_TIMESTAMP, "key-4", "value-4", null));
+    producer.flush();
+    // The broken partition's segment can't be sealed, but the others are closed.
+    assertThrows(KafkaStorageException.class, producer::close);
+    assertTrue(producer.closed());
+    assertEquals(List.of("key-4"), readRecords(configs, "fail-flush", 2).stream()
+        .map(ConsumerRecord::key).collect(Collectors.toList()));
+  }
+
+  // --- Internal Implementation Methods --------------------------------------------------------------------
+
+  /**
+   * Send {@code perThread} records from each of {@link #THREADS} threads, spread over {@code partitions}
+   * partitions of {@code topic}, then check the offsets each partition's sends got, the order their callbacks
+   * ran in, and that each send's future was done before the callback of the next offset ran.
+   */
+  private void sendConcurrently(String topic, int partitions, int perThread) throws Exception {
+    Map<String, Object> configs = logConfigs(topic);
+    configs.put(ProducerConfig.BATCH_SIZE_CONFIG, 1024);
+    // Callbacks of a partition run one at a time, under its lock; each partition's list is only touched by them.
+    ConcurrentMap<TopicPartition, List<String>> completed = new ConcurrentHashMap<>();
+    ConcurrentMap<String, Future<RecordMetadata>> futures = new ConcurrentHashMap<>();
+    Queue<String> misordered = new ConcurrentLinkedQueue<>();
+    ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+    try (FileProducer<String, String> producer = new FileProducer<>(configs, new StringSerializer(),
+        new StringSerializer())) {
+      CountDownLatch start = new CountDownLatch(1);
+      List<Future<?>> senders = new ArrayList<>();
+      for (int t = 0; t < THREADS; t++) {
+        int thread = t;
+        senders.add(executor.submit(() -> {
+          start.await();
+          for (int i = 0; i < perThread; i++) {
+            int partition = (thread + i) % partitions;
+            TopicPartition tp = new TopicPartition(topic, partition);
+            String id = thread + "-" + i;
+            futures.put(id, producer.send(new ProducerRecord<>(topic, partition, id, "value-" + i),
+                (metadata, e) -> {
+                  List<String> ids = completed.computeIfAbsent(tp, p -> new ArrayList<>());
+                  if (e != null || ids.size() != metadata.offset()) {
+                    misordered.add(tp + " completed " + id + " after " + ids.size() + " sends: " + e);
+                  } else if (!ids.isEmpty()) {
+                    // The previous send may not have returned its future yet; if it has, it must be done.
+                    Future<RecordMetadata> previous = futures.get(ids.get(ids.size() - 1));
+                    if (previous != null && !previous.isDone())
+                      misordered.add(tp + " completed " + id + " before its predecessor's future");
+                  }
+                  ids.add(id);
+                }));
+          }
+          return null;
+        }));
+      }
+      start.countDown();
+      for (Future<?> sender : senders)
+        sender.get(30, TimeUnit.SECONDS);
+      producer.flush();
+    } finally {
+      executor.shutdownNow();
+    }
+
+    assertEquals(List.of(), new ArrayList<>(misordered));
+    assertEquals(THREADS * perThread, futures.size());
+    Map<TopicPartition, List<Long>> sent = new HashMap<>();
+    for (Map.Entry<TopicPartition, List<String>> entry : completed.entrySet()) {
+      List<String> ids = entry.getValue();
+      for (int offset = 0; offset < ids.size(); offset++) {
+        RecordMetadata metadata = futures.get(ids.get(offset)).get();
+        assertEquals(entry.getKey().partition(), metadata.partition());
+        assertEquals(offset, metadata.offset(), "the future of " + ids.get(offset));
+      }
+      sent.put(entry.getKey(), offsets(ids.size()));
+    }
+    assertEquals(partitions, sent.size());
+    assertEquals(sent, readOffsets(configs, topic, partitions));
+  }
+
+  private static Map<String, Object> logConfigs(String name) {
+    Map<String, Object> configs = new HashMap<>();
+    configs.put(LogConfig.LOG_DIR_CONFIG, Path.of(testPath, name).toString());
+    return configs;
+  }
+
+  /**
+   * A log whose partitions roll their segment on every append after the first, and never linger; so each
+   * append has to create files in the partition's directory.
+   */
+  private static Map<String, Object> failingLogConfigs(String name) {
+    Map<String, Object> configs = logConfigs(name);
+    configs.put(ProducerConfig.BATCH_SIZE_CONFIG, 1024);
+    configs.put(ProducerConfig.LINGER_MS_CONFIG, 60_000L);
+    configs.put(TopicConfig.SEGMENT_MS_CONFIG, 1L);
+    return configs;
+  }
+
+  /**
+   * Append a first record to partition 0 of {@code topic}, then delete the partition's directory, so the
+   * segment roll of its next append fails.
+   */
+  private static void breakPartitionLog(FileProducer<String, String> producer, Map<String, Object> configs,
+                                        String topic) throws Exception {
+    producer.write(new MutableRecord<String, String>().set(topic, 0, RecordBatch.NO_TIMESTAMP, "key-0", "value-0",
+        null));
+    producer.flush();
+    Thread.sleep(5);
+    Path dir = Path.of(configs.get(LogConfig.LOG_DIR_CONFIG).toString(), topic + "-0");
+    try (Stream<Path> files = Files.walk(dir)) {
+      for (Path file : files.sorted(Comparator.reverseOrder()).collect(Collectors.toList()))
+        Files.delete(file);
+    }
+  }
+
+  /**
+   * The offsets of every record in the log, by partition, read back with a {@link FileConsumer}.
+   */
+  private static Map<TopicPartition, List<Long>> readOffsets(Map<String, Object> configs, String topic,
+                                                             int partitions) {
+    Map<TopicPartition, List<Long>> offsets = new HashMap<>();
+    for (ConsumerRecord<String, String> record : readRecords(configs, topic, partitions))
+      offsets.computeIfAbsent(new TopicPartition(record.topic(), record.partition()), tp -> new ArrayList<>())
+          .add(record.offset());
+    return offsets;
+  }
+
+  private static List<ConsumerRecord<String, String>> readRecords(Map<String, Object> configs, String topic,
+                                                                  int partitions) {
+    List<ConsumerRecord<String, String>> read = new ArrayList<>();
+    try (FileConsumer<String, String> consumer = new FileConsumer<>(configs, new StringDeserializer(),
+        new StringDeserializer())) {
+      List<TopicPartition> assignment = new ArrayList<>();
+      for (int p = 0; p < partitions; p++)
+        assignment.add(new TopicPartition(topic, p));
+      consumer.assign(assignment);
+      ConsumerRecords<String, String> records;
+      while (!(records = consumer.poll(Duration.ZERO)).isEmpty())
+        records.forEach(read::add);
+    }
+    return read;
+  }
+
+  private static List<Long> offsets(int count) {
+    List<Long> offsets = new ArrayList<>();
+    for (long offset = 0; offset < count; offset++)
+      offsets.add(offset);
+    return offsets;
+  }
+}
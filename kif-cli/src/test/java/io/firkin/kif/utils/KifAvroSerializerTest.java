@@ -0,0 +1,80 @@
+/*
+ * Copyright © 2021 Kif Contributors (https://kif.firkin.io/)
+ * Copyright © 2021 Firkin•IO (https://firkin.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.firkin.kif.utils;
+
+import io.confluent.kafka.schemaregistry.client.MockSchemaRegistryClient;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.kafka.common.errors.SerializationException;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class KifAvroSerializerTest {
+
+  private static final Schema USER = new Schema.Parser().parse(
+      "{\"type\":\"record\",\"name\":\"User\",\"fields\":["
+          + "{\"name\":\"name\",\"type\":\"string\"},{\"name\":\"age\",\"type\":\"int\"}]}");
+
+  @Test
+  public void aFailedValueLeavesNothingBehindForTheNext() throws Exception {
+    KifAvroSerializer serializer = new KifAvroSerializer(new MockSchemaRegistryClient(), Map.of(), false);
+    byte[] expected = new KifAvroSerializer(new MockSchemaRegistryClient(), Map.of(), false)
+        .serialize("topic", user("ok", 42));
+
+    // The name is encoded before the age is found not to be an int, so part of the value is already buffered.
+    GenericRecord broken = new GenericData.Record(USER);
+    broken.put("name", "x".repeat(100));
+    broken.put("age", "not an int");
+    assertThrows(SerializationException.class, () -> serializer.serialize("topic", broken));
+
+    byte[] bytes = serializer.serialize("topic", user("ok", 42));
+    assertArrayEquals(expected, bytes);
+    GenericRecord read = new GenericDatumReader<GenericRecord>(USER).read(null,
+        DecoderFactory.get().binaryDecoder(Arrays.copyOfRange(bytes, 5, bytes.length), null));
+    assertEquals("ok", read.get("name").toString());
+    assertEquals(42, read.get("age"));
+  }
+
+  @Test
+  public void valuesAreFramedWithTheSchemaId() {
+    KifAvroSerializer serializer = new KifAvroSerializer(new MockSchemaRegistryClient(), Map.of(), false);
+    byte[] first = serializer.serialize("topic", user("a", 1));
+    byte[] second = serializer.serialize("topic", user("b", 2));
+    assertEquals(KifAvroSerializer.MAGIC_BYTE, first[0]);
+    assertArrayEquals(Arrays.copyOfRange(first, 0, 5), Arrays.copyOfRange(second, 0, 5));
+    assertNull(serializer.serialize("topic", null));
+
+    byte[] raw = {1, 2, 3};
+    byte[] framed = serializer.serialize("topic", raw);
+    assertArrayEquals(raw, Arrays.copyOfRange(framed, 5, framed.length));
+  }
+
+  private static GenericRecord user(String name, int age) {
+    GenericRecord user = new GenericData.Record(USER);
+    user.put("name", name);
+    user.put("age", age);
+    return user;
+  }
+}
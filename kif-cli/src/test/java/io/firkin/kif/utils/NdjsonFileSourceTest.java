@@ -0,0 +1,160 @@
+/*
+ * Copyright © 2021 Kif Contributors (https://kif.firkin.io/)
+ * Copyright © 2021 Firkin•IO (https://firkin.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.firkin.kif.utils;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.errors.SerializationException;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class NdjsonFileSourceTest {
+  private static String testTmpFolderPath =
+      System.getProperty("KIF_TEST_TMP_PATH", "target/test-tmp");
+
+  private static boolean keepTestFiles =
+      Boolean.parseBoolean(System.getProperty("KIF_TEST_KEEP_TMP_FILES", "true"));
+
+  private static String testRunId = LocalDateTime.now().format(DateTimeFormatter.ISO_LOCAL_DATE_TIME);
+  private static String testPath = Path
+      .of(testTmpFolderPath + "/NdjsonFileSourceTest/" + testRunId.replace(':', '-'))
+      .toAbsolutePath()
+      .toString();
+
+  private static final int THREADS = 4;
+
+  @BeforeAll
+  private static void createTestFolder() {
+    Path path = Path.of(testPath);
+    System.out.println("Test Run Path: " + path);
+    File tmpFolder = path.toFile();
+    if (!tmpFolder.exists()) {
+      tmpFolder.mkdirs();
+    }
+    if (tmpFolder.exists() && !keepTestFiles) {
+      tmpFolder.deleteOnExit();
+    }
+  }
+
+  @Test
+  public void largeFilesAreSplitAndReadInOrder() throws Exception {
+    // Larger than a range per thread needs, with blank lines and CRLFs among the values.
+    Path file = Path.of(testPath, "large.ndjson");
+    List<String> expected = new ArrayList<>();
+    try (BufferedWriter out = Files.newBufferedWriter(file)) {
+      for (int i = 0; i < 60_000; i++) {
+        String value = "{\"id\":" + i + ",\"tags\":[\"a\",\"b\"],\"text\":\"" + "t".repeat(i % 100) + "\"}";
+        expected.add(value);
+        out.write(value);
+        out.write(i % 5 == 0 ? "\r\n" : "\n");
+        if (i % 1000 == 0)
+          out.write("  \n");
+      }
+    }
+    assertTrue(Files.size(file) > THREADS * NdjsonFileSource.MIN_RANGE_BYTES);
+    assertTrue(NdjsonFileSource.isNdjson(file));
+
+    for (boolean validate : new boolean[] {false, true}) {
+      try (NdjsonFileSource source = NdjsonFileSource.open(file, "topic", THREADS, validate)) {
+        assertEquals(THREADS, source.ranges());
+        List<ConsumerRecord<byte[], byte[]>> records = readAll(source);
+        assertEquals(expected.size(), records.size());
+        for (int i = 0; i < records.size(); i++) {
+          ConsumerRecord<byte[], byte[]> record = records.get(i);
+          assertEquals(i, record.offset());
+          assertEquals(0, record.partition());
+          assertEquals(expected.get(i), new String(record.value(), StandardCharsets.UTF_8), "validate=" + validate);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void valuesSpanningOrSharingLinesFailValidation() throws Exception {
+    Path spanning = Files.writeString(Path.of(testPath, "spanning.ndjson"), "{\"a\":1}\n[2]\n{\"b\":\n3}\n{\"c\":4}\n");
+    Path sharing = Files.writeString(Path.of(testPath, "sharing.ndjson"), "{\"a\":1}\n[2]\n{\"b\":3} {\"c\":4}\n");
+    Path invalid = Files.writeString(Path.of(testPath, "invalid.ndjson"), "{\"a\":1}\n[2]\n{\"b\":}\n{\"c\":4}\n");
+    // The values before the bad one are read first; a value which shares its line with a later one is good.
+    for (Map.Entry<Path, String> bad : Map.of(spanning, "[2]", sharing, "{\"b\":3}", invalid, "[2]").entrySet()) {
+      try (NdjsonFileSource source = NdjsonFileSource.open(bad.getKey(), "topic", 1, true)) {
+        List<ConsumerRecord<byte[], byte[]>> records = new ArrayList<>();
+        assertThrows(SerializationException.class, () -> {
+          while (source.read(records, 100) >= 0)
+            ;
+        }, bad.getKey().toString());
+        String last = new String(records.get(records.size() - 1).value(), StandardCharsets.UTF_8);
+        assertEquals(bad.getValue(), last, bad.getKey().toString());
+      }
+    }
+
+    // Without validating, every line is taken for a value.
+    try (NdjsonFileSource source = NdjsonFileSource.open(spanning, "topic", 1, false)) {
+      assertEquals(5, readAll(source).size());
+    }
+  }
+
+  @Test
+  public void onlyFilesOfJsonLinesAreTakenForNdjson() throws Exception {
+    assertTrue(isNdjson("ndjson-object", "\n  {\"a\":1}\n{\"a\":2}\n"));
+    assertTrue(isNdjson("ndjson-array", "[1,2,{\"a\":[3]}]\n[4]\n"));
+    assertTrue(isNdjson("ndjson-single", "[1,2]"));
+    assertFalse(isNdjson("empty", ""));
+    assertFalse(isNdjson("blank", " \n\n"));
+    assertFalse(isNdjson("text", "hello\n"));
+    assertFalse(isNdjson("array-spanning-lines", "[1,\n2]\n"));
+    assertFalse(isNdjson("array-sharing-line", "[1] [2]\n"));
+    assertFalse(isNdjson("array-unclosed", "[1,2\n"));
+    assertFalse(isNdjson("array-long-line", "[" + "1,".repeat(64 * 1024) + "1]\n"));
+
+    Path framed = Path.of(testPath, "framed.bin");
+    try (OutputStream out = Files.newOutputStream(framed);
+         StreamProducer<String, String> producer = new StreamProducer<>(out, Map.of(), new StringSerializer(),
+             new StringSerializer())) {
+      producer.send(new ProducerRecord<>("topic", 0, "[1]", "{\"a\":1}"));
+    }
+    assertFalse(NdjsonFileSource.isNdjson(framed));
+  }
+
+  // --- Internal Implementation Methods --------------------------------------------------------------------
+
+  private static boolean isNdjson(String name, String content) throws Exception {
+    return NdjsonFileSource.isNdjson(Files.writeString(Path.of(testPath, name + ".ndjson"), content));
+  }
+
+  private static List<ConsumerRecord<byte[], byte[]>> readAll(NdjsonFileSource source) {
+    List<ConsumerRecord<byte[], byte[]>> records = new ArrayList<>();
+    while (source.read(records, 1000) >= 0)
+      ;
+    return records;
+  }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright © 2021 Kif Contributors (https://kif.firkin.io/)
+ * Copyright © 2021 Firkin•IO (https://firkin.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.firkin.kif.utils;
+
+import io.firkin.kif.utils.ParallelRecordProcessor.OffsetTracker;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.MockConsumer;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.clients.consumer.OffsetResetStrategy;
+import org.apache.kafka.common.TopicPartition;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ParallelRecordProcessorTest {
+
+  private static final TopicPartition TP = new TopicPartition("topic", 0);
+
+  @Test
+  public void commitsTheOffsetBelowWhichEverythingFinished() {
+    OffsetTracker tracker = OffsetTracker.restore(null, 100);
+    for (long offset = 100; offset < 110; offset++)
+      assertTrue(tracker.dispatch(offset));
+    assertEquals(100, tracker.toCommit().offset());
+    assertNull(tracker.toCommit(), "nothing changed since the last commit");
+
+    tracker.finish(100);
+    tracker.finish(101);
+    tracker.finish(105);
+    OffsetAndMetadata commit = tracker.toCommit();
+    assertEquals(102, commit.offset());
+    assertTrue(commit.metadata().startsWith("kif1:"));
+
+    for (long offset = 100; offset < 110; offset++)
+      tracker.finish(offset);
+    commit = tracker.toCommit();
+    assertEquals(110, commit.offset());
+    assertEquals("", commit.metadata());
+  }
+
+  @Test
+  public void restoredTrackerSkipsExactlyTheFinishedOffsets() {
+    Random random = new Random(42);
+    for (int round = 0; round < 100; round++) {
+      int count = 1 + random.nextInt(2000);
+      BitSet finished = new BitSet();
+      OffsetTracker tracker = OffsetTracker.restore(null, 1000);
+      for (int i = 0; i < count; i++)
+        tracker.dispatch(1000 + i);
+      // Long runs and short ones, so that runs need one varint byte, or several.
+      for (int i = 0; i < count; ) {
+        int run = random.nextBoolean() ? 1 + random.nextInt(4) : 1 + random.nextInt(300);
+        if (random.nextBoolean())
+          finished.set(i, Math.min(i + run, count));
+        i += run;
+      }
+      finished.stream().forEach(i -> tracker.finish(1000 + i));
+      OffsetAndMetadata commit = tracker.toCommit();
+      assertEquals(1000 + finished.nextClearBit(0), commit.offset());
+
+      OffsetTracker restored = OffsetTracker.restore(commit, commit.offset());
+      for (int i = (int) (commit.offset() - 1000); i < count + 10; i++)
+        assertEquals(!finished.get(i), restored.dispatch(1000 + i), "offset " + (1000 + i) + " of round " + round);
+    }
+  }
+
+  @Test
+  public void metadataIsCutShortAndTheRestReplayed() {
+    // Alternating finished and unfinished offsets: a run per offset, far more than the metadata can hold.
+    int count = 20_000;
+    OffsetTracker tracker = OffsetTracker.restore(null, 0);
+    for (int i = 0; i < count; i++)
+      tracker.dispatch(i);
+    for (int i = 1; i < count; i += 2)
+      tracker.finish(i);
+    OffsetAndMetadata commit = tracker.toCommit();
+    assertEquals(0, commit.offset());
+    assertTrue(commit.metadata().length() <= ParallelRecordProcessor.MAX_METADATA_LENGTH,
+        "metadata of " + commit.metadata().length() + " characters");
+
+    OffsetTracker restored = OffsetTracker.restore(commit, 0);
+    int skipped = 0;
+    for (int i = 0; i < count; i++) {
+      boolean replayed = restored.dispatch(i);
+      if (i % 2 == 0)
+        assertTrue(replayed, "unfinished offset " + i + " must be replayed");
+      else if (!replayed)
+        skipped++;
+    }
+    // The runs which fit are still honored, and the rest are replayed, never skipped.
+    assertTrue(skipped > 1000, "skipped " + skipped);
+    assertTrue(skipped < count / 2, "skipped " + skipped);
+  }
+
+  @Test
+  public void foreignMetadataReplaysEverythingPastTheOffset() {
+    for (String metadata : new String[] {"", "someone else's", "kif1:!!not base64!!", "kif1:____"}) {
+      OffsetTracker restored = OffsetTracker.restore(new OffsetAndMetadata(50, metadata), 50);
+      for (long offset = 50; offset < 100; offset++)
+        assertTrue(restored.dispatch(offset), metadata);
+    }
+  }
+
+  @Test
+  public void recordsOfEachKeyAreHandledOneAtATimeInOrder() throws Exception {
+    int count = 2000;
+    int keys = 10;
+    MockConsumer<String, String> consumer = new MockConsumer<>(OffsetResetStrategy.EARLIEST);
+    consumer.assign(List.of(TP));
+    consumer.updateBeginningOffsets(Map.of(TP, 0L));
+    for (int i = 0; i < count; i++)
+      consumer.addRecord(new ConsumerRecord<>("topic", 0, i, "key-" + (i % keys), "value-" + i));
+
+    Map<String, List<Long>> handled = new ConcurrentHashMap<>();
+    Map<String, AtomicBoolean> inFlight = new ConcurrentHashMap<>();
+    AtomicInteger overlaps = new AtomicInteger();
+    AtomicInteger done = new AtomicInteger();
+    ParallelRecordProcessor<String, String> processor = new ParallelRecordProcessor<>(consumer, record -> {
+      AtomicBoolean busy = inFlight.computeIfAbsent(record.key(), k -> new AtomicBoolean());
+      if (!busy.compareAndSet(false, true))
+        overlaps.incrementAndGet();
+      if (ThreadLocalRandom.current().nextInt(8) == 0)
+        Thread.sleep(1);
+      handled.computeIfAbsent(record.key(), k -> Collections.synchronizedList(new ArrayList<>())).add(record.offset());
+      busy.set(false);
+      done.incrementAndGet();
+    }, Map.of(ParallelRecordProcessor.WORKERS_CONFIG, 8, ParallelRecordProcessor.COMMIT_INTERVAL_MS_CONFIG, 10L));
+
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+    while (done.get() < count && System.nanoTime() < deadline)
+      Thread.sleep(10);
+    OffsetAndMetadata committed = null;
+    while (System.nanoTime() < deadline) {
+      committed = consumer.committed(Collections.singleton(TP)).get(TP);
+      if (committed != null && committed.offset() == count)
+        break;
+      Thread.sleep(10);
+    }
+    processor.close();
+
+    assertEquals(count, done.get());
+    assertEquals(0, overlaps.get(), "records of the same key were handled concurrently");
+    assertEquals(keys, handled.size());
+    for (Map.Entry<String, List<Long>> entry : handled.entrySet()) {
+      List<Long> offsets = entry.getValue();
+      assertEquals(count / keys, offsets.size());
+      for (int i = 1; i < offsets.size(); i++)
+        assertTrue(offsets.get(i - 1) < offsets.get(i), entry.getKey() + " out of order: " + offsets);
+    }
+    assertNotNull(committed);
+    assertEquals(count, committed.offset());
+  }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright © 2021 Kif Contributors (https://kif.firkin.io/)
+ * Copyright © 2021 Firkin•IO (https://firkin.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.firkin.kif.utils;
+
+import io.firkin.kif.utils.log.LogConfig;
+import org.apache.kafka.clients.producer.ProducerConfig;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.Metric;
+import org.apache.kafka.common.MetricName;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ProducerMetricsTest {
+  private static String testTmpFolderPath =
+      System.getProperty("KIF_TEST_TMP_PATH", "target/test-tmp");
+
+  private static boolean keepTestFiles =
+      Boolean.parseBoolean(System.getProperty("KIF_TEST_KEEP_TMP_FILES", "true"));
+
+  private static String testRunId = LocalDateTime.now().format(DateTimeFormatter.ISO_LOCAL_DATE_TIME);
+  private static String testPath = Path
+      .of(testTmpFolderPath + "/ProducerMetricsTest/" + testRunId.replace(':', '-'))
+      .toAbsolutePath()
+      .toString();
+
+  @BeforeAll
+  private static void createTestFolder() {
+    Path path = Path.of(testPath);
+    System.out.println("Test Run Path: " + path);
+    File tmpFolder = path.toFile();
+    if (!tmpFolder.exists()) {
+      tmpFolder.mkdirs();
+    }
+    if (tmpFolder.exists() && !keepTestFiles) {
+      tmpFolder.deleteOnExit();
+    }
+  }
+
+  @Test
+  public void streamProducerCountsRecordsRequestsAndBytes() {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    Map<String, Object> configs = Map.of(ProducerConfig.BATCH_SIZE_CONFIG, 1024,
+        ProducerConfig.CLIENT_ID_CONFIG, "stream-metrics");
+    try (StreamProducer<String, String> producer = new StreamProducer<>(out, configs, new StringSerializer(),
+        new StringSerializer())) {
+      for (int i = 0; i < 100; i++)
+        producer.send(new ProducerRecord<>(i % 5 < 3 ? "a" : "b", 0, "key-" + i, "value-" + i));
+      producer.flush();
+
+      Map<MetricName, ? extends Metric> metrics = producer.metrics();
+      assertEquals(100.0, value(metrics, "record-send-total", ProducerMetrics.GROUP, null));
+      assertEquals(60.0, value(metrics, "record-send-total", ProducerMetrics.TOPIC_GROUP, "a"));
+      assertEquals(40.0, value(metrics, "record-send-total", ProducerMetrics.TOPIC_GROUP, "b"));
+      assertTrue(value(metrics, "request-total", ProducerMetrics.GROUP, null) > 1.0, "a batch.size buffer per write");
+      assertEquals((double) out.size(), value(metrics, "outgoing-byte-total", ProducerMetrics.GROUP, null));
+      assertEquals(0.0, value(metrics, "record-error-total", ProducerMetrics.GROUP, null));
+      for (MetricName name : metrics.keySet())
+        if (!name.group().equals("kafka-metrics-count"))
+          assertEquals("stream-metrics", name.tags().get("client-id"), name.toString());
+    }
+  }
+
+  @Test
+  public void fileProducerCountsConcurrentAppends() throws Exception {
+    Map<String, Object> configs = new HashMap<>();
+    configs.put(LogConfig.LOG_DIR_CONFIG, Path.of(testPath, "concurrent").toString());
+    configs.put(ProducerConfig.BATCH_SIZE_CONFIG, 512);
+    configs.put(ProducerConfig.COMPRESSION_TYPE_CONFIG, "gzip");
+    int threads = 8;
+    int perThread = 250;
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try (FileProducer<String, String> producer = new FileProducer<>(configs, new StringSerializer(),
+        new StringSerializer())) {
+      // Every thread's first batch of a topic starts at once, so they race to register its sensors.
+      CountDownLatch start = new CountDownLatch(1);
+      List<Future<?>> sends = new ArrayList<>();
+      for (int t = 0; t < threads; t++) {
+        int partition = t;
+        sends.add(executor.submit(() -> {
+          start.await();
+          for (int i = 0; i < perThread; i++)
+            producer.send(new ProducerRecord<>(i % 2 == 0 ? "even" : "odd", partition, "key-" + i, "value-" + i));
+          return null;
+        }));
+      }
+      start.countDown();
+      for (Future<?> send : sends)
+        send.get();
+      producer.flush();
+
+      Map<MetricName, Metric> metrics = producer.metrics();
+      int total = threads * perThread;
+      assertEquals((double) total, value(metrics, "record-send-total", ProducerMetrics.GROUP, null));
+      assertEquals(total / 2.0, value(metrics, "record-send-total", ProducerMetrics.TOPIC_GROUP, "even"));
+      assertEquals(total / 2.0, value(metrics, "record-send-total", ProducerMetrics.TOPIC_GROUP, "odd"));
+      assertTrue(value(metrics, "request-total", ProducerMetrics.GROUP, null) >= 2 * threads,
+          "a batch per topic-partition at least");
+      assertTrue(value(metrics, "outgoing-byte-total", ProducerMetrics.GROUP, null) > 0.0);
+      assertEquals(value(metrics, "outgoing-byte-total", ProducerMetrics.GROUP, null),
+          value(metrics, "byte-total", ProducerMetrics.TOPIC_GROUP, "even")
+              + value(metrics, "byte-total", ProducerMetrics.TOPIC_GROUP, "odd"));
+      assertTrue(value(metrics, "compression-rate", ProducerMetrics.TOPIC_GROUP, "even") < 1.0, "gzip compresses");
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  // --- Internal Implementation Methods --------------------------------------------------------------------
+
+  /**
+   * The value of the one metric of {@code name} in {@code group}, tagged with {@code topic} if it isn't null.
+   */
+  static double value(Map<MetricName, ? extends Metric> metrics, String name, String group, String topic) {
+    Metric found = null;
+    for (Map.Entry<MetricName, ? extends Metric> entry : metrics.entrySet()) {
+      MetricName metricName = entry.getKey();
+      if (metricName.name().equals(name) && metricName.group().equals(group)
+          && (topic == null || topic.equals(metricName.tags().get("topic")))) {
+        assertNull(found, "only one " + name + " of " + group + " for " + topic);
+        found = entry.getValue();
+      }
+    }
+    assertNotNull(found, "no " + name + " of " + group + " for " + topic);
+    return ((Number) found.metricValue()).doubleValue();
+  }
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright © 2021 Kif Contributors (https://kif.firkin.io/)
+ * Copyright © 2021 Firkin•IO (https://firkin.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.firkin.kif.utils;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.producer.ProducerConfig;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.errors.CorruptRecordException;
+import org.apache.kafka.common.serialization.StringDeserializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+import java.util.stream.StreamSupport;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RecordContainerTest {
+  private static String testTmpFolderPath =
+      System.getProperty("KIF_TEST_TMP_PATH", "target/test-tmp");
+
+  private static boolean keepTestFiles =
+      Boolean.parseBoolean(System.getProperty("KIF_TEST_KEEP_TMP_FILES", "true"));
+
+  private static String testRunId = LocalDateTime.now().format(DateTimeFormatter.ISO_LOCAL_DATE_TIME);
+  private static String testPath = Path
+      .of(testTmpFolderPath + "/RecordContainerTest/" + testRunId.replace(':', '-'))
+      .toAbsolutePath()
+      .toString();
+
+  @BeforeAll
+  private static void createTestFolder() {
+    Path path = Path.of(testPath);
+    System.out.println("Test Run Path: " + path);
+    File tmpFolder = path.toFile();
+    if (!tmpFolder.exists()) {
+      tmpFolder.mkdirs();
+    }
+    if (tmpFolder.exists() && !keepTestFiles) {
+      tmpFolder.deleteOnExit();
+    }
+  }
+
+  @Test
+  public void containerReadsBackThroughStreamConsumerAndSpliterator() throws Exception {
+    byte[] container = write(1000, 100, 4096);
+    assertTrue(RecordContainer.isContainer(container, 0, container.length));
+    assertTrue(blocks(container).size() > 10, "records span many blocks");
+    List<Long> all = offsets(0, 1000);
+
+    List<ConsumerRecord<String, String>> records = StreamProducerTest.readAll(new ByteArrayInputStream(container));
+    assertEquals(all, offsetsOf(records));
+    for (ConsumerRecord<String, String> record : records) {
+      assertEquals("key-" + record.offset(), record.key());
+      assertEquals(value(record.offset(), 100), record.value());
+    }
+
+    Path file = Files.write(Path.of(testPath, "roundTrip.kifc"), container);
+    try (RecordContainerSpliterator<String, String> spliterator = spliterator(file)) {
+      records = StreamSupport.stream(spliterator, false).collect(Collectors.toList());
+    }
+    assertEquals(all, offsetsOf(records));
+    assertEquals(value(999, 100), records.get(999).value());
+  }
+
+  @Test
+  public void aCorruptBlockCostsOnlyItsOwnRecords() throws Exception {
+    byte[] container = write(1000, 100, 4096);
+    List<int[]> blocks = blocks(container);
+    int corrupt = blocks.size() / 2;
+    int[] block = blocks.get(corrupt);
+    container[block[0] + RecordContainer.BLOCK_HEADER_SIZE + 10] ^= 0x40;
+
+    long lost = 0;
+    for (int i = 0; i < corrupt; i++)
+      lost += blocks.get(i)[1];
+    List<Long> intact = offsets(0, 1000);
+    intact.subList((int) lost, (int) lost + block[1]).clear();
+
+    // Every intact record is read, before the corruption is reported.
+    List<ConsumerRecord<String, String>> records = new ArrayList<>();
+    try (StreamConsumer<String, String> consumer = new StreamConsumer<>(new ByteArrayInputStream(container), "topic",
+        Map.of(), new StringDeserializer(), new StringDeserializer())) {
+      consumer.subscribe(List.of("topic"));
+      assertThrows(CorruptRecordException.class, () -> {
+        while (!consumer.isEndOfStream())
+          consumer.poll(Duration.ofMillis(100)).forEach(records::add);
+      });
+    }
+    assertEquals(intact, offsetsOf(records));
+
+    Path file = Files.write(Path.of(testPath, "corrupt.kifc"), container);
+    List<ConsumerRecord<String, String>> split = new ArrayList<>();
+    try (RecordContainerSpliterator<String, String> spliterator = spliterator(file)) {
+      assertThrows(CorruptRecordException.class, () -> spliterator.forEachRemaining(split::add));
+      assertFalse(spliterator.tryAdvance(split::add), "the corruption is reported once");
+    }
+    assertEquals(intact, offsetsOf(split));
+  }
+
+  @Test
+  public void splitsAtAnyOffsetReadEachBlockOnce() throws Exception {
+    byte[] container = write(500, 50, 2048);
+    Path file = Files.write(Path.of(testPath, "splits.kifc"), container);
+    List<int[]> blocks = blocks(container);
+    List<Long> all = offsets(0, 500);
+
+    // On and either side of every block's start, and within the container header.
+    TreeSet<Long> boundaries = new TreeSet<>(List.of(1L, 4L, (long) RecordContainer.HEADER_SIZE));
+    for (int[] block : blocks)
+      for (long cut = block[0] - 1; cut <= block[0] + 1; cut++)
+        boundaries.add(cut);
+    assertEquals(all, readSplits(file, boundaries, container.length));
+    for (long cut : boundaries)
+      assertEquals(all, readSplits(file, new TreeSet<>(List.of(cut)), container.length), "split at " + cut);
+
+    // Within the sync markers and block headers, and anywhere at all.
+    for (long cut = 1; cut < container.length; cut += 7)
+      assertEquals(all, readSplits(file, new TreeSet<>(List.of(cut)), container.length), "split at " + cut);
+    Random random = new Random(23);
+    for (int i = 0; i < 20; i++) {
+      TreeSet<Long> cuts = new TreeSet<>();
+      for (int j = 1 + random.nextInt(40); j > 0; j--)
+        cuts.add(1L + random.nextInt(container.length - 1));
+      assertEquals(all, readSplits(file, cuts, container.length), "splits at " + cuts);
+    }
+  }
+
+  @Test
+  public void largeContainersSplitForParallelStreams() throws Exception {
+    // Several times RecordContainerSpliterator.MIN_SPLIT_BYTES, so that it splits more than once.
+    byte[] container = write(5000, 1024, 64 * 1024);
+    Path file = Files.write(Path.of(testPath, "parallel.kifc"), container);
+    try (RecordContainerSpliterator<String, String> spliterator = spliterator(file)) {
+      assertNotNull(spliterator.trySplit());
+    }
+    List<ConsumerRecord<String, String>> records;
+    try (RecordContainerSpliterator<String, String> spliterator = spliterator(file)) {
+      records = StreamSupport.stream(spliterator, true).collect(Collectors.toList());
+    }
+    assertEquals(offsets(0, 5000), offsetsOf(records));
+    for (ConsumerRecord<String, String> record : records)
+      assertEquals(value(record.offset(), 1024), record.value());
+  }
+
+  // --- Internal Implementation Methods --------------------------------------------------------------------
+
+  /**
+   * A container of {@code count} records of one partition, so their offsets follow the order they were sent.
+   */
+  private static byte[] write(int count, int valueSize, int batchSize) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (StreamProducer<String, String> producer = new StreamProducer<>(out,
+        Map.of(ProducerConfig.BATCH_SIZE_CONFIG, batchSize, RecordContainer.CONTAINER_CONFIG, true),
+        new StringSerializer(), new StringSerializer())) {
+      for (int i = 0; i < count; i++)
+        producer.send(new ProducerRecord<>("topic", 0, "key-" + i, value(i, valueSize)));
+    }
+    return out.toByteArray();
+  }
+
+  private static String value(long offset, int size) {
+    String value = "value-" + offset + "-";
+    return value + "x".repeat(Math.max(0, size - value.length()));
+  }
+
+  /**
+   * The start and record count of each block of {@code container}, found by its sync marker.
+   */
+  private static List<int[]> blocks(byte[] container) {
+    byte[] sync = Arrays.copyOfRange(container, RecordContainer.MAGIC.length + 1, RecordContainer.HEADER_SIZE);
+    List<int[]> blocks = new ArrayList<>();
+    for (int i = RecordContainer.HEADER_SIZE; i <= container.length - RecordContainer.BLOCK_HEADER_SIZE; i++) {
+      if (Arrays.equals(container, i, i + sync.length, sync, 0, sync.length))
+        blocks.add(new int[] {i, ByteBuffer.wrap(container).getInt(i + RecordContainer.BLOCK_PREFIX_SIZE)});
+    }
+    return blocks;
+  }
+
+  /**
+   * The offsets read from each of the splits of {@code file} between {@code cuts}, one after another.
+   */
+  private static List<Long> readSplits(Path file, TreeSet<Long> cuts, long size) throws Exception {
+    List<Long> offsets = new ArrayList<>();
+    RecordFrame frame = new RecordFrame();
+    long start = 0;
+    for (long end : cuts.tailSet(1L)) {
+      readSplit(file, start, Math.min(end, size), frame, offsets);
+      start = Math.min(end, size);
+    }
+    readSplit(file, start, size, frame, offsets);
+    return offsets;
+  }
+
+  private static void readSplit(Path file, long start, long end, RecordFrame frame, List<Long> offsets)
+      throws Exception {
+    try (RecordContainerReader reader = RecordContainerReader.open(file, start, end,
+        RecordContainerSpliterator.MAX_BLOCK_BYTES)) {
+      while (reader.next(frame))
+        offsets.add(frame.offset());
+    }
+  }
+
+  private static RecordContainerSpliterator<String, String> spliterator(Path file) {
+    return RecordContainerSpliterator.open(file, "topic", new StringDeserializer(), new StringDeserializer());
+  }
+
+  private static List<Long> offsets(long from, long to) {
+    return LongStream.range(from, to).boxed().collect(Collectors.toList());
+  }
+
+  private static List<Long> offsetsOf(List<ConsumerRecord<String, String>> records) {
+    return records.stream().map(ConsumerRecord::offset).collect(Collectors.toList());
+  }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright © 2021 Kif Contributors (https://kif.firkin.io/)
+ * Copyright © 2021 Firkin•IO (https://firkin.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.firkin.kif.utils;
+
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.config.ConfigException;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RecordHistoryTest {
+
+  @Test
+  public void allKeepsEveryEntry() {
+    RecordHistory<Integer> history = RecordHistory.of(Map.of(RecordHistory.MODE_CONFIG, "all"), RecordHistory.Mode.NONE);
+    assertEquals(RecordHistory.Mode.ALL, history.mode());
+    assertTrue(history.isEmpty());
+    history.addAll(range(0, 5000));
+    assertEquals(range(0, 5000), history.list());
+    assertEquals(5000, history.count());
+    history.clear();
+    assertTrue(history.isEmpty());
+    assertEquals(List.of(), history.list());
+  }
+
+  @Test
+  public void recentEvictsTheOldestEntriesFirst() {
+    RecordHistory<Integer> history = RecordHistory.of(
+        Map.of(RecordHistory.MODE_CONFIG, "RECENT", RecordHistory.SIZE_CONFIG, "4"), RecordHistory.Mode.ALL);
+    assertEquals(RecordHistory.Mode.RECENT, history.mode());
+    history.addAll(range(0, 3));
+    assertEquals(range(0, 3), history.list(), "not yet full");
+    history.add(3);
+    assertEquals(range(0, 4), history.list(), "just full");
+    for (int i = 4; i < 11; i++) {
+      history.add(i);
+      assertEquals(range(i - 3, i + 1), history.list(), "oldest first, after " + i);
+    }
+    assertEquals(11, history.count(), "counts every entry, kept or not");
+
+    history.clear();
+    assertEquals(0, history.count());
+    assertEquals(List.of(), history.list());
+    history.add(42);
+    assertEquals(List.of(42), history.list(), "nothing from before the clear");
+  }
+
+  @Test
+  public void noneKeepsNothing() {
+    RecordHistory<Integer> history = RecordHistory.of(Map.of(), RecordHistory.Mode.NONE);
+    assertEquals(RecordHistory.Mode.NONE, history.mode());
+    history.addAll(range(0, 100));
+    assertEquals(List.of(), history.list());
+    assertEquals(100, history.count());
+    assertFalse(history.isEmpty());
+  }
+
+  @Test
+  public void invalidConfigsAreRefused() {
+    assertThrows(ConfigException.class,
+        () -> RecordHistory.of(Map.of(RecordHistory.MODE_CONFIG, "some"), RecordHistory.Mode.ALL));
+    assertThrows(ConfigException.class,
+        () -> RecordHistory.of(Map.of(RecordHistory.MODE_CONFIG, ""), RecordHistory.Mode.ALL));
+    assertThrows(ConfigException.class, () -> RecordHistory.of(
+        Map.of(RecordHistory.MODE_CONFIG, "recent", RecordHistory.SIZE_CONFIG, "lots"), RecordHistory.Mode.ALL));
+    assertThrows(ConfigException.class, () -> RecordHistory.of(
+        Map.of(RecordHistory.MODE_CONFIG, "recent", RecordHistory.SIZE_CONFIG, 0), RecordHistory.Mode.ALL));
+    assertThrows(ConfigException.class, () -> RecordHistory.of(
+        Map.of(RecordHistory.MODE_CONFIG, "recent", RecordHistory.SIZE_CONFIG, "-1"), RecordHistory.Mode.ALL));
+    assertThrows(IllegalArgumentException.class, () -> new RecordHistory<>(RecordHistory.Mode.RECENT, 0));
+
+    // The size only matters to a recent history.
+    assertEquals(RecordHistory.Mode.NONE, RecordHistory.of(
+        Map.of(RecordHistory.MODE_CONFIG, "none", RecordHistory.SIZE_CONFIG, 0), RecordHistory.Mode.ALL).mode());
+    assertEquals(RecordHistory.DEFAULT_SIZE, recentOf(Map.of(RecordHistory.MODE_CONFIG, "recent")).size());
+  }
+
+  @Test
+  public void transactionsWorkWithoutHistory() {
+    TopicPartition input = new TopicPartition("input", 0);
+    try (FileProducer<String, String> producer = new FileProducer<>(Map.of(), new StringSerializer(),
+        new StringSerializer())) {
+      producer.initTransactions();
+      producer.beginTransaction();
+      producer.send(new ProducerRecord<>("topic", "key", "value"));
+      producer.sendOffsetsToTransaction(Map.of(input, new OffsetAndMetadata(7L)), "group");
+      assertEquals(List.of(), producer.uncommittedRecords());
+      producer.commitTransaction();
+      assertTrue(producer.transactionCommitted());
+      assertEquals(1, producer.commitCount());
+      assertEquals(List.of(), producer.history());
+      assertEquals(List.of(), producer.consumerGroupOffsetsHistory());
+
+      producer.beginTransaction();
+      producer.send(new ProducerRecord<>("topic", "key", "value"));
+      producer.abortTransaction();
+      assertTrue(producer.transactionAborted());
+      assertEquals(List.of(), producer.history());
+    }
+
+    try (StreamProducer<String, String> producer = new StreamProducer<>(new ByteArrayOutputStream(),
+        Map.of(), new StringSerializer(), new StringSerializer())) {
+      producer.initTransactions();
+      producer.beginTransaction();
+      producer.send(new ProducerRecord<>("topic", 0, "key", "value"));
+      assertEquals(List.of(), producer.uncommittedRecords());
+      producer.commitTransaction();
+      assertEquals(List.of(), producer.history());
+      producer.beginTransaction();
+      producer.abortTransaction();
+      assertEquals(List.of(), producer.consumerGroupOffsetsHistory());
+    }
+  }
+
+  @Test
+  public void recentHistoryOfAProducerKeepsItsLatestSends() {
+    try (FileProducer<String, String> producer = new FileProducer<>(
+        Map.of(RecordHistory.MODE_CONFIG, "recent", RecordHistory.SIZE_CONFIG, 3), new StringSerializer(),
+        new StringSerializer())) {
+      for (int i = 0; i < 10; i++)
+        producer.send(new ProducerRecord<>("topic", "key", "value-" + i));
+      assertEquals(List.of("value-7", "value-8", "value-9"),
+          producer.history().stream().map(ProducerRecord::value).collect(Collectors.toList()));
+    }
+  }
+
+  // --- Internal Implementation Methods --------------------------------------------------------------------
+
+  private static List<Integer> range(int from, int to) {
+    return IntStream.range(from, to).boxed().collect(Collectors.toList());
+  }
+
+  /**
+   * The entries a history of {@code configs} keeps once it has had more added than it could ever keep.
+   */
+  private static List<Integer> recentOf(Map<String, ?> configs) {
+    RecordHistory<Integer> history = RecordHistory.of(configs, RecordHistory.Mode.ALL);
+    history.addAll(range(0, 10 * RecordHistory.DEFAULT_SIZE));
+    return history.list();
+  }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright © 2021 Kif Contributors (https://kif.firkin.io/)
+ * Copyright © 2021 Firkin•IO (https://firkin.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.firkin.kif.utils;
+
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.serialization.IntegerSerializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RecordOutputStreamTest {
+
+  @Test
+  public void writeAllSendsEveryObjectInOrder() {
+    StreamProducer<String, Integer> producer = new StreamProducer<>(true, new StringSerializer(), new IntegerSerializer());
+    RecordOutputStream<Integer, String, Integer> out = stream(producer);
+    List<Integer> batch = new ArrayList<>();
+    for (int i = 0; i < 100; i++)
+      batch.add(i);
+    out.writeAll(batch);
+    assertSent(producer.history(), 0, 100);
+  }
+
+  @Test
+  public void writeArraySendsTheRangeInOrder() {
+    StreamProducer<String, Integer> producer = new StreamProducer<>(true, new StringSerializer(), new IntegerSerializer());
+    RecordOutputStream<Integer, String, Integer> out = stream(producer);
+    Integer[] batch = new Integer[100];
+    for (int i = 0; i < batch.length; i++)
+      batch[i] = i;
+    out.write(batch, 10, 50);
+    assertSent(producer.history(), 10, 50);
+    out.write(batch, 100, 0);
+    assertEquals(50, producer.history().size());
+    assertThrows(IndexOutOfBoundsException.class, () -> out.write(batch, 90, 20));
+    assertEquals(50, producer.history().size());
+  }
+
+  // --- Internal Implementation Methods --------------------------------------------------------------------
+
+  private static RecordOutputStream<Integer, String, Integer> stream(StreamProducer<String, Integer> producer) {
+    RecordOutputStream<Integer, String, Integer> out = new RecordOutputStream<>(producer,
+        i -> "key-" + i, i -> i * 2, i -> i % 4);
+    out.topic = "topic";
+    return out;
+  }
+
+  private static void assertSent(List<ProducerRecord<String, Integer>> sent, int from, int count) {
+    assertEquals(count, sent.size());
+    for (int i = 0; i < count; i++) {
+      ProducerRecord<String, Integer> record = sent.get(i);
+      assertEquals("topic", record.topic());
+      assertEquals("key-" + (from + i), record.key());
+      assertEquals((from + i) * 2, record.value());
+      assertEquals((from + i) % 4, record.partition());
+    }
+  }
+}
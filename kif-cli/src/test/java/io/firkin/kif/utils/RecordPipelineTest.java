@@ -0,0 +1,156 @@
+/*
+ * Copyright © 2021 Kif Contributors (https://kif.firkin.io/)
+ * Copyright © 2021 Firkin•IO (https://firkin.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.firkin.kif.utils;
+
+import org.apache.kafka.common.KafkaException;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RecordPipelineTest {
+
+  @Test
+  public void recordsLeaveInTheOrderTheyEntered() {
+    // Worker counts which don't divide each other, and a batch size which doesn't divide the record count.
+    int[][] shapes = { {1}, {3}, {3, 2, 5}, {4, 4}, {2, 7, 1} };
+    for (int[] shape : shapes) {
+      List<Integer> written = new ArrayList<>();
+      RecordPipeline<Integer, Integer> pipeline = RecordPipeline.from(counter(10_007), configs());
+      for (int s = 0; s < shape.length; s++)
+        pipeline = pipeline.stage("stage" + s, shape[s], () -> jitter(i -> i + 1));
+      long count = pipeline.to(written::addAll).run();
+
+      assertEquals(10_007, count);
+      assertEquals(10_007, written.size());
+      for (int i = 0; i < written.size(); i++)
+        assertEquals(i + shape.length, written.get(i), "record " + i + " with workers " + List.of(shape));
+    }
+  }
+
+  @Test
+  public void droppedRecordsSkipLaterStagesAndAreNotWritten() {
+    AtomicInteger applied = new AtomicInteger();
+    List<Integer> written = new ArrayList<>();
+    long count = RecordPipeline.from(counter(10_000), configs())
+        .stage("drop", 3, () -> (Integer i) -> i % 3 == 0 ? null : i)
+        .stage("count", 2, () -> (Integer i) -> {
+          assertNotNull(i);
+          applied.incrementAndGet();
+          return i;
+        })
+        .to(written::addAll)
+        .run();
+
+    List<Integer> expected = new ArrayList<>();
+    for (int i = 0; i < 10_000; i++)
+      if (i % 3 != 0)
+        expected.add(i);
+    assertEquals(expected, written);
+    assertEquals(expected.size(), count);
+    assertEquals(expected.size(), applied.get());
+  }
+
+  @Test
+  public void runReturnsAtTheEndOfTheSource() {
+    // The end reaches every worker however many batches there were; including none at all, or fewer than workers.
+    for (int records : new int[] {0, 1, 16, 17, 50, 1000}) {
+      List<Integer> written = new ArrayList<>();
+      long count = RecordPipeline.from(counter(records), configs())
+          .stage("a", 5, () -> Function.<Integer>identity())
+          .stage("b", 3, () -> Function.<Integer>identity())
+          .to(written::addAll)
+          .run();
+      assertEquals(records, count);
+      assertEquals(records, written.size());
+    }
+  }
+
+  @Test
+  public void aFailingStageStopsThePipeline() {
+    KafkaException e = assertThrows(KafkaException.class, () -> RecordPipeline.from(endless(), configs())
+        .stage("ok", 2, () -> Function.<Integer>identity())
+        .stage("broken", 3, () -> (Integer i) -> {
+          if (i == 5000)
+            throw new IllegalStateException("record " + i);
+          return i;
+        })
+        .to(batch -> { })
+        .run());
+    assertEquals("The broken stage of the pipeline failed", e.getMessage());
+    assertEquals("record 5000", e.getCause().getMessage());
+  }
+
+  @Test
+  public void aFailingSinkStopsThePipeline() {
+    KafkaException e = assertThrows(KafkaException.class, () -> RecordPipeline.from(endless(), configs())
+        .stage("ok", 2, () -> Function.<Integer>identity())
+        .to(batch -> {
+          throw new KafkaException("sink");
+        })
+        .run());
+    assertEquals("sink", e.getMessage());
+  }
+
+  // --- Internal Implementation Methods --------------------------------------------------------------------
+
+  private static Map<String, ?> configs() {
+    return Map.of(RecordPipeline.BATCH_SIZE_CONFIG, 16, RecordPipeline.RING_BATCHES_CONFIG, 2);
+  }
+
+  /**
+   * The integers from 0 up to {@code count}, read in batches of random sizes.
+   */
+  private static RecordPipeline.Source<Integer> counter(int count) {
+    int[] next = {0};
+    return (into, max) -> {
+      if (next[0] >= count)
+        return -1;
+      int n = Math.min(ThreadLocalRandom.current().nextInt(max + 1), count - next[0]);
+      for (int i = 0; i < n; i++)
+        into.add(next[0]++);
+      return n;
+    };
+  }
+
+  private static RecordPipeline.Source<Integer> endless() {
+    int[] next = {0};
+    return (into, max) -> {
+      for (int i = 0; i < max; i++)
+        into.add(next[0]++);
+      return max;
+    };
+  }
+
+  /**
+   * Now and then yields, so that the workers of a stage finish their batches out of order.
+   */
+  private static Function<Integer, Integer> jitter(Function<Integer, Integer> function) {
+    return i -> {
+      if (ThreadLocalRandom.current().nextInt(64) == 0)
+        Thread.yield();
+      return function.apply(i);
+    };
+  }
+}
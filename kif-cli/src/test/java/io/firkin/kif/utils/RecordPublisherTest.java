@@ -0,0 +1,183 @@
+/*
+ * Copyright © 2021 Kif Contributors (https://kif.firkin.io/)
+ * Copyright © 2021 Firkin•IO (https://firkin.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.firkin.kif.utils;
+
+import org.apache.kafka.clients.producer.ProducerConfig;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.serialization.StringDeserializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RecordPublisherTest {
+
+  private static final int COUNT = 1000;
+
+  @Test
+  public void publishesNoMoreThanWasRequested() throws Exception {
+    Recorder subscriber = new Recorder();
+    new RecordPublisher<>(stream(), Map.of(RecordPublisher.BATCH_SIZE_CONFIG, 7)).subscribe(subscriber);
+    Flow.Subscription subscription = subscriber.subscription();
+
+    subscription.request(10);
+    subscriber.awaitValues(10);
+    Thread.sleep(100);
+    assertEquals(10, subscriber.values.size());
+
+    subscription.request(5);
+    subscriber.awaitValues(15);
+    Thread.sleep(100);
+    assertEquals(15, subscriber.values.size());
+    assertFalse(subscriber.completed.await(0, TimeUnit.MILLISECONDS));
+
+    subscription.request(Long.MAX_VALUE);
+    assertTrue(subscriber.completed.await(10, TimeUnit.SECONDS));
+    assertEquals(COUNT, subscriber.values.size());
+    for (int i = 0; i < COUNT; i++)
+      assertEquals("value-" + i, subscriber.values.get(i));
+    assertNull(subscriber.error);
+  }
+
+  @Test
+  public void demandAddsUpAndSaturates() throws Exception {
+    Recorder subscriber = new Recorder();
+    new RecordPublisher<>(stream()).subscribe(subscriber);
+    Flow.Subscription subscription = subscriber.subscription();
+    subscription.request(Long.MAX_VALUE - 1);
+    subscription.request(Long.MAX_VALUE - 1);
+    assertTrue(subscriber.completed.await(10, TimeUnit.SECONDS));
+    assertEquals(COUNT, subscriber.values.size());
+  }
+
+  @Test
+  public void cancelStopsTheValues() throws Exception {
+    Recorder subscriber = new Recorder() {
+      @Override
+      public void onNext(String value) {
+        super.onNext(value);
+        if (values.size() == 3)
+          subscription.cancel();
+      }
+    };
+    new RecordPublisher<>(stream()).subscribe(subscriber);
+    subscriber.subscription().request(100);
+    subscriber.awaitValues(3);
+    Thread.sleep(200);
+    assertEquals(3, subscriber.values.size());
+    assertFalse(subscriber.completed.await(0, TimeUnit.MILLISECONDS));
+    assertNull(subscriber.error);
+  }
+
+  @Test
+  public void aNonPositiveRequestIsAnError() throws Exception {
+    Recorder subscriber = new Recorder();
+    new RecordPublisher<>(stream()).subscribe(subscriber);
+    subscriber.subscription().request(0);
+    assertTrue(subscriber.failed.await(10, TimeUnit.SECONDS));
+    assertTrue(subscriber.error instanceof IllegalArgumentException);
+    assertTrue(subscriber.values.isEmpty());
+  }
+
+  @Test
+  public void onlyOneSubscriberIsAllowed() throws Exception {
+    RecordPublisher<String> publisher = new RecordPublisher<>(stream());
+    Recorder first = new Recorder();
+    Recorder second = new Recorder();
+    publisher.subscribe(first);
+    publisher.subscribe(second);
+    assertTrue(second.failed.await(10, TimeUnit.SECONDS));
+    assertTrue(second.error instanceof IllegalStateException);
+
+    first.subscription().request(Long.MAX_VALUE);
+    assertTrue(first.completed.await(10, TimeUnit.SECONDS));
+    assertEquals(COUNT, first.values.size());
+  }
+
+  // --- Internal Implementation Methods --------------------------------------------------------------------
+
+  static DefaultRecordInputStream<String, String, String> stream() {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (StreamProducer<String, String> producer = new StreamProducer<>(out,
+        Map.of(ProducerConfig.BATCH_SIZE_CONFIG, 4096), new StringSerializer(), new StringSerializer())) {
+      for (int i = 0; i < COUNT; i++)
+        producer.send(new ProducerRecord<>("topic", 0, "key-" + i, "value-" + i));
+    }
+    StreamConsumer<String, String> consumer = new StreamConsumer<>(new ByteArrayInputStream(out.toByteArray()),
+        "topic", Map.of("max.poll.records", 50), new StringDeserializer(), new StringDeserializer());
+    consumer.subscribe(List.of("topic"));
+    // A single prefetched batch, so that the consumer stops polling as soon as there is no demand.
+    return new DefaultRecordInputStream<>(consumer, new StringDeserializer(),
+        Map.of(DefaultRecordInputStream.PREFETCH_BATCHES_CONFIG, 1));
+  }
+
+  /**
+   * Records the signals it is sent.
+   */
+  static class Recorder implements Flow.Subscriber<String> {
+    final List<String> values = new CopyOnWriteArrayList<>();
+    final CountDownLatch subscribed = new CountDownLatch(1);
+    final CountDownLatch completed = new CountDownLatch(1);
+    final CountDownLatch failed = new CountDownLatch(1);
+    volatile Flow.Subscription subscription;
+    volatile Throwable error;
+
+    Flow.Subscription subscription() throws InterruptedException {
+      assertTrue(subscribed.await(10, TimeUnit.SECONDS));
+      return subscription;
+    }
+
+    void awaitValues(int n) throws InterruptedException {
+      long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+      while (values.size() < n && System.nanoTime() < deadline)
+        Thread.sleep(1);
+      assertTrue(values.size() >= n, "only " + values.size() + " values");
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+      this.subscription = subscription;
+      subscribed.countDown();
+    }
+
+    @Override
+    public void onNext(String value) {
+      values.add(value);
+    }
+
+    @Override
+    public void onError(Throwable e) {
+      error = e;
+      failed.countDown();
+    }
+
+    @Override
+    public void onComplete() {
+      completed.countDown();
+    }
+  }
+}
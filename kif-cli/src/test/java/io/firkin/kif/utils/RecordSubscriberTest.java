@@ -0,0 +1,106 @@
+/*
+ * Copyright © 2021 Kif Contributors (https://kif.firkin.io/)
+ * Copyright © 2021 Firkin•IO (https://firkin.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.firkin.kif.utils;
+
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.KafkaException;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RecordSubscriberTest {
+
+  @Test
+  public void writesEveryPublishedValueInOrder() throws Exception {
+    StreamProducer<String, String> producer = new StreamProducer<>(true, new StringSerializer(),
+        new StringSerializer());
+    RecordSubscriber<String> subscriber = new RecordSubscriber<>(stream(producer),
+        Map.of(RecordSubscriber.MAX_IN_FLIGHT_CONFIG, 16));
+    new RecordPublisher<>(RecordPublisherTest.stream()).subscribe(subscriber);
+
+    subscriber.completion().get(10, TimeUnit.SECONDS);
+    List<ProducerRecord<String, String>> sent = producer.history();
+    assertEquals(1000, sent.size());
+    for (int i = 0; i < sent.size(); i++)
+      assertEquals("value-" + i, sent.get(i).value());
+  }
+
+  @Test
+  public void requestsMoreOnlyAsWritesAreAcknowledged() throws Exception {
+    StreamProducer<String, String> producer = new StreamProducer<>(false, new StringSerializer(),
+        new StringSerializer());
+    RecordSubscriber<String> subscriber = new RecordSubscriber<>(stream(producer),
+        Map.of(RecordSubscriber.MAX_IN_FLIGHT_CONFIG, 16));
+    new RecordPublisher<>(RecordPublisherTest.stream()).subscribe(subscriber);
+
+    awaitSent(producer, 16);
+    Thread.sleep(100);
+    assertEquals(16, producer.history().size());
+
+    // More are requested a quarter of max.in.flight at a time.
+    for (int i = 0; i < 3; i++)
+      assertTrue(producer.completeNext());
+    Thread.sleep(100);
+    assertEquals(16, producer.history().size());
+    assertTrue(producer.completeNext());
+    awaitSent(producer, 20);
+    Thread.sleep(100);
+    assertEquals(20, producer.history().size());
+    assertFalse(subscriber.completion().isDone());
+  }
+
+  @Test
+  public void aFailedWriteCancelsTheSubscription() throws Exception {
+    StreamProducer<String, String> producer = new StreamProducer<>(false, new StringSerializer(),
+        new StringSerializer());
+    RecordSubscriber<String> subscriber = new RecordSubscriber<>(stream(producer),
+        Map.of(RecordSubscriber.MAX_IN_FLIGHT_CONFIG, 16));
+    new RecordPublisher<>(RecordPublisherTest.stream()).subscribe(subscriber);
+
+    awaitSent(producer, 16);
+    assertTrue(producer.errorNext(new KafkaException("broken")));
+    ExecutionException e = assertThrows(ExecutionException.class,
+        () -> subscriber.completion().get(10, TimeUnit.SECONDS));
+    assertEquals("broken", e.getCause().getMessage());
+    while (producer.completeNext())
+      ;
+    Thread.sleep(100);
+    assertEquals(16, producer.history().size(), "nothing more is requested once cancelled");
+  }
+
+  // --- Internal Implementation Methods --------------------------------------------------------------------
+
+  private static RecordOutputStream<String, String, String> stream(StreamProducer<String, String> producer) {
+    RecordOutputStream<String, String, String> out = new RecordOutputStream<>(producer);
+    out.topic = "topic";
+    return out;
+  }
+
+  private static void awaitSent(StreamProducer<String, String> producer, int n) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while (producer.history().size() < n && System.nanoTime() < deadline)
+      Thread.sleep(1);
+    assertEquals(n, producer.history().size());
+  }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright © 2021 Kif Contributors (https://kif.firkin.io/)
+ * Copyright © 2021 Firkin•IO (https://firkin.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.firkin.kif.utils;
+
+import io.firkin.kif.utils.RecordUtils.IntKeyResolver;
+import io.firkin.kif.utils.RecordUtils.IntPartitionResolver;
+import io.firkin.kif.utils.RecordUtils.LongKeyResolver;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.header.Headers;
+import org.apache.kafka.common.header.internals.RecordHeader;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RecordUtilsTest {
+
+  @Test
+  public void constantIntAndLongKeysAreBoxedOnce() {
+    IntKeyResolver<Object> intKey = RecordUtils.cKey(1000);
+    assertEquals(1000, intKey.intKey("a"));
+    assertEquals(Integer.valueOf(1000), intKey.key("a"));
+    assertSame(intKey.key("a"), intKey.key("b"), "outside the Integer cache, yet the same box");
+
+    LongKeyResolver<Object> longKey = RecordUtils.cKey(1L << 40);
+    assertEquals(1L << 40, longKey.longKey("a"));
+    assertEquals(Long.valueOf(1L << 40), longKey.key("a"));
+    assertSame(longKey.key("a"), longKey.key("b"));
+  }
+
+  @Test
+  public void functionIntAndLongKeysBoxOnlyThroughKey() {
+    IntKeyResolver<String> intKey = RecordUtils.intKey(String::length);
+    assertEquals(3, intKey.intKey("abc"));
+    assertEquals(Integer.valueOf(5), intKey.key("abcde"));
+
+    LongKeyResolver<String> longKey = RecordUtils.longKey(s -> Long.parseLong(s) * 2);
+    assertEquals(84L, longKey.longKey("42"));
+    assertEquals(Long.valueOf(-84L), longKey.key("-42"));
+  }
+
+  @Test
+  public void negativeIntPartitionsAreLeftToThePartitioner() {
+    IntPartitionResolver<Object> none = RecordUtils.nullPartition();
+    assertEquals(-1, none.intPartition("a"));
+    assertNull(none.partition("a"));
+
+    IntPartitionResolver<Integer> fn = RecordUtils.intPartition(i -> i);
+    assertEquals(Integer.valueOf(0), fn.partition(0));
+    assertEquals(Integer.valueOf(7), fn.partition(7));
+    assertNull(fn.partition(-7));
+    assertNull(fn.partition(Integer.MIN_VALUE));
+
+    assertEquals(Integer.valueOf(0), RecordUtils.zeroPartition().partition("a"));
+    assertEquals(Integer.valueOf(1), RecordUtils.onePartition().partition("a"));
+  }
+
+  @Test
+  public void constantPartitionsAreNeverNegative() {
+    assertEquals(1, RecordUtils.cPartition(true).intPartition("a"));
+    assertEquals(0, RecordUtils.cPartition(false).intPartition("a"));
+    assertEquals(255, RecordUtils.cPartition((byte) -1).intPartition("a"));
+    assertEquals(65535, RecordUtils.cPartition((short) -1).intPartition("a"));
+    assertEquals(Integer.MAX_VALUE, RecordUtils.cPartition(-1).intPartition("a"));
+    assertEquals(3, RecordUtils.cPartition(3).intPartition("a"));
+    assertEquals(Integer.MAX_VALUE, RecordUtils.cPartition(-1L).intPartition("a"));
+    assertEquals(5, RecordUtils.cPartition((1L << 32) + 5).intPartition("a"));
+    assertEquals(Integer.MAX_VALUE, RecordUtils.cPartition(BigInteger.valueOf(-1)).intPartition("a"));
+    assertNotNull(RecordUtils.cPartition(-1).partition("a"));
+  }
+
+  @Test
+  public void emptyHeadersAreSharedAndReadOnly() {
+    Headers headers = RecordUtils.<Object>emptyHeaders().headers("a");
+    assertSame(RecordUtils.EMPTY_HEADERS, headers);
+    assertSame(headers, RecordUtils.<Object>emptyHeaders().headers("b"));
+    assertEquals(0, headers.toArray().length);
+    assertThrows(IllegalStateException.class, () -> headers.add("name", new byte[0]));
+    assertThrows(IllegalStateException.class, () -> headers.add(new RecordHeader("name", new byte[0])));
+    assertThrows(IllegalStateException.class, () -> headers.remove("name"));
+    assertEquals(0, RecordUtils.EMPTY_HEADERS.toArray().length);
+  }
+
+  @Test
+  public void recordsCopyTheSharedEmptyHeaders() {
+    MutableRecord<String, String> record = new MutableRecord<String, String>()
+        .set("topic", -1, -1L, "key", "value", null);
+    assertSame(RecordUtils.EMPTY_HEADERS, record.headers());
+
+    // A ProducerRecord copies the headers it is given, so a serializer may add to them.
+    ProducerRecord<String, String> copy = record.toProducerRecord();
+    copy.headers().add("name", new byte[] {1});
+    assertEquals(1, copy.headers().toArray().length);
+    assertEquals(0, RecordUtils.EMPTY_HEADERS.toArray().length);
+
+    ProducerRecord<String, String> other = new ProducerRecord<>("topic", null, null, "key", "value",
+        RecordUtils.EMPTY_HEADERS);
+    assertEquals(0, other.headers().toArray().length);
+    assertNotSame(RecordUtils.EMPTY_HEADERS, other.headers());
+  }
+}
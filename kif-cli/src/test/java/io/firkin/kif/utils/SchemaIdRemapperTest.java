@@ -0,0 +1,138 @@
+/*
+ * Copyright © 2021 Kif Contributors (https://kif.firkin.io/)
+ * Copyright © 2021 Firkin•IO (https://firkin.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.firkin.kif.utils;
+
+import io.confluent.kafka.schemaregistry.ParsedSchema;
+import io.confluent.kafka.schemaregistry.avro.AvroSchema;
+import io.confluent.kafka.schemaregistry.client.MockSchemaRegistryClient;
+import io.confluent.kafka.schemaregistry.client.rest.exceptions.RestClientException;
+import org.apache.kafka.common.errors.SerializationException;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SchemaIdRemapperTest {
+
+  private static final AvroSchema USER = new AvroSchema(
+      "{\"type\":\"record\",\"name\":\"User\",\"fields\":[{\"name\":\"name\",\"type\":\"string\"}]}");
+  private static final AvroSchema ORDER = new AvroSchema(
+      "{\"type\":\"record\",\"name\":\"Order\",\"fields\":[{\"name\":\"id\",\"type\":\"long\"}]}");
+
+  @Test
+  public void idsAreRewrittenToTheTargetRegistrys() throws Exception {
+    CountingRegistry source = new CountingRegistry();
+    CountingRegistry target = new CountingRegistry();
+    int userId = source.register("users-value", USER);
+    int orderId = source.register("orders-value", ORDER);
+    target.register("others-value", new AvroSchema("\"string\"")); // so the target's ids differ from the source's
+    source.requests.set(0);
+    target.requests.set(0);
+
+    SchemaIdRemapper remapper = new SchemaIdRemapper(source, target);
+    assertTrue(remapper.isRemapping());
+    byte[] user = envelope(userId, 1, 2, 3);
+    byte[] remapped = remapper.remap("users", false, user);
+    assertNotSame(user, remapped);
+    assertEquals(target.getId("users-value", USER), SchemaIdRemapper.schemaId(remapped));
+    assertNotEquals(userId, SchemaIdRemapper.schemaId(remapped));
+    assertArrayEquals(Arrays.copyOfRange(user, 5, user.length), Arrays.copyOfRange(remapped, 5, remapped.length));
+    assertEquals(userId, SchemaIdRemapper.schemaId(user), "the source value is left untouched");
+    assertEquals(1, source.requests.get());
+    assertEquals(1, target.requests.get());
+
+    // Later values with the same id, in the same subject, are rewritten from the table alone.
+    for (int i = 0; i < 10; i++)
+      assertArrayEquals(remapped, remapper.remap("users", false, envelope(userId, 1, 2, 3)));
+    assertEquals(1, source.requests.get());
+    assertEquals(1, target.requests.get());
+
+    // Another id, or the same id in the key subject, is looked up once more each.
+    byte[] order = remapper.remap("orders", false, envelope(orderId, 9));
+    assertEquals(target.getId("orders-value", ORDER), SchemaIdRemapper.schemaId(order));
+    remapper.remap("users", true, envelope(userId, 4));
+    remapper.remap("users", true, envelope(userId, 5));
+    assertEquals(3, source.requests.get());
+    assertEquals(3, target.requests.get());
+    assertNull(remapper.remap("users", false, null));
+  }
+
+  @Test
+  public void valuesPassThroughBetweenClientsOfTheSameRegistry() {
+    CountingRegistry registry = new CountingRegistry();
+    SchemaIdRemapper remapper = new SchemaIdRemapper(registry, registry);
+    assertFalse(remapper.isRemapping());
+    byte[] data = envelope(12345, 1, 2);
+    assertSame(data, remapper.remap("users", false, data));
+    byte[] raw = {7, 7, 7};
+    assertSame(raw, remapper.remap("users", false, raw), "without remapping, the envelope is not even checked");
+    assertEquals(0, registry.requests.get());
+  }
+
+  @Test
+  public void unmappableValuesAreRefused() throws Exception {
+    CountingRegistry source = new CountingRegistry();
+    source.register("users-value", USER);
+    SchemaIdRemapper remapper = new SchemaIdRemapper(source, new CountingRegistry());
+
+    SerializationException noEnvelope = assertThrows(SerializationException.class,
+        () -> remapper.remap("users", false, new byte[] {1, 0, 0, 0, 1, 2}));
+    assertEquals("Unknown magic byte!", noEnvelope.getMessage());
+    assertThrows(SerializationException.class, () -> remapper.remap("users", false, new byte[] {0, 0, 0}));
+    SerializationException unknownId = assertThrows(SerializationException.class,
+        () -> remapper.remap("users", false, envelope(999, 1)));
+    assertTrue(unknownId.getCause() instanceof RestClientException, String.valueOf(unknownId.getCause()));
+  }
+
+  // --- Internal Implementation Methods --------------------------------------------------------------------
+
+  private static byte[] envelope(int id, int... payload) {
+    byte[] data = new byte[5 + payload.length];
+    data[0] = KifAvroSerializer.MAGIC_BYTE;
+    data[1] = (byte) (id >>> 24);
+    data[2] = (byte) (id >>> 16);
+    data[3] = (byte) (id >>> 8);
+    data[4] = (byte) id;
+    for (int i = 0; i < payload.length; i++)
+      data[5 + i] = (byte) payload[i];
+    return data;
+  }
+
+  /**
+   * A registry that counts the lookups and registrations made of it.
+   */
+  private static class CountingRegistry extends MockSchemaRegistryClient {
+
+    final AtomicInteger requests = new AtomicInteger();
+
+    @Override
+    public ParsedSchema getSchemaBySubjectAndId(String subject, int id) throws IOException, RestClientException {
+      requests.incrementAndGet();
+      return super.getSchemaBySubjectAndId(subject, id);
+    }
+
+    @Override
+    public int register(String subject, ParsedSchema schema) throws IOException, RestClientException {
+      requests.incrementAndGet();
+      return super.register(subject, schema);
+    }
+  }
+}
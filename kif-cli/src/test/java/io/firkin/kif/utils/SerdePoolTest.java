@@ -0,0 +1,90 @@
+/*
+ * Copyright © 2021 Kif Contributors (https://kif.firkin.io/)
+ * Copyright © 2021 Firkin•IO (https://firkin.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.firkin.kif.utils;
+
+import io.confluent.kafka.schemaregistry.ParsedSchema;
+import io.confluent.kafka.schemaregistry.client.MockSchemaRegistryClient;
+import io.confluent.kafka.schemaregistry.client.rest.exceptions.RestClientException;
+import org.apache.kafka.common.serialization.Deserializer;
+import org.apache.kafka.common.serialization.Serializer;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SerdePoolTest {
+
+  @Test
+  public void eachThreadHasItsOwnSerdes() throws Exception {
+    try (SerdePool pool = new SerdePool(new MockSchemaRegistryClient(), Map.of())) {
+      Serializer<Object> values = pool.serializer(SerdePool.Format.AVRO, false);
+      assertSame(values, pool.serializer(SerdePool.Format.AVRO, false));
+      assertNotSame(values, pool.serializer(SerdePool.Format.AVRO, true));
+      Deserializer<Object> deserializer = pool.deserializer(SerdePool.Format.AVRO, false);
+      assertSame(deserializer, pool.deserializer(SerdePool.Format.AVRO, false));
+
+      Serializer<Object> other = CompletableFuture.supplyAsync(() -> pool.serializer(SerdePool.Format.AVRO, false))
+          .get();
+      assertNotSame(values, other);
+    }
+  }
+
+  @Test
+  public void keySerdesAreConfiguredAsKeys() {
+    List<String> subjects = new CopyOnWriteArrayList<>();
+    MockSchemaRegistryClient registry = new MockSchemaRegistryClient() {
+      @Override
+      public synchronized int register(String subject, ParsedSchema schema) throws IOException, RestClientException {
+        subjects.add(subject);
+        return super.register(subject, schema);
+      }
+    };
+    try (SerdePool pool = new SerdePool(registry, Map.of())) {
+      byte[] key = pool.serializer(SerdePool.Format.AVRO, true).serialize("topic", "k");
+      byte[] value = pool.serializer(SerdePool.Format.AVRO, false).serialize("topic", 42);
+      assertEquals(List.of("topic-key", "topic-value"), subjects);
+      assertEquals("k", pool.deserializer(SerdePool.Format.AVRO, true).deserialize("topic", key).toString());
+      assertEquals(42, pool.deserializer(SerdePool.Format.AVRO, false).deserialize("topic", value));
+    }
+  }
+
+  @Test
+  public void aClosedPoolHandsOutNoSerdes() throws Exception {
+    SerdePool pool = new SerdePool(new MockSchemaRegistryClient(), Map.of());
+    pool.serializer(SerdePool.Format.AVRO, false);
+    pool.deserializer(SerdePool.Format.PROTOBUF, true);
+    assertFalse(pool.closed());
+    pool.close();
+    assertTrue(pool.closed());
+
+    // Not even the serdes the thread already holds, which are closed.
+    assertThrows(IllegalStateException.class, () -> pool.serializer(SerdePool.Format.AVRO, false));
+    assertThrows(IllegalStateException.class, () -> pool.deserializer(SerdePool.Format.PROTOBUF, true));
+    assertThrows(IllegalStateException.class, () -> pool.serializer(SerdePool.Format.JSON_SCHEMA, false));
+    CompletableFuture<Serializer<Object>> other =
+        CompletableFuture.supplyAsync(() -> pool.serializer(SerdePool.Format.AVRO, false));
+    Exception e = assertThrows(Exception.class, other::get);
+    assertTrue(e.getCause() instanceof IllegalStateException, e.toString());
+    pool.close();
+  }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright © 2021 Kif Contributors (https://kif.firkin.io/)
+ * Copyright © 2021 Firkin•IO (https://firkin.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.firkin.kif.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SpscRingTest {
+
+  private static final int COUNT = 200_000;
+
+  @Test
+  public void capacityIsRoundedUpToAPowerOfTwo() {
+    assertEquals(1, new SpscRing<>(1).capacity());
+    assertEquals(8, new SpscRing<>(5).capacity());
+    assertEquals(16, new SpscRing<>(16).capacity());
+    assertThrows(IllegalArgumentException.class, () -> new SpscRing<>(0));
+  }
+
+  @Test
+  public void offerFailsWhenFullAndPollTakesInOrder() {
+    SpscRing<Integer> ring = new SpscRing<>(4);
+    for (int i = 0; i < 4; i++)
+      assertTrue(ring.offer(i));
+    assertFalse(ring.offer(4));
+    assertFalse(ring.offer(4, TimeUnit.MILLISECONDS.toNanos(10)));
+    for (int i = 0; i < 4; i++)
+      assertEquals(i, ring.poll());
+    assertNull(ring.poll());
+    assertNull(ring.poll(TimeUnit.MILLISECONDS.toNanos(10)));
+    assertTrue(ring.isEmpty());
+  }
+
+  @Test
+  public void oneProducerAndOneConsumerHandOverEveryElementInOrder() throws Exception {
+    // A small ring, so that both sides keep finding it full or empty, and wait for each other.
+    SpscRing<Integer> ring = new SpscRing<>(16);
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Future<?> producer = executor.submit(() -> {
+        for (int i = 0; i < COUNT; i++) {
+          Integer element = i;
+          // Alternate between spinning on the non-blocking offer and waiting for room.
+          if ((i & 1024) == 0) {
+            while (!ring.offer(element))
+              Thread.yield();
+          } else {
+            assertTrue(ring.offer(element, TimeUnit.SECONDS.toNanos(30)));
+          }
+        }
+        ring.close();
+      });
+
+      int expected = 0;
+      while (true) {
+        Integer element = (expected & 4096) == 0 ? ring.poll() : ring.poll(TimeUnit.SECONDS.toNanos(30));
+        if (element == null) {
+          if (ring.isClosed() && ring.isEmpty())
+            break;
+          Thread.yield();
+          continue;
+        }
+        assertEquals(expected++, element.intValue());
+      }
+      producer.get(30, TimeUnit.SECONDS);
+      assertEquals(COUNT, expected);
+      assertNull(ring.poll());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void closeWakesAWaitingConsumerAndRefusesElements() throws Exception {
+    SpscRing<Integer> ring = new SpscRing<>(4);
+    CompletableFuture<Integer> poll = CompletableFuture.supplyAsync(() -> ring.poll(TimeUnit.SECONDS.toNanos(30)));
+    Thread.sleep(100);
+    assertFalse(poll.isDone());
+    ring.close();
+    assertNull(poll.get(10, TimeUnit.SECONDS));
+    assertFalse(ring.offer(1));
+  }
+
+  @Test
+  public void closeWakesAWaitingProducer() throws Exception {
+    SpscRing<Integer> ring = new SpscRing<>(1);
+    assertTrue(ring.offer(1));
+    CompletableFuture<Boolean> offer = CompletableFuture.supplyAsync(() -> ring.offer(2, TimeUnit.SECONDS.toNanos(30)));
+    Thread.sleep(100);
+    assertFalse(offer.isDone());
+    ring.close();
+    assertFalse(offer.get(10, TimeUnit.SECONDS));
+    // Elements added before the close can still be taken.
+    assertEquals(1, ring.poll());
+    assertNull(ring.poll(TimeUnit.SECONDS.toNanos(30)));
+  }
+}
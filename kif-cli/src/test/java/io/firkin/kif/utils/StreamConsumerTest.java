@@ -0,0 +1,180 @@
+/*
+ * Copyright © 2021 Kif Contributors (https://kif.firkin.io/)
+ * Copyright © 2021 Firkin•IO (https://firkin.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.firkin.kif.utils;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.SerializationException;
+import org.apache.kafka.common.errors.WakeupException;
+import org.apache.kafka.common.serialization.Deserializer;
+import org.apache.kafka.common.serialization.StringDeserializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class StreamConsumerTest {
+
+  @Test
+  public void idlePollWaitsForItsTimeout() throws Exception {
+    PipedOutputStream out = new PipedOutputStream();
+    try (StreamConsumer<String, String> consumer = consumer(new PipedInputStream(out))) {
+      long start = System.nanoTime();
+      ConsumerRecords<String, String> records = consumer.poll(Duration.ofMillis(200));
+      long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+      assertTrue(records.isEmpty());
+      assertFalse(consumer.isEndOfStream());
+      assertTrue(elapsedMs >= 190, "returned after " + elapsedMs + "ms");
+      out.close();
+    }
+  }
+
+  @Test
+  public void pollReturnsAsSoonAsARecordArrives() throws Exception {
+    PipedOutputStream out = new PipedOutputStream();
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try (StreamConsumer<String, String> consumer = consumer(new PipedInputStream(out));
+         StreamProducer<String, String> producer = new StreamProducer<>(out, Map.of(), new StringSerializer(),
+             new StringSerializer())) {
+      Future<ConsumerRecords<String, String>> poll = executor.submit(() -> consumer.poll(Duration.ofSeconds(30)));
+      Thread.sleep(100);
+      assertFalse(poll.isDone());
+
+      long start = System.nanoTime();
+      producer.send(new ProducerRecord<>("topic", 0, "key", "value"));
+      producer.flush();
+      ConsumerRecords<String, String> records = poll.get(10, TimeUnit.SECONDS);
+      long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+      assertEquals(1, records.count());
+      ConsumerRecord<String, String> record = records.iterator().next();
+      assertEquals("key", record.key());
+      assertEquals("value", record.value());
+      assertTrue(elapsedMs < 5000, "returned after " + elapsedMs + "ms");
+      out.close();
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void wakeupInterruptsAWaitingPoll() throws Exception {
+    PipedOutputStream out = new PipedOutputStream();
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try (StreamConsumer<String, String> consumer = consumer(new PipedInputStream(out))) {
+      Future<ConsumerRecords<String, String>> poll = executor.submit(() -> consumer.poll(Duration.ofSeconds(30)));
+      Thread.sleep(100);
+      assertFalse(poll.isDone());
+
+      consumer.wakeup();
+      ExecutionException e = assertThrows(ExecutionException.class, () -> poll.get(10, TimeUnit.SECONDS));
+      assertTrue(e.getCause() instanceof WakeupException);
+      // The wakeup is consumed, so the next poll waits as usual.
+      assertTrue(consumer.poll(Duration.ofMillis(10)).isEmpty());
+      out.close();
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void pollReturnsImmediatelyAtEndOfStream() throws Exception {
+    PipedOutputStream out = new PipedOutputStream();
+    try (StreamConsumer<String, String> consumer = consumer(new PipedInputStream(out))) {
+      out.close();
+      long start = System.nanoTime();
+      while (!consumer.isEndOfStream())
+        assertTrue(consumer.poll(Duration.ofSeconds(30)).isEmpty());
+      long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+      assertTrue(elapsedMs < 5000, "returned after " + elapsedMs + "ms");
+    }
+  }
+
+  @Test
+  public void anUndeserializableRecordIsThrownAtItsOffsetUntilSoughtPast() {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (StreamProducer<String, String> producer = new StreamProducer<>(out, Map.of(), new StringSerializer(),
+        new StringSerializer())) {
+      for (int i = 0; i < 20; i++)
+        producer.send(new ProducerRecord<>("topic", i % 2, "key-" + i, i == 10 ? "bad" : "value-" + i));
+    }
+    Deserializer<String> deserializer = new StringDeserializer() {
+      @Override
+      public String deserialize(String topic, byte[] data) {
+        String value = super.deserialize(topic, data);
+        if ("bad".equals(value))
+          throw new IllegalArgumentException("bad value");
+        return value;
+      }
+    };
+    TopicPartition partition0 = new TopicPartition("topic", 0);
+    List<String> values = new ArrayList<>();
+    try (StreamConsumer<String, String> consumer = new StreamConsumer<>(new ByteArrayInputStream(out.toByteArray()),
+        "topic", Map.of(), new StringDeserializer(), deserializer)) {
+      consumer.subscribe(List.of("topic"));
+      SerializationException failure = null;
+      while (failure == null && !consumer.isEndOfStream()) {
+        try {
+          consumer.poll(Duration.ofMillis(100)).forEach(record -> values.add(record.value()));
+        } catch (SerializationException e) {
+          failure = e;
+        }
+      }
+      assertNotNull(failure, "the bad record is reported");
+      assertTrue(failure.getMessage().contains("topic-0 at offset 5"), failure.getMessage());
+      for (int i = 0; i < 10; i += 2)
+        assertTrue(values.contains("value-" + i), "the records before it are polled first");
+      assertEquals(5, consumer.position(partition0));
+      assertThrows(SerializationException.class, () -> consumer.poll(Duration.ofMillis(100)), "until sought past");
+
+      consumer.seek(partition0, 6);
+      while (!consumer.isEndOfStream())
+        consumer.poll(Duration.ofMillis(100)).forEach(record -> values.add(record.value()));
+    }
+    List<String> expected = new ArrayList<>();
+    for (int i = 0; i < 20; i++)
+      if (i != 10)
+        expected.add("value-" + i);
+    assertEquals(expected, values.stream().sorted(Comparator.comparing(v -> Integer.valueOf(v.substring(6))))
+        .collect(Collectors.toList()), "every other record is read");
+  }
+
+  private static StreamConsumer<String, String> consumer(PipedInputStream in) {
+    StreamConsumer<String, String> consumer = new StreamConsumer<>(in, "topic", Map.of(),
+        new StringDeserializer(), new StringDeserializer());
+    consumer.subscribe(List.of("topic"));
+    return consumer;
+  }
+}
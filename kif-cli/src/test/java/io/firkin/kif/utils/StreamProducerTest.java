@@ -0,0 +1,118 @@
+/*
+ * Copyright © 2021 Kif Contributors (https://kif.firkin.io/)
+ * Copyright © 2021 Firkin•IO (https://firkin.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.firkin.kif.utils;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.producer.ProducerConfig;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.apache.kafka.common.serialization.StringDeserializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class StreamProducerTest {
+
+  @Test
+  public void framedRecordsReadBackThroughStreamConsumer() {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    // A small batch.size, so that records span many writes, and one record is larger than a batch.
+    try (StreamProducer<String, String> producer = new StreamProducer<>(out,
+        Map.of(ProducerConfig.BATCH_SIZE_CONFIG, 1024), new StringSerializer(), new StringSerializer())) {
+      for (int i = 0; i < 1000; i++) {
+        RecordHeaders headers = new RecordHeaders();
+        if (i % 10 == 0)
+          headers.add("h", ("header-" + i).getBytes(StandardCharsets.UTF_8));
+        producer.send(new ProducerRecord<>("topic", i % 3, 1000L + i, i % 7 == 0 ? null : "key-" + i,
+            i % 11 == 0 ? null : "value-" + i, headers));
+      }
+      producer.send(new ProducerRecord<>("topic", 0, "large", "x".repeat(4096)));
+    }
+
+    // A poll returns its records grouped by partition, so order is only kept within a partition.
+    List<ConsumerRecord<String, String>> records = readAll(new ByteArrayInputStream(out.toByteArray()));
+    assertEquals(1001, records.size());
+    Map<Integer, List<ConsumerRecord<String, String>>> partitions = new HashMap<>();
+    for (ConsumerRecord<String, String> record : records)
+      partitions.computeIfAbsent(record.partition(), p -> new ArrayList<>()).add(record);
+    assertEquals(3, partitions.size());
+    for (int i = 0; i < 1000; i++) {
+      ConsumerRecord<String, String> record = partitions.get(i % 3).get(i / 3);
+      assertEquals("topic", record.topic());
+      assertEquals(i / 3, record.offset());
+      assertEquals(1000L + i, record.timestamp());
+      assertEquals(i % 7 == 0 ? null : "key-" + i, record.key());
+      assertEquals(i % 11 == 0 ? null : "value-" + i, record.value());
+      if (i % 10 == 0)
+        assertArrayEquals(("header-" + i).getBytes(StandardCharsets.UTF_8), record.headers().lastHeader("h").value());
+      else
+        assertFalse(record.headers().iterator().hasNext());
+    }
+    List<ConsumerRecord<String, String>> partition0 = partitions.get(0);
+    assertEquals("large", partition0.get(partition0.size() - 1).key());
+    assertEquals("x".repeat(4096), partition0.get(partition0.size() - 1).value());
+  }
+
+  @Test
+  public void lingeringRecordsAreWrittenWithoutFlush() throws Exception {
+    CountDownLatch written = new CountDownLatch(1);
+    OutputStream out = new OutputStream() {
+      @Override
+      public void write(int b) {
+        written.countDown();
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) {
+        if (len > 0)
+          written.countDown();
+      }
+    };
+    try (StreamProducer<String, String> producer = new StreamProducer<>(out,
+        Map.of(ProducerConfig.LINGER_MS_CONFIG, 20L), new StringSerializer(), new StringSerializer())) {
+      producer.send(new ProducerRecord<>("topic", 0, "key", "value"));
+      assertEquals(1L, written.getCount(), "written before linger.ms");
+      assertTrue(written.await(5, TimeUnit.SECONDS), "written once linger.ms passed");
+    }
+  }
+
+  static List<ConsumerRecord<String, String>> readAll(InputStream in) {
+    List<ConsumerRecord<String, String>> records = new ArrayList<>();
+    try (StreamConsumer<String, String> consumer = new StreamConsumer<>(in, "topic", Map.of(),
+        new StringDeserializer(), new StringDeserializer())) {
+      consumer.subscribe(List.of("topic"));
+      while (!consumer.isEndOfStream())
+        consumer.poll(Duration.ofMillis(100)).forEach(records::add);
+    }
+    return records;
+  }
+}
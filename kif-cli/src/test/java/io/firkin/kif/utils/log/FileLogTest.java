@@ -0,0 +1,293 @@
+/*
+ * Copyright © 2021 Kif Contributors (https://kif.firkin.io/)
+ * Copyright © 2021 Firkin•IO (https://firkin.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.firkin.kif.utils.log;
+
+import io.firkin.kif.utils.FileConsumer;
+import io.firkin.kif.utils.FileProducer;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.consumer.OffsetAndTimestamp;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.record.CompressionType;
+import org.apache.kafka.common.record.FileRecords;
+import org.apache.kafka.common.record.Record;
+import org.apache.kafka.common.record.RecordBatch;
+import org.apache.kafka.common.record.Records;
+import org.apache.kafka.common.serialization.StringDeserializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.apache.kafka.common.utils.Utils;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+import java.util.stream.StreamSupport;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FileLogTest {
+  private static String testTmpFolderPath =
+      System.getProperty("KIF_TEST_TMP_PATH", "target/test-tmp");
+
+  private static boolean keepTestFiles =
+      Boolean.parseBoolean(System.getProperty("KIF_TEST_KEEP_TMP_FILES", "true"));
+
+  private static String testRunId = LocalDateTime.now().format(DateTimeFormatter.ISO_LOCAL_DATE_TIME);
+  private static String testPath = Path
+      .of(testTmpFolderPath + "/FileLogTest/" + testRunId.replace(':', '-'))
+      .toAbsolutePath()
+      .toString();
+
+  @BeforeAll
+  private static void createTestFolder() {
+    Path path = Path.of(testPath);
+    System.out.println("Test Run Path: " + path);
+    File tmpFolder = path.toFile();
+    if (!tmpFolder.exists()) {
+      tmpFolder.mkdirs();
+    }
+    if (tmpFolder.exists() && !keepTestFiles) {
+      tmpFolder.deleteOnExit();
+    }
+  }
+
+  @AfterAll
+  private static void deleteTestFolder() {
+    if (!keepTestFiles) {
+      System.out.println("Deleting Test Run Temp Folder: " + testPath);
+      Path.of(testPath).toFile().delete();
+    }
+  }
+
+  private static Map<String, Object> logConfigs(String name, int segmentBytes) {
+    Map<String, Object> configs = new HashMap<>();
+    configs.put(LogConfig.LOG_DIR_CONFIG, Path.of(testPath, name).toString());
+    configs.put("segment.bytes", segmentBytes);
+    configs.put("batch.size", Math.min(segmentBytes / 4, LogConfig.DEFAULT_BATCH_SIZE));
+    return configs;
+  }
+
+  // ------------------------------------------------------------------------------------------------------
+
+  @Test
+  public void rollsSegmentsWhenFull() throws Exception {
+    Map<String, Object> configs = logConfigs("rollsSegmentsWhenFull", 1024);
+    try (FileProducer<String, String> producer = new FileProducer<>(configs, new StringSerializer(), new StringSerializer())) {
+      for (int i = 0; i < 200; i++)
+        producer.send(new ProducerRecord<>("rolls", 0, "key-" + i, "value-" + i));
+    }
+
+    List<Path> segments = PartitionLog.segmentFiles(Path.of(testPath, "rollsSegmentsWhenFull", "rolls-0"));
+    assertTrue(segments.size() > 1, "Expected more than one segment, found " + segments);
+    assertEquals(0L, LogSegment.baseOffset(segments.get(0)));
+    for (Path segment : segments)
+      assertTrue(segment.toFile().length() <= 1024, "Segment not trimmed to the bytes written: " + segment);
+  }
+
+  @Test
+  public void recordLargerThanSegmentGetsItsOwnSegment() throws Exception {
+    Map<String, Object> configs = logConfigs("recordLargerThanSegment", 256);
+    try (FileProducer<String, String> producer = new FileProducer<>(configs, new StringSerializer(), new StringSerializer())) {
+      producer.send(new ProducerRecord<>("large", 0, "small", "value"));
+      RecordMetadata metadata = producer.send(new ProducerRecord<>("large", 0, "large", "x".repeat(4096))).get();
+      assertEquals(1L, metadata.offset());
+    }
+
+    List<Path> segments = PartitionLog.segmentFiles(Path.of(testPath, "recordLargerThanSegment", "large-0"));
+    assertEquals(2, segments.size());
+    assertEquals(1L, LogSegment.baseOffset(segments.get(1)));
+    assertTrue(segments.get(1).toFile().length() > 4096);
+  }
+
+  @Test
+  public void reopenedLogContinuesFromLastOffset() throws Exception {
+    Map<String, Object> configs = logConfigs("reopenedLog", 4096);
+    try (FileProducer<String, String> producer = new FileProducer<>(configs, new StringSerializer(), new StringSerializer())) {
+      for (int i = 0; i < 100; i++)
+        producer.send(new ProducerRecord<>("reopened", 0, "key-" + i, "value-" + i));
+    }
+
+    try (FileProducer<String, String> producer = new FileProducer<>(configs, new StringSerializer(), new StringSerializer())) {
+      RecordMetadata metadata = producer.send(new ProducerRecord<>("reopened", 0, "key", "value")).get();
+      assertEquals(100L, metadata.offset());
+    }
+
+    try (FileLog log = new FileLog(LogConfig.from(configs))) {
+      assertEquals(101L, log.partition(new TopicPartition("reopened", 0)).nextOffset());
+    }
+  }
+
+  @Test
+  public void segmentsHoldCompressedRecordBatches() throws Exception {
+    for (CompressionType compressionType : List.of(CompressionType.NONE, CompressionType.GZIP,
+        CompressionType.SNAPPY, CompressionType.LZ4, CompressionType.ZSTD)) {
+      String name = "compressed-" + compressionType.name;
+      Map<String, Object> configs = logConfigs(name, 64 * 1024);
+      configs.put("compression.type", compressionType.name);
+      try (FileProducer<String, String> producer = new FileProducer<>(configs, new StringSerializer(), new StringSerializer())) {
+        for (int i = 0; i < 500; i++)
+          producer.send(new ProducerRecord<>("compressed", 0, "key-" + i, "{\"value\": " + i + "}"));
+      }
+
+      int count = 0;
+      for (Path segment : PartitionLog.segmentFiles(Path.of(testPath, name, "compressed-0"))) {
+        try (FileRecords records = FileRecords.open(segment.toFile())) {
+          for (RecordBatch batch : records.batches()) {
+            assertTrue(batch.isValid());
+            assertEquals(compressionType, batch.compressionType());
+            for (Record record : batch) {
+              assertEquals(count, record.offset());
+              assertEquals("key-" + count, Utils.utf8(record.key()));
+              count++;
+            }
+          }
+        }
+      }
+      assertEquals(500, count, compressionType.name);
+    }
+  }
+
+  @Test
+  public void indexesFindOffsetsAndTimestamps() throws Exception {
+    Map<String, Object> configs = logConfigs("indexes", 16 * 1024);
+    configs.put("index.interval.bytes", 512);
+    TopicPartition tp = new TopicPartition("indexed", 0);
+    try (FileProducer<String, String> producer = new FileProducer<>(configs, new StringSerializer(), new StringSerializer())) {
+      for (int i = 0; i < 5000; i++)
+        producer.send(new ProducerRecord<>("indexed", 0, 1000L * i, "key-" + i, "value-" + i));
+    }
+    List<Path> segments = PartitionLog.segmentFiles(Path.of(testPath, "indexes", "indexed-0"));
+    assertTrue(segments.size() > 1);
+    Path index = Path.of(segments.get(0).toString().replace(".log", ".index"));
+    assertTrue(index.toFile().length() > 0, "Expected a trimmed, non-empty offset index");
+
+    try (FileLogReader log = new FileLogReader(Path.of(configs.get(LogConfig.LOG_DIR_CONFIG).toString()))) {
+      PartitionLogReader reader = log.partition(tp);
+      for (long offset : new long[] {0, 1, 1234, 2500, 4999}) {
+        Records records = reader.read(offset, 1);
+        RecordBatch first = records.batches().iterator().next();
+        assertTrue(first.baseOffset() <= offset && offset <= first.lastOffset(), "No batch for " + offset);
+      }
+      assertEquals(0, reader.read(5000, 1024).sizeInBytes());
+    }
+
+    try (FileConsumer<String, String> consumer = new FileConsumer<>(configs, new StringDeserializer(), new StringDeserializer())) {
+      assertEquals(List.of(tp), consumer.partitionsFor("indexed").stream()
+          .map(info -> new TopicPartition(info.topic(), info.partition())).collect(Collectors.toList()));
+      assertEquals(Map.of(tp, 0L), consumer.beginningOffsets(Set.of(tp)));
+      assertEquals(Map.of(tp, 5000L), consumer.endOffsets(Set.of(tp)));
+      assertEquals(new OffsetAndTimestamp(3001, 3001000L), consumer.offsetsForTimes(Map.of(tp, 3000500L)).get(tp));
+      assertEquals(new OffsetAndTimestamp(0, 0L), consumer.offsetsForTimes(Map.of(tp, 0L)).get(tp));
+      assertNull(consumer.offsetsForTimes(Map.of(tp, 5000000L)).get(tp));
+    }
+  }
+
+  @Test
+  public void consumerStreamsRecordsInBoundedPolls() throws Exception {
+    Map<String, Object> configs = logConfigs("streamed", 32 * 1024);
+    configs.put("compression.type", "gzip");
+    try (FileProducer<String, String> producer = new FileProducer<>(configs, new StringSerializer(), new StringSerializer())) {
+      for (int i = 0; i < 3000; i++)
+        producer.send(new ProducerRecord<>("streamed", i % 2, "key-" + i, "value-" + i));
+    }
+
+    configs.put("max.poll.records", 100);
+    try (FileConsumer<String, String> consumer = new FileConsumer<>(configs, new StringDeserializer(), new StringDeserializer())) {
+      consumer.subscribe(List.of("streamed"));
+      long[] nextOffsets = new long[2];
+      int count = 0;
+      ConsumerRecords<String, String> records;
+      while (!(records = consumer.poll(Duration.ZERO)).isEmpty()) {
+        assertTrue(records.count() <= 100, "Poll returned " + records.count() + " records");
+        for (ConsumerRecord<String, String> record : records) {
+          assertEquals(nextOffsets[record.partition()]++, record.offset());
+          assertEquals("value-" + (2 * record.offset() + record.partition()), record.value());
+          count++;
+        }
+      }
+      assertEquals(3000, count);
+      assertEquals(1500L, consumer.position(new TopicPartition("streamed", 1)));
+
+      TopicPartition tp = new TopicPartition("streamed", 1);
+      consumer.seek(tp, 1234L);
+      ConsumerRecord<String, String> first = null;
+      for (ConsumerRecord<String, String> record : consumer.poll(Duration.ZERO))
+        if (first == null && record.partition() == 1) first = record;
+      assertNotNull(first);
+      assertEquals(1234L, first.offset());
+      assertEquals("key-" + (2 * 1234 + 1), first.key());
+    }
+  }
+
+  @Test
+  public void spliteratorSplitsByPartitionAndSegment() throws Exception {
+    Map<String, Object> configs = logConfigs("split", 16 * 1024);
+    try (FileProducer<String, String> producer = new FileProducer<>(configs, new StringSerializer(), new StringSerializer())) {
+      for (int i = 0; i < 9000; i++)
+        producer.send(new ProducerRecord<>("split", i % 3, "key-" + i, "value-" + i));
+    }
+
+    Path dir = Path.of(testPath, "split");
+    try (LogSpliterator<String, String> all = LogSpliterator.open(dir, "split", new StringDeserializer(), new StringDeserializer())) {
+      assertTrue(all.hasCharacteristics(Spliterator.SIZED | Spliterator.SUBSIZED | Spliterator.ORDERED));
+      assertEquals(9000L, all.estimateSize());
+      Spliterator<ConsumerRecord<String, String>> first = all.trySplit();
+      assertNotNull(first);
+      assertEquals(9000L, first.estimateSize() + all.estimateSize());
+      AtomicReference<ConsumerRecord<String, String>> head = new AtomicReference<>();
+      assertTrue(first.tryAdvance(head::set));
+      assertEquals(0, head.get().partition());
+      assertEquals(0L, head.get().offset());
+    }
+
+    // A single partition splits at its segment boundaries, each split reading exactly its own offsets.
+    TopicPartition tp = new TopicPartition("split", 1);
+    try (LogSpliterator<String, String> one = LogSpliterator.open(dir, List.of(tp), new StringDeserializer(), new StringDeserializer())) {
+      Spliterator<ConsumerRecord<String, String>> head = one.trySplit();
+      assertNotNull(head);
+      long headSize = head.estimateSize();
+      long[] next = new long[1];
+      head.forEachRemaining(record -> assertEquals(next[0]++, record.offset()));
+      assertEquals(headSize, next[0]);
+      one.forEachRemaining(record -> assertEquals(next[0]++, record.offset()));
+      assertEquals(3000L, next[0]);
+    }
+
+    List<String> values = StreamSupport.stream(
+        LogSpliterator.open(dir, "split", new StringDeserializer(), new StringDeserializer()), true)
+        .map(ConsumerRecord::value)
+        .collect(Collectors.toList());
+    assertEquals(9000, values.size());
+    assertEquals("value-0", values.get(0));
+    assertEquals("value-3", values.get(1));
+    assertEquals("value-8999", values.get(8999));
+  }
+}